@@ -0,0 +1,618 @@
+/*
+ * Copyright 2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bdp.cli;
+
+import com.blackberry.bdp.kaboom.BoomFileCommitProtocol;
+import com.blackberry.bdp.kaboom.BoomFileHeader;
+import com.blackberry.bdp.kaboom.HourManifest;
+import com.blackberry.bdp.kaboom.InstrumentedFileSystem;
+import com.blackberry.bdp.kaboom.NameNodeRateLimiter;
+import com.blackberry.bdp.kaboom.StartupConfig;
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+import org.kohsuke.args4j.spi.IntOptionHandler;
+import org.kohsuke.args4j.spi.LongOptionHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.kohsuke.args4j.ExampleMode.ALL;
+
+/**
+ * Merges the small boom files of closed (flagged as ready) directories into
+ * files of about targetBytes.
+ *
+ * The avro blocks are copied as is (no decompression or recompression) into
+ * the merged files and only the sync markers are rewritten, so only files
+ * whose schema and codec match are merged together.
+ *
+ * The merged files are written to a hidden staging directory next to the one
+ * being compacted and swapped in with directory renames:
+ *
+ * 1. dir is renamed to _dir.replaced
+ * 2. the files that weren't merged are moved from _dir.replaced to _dir.compacting
+ * 3. _dir.compacting is renamed to dir
+ * 4. _dir.replaced is deleted
+ *
+ * so readers never see a merged file alongside its inputs (at worst dir is
+ * briefly missing).  Should dir be recreated while it's missing (by a late
+ * writer or ready flag) the staged files are moved into it one by one
+ * instead, never overwriting what's there.  The staging directory holds a
+ * _COMPACTED manifest of the merged inputs which lets an interrupted swap be
+ * completed by the next run and keeps a compacted directory from being
+ * compacted again.
+ *
+ * The sidecars of the merged inputs (_<file>.idx, _<file>.bloom and
+ * _<file>.partitions) are dropped with them, readers fall back to scanning
+ * the merged files.  The directory's hour manifest (_HOUR_MANIFEST) and commit
+ * protocol manifests (_manifest.*) are rewritten into the staging directory
+ * to list the merged files in place of their inputs.
+ */
+public class BoomCompactor {
+
+	private static final Logger LOG = LoggerFactory.getLogger(BoomCompactor.class);
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String MANIFEST = "_COMPACTED";
+	private static final String STAGING_SUFFIX = ".compacting";
+	private static final String REPLACED_SUFFIX = ".replaced";
+
+	private StartupConfig config;
+	private InstrumentedFileSystem fs;
+
+	@Option(name = "-glob", usage = "HDFS glob of the directories to compact", metaVar = "<glob>")
+	private String glob;
+
+	@Option(name = "-proxyUser", usage = "The user that owns the directories", metaVar = "<user>")
+	private String proxyUser;
+
+	@Option(name = "-readyFlag", usage = "Path of the ready flag relative to each directory (default _READY)", metaVar = "<path>")
+	private String readyFlag = "_READY";
+
+	@Option(name = "-targetBytes", usage = "Size of the merged files (default boom.file.block.size)", handler = LongOptionHandler.class, metaVar = "<bytes>")
+	private Long targetBytes;
+
+	@Option(name = "-threads", usage = "Directories compacted in parallel (default 4)", handler = IntOptionHandler.class, metaVar = "<threads>")
+	private Integer threads = 4;
+
+	@Option(name = "-maxOpsPerSec", usage = "NameNode operations per second (default kaboom.namenode.max.ops.per.sec)", handler = LongOptionHandler.class, metaVar = "<ops>")
+	private Long maxOpsPerSec;
+
+	public static void main(String[] args) throws Exception {
+		new BoomCompactor().run(args);
+	}
+
+	private void run(String[] args) throws Exception {
+		CmdLineParser parser = new CmdLineParser(this);
+		try {
+			parser.parseArgument(args);
+			if (glob == null || proxyUser == null) {
+				throw new CmdLineException(parser, "There was a missing required command line argument");
+			}
+		} catch (CmdLineException e) {
+			System.err.println(e.getMessage());
+			parser.printUsage(System.err);
+			System.err.println();
+			System.err.println("  Usage: java <java options> " + this.getClass() + " " + parser.printExample(ALL));
+			return;
+		}
+
+		try {
+			config = new StartupConfig(StartupConfig.getProperties());
+			config.logConfiguraton();
+		} catch (Exception e) {
+			LOG.error("an error occured while building configuration object: ", e);
+			throw e;
+		}
+
+		NameNodeRateLimiter rateLimiter = maxOpsPerSec != null && maxOpsPerSec > 0
+			 ? new NameNodeRateLimiter(maxOpsPerSec, 0.2)
+			 : config.getNameNodeRateLimiter();
+		fs = new InstrumentedFileSystem(config.authenticatedFsForProxyUser(proxyUser), "compaction", rateLimiter);
+
+		if (targetBytes == null) {
+			targetBytes = config.getRunningConfig().getBoomFileBlocksize();
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+		List<Future<?>> futures = new ArrayList<>();
+
+		for (final Path dir : directories()) {
+			futures.add(executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						compact(dir);
+					} catch (Exception e) {
+						LOG.error("[{}] compaction failed: ", dir, e);
+					}
+				}
+
+			}));
+		}
+
+		for (Future<?> future : futures) {
+			future.get();
+		}
+		executor.shutdown();
+		config.getKaBoomCurator().close();
+	}
+
+	/**
+	 * @return the directories matching the glob, with our staging and replaced
+	 * directories mapped back to the directory they belong to so that an
+	 * interrupted swap is always completed
+	 */
+	private Set<Path> directories() throws IOException {
+		Set<Path> dirs = new LinkedHashSet<>();
+		FileStatus[] matches = fs.globStatus(new Path(glob));
+		if (matches == null) {
+			return dirs;
+		}
+		for (FileStatus status : matches) {
+			if (!status.isDirectory()) {
+				continue;
+			}
+			String name = status.getPath().getName();
+			Path parent = status.getPath().getParent();
+			if (name.startsWith("_") && name.endsWith(STAGING_SUFFIX)) {
+				dirs.add(new Path(parent, name.substring(1, name.length() - STAGING_SUFFIX.length())));
+			} else if (name.startsWith("_") && name.endsWith(REPLACED_SUFFIX)) {
+				dirs.add(new Path(parent, name.substring(1, name.length() - REPLACED_SUFFIX.length())));
+			} else if (!name.startsWith("_") && !name.startsWith(".")) {
+				dirs.add(status.getPath());
+			}
+		}
+		return dirs;
+	}
+
+	private Path staging(Path dir) {
+		return new Path(dir.getParent(), "_" + dir.getName() + STAGING_SUFFIX);
+	}
+
+	private Path replaced(Path dir) {
+		return new Path(dir.getParent(), "_" + dir.getName() + REPLACED_SUFFIX);
+	}
+
+	private void compact(Path dir) throws IOException {
+		if (fs.exists(replaced(dir))) {
+			if (fs.exists(staging(dir))) {
+				LOG.info("[{}] completing an interrupted swap", dir);
+				swap(dir, readManifest(new Path(staging(dir), MANIFEST)), false);
+			} else {
+				LOG.info("[{}] removing the files replaced by an earlier compaction", dir);
+				fs.delete(replaced(dir), true);
+			}
+			return;
+		}
+
+		if (fs.exists(staging(dir))) {
+			LOG.info("[{}] removing the staging directory of an interrupted compaction", dir);
+			fs.delete(staging(dir), true);
+		}
+
+		if (!fs.exists(dir)) {
+			return;
+		}
+
+		if (fs.exists(new Path(dir, MANIFEST))) {
+			LOG.debug("[{}] already compacted", dir);
+			return;
+		}
+
+		if (!fs.exists(new Path(dir, readyFlag))) {
+			LOG.debug("[{}] not ready, no {}", dir, readyFlag);
+			return;
+		}
+
+		List<FileStatus> small = new ArrayList<>();
+		for (FileStatus status : fs.listStatus(dir)) {
+			String name = status.getPath().getName();
+			if (status.isFile()
+				 && name.endsWith(".bm")
+				 && !name.startsWith("_")
+				 && !name.startsWith(".")
+				 && status.getLen() < targetBytes) {
+				small.add(status);
+			}
+		}
+
+		List<List<FileStatus>> bins = bins(small, targetBytes);
+		if (bins.isEmpty()) {
+			LOG.debug("[{}] nothing to compact", dir);
+			return;
+		}
+
+		long start = System.currentTimeMillis();
+		fs.mkdirs(staging(dir), config.getBoomFilePerms());
+
+		Set<String> merged = new HashSet<>();
+		Map<String, Merger> mergedOutputs = new HashMap<>();
+		int mergedFiles = 0;
+		for (List<FileStatus> bin : bins) {
+			Path mergedPath = new Path(staging(dir), String.format("compacted-%d-%d.bm", start, mergedFiles));
+			Merger merger = merge(bin, mergedPath);
+			List<FileStatus> inputs = merger.getInputs();
+			if (inputs.size() > 1) {
+				for (FileStatus input : inputs) {
+					merged.add(input.getPath().getName());
+				}
+				mergedOutputs.put(mergedPath.getName(), merger);
+				mergedFiles++;
+			} else {
+				// Nothing was merged, the input stays in place
+				fs.delete(mergedPath, false);
+			}
+		}
+
+		if (merged.isEmpty()) {
+			fs.delete(staging(dir), true);
+			return;
+		}
+
+		// Written before _COMPACTED so an interrupted swap always has them
+		rewriteHourManifest(dir, merged, mergedOutputs);
+		rewriteCommitManifests(dir, merged, mergedOutputs.keySet(), start);
+		writeManifest(new Path(staging(dir), MANIFEST), merged);
+		swap(dir, merged, true);
+
+		LOG.info("[{}] compacted {} files into {} in {} ms", dir, merged.size(), mergedFiles, System.currentTimeMillis() - start);
+	}
+
+	private void swap(Path dir, Set<String> merged, boolean renameDir) throws IOException {
+		Path staging = staging(dir);
+		Path replaced = replaced(dir);
+
+		if (renameDir && !fs.rename(dir, replaced)) {
+			throw new IOException("failed to rename " + dir + " to " + replaced);
+		}
+
+		for (FileStatus status : fs.listStatus(replaced)) {
+			String name = status.getPath().getName();
+			if (!replacedByMerge(name, merged)
+				 && !name.equals(MANIFEST)
+				 && !fs.exists(new Path(staging, name))) {
+				if (!fs.rename(status.getPath(), new Path(staging, name))) {
+					throw new IOException("failed to move " + status.getPath() + " to " + staging);
+				}
+			}
+		}
+
+		if (fs.exists(dir)) {
+			LOG.warn("[{}] was recreated during the swap, moving the compacted files into it", dir);
+			moveInto(staging, dir);
+		} else {
+			if (!fs.rename(staging, dir)) {
+				throw new IOException("failed to rename " + staging + " to " + dir);
+			}
+			// Recreated just before the rename, which then moved staging into it
+			Path nested = new Path(dir, staging.getName());
+			if (fs.exists(nested)) {
+				LOG.warn("[{}] was recreated during the swap, moving the compacted files into it", dir);
+				moveInto(nested, dir);
+			}
+		}
+
+		fs.delete(replaced, true);
+	}
+
+	/**
+	 * Moves every file of from into to (leaving out the _COMPACTED manifest and
+	 * failing on any file that's already there) and deletes from
+	 */
+	private void moveInto(Path from, Path to) throws IOException {
+		for (FileStatus status : fs.listStatus(from)) {
+			String name = status.getPath().getName();
+			if (name.equals(MANIFEST)) {
+				continue;
+			}
+			Path target = new Path(to, name);
+			if (fs.exists(target)) {
+				throw new IOException("not overwriting " + target + " with " + status.getPath());
+			}
+			if (!fs.rename(status.getPath(), target)) {
+				throw new IOException("failed to move " + status.getPath() + " to " + to);
+			}
+		}
+		fs.delete(from, true);
+	}
+
+	/**
+	 * @param name a file in the directory being compacted
+	 * @param merged the names of the merged inputs
+	 * @return true for a merged input and for the sidecars (_<input>.<ext>) of one
+	 */
+	static boolean replacedByMerge(String name, Set<String> merged) {
+		if (merged.contains(name)) {
+			return true;
+		}
+		int extension = name.lastIndexOf('.');
+		return name.startsWith("_") && extension > 1 && merged.contains(name.substring(1, extension));
+	}
+
+	/**
+	 * Writes the directory's hour manifest to the staging directory with the
+	 * merged files in place of their inputs
+	 */
+	private void rewriteHourManifest(Path dir, Set<String> merged, Map<String, Merger> mergedOutputs) throws IOException {
+		if (!fs.exists(new Path(dir, HourManifest.MANIFEST))) {
+			return;
+		}
+		List<HourManifest.Entry> entries = new ArrayList<>();
+		for (HourManifest.Entry entry : HourManifest.read(fs.getFileSystem(), dir)) {
+			if (!merged.contains(new Path(entry.getPath()).getName())) {
+				entries.add(entry);
+			}
+		}
+		for (Map.Entry<String, Merger> output : mergedOutputs.entrySet()) {
+			entries.add(new HourManifest.Entry(fs.getFileSystem().makeQualified(new Path(dir, output.getKey())).toString(),
+				 output.getValue().getBytes(),
+				 output.getValue().getRecords(),
+				 -1,
+				 -1));
+		}
+		HourManifest.write(fs.getFileSystem(), staging(dir), entries);
+	}
+
+	/**
+	 * Writes each of the directory's commit protocol manifests to the staging
+	 * directory without the merged inputs, along with one of the merged files
+	 */
+	private void rewriteCommitManifests(Path dir, Set<String> merged, Set<String> mergedOutputs, long start) throws IOException {
+		FileStatus[] manifests = fs.globStatus(new Path(dir, BoomFileCommitProtocol.MANIFEST_PREFIX + "*"));
+		if (manifests == null || manifests.length == 0) {
+			return;
+		}
+		for (FileStatus manifest : manifests) {
+			List<String> kept = new ArrayList<>();
+			for (String name : readManifest(manifest.getPath())) {
+				if (!merged.contains(name)) {
+					kept.add(name);
+				}
+			}
+			BoomFileCommitProtocol.writeManifest(fs, staging(dir).toString(),
+				 manifest.getPath().getName().substring(BoomFileCommitProtocol.MANIFEST_PREFIX.length()),
+				 config.getBoomFilePerms(), kept);
+		}
+		BoomFileCommitProtocol.writeManifest(fs, staging(dir).toString(), "compacted-" + start,
+			 config.getBoomFilePerms(), mergedOutputs);
+	}
+
+	/**
+	 * Copies the avro blocks of the files into a single file
+	 *
+	 * @return the merger, whose inputs leave out files that aren't compatible with the first one
+	 */
+	private Merger merge(List<FileStatus> bin, Path mergedPath) throws IOException {
+		try (OutputStream out = fs.create(mergedPath,
+			 config.getBoomFilePerms(),
+			 false,
+			 config.getRunningConfig().getBoomFileBufferSize(),
+			 config.getRunningConfig().getBoomFileReplicas(),
+			 config.getRunningConfig().getBoomFileBlocksize())) {
+			Merger merger = new Merger(out);
+			for (FileStatus input : bin) {
+				try (InputStream in = fs.open(input.getPath(), config.getRunningConfig().getBoomFileBufferSize())) {
+					if (merger.append(in, input.getPath())) {
+						merger.getInputs().add(input);
+					} else {
+						LOG.warn("[{}] schema or codec differs from {}, not merged", input.getPath(), bin.get(0).getPath());
+					}
+				}
+			}
+			return merger;
+		}
+	}
+
+	/**
+	 * Appends the avro blocks of boom files to a merged file as is, only the
+	 * sync markers are rewritten
+	 */
+	static class Merger {
+
+		private final CountingOutputStream out;
+		private final List<FileStatus> inputs = new ArrayList<>();
+		private BoomFileHeader header = null;
+		private byte[] buffer = new byte[1024 * 1024];
+		private final byte[] sync = new byte[BoomFileHeader.SYNC_SIZE];
+		private long records = 0;
+
+		Merger(OutputStream out) {
+			this.out = new CountingOutputStream(out);
+		}
+
+		/**
+		 * @param in a boom file, from its start
+		 * @param source for errors
+		 * @return false if the file's schema or codec differs from the first
+		 * file's, nothing was appended
+		 * @throws IOException
+		 */
+		boolean append(InputStream in, Object source) throws IOException {
+			BoomFileHeader inputHeader = BoomFileHeader.read(in);
+
+			if (header == null) {
+				header = inputHeader;
+				header.write(out);
+			} else if (!header.isCompatible(inputHeader)) {
+				return false;
+			}
+
+			while (true) {
+				long count;
+				try {
+					count = BoomFileHeader.readLong(in);
+				} catch (EOFException eof) {
+					break;
+				}
+				long size = BoomFileHeader.readLong(in);
+				if (size < 0 || size > Integer.MAX_VALUE) {
+					throw new IOException("invalid avro block size " + size + " in " + source);
+				}
+				if (buffer.length < size) {
+					buffer = new byte[(int) size];
+				}
+				BoomFileHeader.readFully(in, buffer, 0, (int) size);
+				BoomFileHeader.readFully(in, sync);
+				if (!Arrays.equals(sync, inputHeader.getSyncMarker())) {
+					throw new IOException("sync marker mismatch in " + source);
+				}
+
+				BoomFileHeader.writeLong(out, count);
+				BoomFileHeader.writeLong(out, size);
+				out.write(buffer, 0, (int) size);
+				out.write(header.getSyncMarker());
+				records += count;
+			}
+			return true;
+		}
+
+		List<FileStatus> getInputs() {
+			return inputs;
+		}
+
+		long getRecords() {
+			return records;
+		}
+
+		/**
+		 * @return the size of the merged file so far
+		 */
+		long getBytes() {
+			return out.count;
+		}
+
+	}
+
+	private static class CountingOutputStream extends FilterOutputStream {
+
+		private long count = 0;
+
+		private CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+
+	}
+
+	/**
+	 * First fit decreasing packing of the files into bins of at most
+	 * targetBytes, bins that would hold a single file are dropped
+	 *
+	 * @param files
+	 * @param targetBytes
+	 * @return the bins
+	 */
+	static List<List<FileStatus>> bins(List<FileStatus> files, long targetBytes) {
+		List<FileStatus> sorted = new ArrayList<>(files);
+		Collections.sort(sorted, new Comparator<FileStatus>() {
+			@Override
+			public int compare(FileStatus a, FileStatus b) {
+				return Long.compare(b.getLen(), a.getLen());
+			}
+
+		});
+
+		List<List<FileStatus>> bins = new ArrayList<>();
+		List<Long> binSizes = new ArrayList<>();
+
+		for (FileStatus file : sorted) {
+			boolean placed = false;
+			for (int i = 0; i < bins.size(); i++) {
+				if (binSizes.get(i) + file.getLen() <= targetBytes) {
+					bins.get(i).add(file);
+					binSizes.set(i, binSizes.get(i) + file.getLen());
+					placed = true;
+					break;
+				}
+			}
+			if (!placed) {
+				List<FileStatus> bin = new ArrayList<>();
+				bin.add(file);
+				bins.add(bin);
+				binSizes.add(file.getLen());
+			}
+		}
+
+		List<List<FileStatus>> mergeable = new ArrayList<>();
+		for (List<FileStatus> bin : bins) {
+			if (bin.size() > 1) {
+				mergeable.add(bin);
+			}
+		}
+		return mergeable;
+	}
+
+	private void writeManifest(Path path, Set<String> merged) throws IOException {
+		try (OutputStream out = fs.create(path,
+			 config.getBoomFilePerms(),
+			 true,
+			 config.getRunningConfig().getBoomFileBufferSize(),
+			 config.getRunningConfig().getBoomFileReplicas(),
+			 config.getRunningConfig().getBoomFileBlocksize())) {
+			for (String name : merged) {
+				out.write((name + "\n").getBytes(UTF8));
+			}
+		}
+	}
+
+	private Set<String> readManifest(Path path) throws IOException {
+		Set<String> merged = new HashSet<>();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(path, 4096), UTF8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (!line.isEmpty()) {
+					merged.add(line);
+				}
+			}
+		}
+		return merged;
+	}
+
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bdp.cli;
+
+import com.blackberry.bdp.common.jmx.MetricRegistrySingleton;
+import com.blackberry.bdp.kaboom.BoomFileCommitProtocol;
+import com.blackberry.bdp.kaboom.InstrumentedFileSystem;
+import com.blackberry.bdp.kaboom.InstrumentedFileSystem.Op;
+import com.blackberry.bdp.kaboom.NameNodeRateLimiter;
+import com.blackberry.bdp.kaboom.StartupConfig;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.apache.hadoop.fs.Path;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+import org.kohsuke.args4j.spi.IntOptionHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.kohsuke.args4j.ExampleMode.ALL;
+
+/**
+ * Commits small files under each boom file commit protocol to a scratch
+ * directory and reports the NameNode operations (as counted by
+ * InstrumentedFileSystem) and wall time per committed file.
+ */
+public class CommitProtocolBenchmark {
+
+	private static final Logger LOG = LoggerFactory.getLogger(CommitProtocolBenchmark.class);
+
+	@Option(name = "-dir", usage = "Scratch HDFS directory, each protocol writes to a subdirectory that is deleted", metaVar = "<dir>")
+	private String dir;
+
+	@Option(name = "-proxyUser", usage = "The user that owns the scratch directory", metaVar = "<user>")
+	private String proxyUser;
+
+	@Option(name = "-protocols", usage = "Comma separated protocols to run (default all)", metaVar = "<protocols>")
+	private String protocols;
+
+	@Option(name = "-files", usage = "Files committed per protocol (default 100)", handler = IntOptionHandler.class, metaVar = "<files>")
+	private Integer files = 100;
+
+	@Option(name = "-filesPerManifest", usage = "Files listed by each manifest (default 10)", handler = IntOptionHandler.class, metaVar = "<files>")
+	private Integer filesPerManifest = 10;
+
+	@Option(name = "-bytes", usage = "Bytes written to each file (default 4096)", handler = IntOptionHandler.class, metaVar = "<bytes>")
+	private Integer bytes = 4096;
+
+	public static void main(String[] args) throws Exception {
+		new CommitProtocolBenchmark().run(args);
+	}
+
+	private void run(String[] args) throws Exception {
+		CmdLineParser parser = new CmdLineParser(this);
+		try {
+			parser.parseArgument(args);
+			if (dir == null || proxyUser == null) {
+				throw new CmdLineException(parser, "There was a missing required command line argument");
+			}
+		} catch (CmdLineException e) {
+			System.err.println(e.getMessage());
+			parser.printUsage(System.err);
+			System.err.println();
+			System.err.println("  Usage: java <java options> " + this.getClass() + " " + parser.printExample(ALL));
+			return;
+		}
+
+		StartupConfig config;
+		try {
+			config = new StartupConfig(StartupConfig.getProperties());
+			config.logConfiguraton();
+		} catch (Exception e) {
+			LOG.error("an error occured while building configuration object: ", e);
+			throw e;
+		}
+
+		List<BoomFileCommitProtocol> toRun = new ArrayList<>();
+		if (protocols == null) {
+			for (BoomFileCommitProtocol protocol : BoomFileCommitProtocol.values()) {
+				toRun.add(protocol);
+			}
+		} else {
+			for (String name : protocols.split(",")) {
+				toRun.add(BoomFileCommitProtocol.fromName(name, false));
+			}
+		}
+
+		byte[] data = new byte[bytes];
+		new Random().nextBytes(data);
+
+		for (BoomFileCommitProtocol protocol : toRun) {
+			String topic = "commit benchmark " + protocol.name().toLowerCase();
+			InstrumentedFileSystem fs = new InstrumentedFileSystem(
+				 config.authenticatedFsForProxyUser(proxyUser), topic, (NameNodeRateLimiter) null);
+			String protocolDir = dir + "/" + protocol.name().toLowerCase();
+			fs.delete(new Path(protocolDir), true);
+
+			Map<Op, Long> before = counts(topic);
+			long start = System.currentTimeMillis();
+			List<String> committed = new ArrayList<>();
+
+			for (int i = 0; i < files; i++) {
+				String filename = String.format("benchmark-%d.bm", i);
+				Path openPath = protocol.openPath(protocolDir, filename, config.getRunningConfig().getBoomFileTmpPrefix());
+				OutputStream out = fs.create(openPath,
+					 config.getBoomFilePerms(),
+					 false,
+					 config.getRunningConfig().getBoomFileBufferSize(),
+					 config.getRunningConfig().getBoomFileReplicas(),
+					 config.getRunningConfig().getBoomFileBlocksize());
+				out.write(data);
+				fs.close(out);
+				protocol.commit(fs, openPath, new Path(protocolDir + "/" + filename));
+
+				if (protocol == BoomFileCommitProtocol.MANIFEST) {
+					committed.add(filename);
+					if (committed.size() >= filesPerManifest || i == files - 1) {
+						BoomFileCommitProtocol.writeManifest(fs, protocolDir, "benchmark." + i,
+							 config.getBoomFilePerms(), committed);
+						committed.clear();
+					}
+				}
+			}
+
+			long elapsed = System.currentTimeMillis() - start;
+			Map<Op, Long> after = counts(topic);
+
+			long total = 0;
+			StringBuilder perOp = new StringBuilder();
+			for (Op op : Op.values()) {
+				long ops = after.get(op) - before.get(op);
+				if (ops > 0) {
+					total += ops;
+					perOp.append(String.format(" %s=%.2f", op.metricName().replace(' ', '_'), (double) ops / files));
+				}
+			}
+			System.out.println(String.format("%-14s %.2f NameNode ops/file:%s, %.1f ms/file",
+				 protocol, (double) total / files, perOp, (double) elapsed / files));
+
+			fs.delete(new Path(protocolDir), true);
+		}
+	}
+
+	private static Map<Op, Long> counts(String topic) {
+		Map<Op, Long> counts = new EnumMap<>(Op.class);
+		for (Op op : Op.values()) {
+			counts.put(op, MetricRegistrySingleton.getInstance().getMetricsRegistry()
+				 .timer("kaboom:topic:" + topic + ":namenode " + op.metricName()).getCount());
+		}
+		return counts;
+	}
+
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bdp.cli;
+
+import com.blackberry.bdp.kaboom.BlockBloomFilters;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.zip.Deflater;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+import org.kohsuke.args4j.spi.IntOptionHandler;
+
+import static org.kohsuke.args4j.ExampleMode.ALL;
+
+/**
+ * Reports the CPU cost of tokenizing lines into per block bloom filters next
+ * to the cost of deflating the same blocks, which is the bulk of the CPU a
+ * boom writer spends, along with the size of the bloom filters next to the
+ * compressed blocks.
+ */
+public class TokenBloomBenchmark {
+
+	private static final Charset UTF8 = Charset.forName("UTF8");
+	// The size of FastBoomWriter's avro block buffer
+	private static final int BLOCK_BYTES = 2 * 1024 * 1024;
+	// Lines in each log block, which holds a single second of lines
+	private static final int LOG_BLOCK_LINES = 1000;
+
+	@Option(name = "-file", usage = "A file of log lines to use (default synthetic lines)", metaVar = "<file>")
+	private String file;
+
+	@Option(name = "-lines", usage = "Synthetic lines to generate (default 500000)", handler = IntOptionHandler.class, metaVar = "<lines>")
+	private Integer lineCount = 500000;
+
+	@Option(name = "-bitsPerToken", usage = "Bloom filter bits per distinct token (default 10)", handler = IntOptionHandler.class, metaVar = "<bits>")
+	private Integer bitsPerToken = 10;
+
+	@Option(name = "-level", usage = "Deflate compression level (default 6)", handler = IntOptionHandler.class, metaVar = "<level>")
+	private Integer level = 6;
+
+	@Option(name = "-iterations", usage = "Timed passes over the lines, after one warm up pass (default 5)", handler = IntOptionHandler.class, metaVar = "<iterations>")
+	private Integer iterations = 5;
+
+	public static void main(String[] args) throws Exception {
+		new TokenBloomBenchmark().run(args);
+	}
+
+	private void run(String[] args) throws Exception {
+		CmdLineParser parser = new CmdLineParser(this);
+		try {
+			parser.parseArgument(args);
+		} catch (CmdLineException e) {
+			System.err.println(e.getMessage());
+			parser.printUsage(System.err);
+			System.err.println();
+			System.err.println("  Usage: java <java options> " + this.getClass() + " " + parser.printExample(ALL));
+			return;
+		}
+
+		List<byte[]> lines = file == null ? syntheticLines(lineCount) : readLines(file);
+		long lineBytes = 0;
+		for (byte[] line : lines) {
+			lineBytes += line.length;
+		}
+		System.out.println(String.format("%d lines, %.1f MB", lines.size(), lineBytes / 1048576.0));
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		Deflater deflater = new Deflater(level, true);
+		byte[] block = new byte[BLOCK_BYTES];
+		byte[] compressed = new byte[BLOCK_BYTES * 2];
+
+		long deflateNanos = 0;
+		long bloomNanos = 0;
+		long compressedBytes = 0;
+		long bloomBytes = 0;
+		int blocks = 0;
+
+		for (int iteration = 0; iteration <= iterations; iteration++) {
+			// Deflate each block the way the writer does
+			long start = threads.getCurrentThreadCpuTime();
+			long passCompressed = 0;
+			int position = 0;
+			for (byte[] line : lines) {
+				if (position + line.length > block.length) {
+					passCompressed += deflate(deflater, block, position, compressed);
+					position = 0;
+				}
+				System.arraycopy(line, 0, block, position, Math.min(line.length, block.length));
+				position += Math.min(line.length, block.length);
+			}
+			passCompressed += deflate(deflater, block, position, compressed);
+			long deflated = threads.getCurrentThreadCpuTime() - start;
+
+			// Tokenize the same blocks into bloom filters
+			start = threads.getCurrentThreadCpuTime();
+			BlockBloomFilters.Builder builder = new BlockBloomFilters.Builder(bitsPerToken);
+			position = 0;
+			int logBlockLines = 0;
+			for (byte[] line : lines) {
+				if (position + line.length > block.length) {
+					builder.logBlock();
+					builder.avroBlock(position);
+					position = 0;
+					logBlockLines = 0;
+				}
+				builder.line(line, 0, line.length);
+				position += line.length;
+				if (++logBlockLines == LOG_BLOCK_LINES) {
+					builder.logBlock();
+					logBlockLines = 0;
+				}
+			}
+			builder.logBlock();
+			builder.avroBlock(position);
+			long tokenized = threads.getCurrentThreadCpuTime() - start;
+
+			if (iteration == 0) {
+				continue;
+			}
+			ByteArrayOutputStream sidecar = new ByteArrayOutputStream();
+			builder.write(sidecar);
+			deflateNanos += deflated;
+			bloomNanos += tokenized;
+			compressedBytes += passCompressed;
+			bloomBytes += sidecar.size();
+			blocks += builder.size();
+		}
+
+		long passes = iterations;
+		System.out.println(String.format("deflate:  %.0f ns/line, %.1f MB/s cpu",
+			 (double) deflateNanos / passes / lines.size(), lineBytes * passes / 1048576.0 / (deflateNanos / 1e9)));
+		System.out.println(String.format("tokenize: %.0f ns/line, %.1f MB/s cpu",
+			 (double) bloomNanos / passes / lines.size(), lineBytes * passes / 1048576.0 / (bloomNanos / 1e9)));
+		System.out.println(String.format("cpu overhead: %.1f%% of deflate", 100.0 * bloomNanos / deflateNanos));
+		System.out.println(String.format("bloom filters: %.1f KB/block, %.1f%% of the compressed bytes (%d bits/token, %d hashes)",
+			 bloomBytes / 1024.0 / blocks, 100.0 * bloomBytes / compressedBytes, bitsPerToken, BlockBloomFilters.hashesFor(bitsPerToken)));
+	}
+
+	private static int deflate(Deflater deflater, byte[] block, int length, byte[] compressed) {
+		deflater.reset();
+		deflater.setInput(block, 0, length);
+		deflater.finish();
+		return deflater.deflate(compressed, 0, compressed.length);
+	}
+
+	private static List<byte[]> readLines(String file) throws Exception {
+		List<byte[]> lines = new ArrayList<>();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				lines.add(line.getBytes(UTF8));
+			}
+		}
+		return lines;
+	}
+
+	private static List<byte[]> syntheticLines(int count) {
+		Random rand = new Random(42);
+		String[] paths = {"/api/v1/items", "/api/v1/users", "/static/app.js", "/login", "/api/v2/search"};
+		List<byte[]> lines = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			String line = String.format("2016-03-01T12:%02d:%02d.%03dZ host-%03d.dc1.example.com httpd[%d]: "
+				 + "%s %s/%d status=%d bytes=%d request_id=%s",
+				 (i / 60000) % 60, (i / 1000) % 60, i % 1000,
+				 rand.nextInt(500), 1000 + rand.nextInt(50),
+				 rand.nextBoolean() ? "GET" : "POST", paths[rand.nextInt(paths.length)], rand.nextInt(100000),
+				 rand.nextInt(10) == 0 ? 500 : 200, rand.nextInt(65536), new UUID(rand.nextLong(), rand.nextLong()));
+			lines.add(line.getBytes(UTF8));
+		}
+		return lines;
+	}
+
+}
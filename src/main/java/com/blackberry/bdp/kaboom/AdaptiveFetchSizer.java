@@ -0,0 +1,184 @@
+/*
+ * Copyright 2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bdp.kaboom;
+
+import com.blackberry.bdp.krackle.consumer.ConsumerConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tunes a single partition's fetch parameters from what the worker observes.
+ *
+ * A worker that is behind (offset lag above the configured threshold) grows
+ * its maximum fetch size towards the configured upper bound and stops waiting
+ * on the broker.  A worker that is idle shrinks its maximum fetch size towards
+ * the lower bound and lengthens the broker wait so that it long-polls for small
+ * fetches.  In between the maximum fetch size follows the bytes consumed over
+ * the last evaluation interval.
+ *
+ * The configured fetch.message.max.bytes is always the upper bound so that the
+ * consumer's response buffer (sized from it) is never outgrown.
+ *
+ * fetch.min.bytes is left as configured.  A worker that is behind fills its
+ * fetches regardless, and raising it for an idle worker would only hold a
+ * quiet partition's messages back until the broker wait runs out.
+ */
+public class AdaptiveFetchSizer {
+
+	private static final Logger LOG = LoggerFactory.getLogger(AdaptiveFetchSizer.class);
+
+	private final String partitionId;
+	private final int minFetchBytes;
+	private final int maxFetchBytes;
+	private final int minWaitMs;
+	private final int maxWaitMs;
+	private final long lagThreshold;
+	private final long intervalMs;
+
+	private int fetchMessageMaxBytes;
+	private int fetchWaitMaxMs;
+	private long bytesThisInterval = 0;
+	private long messagesThisInterval = 0;
+	private long emptyFetchesThisInterval = 0;
+	private long intervalStart;
+
+	public AdaptiveFetchSizer(String partitionId,
+		 int minFetchBytes,
+		 int maxFetchBytes,
+		 int minWaitMs,
+		 int maxWaitMs,
+		 long lagThreshold,
+		 long intervalMs) {
+		this.partitionId = partitionId;
+		this.minFetchBytes = Math.min(minFetchBytes, maxFetchBytes);
+		this.maxFetchBytes = maxFetchBytes;
+		this.minWaitMs = Math.min(minWaitMs, maxWaitMs);
+		this.maxWaitMs = maxWaitMs;
+		this.lagThreshold = lagThreshold;
+		this.intervalMs = intervalMs;
+		this.fetchMessageMaxBytes = maxFetchBytes;
+		this.fetchWaitMaxMs = maxWaitMs;
+		this.intervalStart = System.currentTimeMillis();
+	}
+
+	public AdaptiveFetchSizer(String partitionId, StartupConfig config, ConsumerConfiguration consumerConfiguration) {
+		this(partitionId,
+			 config.getAdaptiveFetchMinBytes(),
+			 consumerConfiguration.getFetchMessageMaxBytes(),
+			 config.getAdaptiveFetchMinWaitMs(),
+			 consumerConfiguration.getFetchWaitMaxMs(),
+			 config.getAdaptiveFetchLagThreshold(),
+			 config.getAdaptiveFetchIntervalMs());
+	}
+
+	public void messageConsumed(int length) {
+		bytesThisInterval += length;
+		messagesThisInterval++;
+	}
+
+	public void emptyFetch() {
+		emptyFetchesThisInterval++;
+	}
+
+	/**
+	 * Re-evaluates the fetch parameters once per interval
+	 *
+	 * @param lag the current offset lag of the partition
+	 * @return true when the fetch parameters have changed
+	 */
+	public boolean adjust(long lag) {
+		return adjust(lag, System.currentTimeMillis());
+	}
+
+	boolean adjust(long lag, long now) {
+		if (now - intervalStart < intervalMs) {
+			return false;
+		}
+
+		int newMaxBytes = fetchMessageMaxBytes;
+		int newWaitMs = fetchWaitMaxMs;
+
+		if (lag >= lagThreshold) {
+			newMaxBytes = grow(fetchMessageMaxBytes);
+			newWaitMs = minWaitMs;
+		} else {
+			if (messagesThisInterval == 0 || emptyFetchesThisInterval > messagesThisInterval) {
+				newMaxBytes = shrink(fetchMessageMaxBytes);
+				newWaitMs = (int) Math.min((long) maxWaitMs, Math.max(1L, (long) fetchWaitMaxMs * 2));
+			} else {
+				if (bytesThisInterval > fetchMessageMaxBytes) {
+					newMaxBytes = grow(fetchMessageMaxBytes);
+				} else {
+					if (bytesThisInterval < fetchMessageMaxBytes / 4) {
+						newMaxBytes = shrink(fetchMessageMaxBytes);
+					}
+				}
+			}
+		}
+
+		boolean changed = newMaxBytes != fetchMessageMaxBytes || newWaitMs != fetchWaitMaxMs;
+
+		if (changed) {
+			LOG.debug("[{}] fetch sizing: lag={}, bytes={}, messages={}, empty fetches={} => max bytes {} -> {}, wait ms {} -> {}",
+				 partitionId, lag, bytesThisInterval, messagesThisInterval, emptyFetchesThisInterval,
+				 fetchMessageMaxBytes, newMaxBytes, fetchWaitMaxMs, newWaitMs);
+		}
+
+		fetchMessageMaxBytes = newMaxBytes;
+		fetchWaitMaxMs = newWaitMs;
+		bytesThisInterval = 0;
+		messagesThisInterval = 0;
+		emptyFetchesThisInterval = 0;
+		intervalStart = now;
+
+		return changed;
+	}
+
+	/**
+	 * Applies the current fetch parameters to a consumer configuration, a
+	 * consumer fetches with the configuration it was built with so the worker
+	 * builds a new consumer with it
+	 *
+	 * @param consumerConfiguration the worker's own (unshared) consumer configuration
+	 */
+	public void applyTo(ConsumerConfiguration consumerConfiguration) {
+		consumerConfiguration.setFetchMessageMaxBytes(fetchMessageMaxBytes);
+		consumerConfiguration.setFetchWaitMaxMs(fetchWaitMaxMs);
+	}
+
+	private int grow(int bytes) {
+		return (int) Math.min((long) maxFetchBytes, (long) bytes * 2);
+	}
+
+	private int shrink(int bytes) {
+		return Math.max(minFetchBytes, bytes / 2);
+	}
+
+	/**
+	 * @return the fetchMessageMaxBytes
+	 */
+	public int getFetchMessageMaxBytes() {
+		return fetchMessageMaxBytes;
+	}
+
+	/**
+	 * @return the fetchWaitMaxMs
+	 */
+	public int getFetchWaitMaxMs() {
+		return fetchWaitMaxMs;
+	}
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bdp.kaboom;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * Byte level Aho-Corasick automaton that finds any number of literal patterns
+ * in a single pass over a message without allocating.
+ *
+ * Each pattern carries a bit mask (usually the bit of the rule it belongs to)
+ * and matching returns the OR of the masks of every pattern found.  The goto
+ * function is compiled into a full DFA (256 transitions per state) so matching
+ * is one array lookup per byte.
+ */
+public class AhoCorasick {
+
+	private final int[][] transitions;
+	private final long[] outputs;
+
+	/**
+	 * @param patterns the literal patterns, empty patterns are ignored
+	 * @param masks the mask of each pattern
+	 */
+	public AhoCorasick(byte[][] patterns, long[] masks) {
+		List<int[]> gotos = new ArrayList<>();
+		List<Long> outs = new ArrayList<>();
+		gotos.add(newState());
+		outs.add(0L);
+
+		for (int i = 0; i < patterns.length; i++) {
+			if (patterns[i].length == 0) {
+				continue;
+			}
+			int state = 0;
+			for (byte b : patterns[i]) {
+				int next = gotos.get(state)[b & 0xFF];
+				if (next < 0) {
+					next = gotos.size();
+					gotos.add(newState());
+					outs.add(0L);
+					gotos.get(state)[b & 0xFF] = next;
+				}
+				state = next;
+			}
+			outs.set(state, outs.get(state) | masks[i]);
+		}
+
+		transitions = gotos.toArray(new int[gotos.size()][]);
+		outputs = new long[outs.size()];
+		for (int i = 0; i < outputs.length; i++) {
+			outputs[i] = outs.get(i);
+		}
+
+		// Breadth first so a state's failure state is complete before its children
+		int[] failure = new int[transitions.length];
+		Queue<Integer> queue = new ArrayDeque<>();
+		for (int c = 0; c < 256; c++) {
+			if (transitions[0][c] < 0) {
+				transitions[0][c] = 0;
+			} else {
+				failure[transitions[0][c]] = 0;
+				queue.add(transitions[0][c]);
+			}
+		}
+
+		while (!queue.isEmpty()) {
+			int state = queue.remove();
+			outputs[state] |= outputs[failure[state]];
+			for (int c = 0; c < 256; c++) {
+				int next = transitions[state][c];
+				if (next < 0) {
+					transitions[state][c] = transitions[failure[state]][c];
+				} else {
+					failure[next] = transitions[failure[state]][c];
+					queue.add(next);
+				}
+			}
+		}
+	}
+
+	private static int[] newState() {
+		int[] state = new int[256];
+		Arrays.fill(state, -1);
+		return state;
+	}
+
+	/**
+	 * @param bytes
+	 * @param offset
+	 * @param length
+	 * @return the OR of the masks of every pattern found
+	 */
+	public long match(byte[] bytes, int offset, int length) {
+		long found = 0;
+		int state = 0;
+		int end = offset + length;
+		for (int i = offset; i < end; i++) {
+			state = transitions[state][bytes[i] & 0xFF];
+			found |= outputs[state];
+		}
+		return found;
+	}
+
+	public int getStates() {
+		return transitions.length;
+	}
+
+}
@@ -51,6 +51,12 @@ public abstract class AsyncAssignee implements Runnable{
 	private final static String lockRoot = "/_LOCKS_";
 	private final long waitTimeMs;
 	private InterProcessMutex lock;
+	private boolean suspensionTolerant = false;
+	private long sessionTimeoutMs;
+	private long lostRecoveryMs;
+	private volatile long suspendedSince = 0;
+	private volatile long lostSince = 0;
+	private volatile boolean reacquireNeeded = false;
 
 	protected abstract void stop();
 	protected abstract void abort();
@@ -76,6 +82,97 @@ public abstract class AsyncAssignee implements Runnable{
 					  workerName, zkAssignmentPath));
 	}
 
+	/**
+	 * Keep working through a SUSPENDED connection for as long as our session
+	 * (and therefore our lock) can still be valid, and try to recover the
+	 * assignment after a LOST connection before giving up and aborting.
+	 *
+	 * Implementers must call checkConnection() regularly from the thread that
+	 * acquired the assignment and should defer ZK writes while isZkSuspended()
+	 *
+	 * @param sessionTimeoutMs the ZK session timeout negotiated by the curator
+	 * @param lostRecoveryMs how long to wait for a lost session to be replaced
+	 */
+	protected void setSuspensionTolerance(long sessionTimeoutMs, long lostRecoveryMs) {
+		this.suspensionTolerant = true;
+		this.sessionTimeoutMs = sessionTimeoutMs;
+		this.lostRecoveryMs = lostRecoveryMs;
+	}
+
+	/**
+	 * @return true while the ZK connection is suspended or lost
+	 */
+	protected boolean isZkSuspended() {
+		return suspendedSince != 0 || lostSince != 0;
+	}
+
+	/**
+	 * Pauses once the lease may have expired, and re-validates the assignment
+	 * and re-acquires the lock once a lost session has been replaced
+	 */
+	protected void checkConnection() {
+		if (!suspensionTolerant) {
+			return;
+		}
+
+		long now = System.currentTimeMillis();
+
+		if (lostSince != 0) {
+			if (reacquireNeeded) {
+				reacquireAssignment();
+			} else {
+				if (now - lostSince > lostRecoveryMs) {
+					LOG.error("Worker {} ZK session not recovered after {} ms, aborting assignment", workerName, lostRecoveryMs);
+					lostSince = 0;
+					abort();
+				}
+			}
+			return;
+		}
+
+		/*
+		 * Disconnection is only noticed after up to 2/3 of the session timeout has
+		 * passed without hearing from the server so only the last third can be
+		 * counted on before the server may expire our session and our lock
+		 */
+		if (suspendedSince != 0 && !paused && now - suspendedSince > sessionTimeoutMs / 3) {
+			paused = true;
+			LOG.warn("Worker {} paused as its lease may have expired after {} ms suspended",
+				 workerName, now - suspendedSince);
+		}
+	}
+
+	private void reacquireAssignment() {
+		reacquireNeeded = false;
+		try {
+			if (!isAssigned()) {
+				LOG.warn("Worker {} no longer assigned {} after ZK session recovered", workerName, zkAssignmentPath);
+				lostSince = 0;
+				stop();
+				return;
+			}
+
+			InterProcessMutex newLock = new InterProcessMutex(curator, zkPathToLock());
+			if (newLock.acquire(waitTimeMs, TimeUnit.MILLISECONDS)) {
+				lock = newLock;
+				lostSince = 0;
+				suspendedSince = 0;
+				paused = false;
+				LOG.info("Worker {} re-acquired the lock on {} after ZK session recovered", workerName, zkAssignmentPath);
+			} else {
+				LOG.error("Worker {} failed to re-acquire lock on {} after ZK session recovered, aborting",
+					 workerName, zkAssignmentPath);
+				lostSince = 0;
+				abort();
+			}
+		} catch (Exception e) {
+			LOG.error("Worker {} cannot re-validate assignment {} after ZK session recovered, aborting",
+				 workerName, zkAssignmentPath, e);
+			lostSince = 0;
+			abort();
+		}
+	}
+
 	public void aquireAssignment() throws Exception {
 		this.lock = new InterProcessMutex(curator, zkPathToLock());
 		if (!isAssigned())
@@ -143,6 +240,10 @@ public abstract class AsyncAssignee implements Runnable{
 		connectionListener = new ConnectionStateListener() {
 			@Override
 			public void stateChanged(CuratorFramework client, ConnectionState newState) {
+				if (suspensionTolerant) {
+					tolerantStateChanged(newState);
+					return;
+				}
 				if (newState == ConnectionState.SUSPENDED) {
 					paused = true;
 					LOG.warn("Worker {} paused during suspended ZK connection", workerName);
@@ -175,6 +276,50 @@ public abstract class AsyncAssignee implements Runnable{
 		curator.getConnectionStateListenable().addListener(connectionListener);
 	}
 
+	/**
+	 * Tracks a suspended or lost connection for checkConnection(), package
+	 * private so the state machine can be driven without a ZK outage
+	 */
+	void tolerantStateChanged(ConnectionState newState) {
+		if (newState == ConnectionState.SUSPENDED) {
+			if (suspendedSince == 0) {
+				suspendedSince = System.currentTimeMillis();
+			}
+			LOG.warn("Worker {} continuing during suspended ZK connection, ZK commits deferred", workerName);
+		} else {
+			if (newState == ConnectionState.LOST) {
+				lostSince = System.currentTimeMillis();
+				paused = true;
+				LOG.error("Worker {} lost ZK session, paused for up to {} ms waiting on recovery", workerName, lostRecoveryMs);
+			} else {
+				if (newState == ConnectionState.RECONNECTED) {
+					if (lostSince != 0) {
+						// Our session (and ephemeral lock) is gone, the worker's own thread must re-acquire it
+						reacquireNeeded = true;
+						LOG.info("Worker {} ZK session recovered, re-validating assignment {}", workerName, zkAssignmentPath);
+						return;
+					}
+					try {
+						if (isAssigned()) {
+							suspendedSince = 0;
+							paused = false;
+							LOG.info("Worker {} ZK reconnected, resuming ZK commits", workerName);
+						} else {
+							LOG.warn("Worker {} no longer assigned {} after ZK reconnected", workerName, zkAssignmentPath);
+							stop();
+						}
+					} catch (Exception ex) {
+						LOG.error("Worker {} cannot determine if still assigned {} after connection reconnected, stopping",
+							 workerName,
+							 zkAssignmentPath,
+							 ex);
+						stop();
+					}
+				}
+			}
+		}
+	}
+
 	private void watchAssignment() throws Exception {
 		assignmentNodeCache = new NodeCache(curator, zkAssignmentPath);
 		assignmentNodeCache.getListenable().addListener(new NodeCacheListener() {
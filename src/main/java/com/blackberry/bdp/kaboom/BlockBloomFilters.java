@@ -0,0 +1,390 @@
+/*
+ * Copyright 2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bdp.kaboom;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * A bloom filter of the tokens in each of a boom file's avro blocks along with
+ * the block's line count and (uncompressed) message bytes, written next to the
+ * file as _<filename>.bloom so that a search for a token (a hostname, a
+ * request ID) only has to decompress the blocks that might hold it.
+ *
+ * A token is a run of at least MIN_TOKEN_LENGTH letters or digits, anything
+ * else (including the '.', '-' and '_' of hostnames and IDs) separates tokens,
+ * so a search for part of a hostname ("example.com", "host1") finds the blocks
+ * of host1.example.com.  A search only matches whole tokens though, "host"
+ * doesn't find host1.  Each filter is sized when its block is written from the
+ * number of distinct tokens in the block.
+ *
+ * The sidecar is:
+ *
+ * magic hashes entries (position lines bytes bloomLength bloom)*
+ *
+ * with every number a zig-zag varint and each position (where the block
+ * starts, just after the sync marker that ends the previous block) stored as
+ * the delta from the previous one.
+ */
+public class BlockBloomFilters {
+
+	private static final Charset UTF8 = Charset.forName("UTF8");
+	public static final int MIN_TOKEN_LENGTH = 3;
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private static final byte[] MAGIC_NUMBER = new byte[]{
+		'B', 'L', 'M', 1
+	};
+
+	private static final boolean[] TOKEN_CHARS = new boolean[256];
+
+	static {
+		for (int c = 0; c < 256; c++) {
+			TOKEN_CHARS[c] = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+		}
+	}
+
+	private final int hashes;
+	private final long[] positions;
+	private final long[] lines;
+	private final long[] bytes;
+	private final byte[][] blooms;
+
+	private BlockBloomFilters(int hashes, long[] positions, long[] lines, long[] bytes, byte[][] blooms) {
+		this.hashes = hashes;
+		this.positions = positions;
+		this.lines = lines;
+		this.bytes = bytes;
+		this.blooms = blooms;
+	}
+
+	/**
+	 * @param filename
+	 * @return the name of the boom file's bloom filters
+	 */
+	public static String bloomFilename(String filename) {
+		return "_" + filename + ".bloom";
+	}
+
+	/**
+	 * @param bitsPerToken
+	 * @return the number of hashes that minimizes false positives for the bits per token
+	 */
+	public static int hashesFor(int bitsPerToken) {
+		return Math.max(1, (int) Math.round(bitsPerToken * Math.log(2)));
+	}
+
+	public static BlockBloomFilters read(InputStream in) throws IOException {
+		byte[] magic = new byte[MAGIC_NUMBER.length];
+		BoomFileHeader.readFully(in, magic);
+		if (!Arrays.equals(magic, MAGIC_NUMBER)) {
+			throw new IOException("not a boom file bloom filter sidecar, bad magic number");
+		}
+		int hashes = (int) readLength(in);
+		int size = (int) readLength(in);
+		long[] positions = new long[size];
+		long[] lines = new long[size];
+		long[] bytes = new long[size];
+		byte[][] blooms = new byte[size][];
+		long position = 0;
+		for (int i = 0; i < size; i++) {
+			position += BoomFileHeader.readLong(in);
+			positions[i] = position;
+			lines[i] = BoomFileHeader.readLong(in);
+			bytes[i] = BoomFileHeader.readLong(in);
+			blooms[i] = new byte[(int) readLength(in)];
+			BoomFileHeader.readFully(in, blooms[i]);
+		}
+		return new BlockBloomFilters(hashes, positions, lines, bytes, blooms);
+	}
+
+	private static long readLength(InputStream in) throws IOException {
+		long length = BoomFileHeader.readLong(in);
+		if (length < 0 || length > Integer.MAX_VALUE) {
+			throw new IOException("invalid length " + length);
+		}
+		return length;
+	}
+
+	/**
+	 * @return the number of avro blocks
+	 */
+	public int size() {
+		return positions.length;
+	}
+
+	public long getPosition(int block) {
+		return positions[block];
+	}
+
+	public long getLines(int block) {
+		return lines[block];
+	}
+
+	public long getBytes(int block) {
+		return bytes[block];
+	}
+
+	/**
+	 * @param text tokenized the same way as the lines, so a phrase (or a
+	 * hostname) matches the blocks that might hold all of its tokens
+	 * @return the positions of the blocks that might hold the text, every
+	 * block when it has no token long enough to look for
+	 */
+	public long[] find(String text) {
+		byte[] textBytes = text.getBytes(UTF8);
+		LongSet tokens = new LongSet();
+		tokenize(textBytes, 0, textBytes.length, tokens);
+
+		long[] found = new long[positions.length];
+		int count = 0;
+		for (int block = 0; block < positions.length; block++) {
+			boolean all = true;
+			for (int i = 0; i < tokens.size() && all; i++) {
+				if (!contains(blooms[block], tokens.get(i), hashes)) {
+					all = false;
+				}
+			}
+			if (all) {
+				found[count++] = positions[block];
+			}
+		}
+		return Arrays.copyOf(found, count);
+	}
+
+	/**
+	 * Adds the hash (as in hash()) of every token of the line to the set
+	 */
+	private static void tokenize(byte[] line, int offset, int length, LongSet tokens) {
+		int end = offset + length;
+		int tokenLength = 0;
+		long hash = FNV_OFFSET_BASIS;
+		for (int i = offset; i < end; i++) {
+			int c = line[i] & 0xFF;
+			if (TOKEN_CHARS[c]) {
+				hash = (hash ^ c) * FNV_PRIME;
+				tokenLength++;
+				continue;
+			}
+			if (tokenLength >= MIN_TOKEN_LENGTH) {
+				tokens.add(hash);
+			}
+			tokenLength = 0;
+			hash = FNV_OFFSET_BASIS;
+		}
+		if (tokenLength >= MIN_TOKEN_LENGTH) {
+			tokens.add(hash);
+		}
+	}
+
+	/**
+	 * 64 bit FNV-1a
+	 */
+	static long hash(byte[] bytes, int offset, int length) {
+		long hash = FNV_OFFSET_BASIS;
+		for (int i = offset; i < offset + length; i++) {
+			hash = (hash ^ (bytes[i] & 0xFF)) * FNV_PRIME;
+		}
+		return hash;
+	}
+
+	private static int bit(long hash, int i, long bits) {
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		return (int) (((h1 + i * h2) & Integer.MAX_VALUE) % bits);
+	}
+
+	private static boolean contains(byte[] bloom, long hash, int hashes) {
+		long bits = bloom.length * 8L;
+		for (int i = 0; i < hashes; i++) {
+			int bit = bit(hash, i, bits);
+			if ((bloom[bit >>> 3] & (1 << (bit & 7))) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Collects the bloom filters as the boom file is written
+	 */
+	public static class Builder {
+
+		private final int bitsPerToken;
+		private final int hashes;
+		private final ByteArrayOutputStream entries = new ByteArrayOutputStream();
+		private int size = 0;
+		private long lastPosition = 0;
+		// The tokens of the log block being built and of the avro block being built
+		private final LongSet logBlockTokens = new LongSet();
+		private final LongSet avroBlockTokens = new LongSet();
+		private long logBlockLines = 0;
+		private long logBlockBytes = 0;
+		private long avroBlockLines = 0;
+		private long avroBlockBytes = 0;
+
+		public Builder(int bitsPerToken) {
+			this.bitsPerToken = Math.max(1, bitsPerToken);
+			this.hashes = hashesFor(this.bitsPerToken);
+		}
+
+		public void line(byte[] message, int offset, int length) {
+			tokenize(message, offset, length, logBlockTokens);
+			logBlockLines++;
+			logBlockBytes += length;
+		}
+
+		/**
+		 * The log block just built has been added to the avro block
+		 */
+		public void logBlock() {
+			logBlockTokens.addAllTo(avroBlockTokens);
+			logBlockTokens.clear();
+			avroBlockLines += logBlockLines;
+			avroBlockBytes += logBlockBytes;
+			logBlockLines = 0;
+			logBlockBytes = 0;
+		}
+
+		/**
+		 * @param position where the avro block just written starts
+		 */
+		public void avroBlock(long position) throws IOException {
+			if (avroBlockLines == 0) {
+				discardAvroBlock();
+				return;
+			}
+			int bloomBytes = (int) Math.max(8, ((long) avroBlockTokens.size() * bitsPerToken + 7) / 8);
+			byte[] bloom = new byte[bloomBytes];
+			long bits = bloomBytes * 8L;
+			for (int t = 0; t < avroBlockTokens.size(); t++) {
+				long hash = avroBlockTokens.get(t);
+				for (int i = 0; i < hashes; i++) {
+					int bit = bit(hash, i, bits);
+					bloom[bit >>> 3] |= 1 << (bit & 7);
+				}
+			}
+
+			BoomFileHeader.writeLong(entries, position - lastPosition);
+			BoomFileHeader.writeLong(entries, avroBlockLines);
+			BoomFileHeader.writeLong(entries, avroBlockBytes);
+			BoomFileHeader.writeLong(entries, bloom.length);
+			entries.write(bloom);
+			size++;
+			lastPosition = position;
+			discardAvroBlock();
+		}
+
+		/**
+		 * Forgets the log blocks of an avro block that was never written
+		 */
+		public void discardAvroBlock() {
+			avroBlockTokens.clear();
+			avroBlockLines = 0;
+			avroBlockBytes = 0;
+		}
+
+		public void write(OutputStream out) throws IOException {
+			out.write(MAGIC_NUMBER);
+			BoomFileHeader.writeLong(out, hashes);
+			BoomFileHeader.writeLong(out, size);
+			entries.writeTo(out);
+		}
+
+		/**
+		 * @return the number of avro blocks with a bloom filter
+		 */
+		public int size() {
+			return size;
+		}
+
+	}
+
+	/**
+	 * An open addressing set of token hashes, 0 is kept as the empty slot (a
+	 * token that hashes to 0 is stored as 1).  The slots in use are tracked so
+	 * that iterating and clearing the set cost its size rather than that of a
+	 * table that grew for the largest block.
+	 */
+	private static class LongSet {
+
+		private long[] table = new long[1024];
+		private int[] used = new int[512];
+		private int size = 0;
+
+		private void add(long hash) {
+			if (hash == 0) {
+				hash = 1;
+			}
+			if (size * 2 >= table.length) {
+				grow();
+			}
+			int mask = table.length - 1;
+			int slot = (int) (hash ^ (hash >>> 32)) & mask;
+			while (table[slot] != 0) {
+				if (table[slot] == hash) {
+					return;
+				}
+				slot = (slot + 1) & mask;
+			}
+			table[slot] = hash;
+			used[size++] = slot;
+		}
+
+		private void grow() {
+			long[] old = table;
+			int[] oldUsed = used;
+			int oldSize = size;
+			table = new long[old.length * 2];
+			used = new int[table.length / 2];
+			size = 0;
+			for (int i = 0; i < oldSize; i++) {
+				add(old[oldUsed[i]]);
+			}
+		}
+
+		/**
+		 * @return the i-th hash added, i below size()
+		 */
+		private long get(int i) {
+			return table[used[i]];
+		}
+
+		private void addAllTo(LongSet other) {
+			for (int i = 0; i < size; i++) {
+				other.add(table[used[i]]);
+			}
+		}
+
+		private void clear() {
+			for (int i = 0; i < size; i++) {
+				table[used[i]] = 0;
+			}
+			size = 0;
+		}
+
+		private int size() {
+			return size;
+		}
+
+	}
+
+}
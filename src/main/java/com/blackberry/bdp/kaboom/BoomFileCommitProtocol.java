@@ -0,0 +1,158 @@
+/*
+ * Copyright 2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bdp.kaboom;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+
+/**
+ * How a boom file is made visible to readers once it's closed.
+ *
+ * DIRECT:         written under its final name, readers can see it while open
+ * TEMP_DIRECTORY: written to <dir>/<tmpPrefix><file>/<file>, then renamed to
+ *                 the final name and the temp directory deleted (mkdir,
+ *                 create, rename and delete per file)
+ * HIDDEN:         written to <dir>/<tmpPrefix><file> then renamed to the
+ *                 final name (create and rename per file), the tmpPrefix
+ *                 must start with _ or . to be ignored by readers
+ * MANIFEST:       written under its final name, readers only trust the files
+ *                 listed in the directory's _manifest.* files (create per
+ *                 file and one manifest per directory per shift)
+ */
+public enum BoomFileCommitProtocol {
+
+	DIRECT, TEMP_DIRECTORY, HIDDEN, MANIFEST;
+
+	public static final String MANIFEST_PREFIX = "_manifest.";
+	private static final Charset UTF8 = Charset.forName("UTF8");
+
+	/**
+	 * @param name the protocol's name (case insensitive), null for the default
+	 * @param useTempOpenFileDirectory the running config's flag that picks the default
+	 * @return the protocol
+	 */
+	public static BoomFileCommitProtocol fromName(String name, boolean useTempOpenFileDirectory) {
+		if (name == null || name.trim().isEmpty()) {
+			return useTempOpenFileDirectory ? TEMP_DIRECTORY : DIRECT;
+		}
+		return valueOf(name.trim().toUpperCase().replace('-', '_'));
+	}
+
+	/**
+	 * @param dir the period directory
+	 * @param filename the final name of the file
+	 * @param tmpPrefix
+	 * @return where the file is written while it's open
+	 */
+	public Path openPath(String dir, String filename, String tmpPrefix) {
+		switch (this) {
+			case TEMP_DIRECTORY:
+				return new Path(String.format("%s/%s%s/%s", dir, tmpPrefix, filename, filename));
+			case HIDDEN:
+				return new Path(String.format("%s/%s%s", dir, tmpPrefix, filename));
+			default:
+				return new Path(dir + "/" + filename);
+		}
+	}
+
+	/**
+	 * @return true if the open file's parent is the period directory itself
+	 */
+	public boolean opensInPeriodDirectory() {
+		return this != TEMP_DIRECTORY;
+	}
+
+	/**
+	 * Makes a closed file visible under its final name, any file left at the
+	 * final name by an earlier attempt at the shift has already been removed
+	 * when the file was opened
+	 *
+	 * @param fileSystem
+	 * @param openPath
+	 * @param finalPath
+	 * @throws IOException if the file couldn't be renamed, the open file is
+	 * left for abort() and the shift must be consumed again
+	 */
+	public void commit(InstrumentedFileSystem fileSystem, Path openPath, Path finalPath) throws IOException {
+		switch (this) {
+			case TEMP_DIRECTORY:
+				if (!fileSystem.rename(openPath, finalPath)) {
+					throw new IOException(String.format("failed to rename %s to %s", openPath, finalPath));
+				}
+				fileSystem.delete(openPath.getParent(), true);
+				break;
+			case HIDDEN:
+				if (!fileSystem.rename(openPath, finalPath)) {
+					throw new IOException(String.format("failed to rename %s to %s", openPath, finalPath));
+				}
+				break;
+			default:
+				break;
+		}
+	}
+
+	/**
+	 * Removes an open (or never committed) file
+	 *
+	 * @param fileSystem
+	 * @param openPath
+	 * @throws IOException
+	 */
+	public void abort(InstrumentedFileSystem fileSystem, Path openPath) throws IOException {
+		if (this == TEMP_DIRECTORY) {
+			fileSystem.delete(openPath.getParent(), true);
+		} else {
+			fileSystem.delete(openPath, false);
+		}
+	}
+
+	/**
+	 * Writes a manifest of committed files (one name per line) to the directory
+	 *
+	 * @param fileSystem
+	 * @param dir
+	 * @param name a name unique to the writer and shift
+	 * @param permission
+	 * @param filenames
+	 * @return the manifest's path
+	 * @throws IOException
+	 */
+	public static Path writeManifest(InstrumentedFileSystem fileSystem,
+		 String dir,
+		 String name,
+		 FsPermission permission,
+		 Collection<String> filenames) throws IOException {
+		Path path = new Path(dir + "/" + MANIFEST_PREFIX + name);
+		StringBuilder sb = new StringBuilder();
+		for (String filename : filenames) {
+			sb.append(filename).append('\n');
+		}
+		OutputStream out = fileSystem.create(path, permission, true, 4096,
+			 fileSystem.getFileSystem().getDefaultReplication(path),
+			 fileSystem.getFileSystem().getDefaultBlockSize(path));
+		try {
+			out.write(sb.toString().getBytes(UTF8));
+		} finally {
+			fileSystem.close(out);
+		}
+		return path;
+	}
+
+}
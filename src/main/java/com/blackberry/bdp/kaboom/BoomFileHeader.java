@@ -0,0 +1,187 @@
+/*
+ * Copyright 2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bdp.kaboom;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The avro container header of a boom file (magic, metadata and sync marker)
+ * along with the zig-zag varint helpers needed to walk the avro blocks that
+ * follow it without decoding them.
+ */
+public class BoomFileHeader {
+
+	private static final Charset UTF8 = Charset.forName("UTF8");
+	public static final int SYNC_SIZE = 16;
+
+	private static final byte[] MAGIC_NUMBER = new byte[]{
+		'O', 'b', 'j', 1
+	};
+
+	private final Map<String, byte[]> metadata;
+	private final byte[] syncMarker;
+
+	public BoomFileHeader(Map<String, byte[]> metadata, byte[] syncMarker) {
+		this.metadata = metadata;
+		this.syncMarker = syncMarker;
+	}
+
+	/**
+	 * Reads the header leaving the stream positioned at the first avro block
+	 *
+	 * @param in
+	 * @return the header
+	 * @throws IOException if the stream doesn't start with an avro container header
+	 */
+	public static BoomFileHeader read(InputStream in) throws IOException {
+		byte[] magic = new byte[MAGIC_NUMBER.length];
+		readFully(in, magic);
+		if (!Arrays.equals(magic, MAGIC_NUMBER)) {
+			throw new IOException("not an avro container file, bad magic number");
+		}
+
+		Map<String, byte[]> metadata = new LinkedHashMap<>();
+		long count = readLong(in);
+		while (count != 0) {
+			if (count < 0) {
+				// A negative count is followed by the block's size in bytes
+				count = -count;
+				readLong(in);
+			}
+			for (long i = 0; i < count; i++) {
+				String key = new String(readBytes(in), UTF8);
+				metadata.put(key, readBytes(in));
+			}
+			count = readLong(in);
+		}
+
+		byte[] syncMarker = new byte[SYNC_SIZE];
+		readFully(in, syncMarker);
+
+		return new BoomFileHeader(metadata, syncMarker);
+	}
+
+	public void write(OutputStream out) throws IOException {
+		out.write(MAGIC_NUMBER);
+		writeLong(out, metadata.size());
+		for (Map.Entry<String, byte[]> entry : metadata.entrySet()) {
+			writeBytes(out, entry.getKey().getBytes(UTF8));
+			writeBytes(out, entry.getValue());
+		}
+		writeLong(out, 0L);
+		out.write(syncMarker);
+	}
+
+	/**
+	 * @param other
+	 * @return true if the avro blocks of both files can be copied into the same file as is
+	 */
+	public boolean isCompatible(BoomFileHeader other) {
+		return Arrays.equals(metadata.get("avro.schema"), other.metadata.get("avro.schema"))
+			 && getCodec().equals(other.getCodec());
+	}
+
+	public String getSchema() {
+		byte[] schema = metadata.get("avro.schema");
+		return schema == null ? null : new String(schema, UTF8);
+	}
+
+	public String getCodec() {
+		byte[] codec = metadata.get("avro.codec");
+		return codec == null ? "null" : new String(codec, UTF8);
+	}
+
+	public Map<String, byte[]> getMetadata() {
+		return metadata;
+	}
+
+	public byte[] getSyncMarker() {
+		return syncMarker;
+	}
+
+	/**
+	 * @param in
+	 * @return the decoded long
+	 * @throws EOFException if the stream ends before the first byte
+	 * @throws IOException
+	 */
+	public static long readLong(InputStream in) throws IOException {
+		long n = 0;
+		int shift = 0;
+		while (true) {
+			int b = in.read();
+			if (b < 0) {
+				throw new EOFException();
+			}
+			n |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				break;
+			}
+			shift += 7;
+			if (shift > 63) {
+				throw new IOException("invalid varint");
+			}
+		}
+		return (n >>> 1) ^ -(n & 1);
+	}
+
+	public static void writeLong(OutputStream out, long n) throws IOException {
+		n = (n << 1) ^ (n >> 63);
+		while ((n & ~0x7FL) != 0) {
+			out.write((int) ((n | 0x80) & 0xFF));
+			n >>>= 7;
+		}
+		out.write((int) n);
+	}
+
+	private static byte[] readBytes(InputStream in) throws IOException {
+		long length = readLong(in);
+		if (length < 0 || length > Integer.MAX_VALUE) {
+			throw new IOException("invalid length " + length);
+		}
+		byte[] bytes = new byte[(int) length];
+		readFully(in, bytes);
+		return bytes;
+	}
+
+	private static void writeBytes(OutputStream out, byte[] bytes) throws IOException {
+		writeLong(out, bytes.length);
+		out.write(bytes);
+	}
+
+	public static void readFully(InputStream in, byte[] bytes) throws IOException {
+		readFully(in, bytes, 0, bytes.length);
+	}
+
+	public static void readFully(InputStream in, byte[] bytes, int offset, int length) throws IOException {
+		while (length > 0) {
+			int read = in.read(bytes, offset, length);
+			if (read < 0) {
+				throw new EOFException();
+			}
+			offset += read;
+			length -= read;
+		}
+	}
+
+}
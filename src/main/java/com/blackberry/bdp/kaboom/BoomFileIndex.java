@@ -0,0 +1,222 @@
+/*
+ * Copyright 2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bdp.kaboom;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * An index of a boom file's avro blocks, written next to it as
+ * _<filename>.idx, with an entry for each avro block of:
+ *
+ * position minSecond maxSecond minOffset maxOffset
+ *
+ * where position is where the block starts (just after the sync marker that
+ * ends the previous block) and the offsets are the Kafka offsets of its lines
+ * (-1 when they aren't known, as in shared boom files).  Each entry is stored
+ * as zig-zag varint deltas from the previous entry, a handful of bytes per
+ * block, and is kept encoded in memory and decoded as it's searched so the
+ * indexes of thousands of files can be cached.
+ */
+public class BoomFileIndex {
+
+	private static final byte[] MAGIC_NUMBER = new byte[]{
+		'B', 'I', 'X', 1
+	};
+
+	private final int size;
+	private final byte[] entries;
+
+	private BoomFileIndex(int size, byte[] entries) {
+		this.size = size;
+		this.entries = entries;
+	}
+
+	/**
+	 * @param filename
+	 * @return the name of the boom file's index
+	 */
+	public static String indexFilename(String filename) {
+		return "_" + filename + ".idx";
+	}
+
+	public static BoomFileIndex read(InputStream in) throws IOException {
+		byte[] magic = new byte[MAGIC_NUMBER.length];
+		BoomFileHeader.readFully(in, magic);
+		if (!Arrays.equals(magic, MAGIC_NUMBER)) {
+			throw new IOException("not a boom file index, bad magic number");
+		}
+		long size = BoomFileHeader.readLong(in);
+		long length = BoomFileHeader.readLong(in);
+		if (size < 0 || size > Integer.MAX_VALUE || length < 0 || length > Integer.MAX_VALUE) {
+			throw new IOException("invalid boom file index of " + size + " entries in " + length + " bytes");
+		}
+		byte[] entries = new byte[(int) length];
+		BoomFileHeader.readFully(in, entries);
+		return new BoomFileIndex((int) size, entries);
+	}
+
+	public void write(OutputStream out) throws IOException {
+		out.write(MAGIC_NUMBER);
+		BoomFileHeader.writeLong(out, size);
+		BoomFileHeader.writeLong(out, entries.length);
+		out.write(entries);
+	}
+
+	/**
+	 * @return the number of avro blocks indexed
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @param fromSecond
+	 * @param toSecond
+	 * @return the positions of the blocks holding lines from any second in the (inclusive) range
+	 */
+	public long[] findSeconds(long fromSecond, long toSecond) {
+		return find(true, fromSecond, toSecond);
+	}
+
+	/**
+	 * @param fromOffset
+	 * @param toOffset
+	 * @return the positions of the blocks holding any Kafka offset in the (inclusive) range
+	 */
+	public long[] findOffsets(long fromOffset, long toOffset) {
+		return find(false, fromOffset, toOffset);
+	}
+
+	private long[] find(boolean bySecond, long from, long to) {
+		long[] found = new long[Math.min(size, 16)];
+		int count = 0;
+		ByteArrayInputStream in = new ByteArrayInputStream(entries);
+		long position = 0;
+		long minSecond = 0;
+		long minOffset = 0;
+		try {
+			for (int i = 0; i < size; i++) {
+				position += BoomFileHeader.readLong(in);
+				minSecond += BoomFileHeader.readLong(in);
+				long maxSecond = minSecond + BoomFileHeader.readLong(in);
+				minOffset += BoomFileHeader.readLong(in);
+				long maxOffset = minOffset + BoomFileHeader.readLong(in);
+				long min = bySecond ? minSecond : minOffset;
+				long max = bySecond ? maxSecond : maxOffset;
+				if (min <= to && max >= from && max >= 0) {
+					if (count == found.length) {
+						found = Arrays.copyOf(found, found.length * 2);
+					}
+					found[count++] = position;
+				}
+			}
+		} catch (IOException ioe) {
+			// Can't happen, the entries were validated when read or built
+			throw new IllegalStateException("corrupt boom file index", ioe);
+		}
+		return Arrays.copyOf(found, count);
+	}
+
+	/**
+	 * Collects the index as the boom file is written
+	 */
+	public static class Builder {
+
+		private final ByteArrayOutputStream entries = new ByteArrayOutputStream();
+		private int size = 0;
+		private long lastPosition = 0;
+		private long lastMinSecond = 0;
+		private long lastMinOffset = 0;
+		private long logBlockMinOffset = -1;
+		private long logBlockMaxOffset = -1;
+		private long minSecond = Long.MAX_VALUE;
+		private long maxSecond = Long.MIN_VALUE;
+		private long minOffset = -1;
+		private long maxOffset = -1;
+
+		/**
+		 * @param offset the Kafka offset of the line, -1 if it isn't known
+		 */
+		public void line(long offset) {
+			if (offset < 0) {
+				return;
+			}
+			if (logBlockMinOffset < 0 || offset < logBlockMinOffset) {
+				logBlockMinOffset = offset;
+			}
+			if (offset > logBlockMaxOffset) {
+				logBlockMaxOffset = offset;
+			}
+		}
+
+		/**
+		 * @param second the second of the log block just added to the avro block
+		 */
+		public void logBlock(long second) {
+			minSecond = Math.min(minSecond, second);
+			maxSecond = Math.max(maxSecond, second);
+			if (logBlockMinOffset >= 0) {
+				if (minOffset < 0 || logBlockMinOffset < minOffset) {
+					minOffset = logBlockMinOffset;
+				}
+				maxOffset = Math.max(maxOffset, logBlockMaxOffset);
+			}
+			logBlockMinOffset = -1;
+			logBlockMaxOffset = -1;
+		}
+
+		/**
+		 * @param position where the avro block just written starts
+		 */
+		public void avroBlock(long position) throws IOException {
+			if (minSecond > maxSecond) {
+				discardAvroBlock();
+				return;
+			}
+			BoomFileHeader.writeLong(entries, position - lastPosition);
+			BoomFileHeader.writeLong(entries, minSecond - lastMinSecond);
+			BoomFileHeader.writeLong(entries, maxSecond - minSecond);
+			BoomFileHeader.writeLong(entries, minOffset - lastMinOffset);
+			BoomFileHeader.writeLong(entries, maxOffset - minOffset);
+			size++;
+			lastPosition = position;
+			lastMinSecond = minSecond;
+			lastMinOffset = minOffset;
+			discardAvroBlock();
+		}
+
+		/**
+		 * Forgets the log blocks of an avro block that was never written
+		 */
+		public void discardAvroBlock() {
+			minSecond = Long.MAX_VALUE;
+			maxSecond = Long.MIN_VALUE;
+			minOffset = -1;
+			maxOffset = -1;
+		}
+
+		public BoomFileIndex build() {
+			return new BoomFileIndex(size, entries.toByteArray());
+		}
+
+	}
+
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright 2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bdp.kaboom;
+
+import com.blackberry.bdp.common.jmx.MetricRegistrySingleton;
+import com.blackberry.bdp.kaboom.api.KaBoomTopicConfig;
+import com.blackberry.bdp.krackle.consumer.Consumer;
+import com.codahale.metrics.Meter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Replays a fixed range of offsets [startOffset, endOffset) of a partition into
+ * its own boom files on behalf of a worker that is catching up.
+ *
+ * The range works in shifts just like the worker, writing through its own
+ * output path with the worker's shift duration and closing off each shift's
+ * files before moving its committable offset up to where the shift ended.  If
+ * the range is stopped early then its files are still closed and the offset
+ * the range stopped at is recorded so that the remainder of the range can be
+ * replayed later.  The range's output paths never write to shared boom files,
+ * a failed range aborts and would take the other partitions' lines with it.
+ *
+ * Messages are parsed and the topic's filter set applied by the same
+ * MessageRouter the worker uses, dropped messages are skipped and routed ones
+ * written to the rule's data directory.
+ */
+public class CatchUpRange implements Runnable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(CatchUpRange.class);
+
+	private final StartupConfig config;
+	private final Worker worker;
+	private final ParallelCatchUp catchUp;
+	private final KaBoomTopicConfig topicConfig;
+	private final Map<String, TimeBasedHdfsOutputPath> routedOutputPaths = new HashMap<>();
+	private final String topic;
+	private final int partition;
+	private final String partitionId;
+	private final long startOffset;
+	private final long endOffset;
+	private final TimeBasedHdfsOutputPath hdfsOutputPath;
+	private final Meter boomWritesMeterTopic;
+
+	private volatile long offset;
+	private volatile long closedOffset;
+	private long shiftNumber = 1;
+	private long shiftOffset;
+	private long shiftEnd;
+	private volatile boolean stopping = false;
+	private volatile boolean aborting = false;
+	private volatile boolean closed = false;
+	private volatile boolean failed = false;
+	private volatile long maxMessageTimestamp = -1;
+	private boolean started = false;
+	private final CountDownLatch stopped = new CountDownLatch(1);
+
+	public CatchUpRange(StartupConfig config,
+		 KaBoomTopicConfig topicConfig,
+		 Worker worker,
+		 ParallelCatchUp catchUp,
+		 long startOffset,
+		 long endOffset) throws Exception {
+		this.config = config;
+		this.worker = worker;
+		this.catchUp = catchUp;
+		this.topicConfig = topicConfig;
+		this.topic = worker.getTopic();
+		this.partition = worker.getPartition();
+		this.partitionId = worker.getPartitionId();
+		this.startOffset = startOffset;
+		this.endOffset = endOffset;
+		this.offset = startOffset;
+		this.closedOffset = startOffset;
+		this.hdfsOutputPath = new TimeBasedHdfsOutputPath(config, topicConfig, partition);
+		this.hdfsOutputPath.setWorker(worker);
+		this.hdfsOutputPath.setSharedFiles(false);
+		this.boomWritesMeterTopic = MetricRegistrySingleton.getInstance().getMetricsRegistry().meter("kaboom:topic:" + topic + ":boom writes");
+	}
+
+	@Override
+	public void run() {
+		synchronized (this) {
+			if (stopping || aborting) {
+				// Stopped while queued for a helper, there's nothing to close off
+				return;
+			}
+			started = true;
+		}
+		try {
+			replay();
+		} finally {
+			stopped.countDown();
+		}
+	}
+
+	private void replay() {
+		Consumer consumer = null;
+		try {
+			LOG.info("[{}] catch up range {}-{} starting", partitionId, startOffset, endOffset);
+
+			consumer = new Consumer(config.newConsumerConfiguration(),
+				 "kaboom-catchup-" + config.getHostname(),
+				 topic,
+				 partition,
+				 startOffset,
+				 MetricRegistrySingleton.getInstance().getMetricsRegistry());
+
+			byte[] bytes = new byte[1024 * 1024];
+			int length;
+			int pos;
+			long timestamp;
+			MessageRouter router = new MessageRouter(config, topic, partitionId);
+
+			startShift();
+
+			while (offset < endOffset && !stopping && !aborting) {
+				if (System.currentTimeMillis() >= shiftEnd) {
+					finishShift();
+					startShift();
+				}
+
+				length = consumer.getMessage(bytes, 0, bytes.length);
+				if (length == -1) {
+					continue;
+				}
+
+				if (consumer.getLastOffset() < offset) {
+					// Earlier offsets from within a compressed message set
+					continue;
+				}
+
+				if (consumer.getLastOffset() >= endOffset) {
+					// There are no messages left in the range
+					offset = endOffset;
+					break;
+				}
+
+				offset = consumer.getNextOffset();
+
+				if (!router.parse(bytes, length) || !router.route(bytes, length)) {
+					continue;
+				}
+				timestamp = router.getTimestamp();
+				pos = router.getPos();
+
+				TimeBasedHdfsOutputPath outputPath = router.getDataDirectory() == null
+					 ? hdfsOutputPath : routedOutputPath(router.getDataDirectory());
+
+				outputPath.writeLine(shiftNumber,
+					 consumer.getLastOffset(),
+					 timestamp,
+					 partitionId + "-" + shiftOffset + ".bm",
+					 bytes, pos, length - pos);
+
+				boomWritesMeterTopic.mark();
+
+				if (timestamp > maxMessageTimestamp) {
+					maxMessageTimestamp = timestamp;
+				}
+			}
+
+			if (aborting) {
+				abortAll();
+				LOG.info("[{}] catch up range {}-{} aborted at offset {}", partitionId, startOffset, endOffset, offset);
+			} else {
+				finishShift();
+				closed = true;
+				LOG.info("[{}] catch up range {}-{} closed at offset {}", partitionId, startOffset, endOffset, offset);
+			}
+		} catch (Exception e) {
+			LOG.error("[{}] catch up range {}-{} failed at offset {}: ", partitionId, startOffset, endOffset, offset, e);
+			failed = true;
+			abortAll();
+			catchUp.rangeFailed();
+		}
+	}
+
+	private void startShift() {
+		long shiftDurationMs = config.getRunningConfig().getWorkerShiftDurationSeconds() * 1000;
+		shiftOffset = offset;
+		shiftEnd = System.currentTimeMillis() - System.currentTimeMillis() % shiftDurationMs + shiftDurationMs;
+	}
+
+	/**
+	 * Closes off the shift's files, only then can the worker commit past them
+	 */
+	private void finishShift() throws Exception {
+		for (TimeBasedHdfsOutputPath outputPath : outputPaths()) {
+			outputPath.startCloseOffShift(shiftNumber);
+		}
+		for (TimeBasedHdfsOutputPath outputPath : outputPaths()) {
+			outputPath.awaitCloses(shiftNumber);
+		}
+		closedOffset = Math.min(offset, endOffset);
+		LOG.info("[{}] catch up range {}-{} shift #{} closed at offset {}",
+			 partitionId, startOffset, endOffset, shiftNumber, closedOffset);
+		shiftNumber++;
+	}
+
+	private void abortAll() {
+		for (TimeBasedHdfsOutputPath outputPath : outputPaths()) {
+			outputPath.abortAll();
+		}
+	}
+
+	/**
+	 * @param dataDirectory
+	 * @return the output path for messages a filter rule routes to the data directory
+	 */
+	private TimeBasedHdfsOutputPath routedOutputPath(String dataDirectory) throws Exception {
+		TimeBasedHdfsOutputPath outputPath = routedOutputPaths.get(dataDirectory);
+		if (outputPath == null) {
+			outputPath = new TimeBasedHdfsOutputPath(config, topicConfig, partition, dataDirectory);
+			outputPath.setWorker(worker);
+			outputPath.setSharedFiles(false);
+			routedOutputPaths.put(dataDirectory, outputPath);
+			LOG.info("[{}] catch up range {}-{} routing filtered messages to data directory {}",
+				 partitionId, startOffset, endOffset, dataDirectory);
+		}
+		return outputPath;
+	}
+
+	/**
+	 * @return the default output path followed by the routed ones
+	 */
+	private List<TimeBasedHdfsOutputPath> outputPaths() {
+		List<TimeBasedHdfsOutputPath> outputPaths = new ArrayList<>();
+		outputPaths.add(hdfsOutputPath);
+		outputPaths.addAll(routedOutputPaths.values());
+		return outputPaths;
+	}
+
+	public synchronized void stop() {
+		stopping = true;
+	}
+
+	public synchronized void abort() {
+		aborting = true;
+	}
+
+	/**
+	 * Waits for a stopped range to close off what it has written
+	 *
+	 * @param timeout
+	 * @param unit
+	 * @return false if the range is still running after the timeout, true if it
+	 * has stopped or never started
+	 * @throws InterruptedException
+	 */
+	public boolean awaitStopped(long timeout, TimeUnit unit) throws InterruptedException {
+		synchronized (this) {
+			if (!started) {
+				return true;
+			}
+		}
+		return stopped.await(timeout, unit);
+	}
+
+	/**
+	 * @return true when the entire range has been written and closed
+	 */
+	public boolean isComplete() {
+		return closed && offset >= endOffset;
+	}
+
+	/**
+	 * @return the lowest offset of this range that has not been durably closed off
+	 */
+	public long getCommittableOffset() {
+		return closedOffset;
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	public boolean hasFailed() {
+		return failed;
+	}
+
+	public long getStartOffset() {
+		return startOffset;
+	}
+
+	public long getEndOffset() {
+		return endOffset;
+	}
+
+	public long getMaxMessageTimestamp() {
+		return maxMessageTimestamp;
+	}
+
+}
@@ -0,0 +1,644 @@
+/*
+ * Copyright 2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bdp.kaboom;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Reads boom files without going through avro: the header is parsed by
+ * BoomFileHeader, the avro blocks are found by their sync markers and
+ * decompressed into buffers that are reused from block to block, and each
+ * line is handed to a LineHandler as its timestamp and a byte range of the
+ * decompressed block, so no objects are created per line.
+ *
+ * Blocks are read in order on the calling thread, and with more than one
+ * thread are decompressed on the reader's own pool a few blocks ahead of the
+ * one whose lines are being delivered, so lines are always delivered in the
+ * order they were written.
+ *
+ * A read stops at the first block that is cut short, which is where a boom
+ * file that's still open ends.
+ */
+public class FastBoomReader implements Closeable {
+
+	private static final int MAX_BLOCK_HEADER = 20;
+
+	/**
+	 * Where the boom file's bytes come from
+	 */
+	public interface Source extends Closeable {
+
+		long length() throws IOException;
+
+		void read(long position, byte[] bytes, int offset, int length) throws IOException;
+
+	}
+
+	public interface LineHandler {
+
+		/**
+		 * @param timestamp the line's time in ms
+		 * @param bytes the decompressed block, only valid until the handler returns
+		 * @param offset where the line starts in bytes
+		 * @param length the line's length
+		 * @throws IOException
+		 */
+		void line(long timestamp, byte[] bytes, int offset, int length) throws IOException;
+
+	}
+
+	private final Source source;
+	private final long length;
+	private final BoomFileHeader header;
+	private final long firstBlockPosition;
+	private final boolean deflate;
+	private final ExecutorService executor;
+	private final int window;
+	private final ArrayDeque<Block> freeBlocks = new ArrayDeque<>();
+	private final byte[] blockHeader = new byte[MAX_BLOCK_HEADER];
+	private final byte[] sync = new byte[BoomFileHeader.SYNC_SIZE];
+	// The block being delivered and where in it
+	private byte[] bytes;
+	private int pos;
+	private int limit;
+
+	public FastBoomReader(Source source) throws IOException {
+		this(source, 1);
+	}
+
+	/**
+	 * @param source
+	 * @param threads the number of blocks decompressed at once, 1 decompresses
+	 * each block on the calling thread as it's delivered
+	 * @throws IOException if the source doesn't start with a boom file header
+	 */
+	public FastBoomReader(Source source, int threads) throws IOException {
+		this.source = source;
+		this.length = source.length();
+		SourceInputStream in = new SourceInputStream();
+		this.header = BoomFileHeader.read(in);
+		this.firstBlockPosition = in.position;
+
+		String codec = header.getCodec();
+		if (codec.equals("deflate")) {
+			this.deflate = true;
+		} else if (codec.equals("null")) {
+			this.deflate = false;
+		} else {
+			throw new IOException("unsupported codec " + codec);
+		}
+
+		if (threads > 1) {
+			this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "kaboom-boom-reader");
+					thread.setDaemon(true);
+					return thread;
+				}
+
+			});
+			this.window = threads * 2;
+		} else {
+			this.executor = null;
+			this.window = 1;
+		}
+	}
+
+	/**
+	 * @param file a local boom file, which is memory mapped
+	 * @param threads
+	 * @return the reader
+	 * @throws IOException
+	 */
+	public static FastBoomReader open(File file, int threads) throws IOException {
+		Source source = new MappedFileSource(file);
+		try {
+			return new FastBoomReader(source, threads);
+		} catch (IOException ioe) {
+			source.close();
+			throw ioe;
+		}
+	}
+
+	/**
+	 * @param fileSystem
+	 * @param path a boom file in HDFS, which is read with positioned reads
+	 * @param threads
+	 * @return the reader
+	 * @throws IOException
+	 */
+	public static FastBoomReader open(FileSystem fileSystem, Path path, int threads) throws IOException {
+		Source source = new StreamSource(fileSystem.open(path), fileSystem.getFileStatus(path).getLen());
+		try {
+			return new FastBoomReader(source, threads);
+		} catch (IOException ioe) {
+			source.close();
+			throw ioe;
+		}
+	}
+
+	public BoomFileHeader getHeader() {
+		return header;
+	}
+
+	/**
+	 * @return the position of the first avro block, just after the header
+	 */
+	public long getFirstBlockPosition() {
+		return firstBlockPosition;
+	}
+
+	/**
+	 * Delivers every line of the file
+	 *
+	 * @param handler
+	 * @throws IOException
+	 */
+	public void read(LineHandler handler) throws IOException {
+		read(null, firstBlockPosition, Long.MIN_VALUE, Long.MAX_VALUE, handler);
+	}
+
+	/**
+	 * Delivers the lines in [fromMs, toMs), scanning every block of the file
+	 * since a partition's timestamps can go backwards from block to block
+	 *
+	 * @param fromMs
+	 * @param toMs
+	 * @param handler
+	 * @throws IOException
+	 */
+	public void readTimeRange(long fromMs, long toMs, LineHandler handler) throws IOException {
+		read(null, firstBlockPosition, fromMs, toMs, handler);
+	}
+
+	/**
+	 * Delivers the lines in [fromMs, toMs) from only the blocks whose seconds,
+	 * as found by the file's index, overlap the range
+	 *
+	 * @param index
+	 * @param fromMs
+	 * @param toMs
+	 * @param handler
+	 * @throws IOException
+	 */
+	public void readTimeRange(BoomFileIndex index, long fromMs, long toMs, LineHandler handler) throws IOException {
+		if (toMs <= fromMs) {
+			return;
+		}
+		long fromSecond = floorSecond(fromMs);
+		long toSecond = toMs == Long.MAX_VALUE ? Long.MAX_VALUE : floorSecond(toMs - 1);
+		read(index.findSeconds(fromSecond, toSecond), 0, fromMs, toMs, handler);
+	}
+
+	private static long floorSecond(long ms) {
+		return ms / 1000 - (ms % 1000 < 0 ? 1 : 0);
+	}
+
+	/**
+	 * Delivers every line of the blocks holding any of the Kafka offsets, as
+	 * found by the file's index (the lines themselves don't carry offsets)
+	 *
+	 * @param index
+	 * @param fromOffset
+	 * @param toOffset inclusive
+	 * @param handler
+	 * @throws IOException
+	 */
+	public void readOffsetRange(BoomFileIndex index, long fromOffset, long toOffset, LineHandler handler) throws IOException {
+		readBlocks(index.findOffsets(fromOffset, toOffset), handler);
+	}
+
+	/**
+	 * Delivers every line of the blocks that start at the positions, such as
+	 * those found by a BoomFileIndex or BlockBloomFilters
+	 *
+	 * @param positions in the order the blocks are to be delivered
+	 * @param handler
+	 * @throws IOException
+	 */
+	public void readBlocks(long[] positions, LineHandler handler) throws IOException {
+		read(positions, 0, Long.MIN_VALUE, Long.MAX_VALUE, handler);
+	}
+
+	/**
+	 * @param positions the blocks to read, or null to read from start to the end of the file
+	 */
+	private void read(long[] positions, long start, long fromMs, long toMs, LineHandler handler) throws IOException {
+		ArrayDeque<Block> inFlight = new ArrayDeque<>();
+		long next = start;
+		int index = 0;
+		boolean more = true;
+		try {
+			while (true) {
+				while (more && inFlight.size() < window) {
+					long position;
+					if (positions == null) {
+						position = next;
+					} else {
+						if (index == positions.length) {
+							more = false;
+							break;
+						}
+						position = positions[index++];
+					}
+					Block block = freeBlocks.isEmpty() ? new Block() : freeBlocks.pop();
+					if (!readBlock(position, block)) {
+						freeBlocks.push(block);
+						more = false;
+						break;
+					}
+					next = block.next;
+					if (executor != null) {
+						block.future = executor.submit(block);
+					}
+					inFlight.add(block);
+				}
+
+				Block block = inFlight.poll();
+				if (block == null) {
+					return;
+				}
+				try {
+					block.await();
+					deliver(block, fromMs, toMs, handler);
+				} finally {
+					freeBlocks.push(block);
+				}
+			}
+		} finally {
+			// A block's buffers can't be reused while it's being decompressed
+			for (Block block : inFlight) {
+				block.awaitQuietly();
+				freeBlocks.push(block);
+			}
+		}
+	}
+
+	/**
+	 * Reads the compressed block at the position
+	 *
+	 * @return false if the block is cut short by the end of the file
+	 */
+	private boolean readBlock(long position, Block block) throws IOException {
+		int headerLength = (int) Math.min(MAX_BLOCK_HEADER, length - position);
+		if (headerLength <= 0) {
+			return false;
+		}
+		source.read(position, blockHeader, 0, headerLength);
+		bytes = blockHeader;
+		pos = 0;
+		limit = headerLength;
+		long count;
+		long size;
+		try {
+			count = varint();
+			size = varint();
+		} catch (EOFException eof) {
+			return false;
+		}
+		if (size < 0 || size > Integer.MAX_VALUE) {
+			throw new IOException("invalid avro block size " + size + " at " + position);
+		}
+
+		long dataPosition = position + pos;
+		if (dataPosition + size + BoomFileHeader.SYNC_SIZE > length) {
+			return false;
+		}
+		if (block.compressed.length < size) {
+			block.compressed = new byte[(int) size];
+		}
+		source.read(dataPosition, block.compressed, 0, (int) size);
+		source.read(dataPosition + size, sync, 0, sync.length);
+		if (!Arrays.equals(sync, header.getSyncMarker())) {
+			throw new IOException("sync marker mismatch after the avro block at " + position);
+		}
+
+		block.position = position;
+		block.count = count;
+		block.compressedLength = (int) size;
+		block.next = dataPosition + size + BoomFileHeader.SYNC_SIZE;
+		block.future = null;
+		return true;
+	}
+
+	/**
+	 * Delivers the block's lines in [fromMs, toMs)
+	 */
+	private void deliver(Block block, long fromMs, long toMs, LineHandler handler) throws IOException {
+		bytes = block.payload();
+		pos = 0;
+		limit = block.payloadLength();
+		for (long record = 0; record < block.count; record++) {
+			long second = varint();
+			// createTime and blockNumber
+			varint();
+			varint();
+			long count = varint();
+			while (count != 0) {
+				if (count < 0) {
+					// A negative count is followed by the size in bytes
+					count = -count;
+					varint();
+				}
+				for (long i = 0; i < count; i++) {
+					long timestamp = second * 1000 + varint();
+					long lineLength = varint();
+					if (lineLength < 0 || lineLength > limit - pos) {
+						throw new IOException("invalid line length " + lineLength + " in the avro block at " + block.position);
+					}
+					if (timestamp >= fromMs && timestamp < toMs) {
+						handler.line(timestamp, bytes, pos, (int) lineLength);
+					}
+					pos += lineLength;
+				}
+				count = varint();
+			}
+		}
+	}
+
+	private long varint() throws IOException {
+		long n = 0;
+		int shift = 0;
+		while (true) {
+			if (pos >= limit) {
+				throw new EOFException();
+			}
+			int b = bytes[pos++];
+			n |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				break;
+			}
+			shift += 7;
+			if (shift > 63) {
+				throw new IOException("invalid varint");
+			}
+		}
+		return (n >>> 1) ^ -(n & 1);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+		for (Block block : freeBlocks) {
+			block.inflater.end();
+		}
+		freeBlocks.clear();
+		source.close();
+	}
+
+	/**
+	 * An avro block and the buffers it's decompressed into, reused from block to block
+	 */
+	private class Block implements Callable<Void> {
+
+		private final Inflater inflater = new Inflater(true);
+		private long position;
+		private long count;
+		private long next;
+		private byte[] compressed = new byte[256 * 1024];
+		private int compressedLength;
+		private byte[] data = new byte[2 * 1024 * 1024];
+		private int dataLength;
+		private boolean inflated;
+		private Future<Void> future;
+
+		@Override
+		public Void call() throws IOException {
+			inflate();
+			return null;
+		}
+
+		private void inflate() throws IOException {
+			inflated = true;
+			if (!deflate) {
+				return;
+			}
+			inflater.reset();
+			inflater.setInput(compressed, 0, compressedLength);
+			int n = 0;
+			try {
+				while (!inflater.finished()) {
+					if (n == data.length) {
+						data = Arrays.copyOf(data, data.length * 2);
+					}
+					int inflatedBytes = inflater.inflate(data, n, data.length - n);
+					if (inflatedBytes == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+						throw new IOException("truncated deflate data in the avro block at " + position);
+					}
+					n += inflatedBytes;
+				}
+			} catch (DataFormatException dfe) {
+				throw new IOException("corrupt avro block at " + position, dfe);
+			}
+			dataLength = n;
+		}
+
+		/**
+		 * Waits for the block to be decompressed, or decompresses it
+		 */
+		private void await() throws IOException {
+			if (future == null) {
+				inflate();
+				return;
+			}
+			try {
+				future.get();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted decompressing the avro block at " + position);
+			} catch (ExecutionException ee) {
+				if (ee.getCause() instanceof IOException) {
+					throw (IOException) ee.getCause();
+				}
+				throw new IOException("failed to decompress the avro block at " + position, ee.getCause());
+			} finally {
+				future = null;
+			}
+		}
+
+		private void awaitQuietly() {
+			if (future == null) {
+				return;
+			}
+			try {
+				future.get();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException ee) {
+				// Never delivered
+			} finally {
+				future = null;
+			}
+		}
+
+		private byte[] payload() {
+			return deflate ? data : compressed;
+		}
+
+		private int payloadLength() {
+			return deflate ? dataLength : compressedLength;
+		}
+
+	}
+
+	/**
+	 * Reads the header from the start of the source
+	 */
+	private class SourceInputStream extends InputStream {
+
+		private final byte[] buffer = new byte[4096];
+		private int bufferPos = 0;
+		private int bufferLength = 0;
+		private long position = 0;
+
+		@Override
+		public int read() throws IOException {
+			if (bufferPos == bufferLength && !fill()) {
+				return -1;
+			}
+			position++;
+			return buffer[bufferPos++] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (bufferPos == bufferLength && !fill()) {
+				return -1;
+			}
+			int n = Math.min(len, bufferLength - bufferPos);
+			System.arraycopy(buffer, bufferPos, b, off, n);
+			bufferPos += n;
+			position += n;
+			return n;
+		}
+
+		private boolean fill() throws IOException {
+			int n = (int) Math.min(buffer.length, length - position);
+			if (n <= 0) {
+				return false;
+			}
+			source.read(position, buffer, 0, n);
+			bufferPos = 0;
+			bufferLength = n;
+			return true;
+		}
+
+	}
+
+	/**
+	 * A local file, memory mapped when it's small enough to map at once
+	 */
+	public static class MappedFileSource implements Source {
+
+		private final RandomAccessFile file;
+		private final FileChannel channel;
+		private final long length;
+		private final MappedByteBuffer mapped;
+
+		public MappedFileSource(File file) throws IOException {
+			this.file = new RandomAccessFile(file, "r");
+			this.channel = this.file.getChannel();
+			this.length = channel.size();
+			this.mapped = length <= Integer.MAX_VALUE ? channel.map(FileChannel.MapMode.READ_ONLY, 0, length) : null;
+		}
+
+		@Override
+		public long length() {
+			return length;
+		}
+
+		@Override
+		public void read(long position, byte[] bytes, int offset, int length) throws IOException {
+			if (position < 0 || position + length > this.length) {
+				throw new EOFException("read of " + length + " bytes at " + position + " is past the end of the file");
+			}
+			if (mapped != null) {
+				ByteBuffer view = mapped.duplicate();
+				view.position((int) position);
+				view.get(bytes, offset, length);
+				return;
+			}
+			ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, position + buffer.position() - offset) < 0) {
+					throw new EOFException();
+				}
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			file.close();
+		}
+
+	}
+
+	/**
+	 * An HDFS (or any seekable) stream read with positioned reads
+	 */
+	public static class StreamSource implements Source {
+
+		private final FSDataInputStream in;
+		private final long length;
+
+		public StreamSource(FSDataInputStream in, long length) {
+			this.in = in;
+			this.length = length;
+		}
+
+		@Override
+		public long length() {
+			return length;
+		}
+
+		@Override
+		public void read(long position, byte[] bytes, int offset, int length) throws IOException {
+			in.readFully(position, bytes, offset, length);
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+
+	}
+
+}
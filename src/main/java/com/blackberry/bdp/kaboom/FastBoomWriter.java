@@ -14,7 +14,9 @@ import com.blackberry.bdp.kaboom.api.RunningConfig;
 import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.Timer;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.EnumSet;
@@ -32,6 +34,15 @@ public class FastBoomWriter {
 	private static final Charset UTF8 = Charset.forName("UTF8");
 	private long lastHdfsFlushTimestamp = System.currentTimeMillis();
 	private long numAvroBlocksWritten = 0l;
+	private long bytesWritten = 0l;
+	private long position = 0l;
+	private final boolean blockAligned;
+	private final long hdfsBlockSize;
+	private final Meter alignmentPaddingBytes;
+	private final LocalSpool localSpool;
+	private final LocalSpool.Channel spoolChannel;
+	private final BoomFileIndex.Builder indexBuilder;
+	private final BlockBloomFilters.Builder bloomBuilder;
 	private long numHdfsFlushedAVroBlocks = 0l;
 	private RunningConfig runningConfig = null;
 	private final String partitionId;
@@ -61,6 +72,9 @@ public class FastBoomWriter {
 	private final byte[] logBlockBytes = new byte[1024 * 1024];
 	private final ByteBuffer logBlockBuffer = ByteBuffer.wrap(logBlockBytes);
 	private long logLineCount;
+	private long linesWritten = 0;
+	private long firstKafkaOffset = -1;
+	private long lastKafkaOffset = -1;
 	private final byte[] logLinesBytes = new byte[logBlockBytes.length - 41];
 	private final ByteBuffer logLinesBuffer = ByteBuffer.wrap(logLinesBytes);
 	private final byte[] longBytes = new byte[10];
@@ -70,6 +84,11 @@ public class FastBoomWriter {
 		'O', 'b', 'j', 1
 	};
 
+	static final int MIN_PAD_SIZE = 64;
+	private static final byte[] EMPTY_STORED_BLOCK = new byte[]{
+		0, 0, 0, (byte) 0xFF, (byte) 0xFF
+	};
+
 	public void loadNativeDeflateLib() {
 		System.loadLibrary("NativeDeflate");
 	}
@@ -91,9 +110,24 @@ public class FastBoomWriter {
 	private final byte[] syncMarker;
 
 	private final HdfsDataOutputStream hdfsDataOut;
+	private final HdfsAdmissionController admissionController;
+	private Worker worker;
+	private final InstrumentedFileSystem fileSystem;
 
 	public FastBoomWriter(HdfsDataOutputStream out, String topic, int partition, StartupConfig startupConfig) throws IOException {
+		this(out, topic, partition, startupConfig, null);
+	}
+
+	/**
+	 * @param fileSystem when not null the hsyncs and close of the output stream go through it
+	 */
+	public FastBoomWriter(HdfsDataOutputStream out,
+		 String topic,
+		 int partition,
+		 StartupConfig startupConfig,
+		 InstrumentedFileSystem fileSystem) throws IOException {
 		this.hdfsDataOut = out;
+		this.fileSystem = fileSystem;
 		this.partitionId = topic + "-" + partition;
 		this.runningConfig = startupConfig.getRunningConfig();
 		this.compressionLevel = runningConfig.getCompressionLevel();
@@ -110,6 +144,26 @@ public class FastBoomWriter {
 		this.failedBlockWrites = MetricRegistrySingleton.getInstance().getMetricsRegistry().meter("kaboom:total:failed block writes");
 		this.periodicHdfsFlushInterval = runningConfig.getPeriodicHdfsFlushInterval();
 		this.useNativeCompression = runningConfig.getUseNativeCompression();
+		this.admissionController = startupConfig.getHdfsAdmissionController();
+		this.blockAligned = startupConfig.isBoomFileBlockAligned();
+		this.hdfsBlockSize = runningConfig.getBoomFileBlocksize();
+		this.alignmentPaddingBytes = MetricRegistrySingleton.getInstance().getMetricsRegistry().meter("kaboom:total:block alignment padding bytes");
+		this.indexBuilder = startupConfig.isBoomFileIndex() ? new BoomFileIndex.Builder() : null;
+		this.bloomBuilder = startupConfig.getTopicTokenBlooms().contains(topic)
+			 ? new BlockBloomFilters.Builder(startupConfig.getTokenBloomBitsPerToken()) : null;
+		this.localSpool = startupConfig.getLocalSpool();
+		this.spoolChannel = localSpool == null ? null : localSpool.open(partitionId, new LocalSpool.Sink() {
+			@Override
+			public void write(byte[] bytes, int offset, int length) throws IOException {
+				hdfsDataOut.write(bytes, offset, length);
+			}
+
+			@Override
+			public void sync() throws IOException {
+				hsync();
+			}
+
+		});
 
 		Random rand = new Random();
 		syncMarker = new byte[16];
@@ -161,7 +215,20 @@ public class FastBoomWriter {
 				return;
 			}
 
-			hdfsDataOut.hsync(EnumSet.of(SyncFlag.UPDATE_LENGTH));
+			if (spoolChannel != null && spoolChannel.isActive()) {
+				LOG.trace("Skipping forced HDFS flush while spooling, the shipper syncs what it ships");
+				return;
+			}
+
+			admit(0);
+
+			long hsyncStart = System.currentTimeMillis();
+			hsync();
+
+			if (admissionController != null) {
+				admissionController.recordLatency(System.currentTimeMillis() - hsyncStart);
+			}
+
 			numHdfsFlushedAVroBlocks = numAvroBlocksWritten;
 			lastHdfsFlushTimestamp = System.currentTimeMillis();
 		} finally {
@@ -171,12 +238,35 @@ public class FastBoomWriter {
 		}
 	}
 
+	private void hsync() throws IOException {
+		if (fileSystem != null) {
+			fileSystem.hsync(hdfsDataOut, EnumSet.of(SyncFlag.UPDATE_LENGTH));
+		} else {
+			hdfsDataOut.hsync(EnumSet.of(SyncFlag.UPDATE_LENGTH));
+		}
+	}
+
+	/**
+	 * Waits on the node's HDFS admission budget (if there is one) for a single write
+	 */
+	private void admit(long bytes) throws IOException {
+		if (admissionController == null) {
+			return;
+		}
+		try {
+			admissionController.acquire(bytes, 1, worker);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted waiting on HDFS admission");
+		}
+	}
+
 	private void writeHeader() throws IOException {
-		hdfsDataOut.write(MAGIC_NUMBER);
+		write(MAGIC_NUMBER, 0, MAGIC_NUMBER.length);
 
 		// 2 entries in the metadata
 		encodeLong(2L);
-		hdfsDataOut.write(longBytes, 0, longBuffer.position());
+		write(longBytes, 0, longBuffer.position());
 
 		// Write schema
 		writeBytes("avro.schema".getBytes(UTF8));
@@ -188,15 +278,132 @@ public class FastBoomWriter {
 
 		// End the map
 		encodeLong(0L);
-		hdfsDataOut.write(longBytes, 0, longBuffer.position());
+		write(longBytes, 0, longBuffer.position());
 
-		hdfsDataOut.write(syncMarker);
+		write(syncMarker, 0, syncMarker.length);
 	}
 
 	private void writeBytes(byte[] bytes) throws IOException {
 		encodeLong(bytes.length);
-		hdfsDataOut.write(longBytes, 0, longBuffer.position());
-		hdfsDataOut.write(bytes);
+		write(longBytes, 0, longBuffer.position());
+		write(bytes, 0, bytes.length);
+	}
+
+	private void write(byte[] bytes, int offset, int length) throws IOException {
+		if (spooling()) {
+			spoolChannel.append(bytes, offset, length);
+		} else {
+			hdfsDataOut.write(bytes, offset, length);
+		}
+		position += length;
+	}
+
+	/**
+	 * @return true when writes go to the local spool rather than HDFS
+	 */
+	private boolean spooling() {
+		return spoolChannel != null && (spoolChannel.isActive() || localSpool.isSlow());
+	}
+
+	private static int varintLength(long n) {
+		n = (n << 1) ^ (n >> 63);
+		int length = 1;
+		while ((n & ~0x7FL) != 0) {
+			n >>>= 7;
+			length++;
+		}
+		return length;
+	}
+
+	/**
+	 * Pads out the rest of the HDFS block when the next avro block would cross
+	 * into the next one (or leave too little room for a pad after it).
+	 *
+	 * @param nextBlockSize the size of the avro block about to be written
+	 */
+	private void alignToHdfsBlock(long nextBlockSize) throws IOException {
+		long remaining = hdfsBlockSize - position % hdfsBlockSize;
+		if (nextBlockSize > hdfsBlockSize
+			 || remaining < MIN_PAD_SIZE
+			 || nextBlockSize == remaining
+			 || (nextBlockSize < remaining && remaining - nextBlockSize >= MIN_PAD_SIZE)) {
+			return;
+		}
+
+		byte[] pad = alignmentPad(logBlockSecond, (int) remaining, syncMarker);
+		if (pad == null) {
+			LOG.warn("[{}] unable to pad {} bytes to the HDFS block boundary", partitionId, remaining);
+			return;
+		}
+		write(pad, 0, pad.length);
+		alignmentPaddingBytes.mark(pad.length);
+		LOG.debug("[{}] padded {} bytes to the HDFS block boundary at {}", partitionId, pad.length, position);
+	}
+
+	/**
+	 * Avro has no raw padding, so a pad is an avro block holding a single log
+	 * block with no lines and a blockNumber of -1.  Its createTime (less than
+	 * 2^28, never a real epoch ms) is sized along with a run of empty stored
+	 * deflate blocks so the pad is exactly the requested size.  Where the block
+	 * size's varint grows a byte the record count is written as a two byte
+	 * (non-canonical, still decodes as 1) varint to cover the gap.
+	 *
+	 * @param second the second of the pad's log block
+	 * @param size the size of the pad, at least MIN_PAD_SIZE
+	 * @param syncMarker
+	 * @return the pad or null if there is no layout of exactly that size
+	 */
+	static byte[] alignmentPad(long second, int size, byte[] syncMarker) throws IOException {
+		// second, a blockNumber of -1 and the end of the (empty) logLines array
+		int fixedRecordLength = varintLength(second) + 1 + 1;
+
+		for (int countLength = 1; countLength <= 2; countLength++) {
+			for (int sizeLength = 1; sizeLength <= 5; sizeLength++) {
+				long blockSize = size - countLength - sizeLength - syncMarker.length;
+				if (varintLength(blockSize) != sizeLength) {
+					continue;
+				}
+				for (int createTimeLength = 1; createTimeLength <= 5; createTimeLength++) {
+					long storedBlockBytes = blockSize - fixedRecordLength - createTimeLength;
+					if (storedBlockBytes < EMPTY_STORED_BLOCK.length || storedBlockBytes % EMPTY_STORED_BLOCK.length != 0) {
+						continue;
+					}
+
+					int recordLength = fixedRecordLength + createTimeLength;
+					ByteArrayOutputStream pad = new ByteArrayOutputStream(size);
+
+					// 1 record
+					if (countLength == 1) {
+						BoomFileHeader.writeLong(pad, 1L);
+					} else {
+						pad.write(0x82);
+						pad.write(0x00);
+					}
+					BoomFileHeader.writeLong(pad, blockSize);
+
+					// Empty stored blocks then a final stored block holding the record
+					for (long i = storedBlockBytes / EMPTY_STORED_BLOCK.length - 1; i > 0; i--) {
+						pad.write(EMPTY_STORED_BLOCK);
+					}
+					pad.write(1);
+					pad.write(recordLength & 0xFF);
+					pad.write((recordLength >> 8) & 0xFF);
+					pad.write(~recordLength & 0xFF);
+					pad.write((~recordLength >> 8) & 0xFF);
+
+					BoomFileHeader.writeLong(pad, second);
+					// zig-zag values that encode to exactly createTimeLength bytes
+					BoomFileHeader.writeLong(pad, createTimeLength == 1 ? 0L : 1L << (7 * (createTimeLength - 1) - 1));
+					BoomFileHeader.writeLong(pad, -1L);
+					// no log lines
+					BoomFileHeader.writeLong(pad, 0L);
+
+					pad.write(syncMarker);
+					return pad.toByteArray();
+				}
+			}
+		}
+		return null;
 	}
 
 	private void encodeLong(long n) {
@@ -242,6 +449,13 @@ public class FastBoomWriter {
 	}
 
 	public void writeLine(long timestamp, byte[] message, int offset, int length) throws IOException {
+		writeLine(timestamp, message, offset, length, -1L);
+	}
+
+	/**
+	 * @param kafkaOffset the line's Kafka offset for the index, -1 if it isn't known
+	 */
+	public void writeLine(long timestamp, byte[] message, int offset, int length, long kafkaOffset) throws IOException {
 		ms = timestamp % 1000l;
 		second = timestamp / 1000l;
 
@@ -299,10 +513,51 @@ public class FastBoomWriter {
 			LOG.info("[{}] ???.  {} - {} < 10 + 10 + {}", partitionId, logBlockBytes.length,
 				 logBlockBuffer.position(), length);
 		}
+		if (indexBuilder != null) {
+			indexBuilder.line(kafkaOffset);
+		}
+		if (bloomBuilder != null) {
+			bloomBuilder.line(message, offset, length);
+		}
 		logLineCount++;
+		linesWritten++;
+		if (kafkaOffset >= 0) {
+			if (firstKafkaOffset < 0 || kafkaOffset < firstKafkaOffset) {
+				firstKafkaOffset = kafkaOffset;
+			}
+			lastKafkaOffset = Math.max(lastKafkaOffset, kafkaOffset);
+		}
 		periodicHdfsFlushPoll();
 	}
 
+	/**
+	 * Ends the current log block so the next line starts a new one
+	 *
+	 * @throws IOException
+	 */
+	public void breakLogBlock() throws IOException {
+		if (logBlockBuffer.position() > 0) {
+			writeLogBlock();
+		}
+	}
+
+	/**
+	 * @param timestamp
+	 * @param length
+	 * @return true if writing the line would first end the current log block
+	 */
+	public boolean endsLogBlock(long timestamp, int length) {
+		return logBlockBuffer.position() > 0
+			 && (timestamp / 1000l != logBlockSecond || logLinesBytes.length - logLinesBuffer.position() < 10 + 10 + length);
+	}
+
+	/**
+	 * @return the block number of the next log block started
+	 */
+	public long getBlockNumber() {
+		return blockNumber;
+	}
+
 	private void writeLogBlock() throws IOException {
 		// We need room for the logBlockBuffer, the number of records in
 		// logLinesBuffer (up to 10) and the logLinesBuffer. If not, then we need to flush.
@@ -328,6 +583,13 @@ public class FastBoomWriter {
 
 		avroBlockRecordCount++;
 
+		if (indexBuilder != null) {
+			indexBuilder.logBlock(logBlockSecond);
+		}
+		if (bloomBuilder != null) {
+			bloomBuilder.logBlock();
+		}
+
 		logBlockBuffer.clear();
 		logLineCount = 0L;
 		logLinesBuffer.clear();
@@ -339,8 +601,6 @@ public class FastBoomWriter {
 
 		try {
 			LOG.debug("[{}] Writing Avro Block ({} bytes)", partitionId, avroBlockBuffer.position());
-			encodeLong(avroBlockRecordCount);
-			hdfsDataOut.write(longBytes, 0, longBuffer.position());
 
 			long start = System.currentTimeMillis();
 
@@ -385,16 +645,51 @@ public class FastBoomWriter {
 			compressionRatioHistogramTopic.update(Math.round(100 - (100.0 * compressedSize / avroBlockBuffer.position())));
 			compressionRatioHistogramTotal.update(Math.round(100 - (100.0 * compressedSize / avroBlockBuffer.position())));
 
+			boolean direct = !spooling();
+			if (direct) {
+				admit(compressedSize);
+			}
+
+			long writeStart = System.currentTimeMillis();
+
+			if (blockAligned) {
+				alignToHdfsBlock(varintLength(avroBlockRecordCount) + varintLength(compressedSize)
+					 + compressedSize + syncMarker.length);
+			}
+
+			long blockStart = position;
+
+			encodeLong(avroBlockRecordCount);
+			write(longBytes, 0, longBuffer.position());
+
 			encodeLong(compressedSize);
 
-			hdfsDataOut.write(longBytes, 0, longBuffer.position());
-			hdfsDataOut.write(compressedBlockBytes, 0, compressedSize);
-			hdfsDataOut.write(syncMarker);
+			write(longBytes, 0, longBuffer.position());
+			write(compressedBlockBytes, 0, compressedSize);
+			write(syncMarker, 0, syncMarker.length);
+
+			if (indexBuilder != null) {
+				indexBuilder.avroBlock(blockStart);
+			}
+			if (bloomBuilder != null) {
+				bloomBuilder.avroBlock(blockStart);
+			}
+
+			if (direct && localSpool != null) {
+				localSpool.recordLatency(System.currentTimeMillis() - writeStart);
+			}
+			bytesWritten += compressedSize;
 			totalBytesWritten.mark(compressedSize);
 			topicBytesWritten.mark(compressedSize);
 		} catch (Exception e) {
 			LOG.error("[{}] error occured either compressing or writing the avro block: ", partitionId, e);
 			failedBlockWrites.mark();
+			if (indexBuilder != null) {
+				indexBuilder.discardAvroBlock();
+			}
+			if (bloomBuilder != null) {
+				bloomBuilder.discardAvroBlock();
+			}
 		} finally {
 			timerTopic.stop();
 			timerTotal.stop();
@@ -413,7 +708,72 @@ public class FastBoomWriter {
 		if (avroBlockBuffer.position() > 0) {
 			writeAvroBlock();
 		}
-		hdfsDataOut.close();
+		if (spoolChannel != null) {
+			spoolChannel.drain();
+		}
+		if (fileSystem != null) {
+			fileSystem.close(hdfsDataOut);
+		} else {
+			hdfsDataOut.close();
+		}
+	}
+
+	/**
+	 * Drops whatever is still spooled for the file, for when it's being aborted
+	 */
+	public void discardSpool() {
+		if (spoolChannel != null) {
+			spoolChannel.discard();
+		}
+	}
+
+	/**
+	 * @return the index of the avro blocks written so far, null when indexing is disabled
+	 */
+	public BoomFileIndex getIndex() {
+		return indexBuilder == null ? null : indexBuilder.build();
+	}
+
+	/**
+	 * @return the token bloom filters of the avro blocks written so far, null when the topic isn't tokenized
+	 */
+	public BlockBloomFilters.Builder getBloomFilters() {
+		return bloomBuilder;
+	}
+
+	/**
+	 * @return the size of the file so far
+	 */
+	public long getPosition() {
+		return position;
+	}
+
+	/**
+	 * @return the number of lines written so far
+	 */
+	public long getLinesWritten() {
+		return linesWritten;
+	}
+
+	/**
+	 * @return the lowest Kafka offset written so far, -1 if none were known
+	 */
+	public long getFirstKafkaOffset() {
+		return firstKafkaOffset;
+	}
+
+	/**
+	 * @return the highest Kafka offset written so far, -1 if none were known
+	 */
+	public long getLastKafkaOffset() {
+		return lastKafkaOffset;
+	}
+
+	/**
+	 * @return the compressed bytes of the avro blocks written so far
+	 */
+	public long getBytesWritten() {
+		return bytesWritten;
 	}
 
 	/**
@@ -423,6 +783,14 @@ public class FastBoomWriter {
 		return periodicHdfsFlushInterval;
 	}
 
+	/**
+	 * @param worker the worker whose pings are answered while a write waits on
+	 * the HDFS admission budget
+	 */
+	public void setWorker(Worker worker) {
+		this.worker = worker;
+	}
+
 	/**
 	 * @param periodicHdfsFlushInterval the periodicHdfsFlushInterval to set
 	 */
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bdp.kaboom;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds the favored datanodes passed to DistributedFileSystem.create() for a
+ * partition's boom files from a topic's favored nodes specification, which is
+ * either:
+ *
+ * local - the datanode on this host, the first replica is written locally
+ *
+ * or a comma separated list of datanodes (host or host:port) that the topic's
+ * partitions are spread across, each partition favoring a different window of
+ * the list (as many nodes as there are replicas) so write load is balanced
+ * over all of them.  Listing the nodes alternately by rack gives each window
+ * nodes in different racks.
+ */
+public class FavoredNodes {
+
+	public static final String LOCAL = "local";
+
+	/**
+	 * @param spec
+	 * @param localHost
+	 * @param partition
+	 * @param replicas
+	 * @param defaultPort the datanode port used when a node doesn't specify one
+	 * @return the favored nodes, null if the specification is empty
+	 */
+	public static InetSocketAddress[] forPartition(String spec,
+		 String localHost,
+		 int partition,
+		 int replicas,
+		 int defaultPort) {
+		if (spec == null || spec.trim().isEmpty()) {
+			return null;
+		}
+
+		if (spec.trim().equals(LOCAL)) {
+			return new InetSocketAddress[]{
+				InetSocketAddress.createUnresolved(localHost, defaultPort)
+			};
+		}
+
+		List<InetSocketAddress> nodes = new ArrayList<>();
+		for (String node : spec.split(",")) {
+			node = node.trim();
+			if (node.isEmpty()) {
+				continue;
+			}
+			int colon = node.lastIndexOf(':');
+			if (colon > 0) {
+				nodes.add(InetSocketAddress.createUnresolved(node.substring(0, colon),
+					 Integer.parseInt(node.substring(colon + 1))));
+			} else {
+				nodes.add(InetSocketAddress.createUnresolved(node, defaultPort));
+			}
+		}
+
+		if (nodes.isEmpty()) {
+			return null;
+		}
+
+		int count = Math.max(1, Math.min(replicas, nodes.size()));
+		InetSocketAddress[] favored = new InetSocketAddress[count];
+		for (int i = 0; i < count; i++) {
+			favored[i] = nodes.get((partition * count + i) % nodes.size());
+		}
+		return favored;
+	}
+
+}
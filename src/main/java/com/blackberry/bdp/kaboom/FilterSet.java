@@ -0,0 +1,247 @@
+/*
+ * Copyright 2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bdp.kaboom;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An ordered list of rules evaluated against the raw bytes of each message,
+ * the first rule that matches decides what happens to the message.
+ *
+ * Rules are configured per topic as:
+ *
+ * kaboom.topic.filter.&lt;topic&gt;.&lt;order&gt;=&lt;action&gt;:&lt;match&gt;:&lt;values&gt;
+ *
+ * where action is drop or route=&lt;data directory&gt;, match is one of
+ * prefix, contains, facility or severity, and values is a | separated list
+ * of literals (prefix, contains) or a comma separated list of numbers
+ * (facility, severity).  For example:
+ *
+ * kaboom.topic.filter.syslog.1=drop:severity:7
+ * kaboom.topic.filter.syslog.2=drop:contains:DEBUG|TRACE
+ * kaboom.topic.filter.syslog.3=route=audit:prefix:AUDIT
+ *
+ * The literals of every contains rule are compiled into a single
+ * Aho-Corasick automaton so a message is scanned at most once, and
+ * evaluation doesn't allocate.
+ */
+public class FilterSet {
+
+	public static final int ACCEPT = -1;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int MAX_RULES = 64;
+
+	public enum Action {
+		DROP, ROUTE
+	}
+
+	private enum Match {
+		PREFIX, CONTAINS, FACILITY, SEVERITY
+	}
+
+	private final Rule[] rules;
+	private final AhoCorasick containsAutomaton;
+
+	/**
+	 * @param specs the rule specifications keyed by their order
+	 * @throws IllegalArgumentException if a rule can't be parsed
+	 */
+	public FilterSet(Map<Integer, String> specs) {
+		if (specs.size() > MAX_RULES) {
+			throw new IllegalArgumentException("at most " + MAX_RULES + " filter rules are supported, found " + specs.size());
+		}
+
+		List<byte[]> literals = new ArrayList<>();
+		List<Long> literalMasks = new ArrayList<>();
+		rules = new Rule[specs.size()];
+		int i = 0;
+
+		for (Map.Entry<Integer, String> entry : new TreeMap<>(specs).entrySet()) {
+			rules[i] = new Rule(entry.getKey(), entry.getValue());
+			if (rules[i].match == Match.CONTAINS) {
+				for (byte[] literal : rules[i].literals) {
+					literals.add(literal);
+					literalMasks.add(1L << i);
+				}
+			}
+			i++;
+		}
+
+		if (literals.isEmpty()) {
+			containsAutomaton = null;
+		} else {
+			long[] masks = new long[literalMasks.size()];
+			for (int j = 0; j < masks.length; j++) {
+				masks[j] = literalMasks.get(j);
+			}
+			containsAutomaton = new AhoCorasick(literals.toArray(new byte[literals.size()][]), masks);
+		}
+	}
+
+	/**
+	 * @param bytes
+	 * @param pos the start of the message
+	 * @param length the length of the message
+	 * @param pri the message's PRI or -1 if it doesn't have one
+	 * @return the index of the first matching rule or ACCEPT
+	 */
+	public int evaluate(byte[] bytes, int pos, int length, int pri) {
+		boolean scanned = false;
+		long contained = 0;
+
+		for (int i = 0; i < rules.length; i++) {
+			Rule rule = rules[i];
+			switch (rule.match) {
+				case PREFIX:
+					for (byte[] literal : rule.literals) {
+						if (startsWith(bytes, pos, length, literal)) {
+							return i;
+						}
+					}
+					break;
+				case CONTAINS:
+					if (!scanned) {
+						contained = containsAutomaton.match(bytes, pos, length);
+						scanned = true;
+					}
+					if ((contained & (1L << i)) != 0) {
+						return i;
+					}
+					break;
+				case FACILITY:
+					if (pri >= 0 && pri / 8 < rule.values.length && rule.values[pri / 8]) {
+						return i;
+					}
+					break;
+				case SEVERITY:
+					if (pri >= 0 && rule.values[pri % 8]) {
+						return i;
+					}
+					break;
+			}
+		}
+
+		return ACCEPT;
+	}
+
+	private static boolean startsWith(byte[] bytes, int pos, int length, byte[] literal) {
+		if (literal.length > length) {
+			return false;
+		}
+		for (int i = 0; i < literal.length; i++) {
+			if (bytes[pos + i] != literal[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public Action getAction(int rule) {
+		return rules[rule].action;
+	}
+
+	/**
+	 * @param rule
+	 * @return the data directory the rule routes to, null for a drop rule
+	 */
+	public String getDataDirectory(int rule) {
+		return rules[rule].dataDirectory;
+	}
+
+	public int size() {
+		return rules.length;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (Rule rule : rules) {
+			sb.append(sb.length() == 0 ? "" : ", ").append(rule.order).append('=').append(rule.spec);
+		}
+		return sb.toString();
+	}
+
+	private static class Rule {
+
+		private final int order;
+		private final String spec;
+		private final Action action;
+		private final String dataDirectory;
+		private final Match match;
+		private byte[][] literals;
+		private boolean[] values;
+
+		private Rule(int order, String spec) {
+			this.order = order;
+			this.spec = spec;
+
+			String[] parts = spec.split(":", 3);
+			if (parts.length != 3) {
+				throw new IllegalArgumentException("invalid filter rule " + order + ": " + spec);
+			}
+
+			String actionSpec = parts[0].trim();
+			if (actionSpec.equals("drop")) {
+				action = Action.DROP;
+				dataDirectory = null;
+			} else if (actionSpec.startsWith("route=") && actionSpec.length() > "route=".length()) {
+				action = Action.ROUTE;
+				dataDirectory = actionSpec.substring("route=".length());
+			} else {
+				throw new IllegalArgumentException("invalid filter rule action " + order + ": " + actionSpec);
+			}
+
+			try {
+				match = Match.valueOf(parts[1].trim().toUpperCase());
+			} catch (IllegalArgumentException iae) {
+				throw new IllegalArgumentException("invalid filter rule match " + order + ": " + parts[1]);
+			}
+
+			switch (match) {
+				case PREFIX:
+				case CONTAINS:
+					List<byte[]> list = new ArrayList<>();
+					for (String literal : parts[2].split("\\|")) {
+						if (!literal.isEmpty()) {
+							list.add(literal.getBytes(UTF8));
+						}
+					}
+					if (list.isEmpty()) {
+						throw new IllegalArgumentException("filter rule " + order + " has no literals: " + spec);
+					}
+					literals = list.toArray(new byte[list.size()][]);
+					break;
+				case FACILITY:
+				case SEVERITY:
+					values = new boolean[match == Match.FACILITY ? 24 : 8];
+					for (String value : parts[2].split(",")) {
+						int n = Integer.parseInt(value.trim());
+						if (n < 0 || n >= values.length) {
+							throw new IllegalArgumentException("invalid " + parts[1] + " " + n + " in filter rule " + order);
+						}
+						values[n] = true;
+					}
+					break;
+			}
+		}
+
+	}
+
+}
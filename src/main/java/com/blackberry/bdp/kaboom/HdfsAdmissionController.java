@@ -0,0 +1,277 @@
+/*
+ * Copyright 2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bdp.kaboom;
+
+import com.blackberry.bdp.common.jmx.MetricRegistrySingleton;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A node-wide budget of bytes and operations per second for HDFS writes.
+ *
+ * Writers (avro block writes, hsyncs, file creates and closes) take tokens
+ * from the budget before touching HDFS.  Hsyncs, creates and closes report how
+ * long they took, they wait on the DataNode pipeline or the NameNode, unlike
+ * avro block writes that only fill the client's buffers.  The budget is
+ * adjusted AIMD style from an EWMA of those latencies: it's halved every
+ * interval the latency is above target and grows additively otherwise.
+ *
+ * Writers queue so they're admitted in arrival order and only the writer at
+ * the head of the queue takes tokens.  A writer waits on the budget for as
+ * long as it takes, in slices of maxWaitMs: at the end of each slice a worker
+ * waiting on its own thread answers its pings, so it isn't taken for hung
+ * while HDFS browns out.  A write larger than a second of budget is let
+ * through once the bucket is full, but the budget never goes more than a
+ * second's worth into debt.
+ */
+public class HdfsAdmissionController {
+
+	private static final Logger LOG = LoggerFactory.getLogger(HdfsAdmissionController.class);
+	private static final double EWMA_ALPHA = 0.2;
+
+	private final long minBytesPerSec;
+	private final long maxBytesPerSec;
+	private final long minOpsPerSec;
+	private final long maxOpsPerSec;
+	private final long targetLatencyMs;
+	private final long intervalMs;
+	private final long maxWaitMs;
+	private final double decreaseFactor;
+
+	private final Object stateLock = new Object();
+	// Writers waiting on the budget in arrival order, the head is served first
+	private final Deque<Object> waiters = new ArrayDeque<>();
+	private final Timer admissionWaitTimer;
+	private final Meter admissionTimeouts;
+
+	private double bytesPerSec;
+	private double opsPerSec;
+	private double byteTokens;
+	private double opTokens;
+	private double latencyEwmaMs = 0;
+	private long lastRefill;
+	private long lastAdjust;
+
+	public HdfsAdmissionController(long minBytesPerSec,
+		 long maxBytesPerSec,
+		 long minOpsPerSec,
+		 long maxOpsPerSec,
+		 long targetLatencyMs,
+		 long intervalMs,
+		 long maxWaitMs,
+		 double decreaseFactor) {
+		this.minBytesPerSec = Math.max(1, Math.min(minBytesPerSec, maxBytesPerSec));
+		this.maxBytesPerSec = Math.max(1, maxBytesPerSec);
+		this.minOpsPerSec = Math.max(1, Math.min(minOpsPerSec, maxOpsPerSec));
+		this.maxOpsPerSec = Math.max(1, maxOpsPerSec);
+		this.targetLatencyMs = targetLatencyMs;
+		this.intervalMs = intervalMs;
+		this.maxWaitMs = maxWaitMs;
+		this.decreaseFactor = decreaseFactor;
+		this.bytesPerSec = this.maxBytesPerSec;
+		this.opsPerSec = this.maxOpsPerSec;
+		this.byteTokens = this.bytesPerSec;
+		this.opTokens = this.opsPerSec;
+		this.lastRefill = System.currentTimeMillis();
+		this.lastAdjust = lastRefill;
+		this.admissionWaitTimer = MetricRegistrySingleton.getInstance().getMetricsRegistry()
+			 .timer("kaboom:total:hdfs admission wait timer");
+		this.admissionTimeouts = MetricRegistrySingleton.getInstance().getMetricsRegistry()
+			 .meter("kaboom:total:hdfs admission timeouts");
+	}
+
+	public HdfsAdmissionController(StartupConfig config) {
+		this(config.getHdfsAdmissionMinBytesPerSec(),
+			 config.getHdfsAdmissionMaxBytesPerSec(),
+			 config.getHdfsAdmissionMinOpsPerSec(),
+			 config.getHdfsAdmissionMaxOpsPerSec(),
+			 config.getHdfsAdmissionTargetLatencyMs(),
+			 config.getHdfsAdmissionIntervalMs(),
+			 config.getHdfsAdmissionMaxWaitMs(),
+			 config.getHdfsAdmissionDecreaseFactor());
+	}
+
+	public void registerGauges() {
+		MetricRegistrySingleton.getInstance().getMetricsRegistry()
+			 .register("kaboom:total:hdfs admission bytes per second", new Gauge<Long>() {
+				 @Override
+				 public Long getValue() {
+					 return getBytesPerSec();
+				 }
+
+			 });
+
+		MetricRegistrySingleton.getInstance().getMetricsRegistry()
+			 .register("kaboom:total:hdfs admission ops per second", new Gauge<Long>() {
+				 @Override
+				 public Long getValue() {
+					 return getOpsPerSec();
+				 }
+
+			 });
+
+		MetricRegistrySingleton.getInstance().getMetricsRegistry()
+			 .register("kaboom:total:hdfs admission latency ms", new Gauge<Long>() {
+				 @Override
+				 public Long getValue() {
+					 return getLatencyEwmaMs();
+				 }
+
+			 });
+	}
+
+	/**
+	 * Blocks (in arrival order) until the budget has room for the write
+	 *
+	 * @param bytes the number of bytes about to be written
+	 * @param ops the number of HDFS operations about to be issued
+	 * @throws InterruptedException
+	 */
+	public void acquire(long bytes, int ops) throws InterruptedException {
+		acquire(bytes, ops, null);
+	}
+
+	/**
+	 * Blocks (in arrival order) until the budget has room for the write,
+	 * answering the worker's pings every maxWaitMs it waits
+	 *
+	 * @param bytes the number of bytes about to be written
+	 * @param ops the number of HDFS operations about to be issued
+	 * @param worker the worker the write is for, its pings are only answered
+	 * when it's waiting on its own thread
+	 * @throws InterruptedException
+	 */
+	public void acquire(long bytes, int ops, Worker worker) throws InterruptedException {
+		long start = System.currentTimeMillis();
+		long sliceMs = Math.max(1, maxWaitMs);
+		Object waiter = new Object();
+		synchronized (stateLock) {
+			waiters.addLast(waiter);
+			try {
+				long sliceEnd = start + sliceMs;
+				while (true) {
+					long now = System.currentTimeMillis();
+					long waitMs = sliceMs;
+					if (waiters.peekFirst() == waiter) {
+						refill(now);
+						// A request larger than a full second of budget is let through once the bucket is full
+						if (byteTokens >= Math.min(bytes, bytesPerSec) && opTokens >= Math.min(ops, opsPerSec)) {
+							byteTokens = Math.max(-bytesPerSec, byteTokens - bytes);
+							opTokens = Math.max(-opsPerSec, opTokens - ops);
+							return;
+						}
+						double byteDeficitMs = 1000.0 * (Math.min(bytes, bytesPerSec) - byteTokens) / bytesPerSec;
+						double opDeficitMs = 1000.0 * (Math.min(ops, opsPerSec) - opTokens) / opsPerSec;
+						waitMs = (long) Math.ceil(Math.max(byteDeficitMs, opDeficitMs));
+					}
+					if (now >= sliceEnd) {
+						// Still no room, the write keeps waiting but the worker mustn't look hung
+						admissionTimeouts.mark();
+						if (worker != null && worker.isWorkerThread() && worker.pinged()) {
+							worker.setPong(true);
+						}
+						sliceEnd = now + sliceMs;
+					}
+					stateLock.wait(Math.max(1, Math.min(waitMs, sliceEnd - now)));
+				}
+			} finally {
+				waiters.remove(waiter);
+				stateLock.notifyAll();
+				admissionWaitTimer.update(System.currentTimeMillis() - start, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	/**
+	 * Reports how long an admitted HDFS call that waits on the NameNode or the
+	 * DataNode pipeline took
+	 *
+	 * @param latencyMs
+	 */
+	public void recordLatency(long latencyMs) {
+		recordLatency(latencyMs, System.currentTimeMillis());
+	}
+
+	void recordLatency(long latencyMs, long now) {
+		synchronized (stateLock) {
+			latencyEwmaMs = EWMA_ALPHA * latencyMs + (1 - EWMA_ALPHA) * latencyEwmaMs;
+
+			if (now - lastAdjust < intervalMs) {
+				return;
+			}
+
+			double oldBytesPerSec = bytesPerSec;
+
+			if (latencyEwmaMs > targetLatencyMs) {
+				bytesPerSec = Math.max(minBytesPerSec, bytesPerSec * decreaseFactor);
+				opsPerSec = Math.max(minOpsPerSec, opsPerSec * decreaseFactor);
+			} else {
+				bytesPerSec = Math.min(maxBytesPerSec, bytesPerSec + maxBytesPerSec / 20.0);
+				opsPerSec = Math.min(maxOpsPerSec, opsPerSec + maxOpsPerSec / 20.0);
+			}
+
+			byteTokens = Math.min(byteTokens, bytesPerSec);
+			opTokens = Math.min(opTokens, opsPerSec);
+			lastAdjust = now;
+
+			if (bytesPerSec < oldBytesPerSec) {
+				LOG.warn("HDFS latency {} ms is over target {} ms, budget reduced to {} bytes/sec and {} ops/sec",
+					 (long) latencyEwmaMs, targetLatencyMs, (long) bytesPerSec, (long) opsPerSec);
+			}
+		}
+	}
+
+	private void refill(long now) {
+		double elapsedSec = (now - lastRefill) / 1000.0;
+		if (elapsedSec <= 0) {
+			return;
+		}
+		byteTokens = Math.min(bytesPerSec, byteTokens + bytesPerSec * elapsedSec);
+		opTokens = Math.min(opsPerSec, opTokens + opsPerSec * elapsedSec);
+		lastRefill = now;
+	}
+
+	public long getBytesPerSec() {
+		synchronized (stateLock) {
+			return (long) bytesPerSec;
+		}
+	}
+
+	public long getOpsPerSec() {
+		synchronized (stateLock) {
+			return (long) opsPerSec;
+		}
+	}
+
+	long getByteTokens() {
+		synchronized (stateLock) {
+			return (long) byteTokens;
+		}
+	}
+
+	public long getLatencyEwmaMs() {
+		synchronized (stateLock) {
+			return (long) latencyEwmaMs;
+		}
+	}
+
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bdp.kaboom;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Node-wide set of HDFS directories that are known to exist.
+ *
+ * Entries expire after ttlMs so a directory removed out from under us is only
+ * trusted for a bounded time, and callers invalidate an entry as soon as an
+ * operation that relied on it fails.  Keys should be fully qualified paths so
+ * that relative paths resolved for different proxy users don't collide.
+ */
+public class HdfsDirectoryCache {
+
+	private final long ttlMs;
+	private final int maxEntries;
+	private final Map<String, Long> expiries = new ConcurrentHashMap<>();
+
+	public HdfsDirectoryCache(long ttlMs, int maxEntries) {
+		this.ttlMs = ttlMs;
+		this.maxEntries = maxEntries;
+	}
+
+	public boolean isKnown(String dir) {
+		return isKnown(dir, System.currentTimeMillis());
+	}
+
+	boolean isKnown(String dir, long now) {
+		Long expiry = expiries.get(dir);
+		if (expiry == null) {
+			return false;
+		}
+		if (now >= expiry) {
+			expiries.remove(dir);
+			return false;
+		}
+		return true;
+	}
+
+	public void markKnown(String dir) {
+		markKnown(dir, System.currentTimeMillis());
+	}
+
+	void markKnown(String dir, long now) {
+		if (expiries.size() >= maxEntries) {
+			purgeExpired(now);
+		}
+		if (expiries.size() < maxEntries) {
+			expiries.put(dir, now + ttlMs);
+		}
+	}
+
+	public void invalidate(String dir) {
+		expiries.remove(dir);
+	}
+
+	private void purgeExpired(long now) {
+		Iterator<Map.Entry<String, Long>> iter = expiries.entrySet().iterator();
+		while (iter.hasNext()) {
+			if (now >= iter.next().getValue()) {
+				iter.remove();
+			}
+		}
+	}
+
+	public int size() {
+		return expiries.size();
+	}
+
+}
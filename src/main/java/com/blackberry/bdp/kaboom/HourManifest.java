@@ -0,0 +1,417 @@
+/*
+ * Copyright 2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bdp.kaboom;
+
+import com.blackberry.bdp.common.jmx.MetricRegistrySingleton;
+import com.codahale.metrics.Meter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Options;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A list of the boom files closed into each topic's hourly (shift duration)
+ * directories, so downstream jobs read one file instead of listing the
+ * directory.
+ *
+ * Workers record the files each shift closed in ZooKeeper, batched into a
+ * node per directory, before the shift's offset is stored:
+ *
+ * &lt;root&gt;/&lt;topic&gt;/&lt;period start ms&gt;/&lt;partition&gt;.&lt;shift&gt;-&lt;sequence&gt;
+ *
+ * The leader seals a directory once it's been flagged ready: its entries are
+ * merged into &lt;dir&gt;/_HOUR_MANIFEST, which is replaced with a rename, and
+ * their nodes are deleted.  Files closed into a directory after it's been
+ * sealed (late data) are merged into its _HOUR_MANIFEST the same way.  Entries
+ * for a directory that's never flagged are dropped after the retention.
+ *
+ * The ready flag is written by another process, and the leader only looks for
+ * it every seal interval, so a directory is flagged before it's sealed.  Jobs
+ * that read the manifest wait for _HOUR_MANIFEST itself rather than the flag.
+ *
+ * _HOUR_MANIFEST has a tab separated line per file: path, size, records, first
+ * offset and last offset (-1 when not known, as for shared files).  It's
+ * unrelated to the _manifest.* files of the MANIFEST commit protocol.
+ */
+public class HourManifest {
+
+	private static final Logger LOG = LoggerFactory.getLogger(HourManifest.class);
+	private static final Charset UTF8 = Charset.forName("UTF8");
+	public static final String MANIFEST = "_HOUR_MANIFEST";
+	static final int MAX_NODE_BYTES = 512 * 1024;
+
+	/**
+	 * A closed boom file
+	 */
+	public static class Entry {
+
+		private final String path;
+		private final long size;
+		private final long records;
+		private final long firstOffset;
+		private final long lastOffset;
+
+		public Entry(String path, long size, long records, long firstOffset, long lastOffset) {
+			this.path = path;
+			this.size = size;
+			this.records = records;
+			this.firstOffset = firstOffset;
+			this.lastOffset = lastOffset;
+		}
+
+		public static Entry parse(String line) throws IOException {
+			String[] fields = line.split("\t");
+			if (fields.length != 5) {
+				throw new IOException("invalid manifest entry: " + line);
+			}
+			try {
+				return new Entry(fields[0],
+					 Long.parseLong(fields[1]),
+					 Long.parseLong(fields[2]),
+					 Long.parseLong(fields[3]),
+					 Long.parseLong(fields[4]));
+			} catch (NumberFormatException nfe) {
+				throw new IOException("invalid manifest entry: " + line, nfe);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return path + "\t" + size + "\t" + records + "\t" + firstOffset + "\t" + lastOffset;
+		}
+
+		public String getPath() {
+			return path;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public long getRecords() {
+			return records;
+		}
+
+		public long getFirstOffset() {
+			return firstOffset;
+		}
+
+		public long getLastOffset() {
+			return lastOffset;
+		}
+
+	}
+
+	/**
+	 * The entries of one directory from one ZooKeeper node
+	 */
+	static class Batch {
+
+		private final String dir;
+		private final String proxyUser;
+		private final List<Entry> entries;
+
+		Batch(String dir, String proxyUser, List<Entry> entries) {
+			this.dir = dir;
+			this.proxyUser = proxyUser;
+			this.entries = entries;
+		}
+
+		String getDir() {
+			return dir;
+		}
+
+		String getProxyUser() {
+			return proxyUser;
+		}
+
+		List<Entry> getEntries() {
+			return entries;
+		}
+
+	}
+
+	/**
+	 * The file system of the proxy user the directory belongs to
+	 */
+	public interface FileSystems {
+
+		FileSystem get(String proxyUser) throws Exception;
+
+	}
+
+	private final CuratorFramework curator;
+	private final String zkRoot;
+	private final String readyFlag;
+	private final long retentionMs;
+	private final Meter entriesRecorded;
+	private final Meter directoriesSealed;
+
+	/**
+	 * @param curator
+	 * @param zkRoot where the entries are batched
+	 * @param readyFlag the name of the flag that marks a directory ready to seal
+	 * @param retentionMs how long after its period starts the entries of a
+	 * directory that's never flagged are kept
+	 */
+	public HourManifest(CuratorFramework curator, String zkRoot, String readyFlag, long retentionMs) {
+		this.curator = curator;
+		this.zkRoot = zkRoot;
+		this.readyFlag = readyFlag;
+		this.retentionMs = retentionMs;
+		this.entriesRecorded = MetricRegistrySingleton.getInstance().getMetricsRegistry()
+			 .meter("kaboom:total:hour manifest entries recorded");
+		this.directoriesSealed = MetricRegistrySingleton.getInstance().getMetricsRegistry()
+			 .meter("kaboom:total:hour manifest directories sealed");
+	}
+
+	/**
+	 * Records the files closed into a directory in as few nodes as they fit in
+	 *
+	 * @param topic
+	 * @param periodStart the start of the directory's period in ms
+	 * @param dir
+	 * @param proxyUser the user the directory is written as
+	 * @param name unique to the writer, such as the partition and shift
+	 * @param entries
+	 * @throws Exception
+	 */
+	public void record(String topic, long periodStart, String dir, String proxyUser, String name, List<Entry> entries) throws Exception {
+		for (byte[] batch : encode(dir, proxyUser, entries)) {
+			curator.create().creatingParentsIfNeeded()
+				 .withMode(CreateMode.PERSISTENT_SEQUENTIAL)
+				 .forPath(zkRoot + "/" + topic + "/" + periodStart + "/" + name + "-", batch);
+		}
+		entriesRecorded.mark(entries.size());
+	}
+
+	/**
+	 * @return the entries as nodes of no more than MAX_NODE_BYTES, each starting
+	 * with a line of the directory and proxy user
+	 */
+	static List<byte[]> encode(String dir, String proxyUser, List<Entry> entries) {
+		List<byte[]> batches = new ArrayList<>();
+		byte[] header = (dir + "\t" + proxyUser + "\n").getBytes(UTF8);
+		ByteArrayOutputStream batch = new ByteArrayOutputStream();
+		batch.write(header, 0, header.length);
+		for (Entry entry : entries) {
+			byte[] line = (entry.toString() + "\n").getBytes(UTF8);
+			if (batch.size() > header.length && batch.size() + line.length > MAX_NODE_BYTES) {
+				batches.add(batch.toByteArray());
+				batch.reset();
+				batch.write(header, 0, header.length);
+			}
+			batch.write(line, 0, line.length);
+		}
+		if (batch.size() > header.length) {
+			batches.add(batch.toByteArray());
+		}
+		return batches;
+	}
+
+	static Batch decode(byte[] bytes) throws IOException {
+		String[] lines = new String(bytes, UTF8).split("\n");
+		String[] header = lines[0].split("\t");
+		if (header.length != 2) {
+			throw new IOException("invalid manifest batch header: " + lines[0]);
+		}
+		List<Entry> entries = new ArrayList<>(lines.length - 1);
+		for (int i = 1; i < lines.length; i++) {
+			if (!lines[i].isEmpty()) {
+				entries.add(Entry.parse(lines[i]));
+			}
+		}
+		return new Batch(header[0], header[1], entries);
+	}
+
+	/**
+	 * Seals every directory with entries that's been flagged ready
+	 *
+	 * @param fileSystems
+	 * @param now
+	 * @return the number of directories sealed
+	 * @throws Exception
+	 */
+	public int seal(FileSystems fileSystems, long now) throws Exception {
+		if (curator.checkExists().forPath(zkRoot) == null) {
+			return 0;
+		}
+		int sealed = 0;
+		for (String topic : curator.getChildren().forPath(zkRoot)) {
+			String topicPath = zkRoot + "/" + topic;
+			for (String period : curator.getChildren().forPath(topicPath)) {
+				String periodPath = topicPath + "/" + period;
+				try {
+					sealed += seal(fileSystems, topic, periodPath, Long.parseLong(period), now);
+				} catch (Exception e) {
+					LOG.error("failed to seal the manifests of {}: ", periodPath, e);
+				}
+			}
+		}
+		return sealed;
+	}
+
+	private int seal(FileSystems fileSystems, String topic, String periodPath, long periodStart, long now) throws Exception {
+		Map<String, List<String>> dirNodes = new TreeMap<>();
+		Map<String, List<Entry>> dirEntries = new TreeMap<>();
+		Map<String, String> dirUsers = new TreeMap<>();
+		for (String node : curator.getChildren().forPath(periodPath)) {
+			String nodePath = periodPath + "/" + node;
+			Batch batch;
+			try {
+				batch = decode(curator.getData().forPath(nodePath));
+			} catch (KeeperException.NoNodeException nne) {
+				continue;
+			}
+			if (!dirNodes.containsKey(batch.getDir())) {
+				dirNodes.put(batch.getDir(), new ArrayList<String>());
+				dirEntries.put(batch.getDir(), new ArrayList<Entry>());
+				dirUsers.put(batch.getDir(), batch.getProxyUser());
+			}
+			dirNodes.get(batch.getDir()).add(nodePath);
+			dirEntries.get(batch.getDir()).addAll(batch.getEntries());
+		}
+
+		int sealed = 0;
+		for (Map.Entry<String, List<String>> dir : dirNodes.entrySet()) {
+			FileSystem fileSystem = fileSystems.get(dirUsers.get(dir.getKey()));
+			Path dirPath = new Path(dir.getKey());
+			if (fileSystem.exists(new Path(dirPath, readyFlag))) {
+				Path manifest = writeSealed(fileSystem, dirPath, dirEntries.get(dir.getKey()));
+				LOG.info("sealed {} files of topic {} into {}", dirEntries.get(dir.getKey()).size(), topic, manifest);
+				directoriesSealed.mark();
+				sealed++;
+			} else if (now - periodStart > retentionMs) {
+				LOG.warn("dropping the manifest entries of {} files in {}, it wasn't flagged {} within {} ms",
+					 dirEntries.get(dir.getKey()).size(), dir.getKey(), readyFlag, retentionMs);
+			} else {
+				continue;
+			}
+			for (String nodePath : dir.getValue()) {
+				curator.delete().forPath(nodePath);
+			}
+		}
+
+		try {
+			if (curator.getChildren().forPath(periodPath).isEmpty()) {
+				curator.delete().forPath(periodPath);
+			}
+		} catch (KeeperException.NotEmptyException | KeeperException.NoNodeException e) {
+			// A worker recorded more files meanwhile, or another pass already removed it
+		}
+		return sealed;
+	}
+
+	/**
+	 * Merges the entries into the directory's manifest, replacing it
+	 *
+	 * @param fileSystem
+	 * @param dir
+	 * @param entries replace existing entries of the same path
+	 * @return the manifest's path
+	 * @throws IOException
+	 */
+	static Path writeSealed(FileSystem fileSystem, Path dir, Collection<Entry> entries) throws IOException {
+		Path manifest = new Path(dir, MANIFEST);
+		Map<String, Entry> merged = new TreeMap<>();
+		if (fileSystem.exists(manifest)) {
+			for (Entry entry : read(fileSystem, dir)) {
+				merged.put(entry.getPath(), entry);
+			}
+		}
+		for (Entry entry : entries) {
+			merged.put(entry.getPath(), entry);
+		}
+		return write(fileSystem, dir, merged.values());
+	}
+
+	/**
+	 * Replaces the directory's manifest with the entries
+	 *
+	 * @param fileSystem
+	 * @param dir
+	 * @param entries
+	 * @return the manifest's path
+	 * @throws IOException
+	 */
+	public static Path write(FileSystem fileSystem, Path dir, Collection<Entry> entries) throws IOException {
+		Path manifest = new Path(dir, MANIFEST);
+		StringBuilder sb = new StringBuilder();
+		for (Entry entry : entries) {
+			sb.append(entry.toString()).append('\n');
+		}
+		Path tmp = new Path(dir, MANIFEST + ".tmp");
+		OutputStream out = fileSystem.create(tmp, true);
+		try {
+			out.write(sb.toString().getBytes(UTF8));
+		} finally {
+			out.close();
+		}
+
+		if (fileSystem instanceof DistributedFileSystem) {
+			((DistributedFileSystem) fileSystem).rename(tmp, manifest, Options.Rename.OVERWRITE);
+		} else {
+			fileSystem.delete(manifest, false);
+			if (!fileSystem.rename(tmp, manifest)) {
+				throw new IOException("failed to rename " + tmp + " to " + manifest);
+			}
+		}
+		return manifest;
+	}
+
+	/**
+	 * @param fileSystem
+	 * @param dir
+	 * @return the entries of the directory's sealed manifest
+	 * @throws IOException
+	 */
+	public static List<Entry> read(FileSystem fileSystem, Path dir) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		InputStream in = fileSystem.open(new Path(dir, MANIFEST));
+		try {
+			byte[] buffer = new byte[64 * 1024];
+			int read;
+			while ((read = in.read(buffer)) >= 0) {
+				bytes.write(buffer, 0, read);
+			}
+		} finally {
+			in.close();
+		}
+		List<Entry> entries = new ArrayList<>();
+		for (String line : new String(bytes.toByteArray(), UTF8).split("\n")) {
+			if (!line.isEmpty()) {
+				entries.add(Entry.parse(line));
+			}
+		}
+		return entries;
+	}
+
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright 2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bdp.kaboom;
+
+import com.blackberry.bdp.common.jmx.MetricRegistrySingleton;
+import com.blackberry.bdp.kaboom.NameNodeRateLimiter.Priority;
+import com.codahale.metrics.Timer;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.CreateFlag;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.hdfs.client.HdfsDataOutputStream;
+import org.apache.hadoop.hdfs.client.HdfsDataOutputStream.SyncFlag;
+
+/**
+ * Wraps a (per proxy user) FileSystem so that every NameNode operation KaBoom
+ * issues is timed and counted by operation and topic, and passes through the
+ * node's NameNodeRateLimiter when there is one.
+ *
+ * Each operation has a timer (rates and a latency histogram) for the node:
+ *
+ * kaboom:namenode:<op>
+ *
+ * and one per topic:
+ *
+ * kaboom:topic:<topic>:namenode <op>
+ */
+public class InstrumentedFileSystem {
+
+	public enum Op {
+		EXISTS(Priority.LOW),
+		IS_FILE_CLOSED(Priority.LOW),
+		DELETE(Priority.LOW),
+		CREATE(Priority.LOW),
+		OPEN(Priority.LOW),
+		LIST_STATUS(Priority.LOW),
+		GLOB_STATUS(Priority.LOW),
+		MKDIRS(Priority.LOW),
+		SET_STORAGE_POLICY(Priority.LOW),
+		GET_BLOCK_LOCATIONS(Priority.LOW),
+		RECOVER_LEASE(Priority.LOW),
+		RENAME(Priority.HIGH),
+		HSYNC(Priority.HIGH),
+		CLOSE(Priority.HIGH);
+
+		private final Priority priority;
+
+		private Op(Priority priority) {
+			this.priority = priority;
+		}
+
+		public String metricName() {
+			return name().toLowerCase().replace('_', ' ');
+		}
+
+	}
+
+	private final FileSystem fileSystem;
+	private final NameNodeRateLimiter rateLimiter;
+	private final Map<Op, Timer> totalTimers = new EnumMap<>(Op.class);
+	private final Map<Op, Timer> topicTimers = new EnumMap<>(Op.class);
+
+	public InstrumentedFileSystem(FileSystem fileSystem, String topic, NameNodeRateLimiter rateLimiter) {
+		this.fileSystem = fileSystem;
+		this.rateLimiter = rateLimiter;
+		for (Op op : Op.values()) {
+			totalTimers.put(op, MetricRegistrySingleton.getInstance().getMetricsRegistry()
+				 .timer("kaboom:namenode:" + op.metricName()));
+			topicTimers.put(op, MetricRegistrySingleton.getInstance().getMetricsRegistry()
+				 .timer("kaboom:topic:" + topic + ":namenode " + op.metricName()));
+		}
+	}
+
+	public InstrumentedFileSystem(FileSystem fileSystem, String topic, StartupConfig config) {
+		this(fileSystem, topic, config.getNameNodeRateLimiter());
+	}
+
+	public boolean exists(Path path) throws IOException {
+		Context context = start(Op.EXISTS);
+		try {
+			return fileSystem.exists(path);
+		} finally {
+			context.stop();
+		}
+	}
+
+	public boolean isFileClosed(Path path) throws IOException {
+		Context context = start(Op.IS_FILE_CLOSED);
+		try {
+			return ((DistributedFileSystem) fileSystem).isFileClosed(path);
+		} finally {
+			context.stop();
+		}
+	}
+
+	/**
+	 * @param path
+	 * @return true if the file is already closed, otherwise recovery has started
+	 * @throws IOException
+	 */
+	public boolean recoverLease(Path path) throws IOException {
+		Context context = start(Op.RECOVER_LEASE);
+		try {
+			return ((DistributedFileSystem) fileSystem).recoverLease(path);
+		} finally {
+			context.stop();
+		}
+	}
+
+	public boolean delete(Path path, boolean recursive) throws IOException {
+		Context context = start(Op.DELETE);
+		try {
+			return fileSystem.delete(path, recursive);
+		} finally {
+			context.stop();
+		}
+	}
+
+	public HdfsDataOutputStream create(Path path,
+		 FsPermission permission,
+		 boolean overwrite,
+		 int bufferSize,
+		 short replication,
+		 long blockSize) throws IOException {
+		Context context = start(Op.CREATE);
+		try {
+			return (HdfsDataOutputStream) fileSystem.create(path, permission, overwrite,
+				 bufferSize, replication, blockSize, null);
+		} finally {
+			context.stop();
+		}
+	}
+
+	/**
+	 * @param favoredNodes the datanodes to place the replicas on, when possible
+	 */
+	public HdfsDataOutputStream create(Path path,
+		 FsPermission permission,
+		 boolean overwrite,
+		 int bufferSize,
+		 short replication,
+		 long blockSize,
+		 InetSocketAddress[] favoredNodes) throws IOException {
+		if (favoredNodes == null) {
+			return create(path, permission, overwrite, bufferSize, replication, blockSize);
+		}
+		Context context = start(Op.CREATE);
+		try {
+			return ((DistributedFileSystem) fileSystem).create(path, permission, overwrite,
+				 bufferSize, replication, blockSize, null, favoredNodes);
+		} finally {
+			context.stop();
+		}
+	}
+
+	public HdfsDataOutputStream createNonRecursive(Path path,
+		 FsPermission permission,
+		 EnumSet<CreateFlag> flags,
+		 int bufferSize,
+		 short replication,
+		 long blockSize) throws IOException {
+		Context context = start(Op.CREATE);
+		try {
+			return (HdfsDataOutputStream) fileSystem.createNonRecursive(path, permission, flags,
+				 bufferSize, replication, blockSize, null);
+		} finally {
+			context.stop();
+		}
+	}
+
+	public FSDataInputStream open(Path path, int bufferSize) throws IOException {
+		Context context = start(Op.OPEN);
+		try {
+			return fileSystem.open(path, bufferSize);
+		} finally {
+			context.stop();
+		}
+	}
+
+	public FileStatus[] listStatus(Path path) throws IOException {
+		Context context = start(Op.LIST_STATUS);
+		try {
+			return fileSystem.listStatus(path);
+		} finally {
+			context.stop();
+		}
+	}
+
+	/**
+	 * @param pattern
+	 * @return the matching paths, null if the pattern has no glob and the path doesn't exist
+	 * @throws IOException
+	 */
+	public FileStatus[] globStatus(Path pattern) throws IOException {
+		Context context = start(Op.GLOB_STATUS);
+		try {
+			return fileSystem.globStatus(pattern);
+		} finally {
+			context.stop();
+		}
+	}
+
+	public void setStoragePolicy(Path path, String policyName) throws IOException {
+		Context context = start(Op.SET_STORAGE_POLICY);
+		try {
+			((DistributedFileSystem) fileSystem).setStoragePolicy(path, policyName);
+		} finally {
+			context.stop();
+		}
+	}
+
+	public BlockLocation[] getFileBlockLocations(Path path, long start, long len) throws IOException {
+		Context context = start(Op.GET_BLOCK_LOCATIONS);
+		try {
+			return fileSystem.getFileBlockLocations(path, start, len);
+		} finally {
+			context.stop();
+		}
+	}
+
+	public boolean mkdirs(Path path, FsPermission permission) throws IOException {
+		Context context = start(Op.MKDIRS);
+		try {
+			return fileSystem.mkdirs(path, permission);
+		} finally {
+			context.stop();
+		}
+	}
+
+	public boolean rename(Path src, Path dst) throws IOException {
+		Context context = start(Op.RENAME);
+		try {
+			return fileSystem.rename(src, dst);
+		} finally {
+			context.stop();
+		}
+	}
+
+	public void hsync(HdfsDataOutputStream out, EnumSet<SyncFlag> syncFlags) throws IOException {
+		Context context = start(Op.HSYNC);
+		try {
+			out.hsync(syncFlags);
+		} finally {
+			context.stop();
+		}
+	}
+
+	public void close(OutputStream out) throws IOException {
+		Context context = start(Op.CLOSE);
+		try {
+			out.close();
+		} finally {
+			context.stop();
+		}
+	}
+
+	/**
+	 * Not a NameNode operation, the path is qualified locally
+	 */
+	public Path makeQualified(Path path) {
+		return fileSystem.makeQualified(path);
+	}
+
+	/**
+	 * @return the wrapped file system
+	 */
+	public FileSystem getFileSystem() {
+		return fileSystem;
+	}
+
+	private Context start(Op op) throws IOException {
+		if (rateLimiter != null) {
+			try {
+				rateLimiter.acquire(op.priority);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted waiting on the NameNode rate limiter for " + op.metricName());
+			}
+		}
+		return new Context(totalTimers.get(op).time(), topicTimers.get(op).time());
+	}
+
+	private static class Context {
+
+		private final Timer.Context total;
+		private final Timer.Context topic;
+
+		private Context(Timer.Context total, Timer.Context topic) {
+			this.total = total;
+			this.topic = topic;
+		}
+
+		private void stop() {
+			total.stop();
+			topic.stop();
+		}
+
+	}
+
+}
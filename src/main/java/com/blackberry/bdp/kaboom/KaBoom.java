@@ -31,6 +31,10 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 public class KaBoom {
 
@@ -114,6 +118,10 @@ public class KaBoom {
 			client.save();
 		}
 
+		if (config.getLiveTailServer() != null) {
+			config.getLiveTailServer().start();
+		}
+
 		// Instantiate our load balancer
 		Leader loadBalancer = null;
 		if (config.getLoadBalancerType().equals("even")) {
@@ -130,6 +138,43 @@ public class KaBoom {
 		leaderSelector.autoRequeue();
 		leaderSelector.start();
 
+		// The leader seals the hour manifests of the directories flagged ready
+		final ScheduledExecutorService manifestSealer;
+		if (config.getHourManifest() != null) {
+			manifestSealer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "kaboom-manifest-sealer");
+					thread.setDaemon(true);
+					return thread;
+				}
+
+			});
+			manifestSealer.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					if (!leaderSelector.hasLeadership()) {
+						return;
+					}
+					try {
+						int sealed = config.getHourManifest().seal(new HourManifest.FileSystems() {
+							@Override
+							public FileSystem get(String proxyUser) throws Exception {
+								return config.authenticatedFsForProxyUser(proxyUser);
+							}
+
+						}, System.currentTimeMillis());
+						LOG.info("sealed the hour manifests of {} directories", sealed);
+					} catch (Exception e) {
+						LOG.error("error sealing hour manifests: ", e);
+					}
+				}
+
+			}, config.getHourManifestSealIntervalSeconds(), config.getHourManifestSealIntervalSeconds(), TimeUnit.SECONDS);
+		} else {
+			manifestSealer = null;
+		}
+
 		final Map<String, Worker> partitionToWorkerMap = new HashMap<>();
 		final Map<String, Thread> partitionToThreadsMap = new HashMap<>();
 
@@ -168,6 +213,12 @@ public class KaBoom {
 						} catch (Exception e) {
 							LOG.error("Error deleting /kaboom/clients/{}", config.getKaboomId(), e);
 						}
+						if (config.getLiveTailServer() != null) {
+							config.getLiveTailServer().close();
+						}
+						if (manifestSealer != null) {
+							manifestSealer.shutdownNow();
+						}
 						leaderSelector.close();
 						config.getKaBoomCurator().close();
 					}
@@ -0,0 +1,288 @@
+/*
+ * Copyright 2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bdp.kaboom;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The most recent messages of a partition, kept in memory so they can be
+ * tailed before they're durable in HDFS.
+ *
+ * There's a single writer, the partition's Worker, which never waits: each
+ * message is copied into a fixed size byte ring and once the ring (or the
+ * table of message positions) is full the oldest messages are overwritten.
+ * Readers copy a message out and then check that the writer hadn't started
+ * overwriting it in the meantime, so a reader that falls too far behind loses
+ * messages rather than slowing the writer down.
+ *
+ * That check is a seqlock: the writer reserves what it's about to overwrite
+ * before it touches it, and a reader re-reads the reservations after its
+ * copy.  Java 7 has no load or store fences, so both sides order their plain
+ * accesses against the reservations with volatile operations instead: the
+ * writer reserves the bytes with a getAndSet (a volatile read, so its writes
+ * can't move ahead of it) and a reader does a volatile write before it
+ * re-reads the reservations (so its reads can't move after them).
+ *
+ * The ring's arrays aren't allocated until it's first subscribed to by a
+ * reader, until then messages aren't kept and the head doesn't move.
+ *
+ * Messages are numbered in the order they were appended, starting at 0.
+ */
+public class LiveTailRing {
+
+	// The largest power of two an array can hold
+	private static final int MAX_CAPACITY = 1 << 30;
+
+	private final String topic;
+	private final int partition;
+	private final int capacityBytes;
+	private final int capacityEntries;
+	private final int dataMask;
+	private final int entryMask;
+	private final int maxMessageBytes;
+	// Allocated by the writer once subscribed, and published by the head
+	private byte[] data;
+	private long[] offsets;
+	private long[] timestamps;
+	private long[] positions;
+	private int[] lengths;
+	private volatile boolean subscribed = false;
+	// Written by the writer before it touches an entry or the bytes...
+	private volatile long reservedEntries = 0;
+	private final AtomicLong reservedBytes = new AtomicLong();
+	// ...and after it's done
+	private volatile long head = 0;
+	private long bytePosition = 0;
+	private volatile long skipped = 0;
+	// Only ever written by readers, its own object to keep it off the writer's cache lines
+	private final AtomicLong readFence = new AtomicLong();
+
+	/**
+	 * A message copied out of the ring
+	 */
+	public static class Message {
+
+		private long number;
+		private long offset;
+		private long timestamp;
+		private byte[] bytes = new byte[4096];
+		private int length;
+
+		public long getNumber() {
+			return number;
+		}
+
+		public long getOffset() {
+			return offset;
+		}
+
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		/**
+		 * @return the message, only the first getLength() bytes are valid
+		 */
+		public byte[] getBytes() {
+			return bytes;
+		}
+
+		public int getLength() {
+			return length;
+		}
+
+	}
+
+	/**
+	 * @param topic
+	 * @param partition
+	 * @param capacityBytes rounded up to a power of two, at most 1 GB
+	 * @param capacityMessages rounded up to a power of two
+	 */
+	public LiveTailRing(String topic, int partition, long capacityBytes, int capacityMessages) {
+		this.topic = topic;
+		this.partition = partition;
+		this.capacityBytes = powerOfTwo(capacityBytes);
+		this.dataMask = this.capacityBytes - 1;
+		this.capacityEntries = powerOfTwo(capacityMessages);
+		this.entryMask = capacityEntries - 1;
+		this.maxMessageBytes = this.capacityBytes / 4;
+	}
+
+	private static int powerOfTwo(long n) {
+		if (n >= MAX_CAPACITY) {
+			return MAX_CAPACITY;
+		}
+		int power = Integer.highestOneBit((int) Math.max(2, n));
+		return power < n ? power << 1 : power;
+	}
+
+	/**
+	 * Has the writer allocate the ring and start keeping messages, called by
+	 * readers before they first look for messages
+	 */
+	public void subscribe() {
+		if (!subscribed) {
+			subscribed = true;
+		}
+	}
+
+	/**
+	 * Appends a message, only ever called by the partition's worker
+	 *
+	 * @param offset the message's Kafka offset
+	 * @param timestamp the message's timestamp in ms
+	 * @param bytes
+	 * @param off
+	 * @param len
+	 * @return false if the message isn't kept, it's too large (over a quarter
+	 * of the ring) or the ring has never been subscribed to
+	 */
+	public boolean append(long offset, long timestamp, byte[] bytes, int off, int len) {
+		if (data == null) {
+			if (!subscribed) {
+				return false;
+			}
+			data = new byte[capacityBytes];
+			offsets = new long[capacityEntries];
+			timestamps = new long[capacityEntries];
+			positions = new long[capacityEntries];
+			lengths = new int[capacityEntries];
+		}
+		if (len > maxMessageBytes) {
+			skipped++;
+			return false;
+		}
+		long number = head;
+		int entry = (int) number & entryMask;
+		reservedEntries = number + 1;
+		// Its volatile read keeps the writes below after both reservations
+		reservedBytes.getAndSet(bytePosition + len);
+		offsets[entry] = offset;
+		timestamps[entry] = timestamp;
+		positions[entry] = bytePosition;
+		lengths[entry] = len;
+
+		int start = (int) bytePosition & dataMask;
+		int first = Math.min(len, data.length - start);
+		System.arraycopy(bytes, off, data, start, first);
+		System.arraycopy(bytes, off + first, data, 0, len - first);
+		bytePosition += len;
+
+		head = number + 1;
+		return true;
+	}
+
+	/**
+	 * @return the number the next message appended will have
+	 */
+	public long getHead() {
+		return head;
+	}
+
+	/**
+	 * @return the oldest message number that may still be in the ring
+	 */
+	public long getTail() {
+		return Math.max(0, head - capacityEntries);
+	}
+
+	/**
+	 * Copies a message out of the ring
+	 *
+	 * @param number
+	 * @param message
+	 * @return false if the message has been (or is being) overwritten, or hasn't been appended yet
+	 */
+	public boolean read(long number, Message message) {
+		if (number >= head || number < getTail()) {
+			return false;
+		}
+		int entry = (int) number & entryMask;
+		long position = positions[entry];
+		int length = lengths[entry];
+		message.offset = offsets[entry];
+		message.timestamp = timestamps[entry];
+		if (!isIntact(number, position)) {
+			return false;
+		}
+		if (length > message.bytes.length) {
+			message.bytes = new byte[Math.max(length, message.bytes.length * 2)];
+		}
+		int start = (int) position & dataMask;
+		int first = Math.min(length, data.length - start);
+		System.arraycopy(data, start, message.bytes, 0, first);
+		System.arraycopy(data, 0, message.bytes, first, length - first);
+		if (!isIntact(number, position)) {
+			return false;
+		}
+		message.number = number;
+		message.length = length;
+		return true;
+	}
+
+	/**
+	 * @return true if the writer hasn't started overwriting the message, as of
+	 * after every read of it made so far
+	 */
+	private boolean isIntact(long number, long position) {
+		// Its volatile write keeps the reads before it ahead of the reads of the reservations
+		readFence.set(number);
+		return reservedEntries - number <= capacityEntries
+			 && reservedBytes.get() - position <= capacityBytes;
+	}
+
+	/**
+	 * Messages aren't always appended in timestamp order, so this is the first
+	 * message still in the ring at or after the time, not the earliest one.
+	 *
+	 * @param timestamp in ms
+	 * @return the number of the first message still in the ring whose timestamp
+	 * is at or after the time, the head if there's none
+	 */
+	public long find(long timestamp) {
+		long number = getTail();
+		while (number < head) {
+			int entry = (int) number & entryMask;
+			long messageTimestamp = timestamps[entry];
+			if (isIntact(number, positions[entry]) && messageTimestamp >= timestamp) {
+				return number;
+			}
+			number++;
+		}
+		return number;
+	}
+
+	int getCapacityBytes() {
+		return capacityBytes;
+	}
+
+	public String getTopic() {
+		return topic;
+	}
+
+	public int getPartition() {
+		return partition;
+	}
+
+	/**
+	 * @return the number of messages too large to keep
+	 */
+	public long getSkipped() {
+		return skipped;
+	}
+
+}
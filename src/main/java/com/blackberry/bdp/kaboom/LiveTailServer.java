@@ -0,0 +1,363 @@
+/*
+ * Copyright 2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bdp.kaboom;
+
+import com.blackberry.bdp.common.jmx.MetricRegistrySingleton;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A node-wide TCP endpoint that streams the messages in the LiveTailRings of
+ * the partitions the node is working on, so real-time consumers don't have to
+ * tail open boom files in HDFS.
+ *
+ * A client connects and sends one line:
+ *
+ * &lt;topic&gt; [&lt;from ms&gt;]
+ *
+ * and is then sent every message of the topic's partitions still in memory
+ * whose timestamp is at or after from ms (now when it's left out), followed by
+ * new messages as they arrive, as frames of:
+ *
+ * 'M' int partition, long offset, long timestamp, int length, the message
+ * 'L' int partition, long the number of messages lost
+ * 'H' long the server's time in ms, sent once a second while there's nothing new
+ * 'E' a UTF string, an error after which the connection is closed
+ *
+ * Each partition's messages are in the order they were consumed but the
+ * partitions are interleaved.  Every connection has its own thread blocking on
+ * its socket, so a slow client only falls behind its own cursors and when the
+ * ring overwrites them it's told how many messages it lost; the workers never
+ * wait on clients.
+ */
+public class LiveTailServer {
+
+	private static final Logger LOG = LoggerFactory.getLogger(LiveTailServer.class);
+	private static final Charset UTF8 = Charset.forName("UTF8");
+	private static final int MAX_REQUEST_LENGTH = 1024;
+	private static final int REQUEST_TIMEOUT_MS = 10000;
+	private static final int BATCH_MESSAGES = 1024;
+	private static final long HEARTBEAT_MS = 1000;
+
+	private final String bindAddress;
+	private final int port;
+	private final long pollMs;
+	private final Map<String, Set<LiveTailRing>> topicRings = new ConcurrentHashMap<>();
+	private final Set<Socket> sockets = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+	private final ThreadPoolExecutor connectionExecutor;
+	private final Meter messagesSent;
+	private final Meter messagesLost;
+	private volatile boolean closed = false;
+	private ServerSocket serverSocket;
+	private Thread acceptor;
+
+	/**
+	 * @param bindAddress the address to listen on
+	 * @param port 0 for any free port
+	 * @param maxConnections connections past this are sent an error and closed
+	 * @param pollMs how long a connection waits before looking for new messages again
+	 */
+	public LiveTailServer(String bindAddress, int port, int maxConnections, long pollMs) {
+		this.bindAddress = bindAddress;
+		this.port = port;
+		this.pollMs = Math.max(1, pollMs);
+		this.connectionExecutor = new ThreadPoolExecutor(0, Math.max(1, maxConnections),
+			 60L, TimeUnit.SECONDS,
+			 new SynchronousQueue<Runnable>(),
+			 new ThreadFactory() {
+				 @Override
+				 public Thread newThread(Runnable r) {
+					 Thread thread = new Thread(r, "kaboom-live-tail");
+					 thread.setDaemon(true);
+					 return thread;
+				 }
+
+			 },
+			 new ThreadPoolExecutor.AbortPolicy());
+		this.messagesSent = MetricRegistrySingleton.getInstance().getMetricsRegistry()
+			 .meter("kaboom:total:live tail messages sent");
+		this.messagesLost = MetricRegistrySingleton.getInstance().getMetricsRegistry()
+			 .meter("kaboom:total:live tail messages lost");
+	}
+
+	public void registerGauges() {
+		MetricRegistrySingleton.getInstance().getMetricsRegistry()
+			 .register("kaboom:total:live tail connections", new Gauge<Integer>() {
+				 @Override
+				 public Integer getValue() {
+					 return sockets.size();
+				 }
+
+			 });
+	}
+
+	/**
+	 * Binds the port and starts accepting connections
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void start() throws IOException {
+		serverSocket = new ServerSocket(port, 50, InetAddress.getByName(bindAddress));
+		acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				accept();
+			}
+
+		}, "kaboom-live-tail-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		LOG.info("live tail listening on {}:{}", bindAddress, getPort());
+	}
+
+	/**
+	 * @return the port listened on, -1 until started
+	 */
+	public int getPort() {
+		return serverSocket == null ? -1 : serverSocket.getLocalPort();
+	}
+
+	public void register(LiveTailRing ring) {
+		Set<LiveTailRing> rings = topicRings.get(ring.getTopic());
+		if (rings == null) {
+			synchronized (topicRings) {
+				rings = topicRings.get(ring.getTopic());
+				if (rings == null) {
+					rings = Collections.newSetFromMap(new ConcurrentHashMap<LiveTailRing, Boolean>());
+					topicRings.put(ring.getTopic(), rings);
+				}
+			}
+		}
+		rings.add(ring);
+	}
+
+	public void unregister(LiveTailRing ring) {
+		Set<LiveTailRing> rings = topicRings.get(ring.getTopic());
+		if (rings != null) {
+			rings.remove(ring);
+		}
+	}
+
+	private void accept() {
+		while (!closed) {
+			final Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch (IOException ioe) {
+				if (!closed) {
+					LOG.error("live tail failed to accept a connection: ", ioe);
+				}
+				continue;
+			}
+			try {
+				connectionExecutor.execute(new Runnable() {
+					@Override
+					public void run() {
+						serve(socket);
+					}
+
+				});
+			} catch (RejectedExecutionException ree) {
+				LOG.warn("live tail rejected a connection from {}, too many connections", socket.getRemoteSocketAddress());
+				try {
+					DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+					out.writeByte('E');
+					out.writeUTF("too many connections");
+					out.flush();
+				} catch (IOException ioe) {
+					// Closing it anyway
+				}
+				closeQuietly(socket);
+			}
+		}
+	}
+
+	private void serve(Socket socket) {
+		sockets.add(socket);
+		try {
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout(REQUEST_TIMEOUT_MS);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+
+			String[] request = readRequest(socket.getInputStream()).trim().split("\\s+");
+			String topic = request[0];
+			long fromMs;
+			try {
+				fromMs = request.length > 1 ? Long.parseLong(request[1]) : System.currentTimeMillis();
+			} catch (NumberFormatException nfe) {
+				out.writeByte('E');
+				out.writeUTF("invalid from ms: " + request[1]);
+				out.flush();
+				return;
+			}
+			if (topic.isEmpty() || request.length > 2) {
+				out.writeByte('E');
+				out.writeUTF("expected: <topic> [<from ms>]");
+				out.flush();
+				return;
+			}
+			LOG.info("live tail of {} from {} for {}", topic, fromMs, socket.getRemoteSocketAddress());
+			tail(topic, fromMs, out);
+		} catch (IOException ioe) {
+			if (!closed) {
+				LOG.info("live tail connection from {} ended: {}", socket.getRemoteSocketAddress(), ioe.toString());
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		} finally {
+			sockets.remove(socket);
+			closeQuietly(socket);
+		}
+	}
+
+	private static String readRequest(InputStream in) throws IOException {
+		byte[] line = new byte[MAX_REQUEST_LENGTH];
+		int length = 0;
+		while (true) {
+			int b = in.read();
+			if (b < 0 || b == '\n') {
+				break;
+			}
+			if (length == line.length) {
+				throw new IOException("request longer than " + MAX_REQUEST_LENGTH + " bytes");
+			}
+			line[length++] = (byte) b;
+		}
+		return new String(line, 0, length, UTF8);
+	}
+
+	private void tail(String topic, long fromMs, DataOutputStream out) throws IOException, InterruptedException {
+		Map<LiveTailRing, Long> cursors = new IdentityHashMap<>();
+		LiveTailRing.Message message = new LiveTailRing.Message();
+		long lastSent = System.currentTimeMillis();
+		while (!closed) {
+			Set<LiveTailRing> rings = topicRings.get(topic);
+			if (rings == null) {
+				rings = Collections.emptySet();
+			}
+			boolean sent = false;
+			for (LiveTailRing ring : rings) {
+				Long cursor = cursors.get(ring);
+				if (cursor == null) {
+					ring.subscribe();
+				}
+				long number = cursor == null ? ring.find(fromMs) : cursor;
+				long head = ring.getHead();
+				long lost = 0;
+				int batch = 0;
+				while (number < head && batch < BATCH_MESSAGES) {
+					if (ring.read(number, message)) {
+						out.writeByte('M');
+						out.writeInt(ring.getPartition());
+						out.writeLong(message.getOffset());
+						out.writeLong(message.getTimestamp());
+						out.writeInt(message.getLength());
+						out.write(message.getBytes(), 0, message.getLength());
+						number++;
+						batch++;
+					} else {
+						// Overwritten, skip to the oldest message still there
+						long tail = Math.max(number + 1, ring.getTail());
+						lost += tail - number;
+						number = tail;
+					}
+				}
+				if (lost > 0) {
+					out.writeByte('L');
+					out.writeInt(ring.getPartition());
+					out.writeLong(lost);
+					messagesLost.mark(lost);
+				}
+				if (batch > 0 || lost > 0) {
+					messagesSent.mark(batch);
+					sent = true;
+				}
+				cursors.put(ring, number);
+			}
+
+			// Forget the partitions that have moved off this node
+			Iterator<LiveTailRing> iter = cursors.keySet().iterator();
+			while (iter.hasNext()) {
+				if (!rings.contains(iter.next())) {
+					iter.remove();
+				}
+			}
+
+			long now = System.currentTimeMillis();
+			if (sent) {
+				// Blocks while the client is slow
+				out.flush();
+				lastSent = now;
+			} else {
+				if (now - lastSent >= HEARTBEAT_MS) {
+					out.writeByte('H');
+					out.writeLong(now);
+					out.flush();
+					lastSent = now;
+				}
+				Thread.sleep(pollMs);
+			}
+		}
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException ioe) {
+			// Nothing more to do
+		}
+	}
+
+	/**
+	 * Stops accepting connections and closes the open ones
+	 */
+	public synchronized void close() {
+		closed = true;
+		if (serverSocket != null) {
+			try {
+				serverSocket.close();
+			} catch (IOException ioe) {
+				LOG.warn("failed to close the live tail server socket: ", ioe);
+			}
+		}
+		for (Socket socket : sockets) {
+			closeQuietly(socket);
+		}
+		connectionExecutor.shutdownNow();
+	}
+
+}
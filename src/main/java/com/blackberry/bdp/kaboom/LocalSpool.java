@@ -0,0 +1,504 @@
+/*
+ * Copyright 2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bdp.kaboom;
+
+import com.blackberry.bdp.common.jmx.MetricRegistrySingleton;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.LinkedList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A node-wide local disk spool that keeps boom file writes flowing while HDFS
+ * is slow.
+ *
+ * Writers report how long their HDFS writes take and once an EWMA of those
+ * latencies is above the threshold they append their avro blocks to segment
+ * files instead, with positional writes rather than memory maps so a segment's
+ * disk space is given back as soon as it's deleted.  A channel that has
+ * spooled anything keeps spooling until shipper threads have drained every
+ * segment, in order, to the writer's HDFS stream (with an hsync after each
+ * segment), so the file's bytes are never reordered.  Shippers take from the
+ * node's HDFS admission budget, if there is one, like any other HDFS write.
+ * Closing a writer waits for its channel to drain, and since offsets are only
+ * stored once a shift's files are closed nothing is committed before it's
+ * durable in HDFS.
+ *
+ * Segments are only a buffer: anything spooled but not shipped when KaBoom
+ * stops is consumed again from Kafka, so leftover segments are deleted at
+ * startup by the process holding the directory's lock.  The spool is bounded by maxBytes, writers wait for space when it's
+ * full just as they'd wait on HDFS.
+ */
+public class LocalSpool {
+
+	private static final Logger LOG = LoggerFactory.getLogger(LocalSpool.class);
+	private static final double EWMA_ALPHA = 0.2;
+	private static final long RETRY_MS = 100;
+	private static final String SUFFIX = ".spool";
+	private static final String LOCK = ".lock";
+
+	/**
+	 * Where a channel's spooled bytes are shipped to
+	 */
+	public interface Sink {
+
+		public void write(byte[] bytes, int offset, int length) throws IOException;
+
+		public void sync() throws IOException;
+
+	}
+
+	private final File dir;
+	private final int segmentBytes;
+	private final long maxBytes;
+	private final long latencyThresholdMs;
+	private final ScheduledExecutorService shippers;
+	private final AtomicLong segmentIds = new AtomicLong();
+	private final Object spaceLock = new Object();
+	private final FileLock lock;
+	private final HdfsAdmissionController admissionController;
+	private long usedBytes = 0;
+	private volatile double latencyEwmaMs = 0;
+	private final Meter spooledBytes;
+	private final Meter shippedBytes;
+
+	public LocalSpool(File dir, int segmentBytes, long maxBytes, long latencyThresholdMs, int shipperThreads) throws IOException {
+		this(dir, segmentBytes, maxBytes, latencyThresholdMs, shipperThreads, null);
+	}
+
+	/**
+	 * @param dir
+	 * @param segmentBytes
+	 * @param maxBytes
+	 * @param latencyThresholdMs
+	 * @param shipperThreads
+	 * @param admissionController the node's HDFS admission budget shipped bytes are taken from, or null
+	 * @throws IOException
+	 */
+	public LocalSpool(File dir, int segmentBytes, long maxBytes, long latencyThresholdMs, int shipperThreads,
+		 HdfsAdmissionController admissionController) throws IOException {
+		this.dir = dir;
+		this.admissionController = admissionController;
+		this.segmentBytes = segmentBytes;
+		this.maxBytes = Math.max(maxBytes, segmentBytes);
+		this.latencyThresholdMs = latencyThresholdMs;
+
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("unable to create spool directory " + dir);
+		}
+
+		// Only the process holding the lock (for its lifetime) cleans up, so
+		// tools sharing the configuration never delete a running node's segments
+		FileChannel lockChannel = new RandomAccessFile(new File(dir, LOCK), "rw").getChannel();
+		FileLock fileLock;
+		try {
+			fileLock = lockChannel.tryLock();
+		} catch (OverlappingFileLockException e) {
+			// Already held by this process
+			fileLock = null;
+		}
+		this.lock = fileLock;
+		File[] leftovers = lock == null ? null : dir.listFiles();
+		if (lock == null) {
+			lockChannel.close();
+			LOG.warn("spool directory {} is locked by another process, not cleaning it up", dir);
+		} else if (leftovers != null) {
+			for (File leftover : leftovers) {
+				if (leftover.getName().endsWith(SUFFIX)) {
+					LOG.info("deleting spool segment left by an earlier run: {}", leftover);
+					leftover.delete();
+				}
+			}
+		}
+
+		this.shippers = Executors.newScheduledThreadPool(Math.max(1, shipperThreads), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "kaboom-spool-shipper");
+				thread.setDaemon(true);
+				return thread;
+			}
+
+		});
+
+		this.spooledBytes = MetricRegistrySingleton.getInstance().getMetricsRegistry()
+			 .meter("kaboom:total:spooled bytes");
+		this.shippedBytes = MetricRegistrySingleton.getInstance().getMetricsRegistry()
+			 .meter("kaboom:total:spool shipped bytes");
+		MetricRegistrySingleton.getInstance().getMetricsRegistry()
+			 .register("kaboom:total:spool used bytes", new Gauge<Long>() {
+				 @Override
+				 public Long getValue() {
+					 synchronized (spaceLock) {
+						 return usedBytes;
+					 }
+				 }
+
+			 });
+	}
+
+	/**
+	 * @param latencyMs how long a write to HDFS took
+	 */
+	public synchronized void recordLatency(long latencyMs) {
+		latencyEwmaMs = EWMA_ALPHA * latencyMs + (1 - EWMA_ALPHA) * latencyEwmaMs;
+	}
+
+	/**
+	 * @return true while writes should be spooled rather than written to HDFS
+	 */
+	public boolean isSlow() {
+		return latencyEwmaMs > latencyThresholdMs;
+	}
+
+	/**
+	 * @param name used to name the channel's segment files
+	 * @param sink
+	 * @return a new channel for a single writer
+	 */
+	public Channel open(String name, Sink sink) {
+		return new Channel(name, sink);
+	}
+
+	private Segment allocate(String name) throws IOException {
+		synchronized (spaceLock) {
+			while (usedBytes + segmentBytes > maxBytes) {
+				try {
+					spaceLock.wait(1000);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("interrupted waiting for spool space");
+				}
+			}
+			usedBytes += segmentBytes;
+		}
+		File file = new File(dir, name + "-" + segmentIds.incrementAndGet() + SUFFIX);
+		try {
+			return new Segment(file);
+		} catch (IOException ioe) {
+			synchronized (spaceLock) {
+				usedBytes -= segmentBytes;
+				spaceLock.notifyAll();
+			}
+			file.delete();
+			throw ioe;
+		}
+	}
+
+	private void release(Segment segment) {
+		synchronized (spaceLock) {
+			if (segment.released) {
+				return;
+			}
+			segment.released = true;
+			usedBytes -= segmentBytes;
+			spaceLock.notifyAll();
+		}
+		try {
+			segment.channel.close();
+		} catch (IOException ioe) {
+			LOG.warn("unable to close spool segment {}", segment.file, ioe);
+		}
+		if (!segment.file.delete()) {
+			LOG.warn("unable to delete spool segment {}", segment.file);
+		}
+	}
+
+	private void admit(long bytes) throws IOException {
+		if (admissionController == null) {
+			return;
+		}
+		try {
+			admissionController.acquire(bytes, 1);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted waiting on HDFS admission");
+		}
+	}
+
+	private class Segment {
+
+		private final File file;
+		private final FileChannel channel;
+		private int length = 0;
+		private boolean released = false;
+
+		private Segment(File file) throws IOException {
+			this.file = file;
+			this.channel = new RandomAccessFile(file, "rw").getChannel();
+		}
+
+		private int remaining() {
+			return segmentBytes - length;
+		}
+
+		/**
+		 * @return how many of the bytes fit in the segment and were written
+		 */
+		private int append(byte[] bytes, int offset, int count) throws IOException {
+			int n = Math.min(count, remaining());
+			ByteBuffer src = ByteBuffer.wrap(bytes, offset, n);
+			while (src.hasRemaining()) {
+				channel.write(src, length + src.position() - offset);
+			}
+			length += n;
+			return n;
+		}
+
+		/**
+		 * @return false if the channel was discarded before the whole segment was shipped
+		 */
+		private boolean writeTo(Channel owner, byte[] chunk) throws IOException {
+			long position = 0;
+			while (position < length) {
+				if (owner.isDiscarded()) {
+					return false;
+				}
+				int n = (int) Math.min(chunk.length, length - position);
+				ByteBuffer dst = ByteBuffer.wrap(chunk, 0, n);
+				while (dst.hasRemaining()) {
+					if (channel.read(dst, position + dst.position()) < 0) {
+						throw new IOException("spool segment " + file + " is shorter than the " + length + " bytes written to it");
+					}
+				}
+				admit(n);
+				long start = System.currentTimeMillis();
+				owner.sink.write(chunk, 0, n);
+				recordLatency(System.currentTimeMillis() - start);
+				position += n;
+			}
+			return true;
+		}
+
+	}
+
+	/**
+	 * The spooled bytes of a single writer, appended to by the writer's thread
+	 * and shipped by one shipper at a time
+	 */
+	public class Channel implements Runnable {
+
+		private final String name;
+		private final Sink sink;
+		private final LinkedList<Segment> sealed = new LinkedList<>();
+		private final byte[] chunk = new byte[64 * 1024];
+		private Segment current = null;
+		private boolean active = false;
+		private boolean scheduled = false;
+		private boolean closing = false;
+		private boolean discarded = false;
+		// While a shipper is writing to the sink
+		private boolean shipping = false;
+		private IOException failure = null;
+
+		private Channel(String name, Sink sink) {
+			this.name = name;
+			this.sink = sink;
+		}
+
+		/**
+		 * @return true while the channel holds bytes that haven't been shipped,
+		 * the writer must append to the channel rather than write to HDFS
+		 */
+		public synchronized boolean isActive() {
+			return active;
+		}
+
+		public void append(byte[] bytes, int offset, int length) throws IOException {
+			while (length > 0) {
+				synchronized (this) {
+					if (failure != null) {
+						throw new IOException("shipping the spool of " + name + " failed", failure);
+					}
+					if (discarded) {
+						throw new IOException("the spool of " + name + " was discarded");
+					}
+					active = true;
+					if (current != null) {
+						int n = current.append(bytes, offset, length);
+						offset += n;
+						length -= n;
+						spooledBytes.mark(n);
+						if (current.remaining() == 0) {
+							sealed.add(current);
+							current = null;
+						}
+						schedule();
+						continue;
+					}
+				}
+
+				// Waits for space without holding the channel
+				Segment fresh = allocate(name);
+				synchronized (this) {
+					if (current == null && !discarded) {
+						current = fresh;
+						fresh = null;
+					}
+				}
+				if (fresh != null) {
+					release(fresh);
+				}
+			}
+		}
+
+		/**
+		 * Blocks until every spooled byte has been shipped
+		 *
+		 * @throws IOException if shipping failed
+		 */
+		public synchronized void drain() throws IOException {
+			closing = true;
+			if (active) {
+				schedule();
+			}
+			while (active && failure == null && !discarded) {
+				try {
+					wait();
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("interrupted draining the spool of " + name);
+				}
+			}
+			if (failure != null) {
+				throw new IOException("shipping the spool of " + name + " failed", failure);
+			}
+		}
+
+		/**
+		 * Drops everything that hasn't been shipped, waiting for a shipper
+		 * that's writing to the sink to stop (between chunks) so the writer's
+		 * stream is never written to once this returns
+		 */
+		public void discard() {
+			LinkedList<Segment> dropped = new LinkedList<>();
+			synchronized (this) {
+				discarded = true;
+				active = false;
+				notifyAll();
+				while (shipping) {
+					try {
+						wait();
+					} catch (InterruptedException ie) {
+						Thread.currentThread().interrupt();
+						LOG.warn("[{}] interrupted waiting for the spool shipper to stop", name);
+						break;
+					}
+				}
+				dropped.addAll(sealed);
+				sealed.clear();
+				if (current != null) {
+					dropped.add(current);
+					current = null;
+				}
+			}
+			for (Segment segment : dropped) {
+				release(segment);
+			}
+		}
+
+		private synchronized boolean isDiscarded() {
+			return discarded;
+		}
+
+		private void schedule() {
+			if (!scheduled) {
+				scheduled = true;
+				shippers.execute(this);
+			}
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				Segment segment;
+				synchronized (this) {
+					if (discarded || failure != null) {
+						scheduled = false;
+						notifyAll();
+						return;
+					}
+					if (sealed.isEmpty() && current != null && current.length > 0 && (closing || !isSlow())) {
+						sealed.add(current);
+						current = null;
+					}
+					if (sealed.isEmpty()) {
+						if (current == null || current.length == 0) {
+							if (current != null) {
+								release(current);
+								current = null;
+							}
+							active = false;
+							scheduled = false;
+							notifyAll();
+							return;
+						}
+						// HDFS is still slow, look again shortly
+						shippers.schedule(this, RETRY_MS, TimeUnit.MILLISECONDS);
+						return;
+					}
+					segment = sealed.peek();
+					shipping = true;
+				}
+
+				boolean shipped;
+				try {
+					shipped = segment.writeTo(this, chunk);
+					if (shipped) {
+						sink.sync();
+					}
+				} catch (IOException ioe) {
+					LOG.error("[{}] failed to ship spool segment {}", name, segment.file, ioe);
+					synchronized (this) {
+						failure = ioe;
+						shipping = false;
+						scheduled = false;
+						notifyAll();
+					}
+					return;
+				}
+
+				synchronized (this) {
+					shipping = false;
+					notifyAll();
+					if (!shipped) {
+						// Discarded, which releases the segment
+						continue;
+					}
+					sealed.remove(segment);
+				}
+				shippedBytes.mark(segment.length);
+				release(segment);
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bdp.kaboom;
+
+import com.blackberry.bdp.common.conversion.Converter;
+import com.blackberry.bdp.common.jmx.MetricRegistrySingleton;
+import com.codahale.metrics.Meter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Parses a message's encoding version, optional PRI, RFC5424 version and
+ * timestamp and applies the topic's filter set to it.  Used by a worker and by
+ * its catch up ranges so that a message is written the same way whichever of
+ * them consumed it.
+ *
+ * Keeps the state of the last message parsed so each consuming thread has its
+ * own.
+ */
+public class MessageRouter {
+
+	private static final Logger LOG = LoggerFactory.getLogger(MessageRouter.class);
+
+	private final String partitionId;
+	private final FilterSet filterSet;
+	private final Meter tsParseErrorsMeterTopic;
+	private final Meter priParseErrorsMeterTopic;
+	private final Meter filterDroppedMeterTopic;
+	private final Meter filterRoutedMeterTopic;
+	private final PriParser pri = new PriParser();
+	private final VersionParser ver = new VersionParser();
+	private final TimestampParser tsp = new TimestampParser();
+
+	private int pos;
+	private int msgPri;
+	private long timestamp;
+	private String dataDirectory;
+
+	public MessageRouter(StartupConfig config, String topic, String partitionId) {
+		this(topic, partitionId, config.getTopicFilterSets().get(topic));
+	}
+
+	/**
+	 * @param topic
+	 * @param partitionId
+	 * @param filterSet the topic's filter set, null if it has none
+	 */
+	MessageRouter(String topic, String partitionId, FilterSet filterSet) {
+		this.partitionId = partitionId;
+		this.filterSet = filterSet;
+		this.tsParseErrorsMeterTopic = MetricRegistrySingleton.getInstance().getMetricsRegistry().meter("kaboom:topic:" + topic + ":timestamp parse errors");
+		this.priParseErrorsMeterTopic = MetricRegistrySingleton.getInstance().getMetricsRegistry().meter("kaboom:topic:" + topic + ":PRI parse errors");
+		this.filterDroppedMeterTopic = MetricRegistrySingleton.getInstance().getMetricsRegistry().meter("kaboom:topic:" + topic + ":filter dropped messages");
+		this.filterRoutedMeterTopic = MetricRegistrySingleton.getInstance().getMetricsRegistry().meter("kaboom:topic:" + topic + ":filter routed messages");
+	}
+
+	/**
+	 * Parses the message up to the start of the line that is written
+	 *
+	 * @param bytes
+	 * @param length
+	 * @return false if the message is truncated and should be skipped
+	 */
+	public boolean parse(byte[] bytes, int length) {
+		byte version;
+
+		// (byte) 0xFE: -2
+		// (byte) 0x00: 0
+		// (byte) 0xFF: -1
+		// Check for version
+		if (bytes[0] == (byte) 0xFE) {
+			version = bytes[1];
+			if (version == (byte) 0x00) {
+				// Version 0 has a timestamp in the front, so we can skip that for now. Come back if we need it.
+				pos = 10;
+			} else {
+				LOG.warn("[{}] Unrecognized encoding version: {}", partitionId, version);
+				pos = 0;
+			}
+		} else {
+			// version -1 is a raw log
+			version = (byte) 0xFF;
+			pos = 0;
+		}
+
+		// Optional PRI at the start of the line.
+		msgPri = -1;
+		try {
+			if (pri.parsePri(bytes, pos, length)) {
+				pos += pri.getPriLength();
+				msgPri = pri.getPri();
+			}
+		} catch (Exception e) {
+			priParseErrorsMeterTopic.mark();
+		}
+
+		// On the off chance that someone is following RFC5424 and has
+		// inserted a version in the log line.
+		if (ver.parseVersion(bytes, pos, length - pos)) {
+			// Skip the length of the version and the following space.
+			pos += ver.getVersionLength() + 1;
+		}
+
+		tsp.parse(bytes, pos, length - pos);
+
+		if (tsp.getError() == TimestampParser.NO_ERROR) {
+			timestamp = tsp.getTimestamp();
+			// Move position to the end of the timestamp
+			pos += tsp.getLength();
+			/**
+			 * mbruce: occasionally we get a line that is truncated partway through the timestamp, however we still have the rest of the last message in the byte buffer and parsing the timestamp will push us past then end of the line
+			 */
+			if (pos > length) {
+				LOG.error("[{}] Error: parsing timestamp has went beyond length of the message", partitionId);
+				return false;
+			}
+			// If the next char is a space, skip that too.
+			if (pos < length && bytes[pos] == ' ') {
+				pos++;
+			}
+		} else {
+			if (version == (byte) 0x00) {
+				LOG.debug("[{}] Failed to parse timestamp.  Using stored timestamp", partitionId);
+				timestamp = Converter.longFromBytes(bytes, 2);
+			} else {
+				LOG.debug("[{}] Error parsing timestamp.", partitionId);
+				tsParseErrorsMeterTopic.mark();
+				timestamp = System.currentTimeMillis();
+			}
+		}
+
+		if ((length - pos) < 0) {
+			LOG.info("[{}] Skipping offset as length - Offset is < 0: timestamp: {}, pos: {}, length: {}", partitionId, timestamp, pos, length);
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Applies the topic's filter set to the message last parsed
+	 *
+	 * @param bytes
+	 * @param length
+	 * @return false if a rule drops the message
+	 */
+	public boolean route(byte[] bytes, int length) {
+		dataDirectory = null;
+
+		if (filterSet != null) {
+			int rule = filterSet.evaluate(bytes, pos, length - pos, msgPri);
+			if (rule != FilterSet.ACCEPT) {
+				if (filterSet.getAction(rule) == FilterSet.Action.DROP) {
+					filterDroppedMeterTopic.mark();
+					return false;
+				}
+				dataDirectory = filterSet.getDataDirectory(rule);
+				filterRoutedMeterTopic.mark();
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return the position the line to write starts at
+	 */
+	public int getPos() {
+		return pos;
+	}
+
+	/**
+	 * @return the message's timestamp
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * @return the data directory a filter rule routes the message to, null for
+	 * the topic's own
+	 */
+	public String getDataDirectory() {
+		return dataDirectory;
+	}
+
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bdp.kaboom;
+
+/**
+ * A node-wide ceiling on the NameNode operations per second issued by KaBoom.
+ *
+ * Operations that finish work already in flight (hsync, close, rename) are
+ * HIGH priority and operations that start new work (create, exists, delete)
+ * are LOW priority.  LOW priority callers wait while any HIGH priority caller
+ * is waiting and can never take the last reservedTokens tokens of the bucket,
+ * so a create storm can't starve the flushes and closes that are needed to
+ * commit offsets.
+ */
+public class NameNodeRateLimiter {
+
+	public enum Priority {
+		HIGH, LOW
+	}
+
+	private final double opsPerSec;
+	private final double reservedTokens;
+	private final Object lock = new Object();
+	private double tokens;
+	private long lastRefill;
+	private int highWaiting = 0;
+
+	/**
+	 * @param opsPerSec the ceiling, also the size of the bucket
+	 * @param reservedFraction the fraction of the bucket only HIGH priority operations can use
+	 */
+	public NameNodeRateLimiter(long opsPerSec, double reservedFraction) {
+		this(opsPerSec, reservedFraction, System.currentTimeMillis());
+	}
+
+	/**
+	 * @param now when the bucket starts out full
+	 */
+	NameNodeRateLimiter(long opsPerSec, double reservedFraction, long now) {
+		this.opsPerSec = Math.max(1, opsPerSec);
+		this.reservedTokens = Math.max(0, Math.min(this.opsPerSec - 1, this.opsPerSec * reservedFraction));
+		this.tokens = this.opsPerSec;
+		this.lastRefill = now;
+	}
+
+	/**
+	 * Blocks until the operation is allowed under the ceiling
+	 *
+	 * @param priority
+	 * @throws InterruptedException
+	 */
+	public void acquire(Priority priority) throws InterruptedException {
+		synchronized (lock) {
+			boolean high = priority == Priority.HIGH;
+			if (high) {
+				highWaiting++;
+			}
+			try {
+				while (true) {
+					long waitMs = tryAcquire(priority, System.currentTimeMillis());
+					if (waitMs == 0) {
+						return;
+					}
+					lock.wait(waitMs);
+				}
+			} finally {
+				if (high) {
+					highWaiting--;
+					lock.notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Takes a token if the operation is allowed under the ceiling at the time
+	 * given, LOW priority operations are held back while acquire() has a HIGH
+	 * priority caller waiting
+	 *
+	 * @param priority
+	 * @param now
+	 * @return 0 if a token was taken, otherwise how long to wait before trying again
+	 */
+	long tryAcquire(Priority priority, long now) {
+		synchronized (lock) {
+			boolean high = priority == Priority.HIGH;
+			refill(now);
+			double needed = high ? 1 : 1 + reservedTokens;
+			if (tokens >= needed && (high || highWaiting == 0)) {
+				tokens -= 1;
+				return 0;
+			}
+			return Math.max(1, (long) Math.ceil(1000.0 * Math.max(needed - tokens, 1.0 / opsPerSec) / opsPerSec));
+		}
+	}
+
+	private void refill(long now) {
+		double elapsedSec = (now - lastRefill) / 1000.0;
+		if (elapsedSec > 0) {
+			tokens = Math.min(opsPerSec, tokens + opsPerSec * elapsedSec);
+			lastRefill = now;
+		}
+	}
+
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright 2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bdp.kaboom;
+
+import com.blackberry.bdp.kaboom.api.KaBoomTopicConfig;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.zookeeper.CreateMode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Splits the backlog of a heavily lagging partition into offset ranges that are
+ * replayed concurrently by helper tasks while the worker itself jumps ahead and
+ * follows the head of the partition.
+ *
+ * The state is persisted to ZK (alongside the partition's offset) as:
+ *
+ * tailOffset;start-end,start-end,...
+ *
+ * where tailOffset is how far the worker following the head has durably
+ * closed off (advanced at the end of each of its shifts) and each start-end
+ * is what's left of a range that still needs to be replayed (advanced at the
+ * end of each of the range's shifts).  The partition's offset
+ * in ZK is only ever the lowest offset that has not been durably closed off, so
+ * a KaBoom without this feature resuming the partition can only ever replay.
+ *
+ * The ranges of every catching up partition share the node's catch up pool so
+ * kaboom.catchup.max.helpers bounds the node's helpers, ranges queue there
+ * behind the ranges submitted before them.
+ */
+public class ParallelCatchUp {
+
+	private static final Logger LOG = LoggerFactory.getLogger(ParallelCatchUp.class);
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final String partitionId;
+	private final CuratorFramework curator;
+	private final String zkPath;
+	private long tailOffset;
+	private final List<CatchUpRange> ranges = new ArrayList<>();
+	private final ExecutorService executor;
+	private volatile boolean failed = false;
+
+	private ParallelCatchUp(StartupConfig config,
+		 KaBoomTopicConfig topicConfig,
+		 Worker worker,
+		 CuratorFramework curator,
+		 String zkPath,
+		 long tailOffset,
+		 List<long[]> offsetRanges) throws Exception {
+		this.partitionId = worker.getPartitionId();
+		this.curator = curator;
+		this.zkPath = zkPath;
+		this.tailOffset = tailOffset;
+		this.executor = config.getCatchUpExecutor();
+
+		for (long[] range : offsetRanges) {
+			ranges.add(new CatchUpRange(config, topicConfig, worker, this, range[0], range[1]));
+		}
+
+		// Submitted in order so lower ranges start (and likely finish) first
+		for (CatchUpRange range : ranges) {
+			executor.submit(range);
+		}
+
+		LOG.info("[{}] parallel catch up started with {} ranges, tail following from offset {}",
+			 partitionId, ranges.size(), tailOffset);
+	}
+
+	/**
+	 * Splits [committedOffset, highWatermark) into ranges and starts replaying them
+	 *
+	 * @return the catch up, or null if the lag is under the configured threshold
+	 * @throws Exception
+	 */
+	public static ParallelCatchUp start(StartupConfig config,
+		 KaBoomTopicConfig topicConfig,
+		 Worker worker,
+		 CuratorFramework curator,
+		 String zkPath,
+		 long committedOffset,
+		 long highWatermark) throws Exception {
+		long lag = highWatermark - committedOffset;
+
+		if (lag < config.getCatchUpLagThreshold()) {
+			return null;
+		}
+
+		LOG.info("[{}] lag of {} offsets is over the catch up threshold of {}, splitting {}-{}",
+			 worker.getPartitionId(), lag, config.getCatchUpLagThreshold(), committedOffset, highWatermark);
+
+		ParallelCatchUp catchUp = new ParallelCatchUp(config, topicConfig, worker, curator, zkPath,
+			 highWatermark, split(committedOffset, highWatermark, config.getCatchUpRangeSize()));
+		catchUp.store();
+		return catchUp;
+	}
+
+	/**
+	 * Resumes a catch up that was persisted by a previous owner of the partition
+	 *
+	 * @return the catch up, or null if none was persisted
+	 * @throws Exception
+	 */
+	public static ParallelCatchUp resume(StartupConfig config,
+		 KaBoomTopicConfig topicConfig,
+		 Worker worker,
+		 CuratorFramework curator,
+		 String zkPath) throws Exception {
+		if (curator.checkExists().forPath(zkPath) == null) {
+			return null;
+		}
+
+		String state = new String(curator.getData().forPath(zkPath), UTF8);
+
+		LOG.info("[{}] resuming parallel catch up from ZK: {}", worker.getPartitionId(), state);
+
+		return new ParallelCatchUp(config, topicConfig, worker, curator, zkPath,
+			 decodeTailOffset(state), decodeRanges(state));
+	}
+
+	/**
+	 * @param tailOffset
+	 * @param offsetRanges the [start, end) of each range left to replay
+	 * @return the state as persisted to ZK
+	 */
+	static String encode(long tailOffset, List<long[]> offsetRanges) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(tailOffset).append(';');
+		for (int i = 0; i < offsetRanges.size(); i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append(offsetRanges.get(i)[0]).append('-').append(offsetRanges.get(i)[1]);
+		}
+		return sb.toString();
+	}
+
+	static long decodeTailOffset(String state) {
+		return Long.parseLong(state.split(";", 2)[0]);
+	}
+
+	static List<long[]> decodeRanges(String state) {
+		String[] tailAndRanges = state.split(";", 2);
+		List<long[]> offsetRanges = new ArrayList<>();
+		if (tailAndRanges.length > 1 && !tailAndRanges[1].isEmpty()) {
+			for (String range : tailAndRanges[1].split(",")) {
+				String[] startAndEnd = range.split("-");
+				offsetRanges.add(new long[]{Long.parseLong(startAndEnd[0]), Long.parseLong(startAndEnd[1])});
+			}
+		}
+		return offsetRanges;
+	}
+
+	/**
+	 * Removes any persisted catch up, used when an offset override is honored
+	 *
+	 * @throws Exception
+	 */
+	public static void discard(CuratorFramework curator, String zkPath) throws Exception {
+		if (curator.checkExists().forPath(zkPath) != null) {
+			curator.delete().forPath(zkPath);
+			LOG.info("deleted persisted parallel catch up {}", zkPath);
+		}
+	}
+
+	static List<long[]> split(long startOffset, long endOffset, long rangeSize) {
+		List<long[]> offsetRanges = new ArrayList<>();
+		rangeSize = Math.max(1, rangeSize);
+		for (long start = startOffset; start < endOffset; start += rangeSize) {
+			offsetRanges.add(new long[]{start, Math.min(endOffset, start + rangeSize)});
+		}
+		return offsetRanges;
+	}
+
+	/**
+	 * @return the lowest offset that has not yet been durably closed off, or
+	 * the tail offset when every range is complete
+	 */
+	public long getCommittableOffset() {
+		for (CatchUpRange range : ranges) {
+			if (!range.isComplete()) {
+				return range.getCommittableOffset();
+			}
+		}
+		return tailOffset;
+	}
+
+	public boolean isComplete() {
+		for (CatchUpRange range : ranges) {
+			if (!range.isComplete()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public boolean hasFailed() {
+		return failed;
+	}
+
+	/**
+	 * Called by a range that failed (and aborted what it wrote)
+	 */
+	void rangeFailed() {
+		failed = true;
+	}
+
+	public int getRangesOutstanding() {
+		int outstanding = 0;
+		for (CatchUpRange range : ranges) {
+			if (!range.isComplete()) {
+				outstanding++;
+			}
+		}
+		return outstanding;
+	}
+
+	/**
+	 * Persists the remaining ranges and the tail offset
+	 *
+	 * @throws Exception
+	 */
+	public void store() throws Exception {
+		List<long[]> offsetRanges = new ArrayList<>();
+		for (CatchUpRange range : ranges) {
+			if (!range.isComplete()) {
+				offsetRanges.add(new long[]{range.getCommittableOffset(), range.getEndOffset()});
+			}
+		}
+		String encoded = encode(tailOffset, offsetRanges);
+
+		byte[] state = encoded.getBytes(UTF8);
+		if (curator.checkExists().forPath(zkPath) == null) {
+			curator.create().creatingParentsIfNeeded().withMode(CreateMode.PERSISTENT).forPath(zkPath, state);
+		} else {
+			curator.setData().forPath(zkPath, state);
+		}
+		LOG.info("[{}] stored parallel catch up state {} to {}", partitionId, encoded, zkPath);
+	}
+
+	/**
+	 * Removes the persisted state, only safe once every range is complete and
+	 * the partition's offset has been stored at or beyond the tail offset
+	 *
+	 * @throws Exception
+	 */
+	public void discard() throws Exception {
+		discard(curator, zkPath);
+	}
+
+	/**
+	 * Stops every range, closing off what each has written, and waits for the
+	 * ones that had started, those still queued in the pool never will
+	 */
+	public void stop() {
+		for (CatchUpRange range : ranges) {
+			range.stop();
+		}
+		try {
+			for (CatchUpRange range : ranges) {
+				while (!range.awaitStopped(10, TimeUnit.SECONDS)) {
+					LOG.info("[{}] waiting on {} catch up ranges to stop", partitionId, getRangesOutstanding());
+				}
+			}
+		} catch (InterruptedException ie) {
+			LOG.error("[{}] interrupted waiting for catch up ranges to stop", partitionId);
+		}
+	}
+
+	/**
+	 * Aborts every range, deleting what each has written
+	 */
+	public void abort() {
+		for (CatchUpRange range : ranges) {
+			range.abort();
+		}
+	}
+
+	/**
+	 * @return the tailOffset
+	 */
+	public long getTailOffset() {
+		return tailOffset;
+	}
+
+	/**
+	 * @param tailOffset how far the worker following the head has durably
+	 * closed off, persisted by the next store()
+	 */
+	public void setTailOffset(long tailOffset) {
+		this.tailOffset = tailOffset;
+	}
+
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bdp.kaboom;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * The closes a partition has handed to the closer pool.  A shift's offset is
+ * only committed once every close of that shift and of the shifts before it
+ * has completed, closes of later shifts never hold an earlier shift back.
+ *
+ * A file whose close failed is kept so that it can be aborted.  Only used
+ * from the worker's thread.
+ *
+ * @param <T> the file being closed
+ */
+class PendingCloses<T> {
+
+	private final String partitionId;
+	private final List<Close<T>> closes = new ArrayList<>();
+	private final List<T> failed = new ArrayList<>();
+
+	PendingCloses(String partitionId) {
+		this.partitionId = partitionId;
+	}
+
+	static class Close<T> {
+
+		private final long shiftNumber;
+		private final T file;
+		private final Object path;
+		private final Future<Void> future;
+
+		private Close(long shiftNumber, T file, Object path, Future<Void> future) {
+			this.shiftNumber = shiftNumber;
+			this.file = file;
+			this.path = path;
+			this.future = future;
+		}
+
+		/**
+		 * @return the file, null for a shared boom file (the path) which is
+		 * aborted rather than waited on
+		 */
+		T getFile() {
+			return file;
+		}
+
+		Object getPath() {
+			return path;
+		}
+
+		Future<Void> getFuture() {
+			return future;
+		}
+
+	}
+
+	/**
+	 * @param shiftNumber
+	 * @param file null for a shared boom file
+	 * @param path what's being closed, for logging
+	 * @param future completes when the close does
+	 */
+	void add(long shiftNumber, T file, Object path, Future<Void> future) {
+		closes.add(new Close<>(shiftNumber, file, path, future));
+	}
+
+	/**
+	 * @param shiftNumber
+	 * @return true once every close of this or an earlier shift has completed
+	 * @throws IOException if any of those closes failed, each failure is only
+	 * reported once
+	 */
+	boolean complete(long shiftNumber) throws IOException {
+		Iterator<Close<T>> iter = closes.iterator();
+		while (iter.hasNext()) {
+			Close<T> close = iter.next();
+			if (close.shiftNumber > shiftNumber) {
+				continue;
+			}
+			if (!close.future.isDone()) {
+				return false;
+			}
+			iter.remove();
+			try {
+				close.future.get();
+			} catch (InterruptedException | ExecutionException e) {
+				if (close.file != null) {
+					failed.add(close.file);
+				}
+				throw new IOException(String.format("[%s] failed to close %s", partitionId, close.path), e);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Blocks until every close of this or an earlier shift has completed,
+	 * failures are left for complete() to report
+	 *
+	 * @param shiftNumber
+	 * @throws InterruptedException
+	 */
+	void await(long shiftNumber) throws InterruptedException {
+		for (Close<T> close : closes) {
+			if (close.shiftNumber <= shiftNumber) {
+				try {
+					close.future.get();
+				} catch (ExecutionException e) {
+					// Reported by complete()
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the closes not yet known to have completed
+	 */
+	List<Close<T>> getCloses() {
+		return closes;
+	}
+
+	/**
+	 * @return the files whose close failed, for abort
+	 */
+	List<T> getFailed() {
+		return failed;
+	}
+
+}
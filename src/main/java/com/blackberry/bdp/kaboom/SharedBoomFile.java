@@ -0,0 +1,188 @@
+/*
+ * Copyright 2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bdp.kaboom;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A boom file that all the partitions of a topic on this node write into.
+ *
+ * The log block is broken whenever the partition being written changes, so
+ * every log block holds lines of a single partition, and each run of log
+ * blocks is recorded as:
+ *
+ * firstBlockNumber partition firstOffset lastOffset
+ *
+ * in a sidecar written (by closeFile) when the file is closed.  The file is
+ * closed once every partition that wrote to it has released it, and every
+ * partition waits on the same close future before committing its offsets.
+ *
+ * The first release seals the file, the other holders release it on their
+ * next line (and move on to a new shared file) so no holder's commit waits
+ * on the end of the slowest holder's shift.  A holder that aborts can't take
+ * its lines back out of the file, so the whole file is aborted instead: it's
+ * deleted once the last holder lets go, the close future fails for every
+ * holder and they all consume their lines again.
+ */
+public abstract class SharedBoomFile {
+
+	private final FastBoomWriter boomWriter;
+	private final Set<String> holders = new HashSet<>();
+	private final Set<String> released = new HashSet<>();
+	private final StringBuilder sidecar = new StringBuilder();
+	private final FutureTask<Void> closeFuture;
+	private boolean closing = false;
+	private boolean sealed = false;
+	private boolean aborted = false;
+	private int runPartition = -1;
+	private long runFirstBlock;
+	private long runFirstOffset;
+	private long runLastOffset;
+
+	public SharedBoomFile(FastBoomWriter boomWriter) {
+		this.boomWriter = boomWriter;
+		this.closeFuture = new FutureTask<>(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				synchronized (SharedBoomFile.this) {
+					if (aborted) {
+						abortFile();
+						throw new IOException(String.format("shared boom file %s was aborted by one of its holders",
+							 SharedBoomFile.this));
+					}
+					endRun();
+					closeFile(sidecar.toString());
+				}
+				return null;
+			}
+
+		});
+	}
+
+	/**
+	 * Closes the boom file and writes the sidecar
+	 *
+	 * @param sidecar
+	 * @throws Exception
+	 */
+	protected abstract void closeFile(String sidecar) throws Exception;
+
+	/**
+	 * Closes and deletes the boom file without writing the sidecar
+	 *
+	 * @throws Exception
+	 */
+	protected abstract void abortFile() throws Exception;
+
+	/**
+	 * @return false if the file is sealed, the holder must release it and
+	 * write the line elsewhere
+	 * @throws IOException if the file was aborted, none of the lines written
+	 * to it will be committed
+	 */
+	public synchronized boolean writeLine(int partition,
+		 long offset,
+		 long timestamp,
+		 byte[] message,
+		 int pos,
+		 int length) throws IOException {
+		if (aborted) {
+			throw new IOException(String.format("shared boom file %s was aborted by one of its holders", this));
+		}
+		if (sealed) {
+			return false;
+		}
+		if (partition != runPartition) {
+			endRun();
+			boomWriter.breakLogBlock();
+			runPartition = partition;
+			runFirstBlock = boomWriter.getBlockNumber();
+			runFirstOffset = offset;
+		}
+		runLastOffset = offset;
+		boomWriter.writeLine(timestamp, message, pos, length);
+		return true;
+	}
+
+	private void endRun() {
+		if (runPartition >= 0) {
+			sidecar.append(runFirstBlock).append(' ')
+				 .append(runPartition).append(' ')
+				 .append(runFirstOffset).append(' ')
+				 .append(runLastOffset).append('\n');
+		}
+		runPartition = -1;
+	}
+
+	/**
+	 * @param holder
+	 * @return false if the file is sealed (or closing) and can't be written to again
+	 */
+	synchronized boolean retain(String holder) {
+		if (closing || sealed || released.contains(holder)) {
+			return false;
+		}
+		holders.add(holder);
+		return true;
+	}
+
+	/**
+	 * @param holder
+	 * @return true if that was the last holder and the file must now be closed
+	 */
+	synchronized boolean release(String holder) {
+		if (holders.remove(holder)) {
+			released.add(holder);
+		}
+		sealed = true;
+		if (holders.isEmpty() && !closing) {
+			closing = true;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Releases the file and makes sure none of it is ever committed
+	 *
+	 * @param holder
+	 * @return true if that was the last holder and the file must now be aborted
+	 */
+	synchronized boolean abort(String holder) {
+		aborted = true;
+		return release(holder);
+	}
+
+	/**
+	 * @return true once the file can't be retained again
+	 */
+	synchronized boolean isClosing() {
+		return closing || sealed;
+	}
+
+	synchronized boolean isAborted() {
+		return aborted;
+	}
+
+	FutureTask<Void> getCloseFuture() {
+		return closeFuture;
+	}
+
+}
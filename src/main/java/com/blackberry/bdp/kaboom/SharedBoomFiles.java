@@ -0,0 +1,105 @@
+/*
+ * Copyright 2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bdp.kaboom;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * The node's open shared boom files, keyed by topic and period.
+ *
+ * A released shared file is sealed (see {@link SharedBoomFile}), the next
+ * partition to acquire the key gets a new shared file.
+ */
+public class SharedBoomFiles {
+
+	private final Map<String, SharedBoomFile> files = new HashMap<>();
+	private final ExecutorService closerExecutor;
+
+	/**
+	 * @param closerExecutor closes the files when not null, otherwise the last release closes it inline
+	 */
+	public SharedBoomFiles(ExecutorService closerExecutor) {
+		this.closerExecutor = closerExecutor;
+	}
+
+	/**
+	 * @param key
+	 * @param holder
+	 * @param opener creates the file when there isn't one open for the key
+	 * @return the shared file, or null if it can't be retained
+	 * @throws Exception when the opener fails
+	 */
+	public synchronized SharedBoomFile acquire(String key, String holder, Callable<SharedBoomFile> opener) throws Exception {
+		SharedBoomFile file = files.get(key);
+		if (file == null || file.isClosing()) {
+			file = opener.call();
+			files.put(key, file);
+		}
+		return file.retain(holder) ? file : null;
+	}
+
+	/**
+	 * @param key
+	 * @param file
+	 * @param holder
+	 * @return the future of the file's close, shared by every holder
+	 */
+	public Future<Void> release(String key, SharedBoomFile file, String holder) {
+		return release(key, file, holder, false);
+	}
+
+	/**
+	 * Releases the file and aborts it, every holder's close future fails
+	 *
+	 * @param key
+	 * @param file
+	 * @param holder
+	 * @return the future of the file's abort, shared by every holder
+	 */
+	public Future<Void> abort(String key, SharedBoomFile file, String holder) {
+		return release(key, file, holder, true);
+	}
+
+	private Future<Void> release(String key, SharedBoomFile file, String holder, boolean abort) {
+		boolean close;
+		synchronized (this) {
+			close = abort ? file.abort(holder) : file.release(holder);
+			if (files.get(key) == file) {
+				files.remove(key);
+			}
+		}
+
+		FutureTask<Void> closeFuture = file.getCloseFuture();
+		if (close) {
+			if (closerExecutor != null) {
+				closerExecutor.execute(closeFuture);
+			} else {
+				closeFuture.run();
+			}
+		}
+		return closeFuture;
+	}
+
+	public synchronized int size() {
+		return files.size();
+	}
+
+}
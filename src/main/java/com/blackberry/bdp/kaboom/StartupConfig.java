@@ -24,7 +24,18 @@ import java.io.FileNotFoundException;
 import java.io.InputStream;
 import java.io.IOException;
 
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ArrayBlockingQueue;
 
 import org.apache.hadoop.conf.Configuration;
 import org.slf4j.Logger;
@@ -35,6 +46,8 @@ import org.apache.curator.framework.CuratorFramework;
 
 import org.apache.curator.retry.ExponentialBackoffRetry;
 import com.blackberry.bdp.common.props.Parser;
+import com.blackberry.bdp.common.jmx.MetricRegistrySingleton;
+import com.codahale.metrics.Gauge;
 
 import com.blackberry.bdp.kaboom.api.RunningConfig;
 import com.blackberry.bdp.krackle.consumer.ConsumerConfiguration;
@@ -57,6 +70,12 @@ public class StartupConfig {
 	private static final Logger LOG = LoggerFactory.getLogger(StartupConfig.class);
 
 	private static final String defaultProperyFile = "kaboom.properties";
+	private static final String TOPIC_PRIORITY_PREFIX = "kaboom.topic.priority.";
+	private static final String TOPIC_FILTER_PREFIX = "kaboom.topic.filter.";
+	private static final String TOPIC_FAVORED_NODES_PREFIX = "kaboom.topic.favored.nodes.";
+	private static final String TOPIC_STORAGE_POLICY_PREFIX = "kaboom.topic.storage.policy.";
+	private static final String TOPIC_COLD_STORAGE_POLICY_PREFIX = "kaboom.topic.cold.storage.policy.";
+	private static final String TOPIC_TOKEN_BLOOM_PREFIX = "kaboom.topic.token.bloom.";
 	private final Parser propsParser;
 	private final Object fsLock = new Object();
 
@@ -76,6 +95,97 @@ public class StartupConfig {
 	//private String kafkaZkConnectionString;
 	private final String loadBalancerType;
 	private final RunningConfig runningConfig;
+	private final boolean adaptiveFetch;
+	private final int adaptiveFetchMinBytes;
+	private final int adaptiveFetchMinWaitMs;
+	private final long adaptiveFetchLagThreshold;
+	private final long adaptiveFetchIntervalMs;
+	private final boolean parallelCatchUp;
+	private final long catchUpLagThreshold;
+	private final long catchUpRangeSize;
+	private final int catchUpMaxHelpers;
+	private final ExecutorService catchUpExecutor;
+	private final boolean workerScheduling;
+	private final int schedulerSlots;
+	private final long schedulerQuantumMs;
+	private final long schedulerLagScaleSec;
+	private final long schedulerAgingMs;
+	private final long schedulerShareWindowMs;
+	private final LinkedHashMap<String, Integer> schedulerClassWeights;
+	private final String schedulerDefaultClass;
+	private final Map<String, String> topicPriorityClasses = new HashMap<>();
+	private final WorkerScheduler workerScheduler;
+	private final boolean hdfsAdmission;
+	private final long hdfsAdmissionMinBytesPerSec;
+	private final long hdfsAdmissionMaxBytesPerSec;
+	private final long hdfsAdmissionMinOpsPerSec;
+	private final long hdfsAdmissionMaxOpsPerSec;
+	private final long hdfsAdmissionTargetLatencyMs;
+	private final long hdfsAdmissionIntervalMs;
+	private final long hdfsAdmissionMaxWaitMs;
+	private final double hdfsAdmissionDecreaseFactor;
+	private final HdfsAdmissionController hdfsAdmissionController;
+	private final int zkSessionTimeoutMs;
+	private final int zkConnectionTimeoutMs;
+	private final boolean zkSuspensionTolerant;
+	private final long zkLostRecoveryMs;
+	private final boolean preOpen;
+	private final long preOpenLeadMs;
+	private final long preOpenJitterMs;
+	private final int preOpenThreads;
+	private final ExecutorService preOpenExecutor;
+	private final boolean asyncClose;
+	private final int closerThreads;
+	private final int closerQueueSize;
+	private final ThreadPoolExecutor closerExecutor;
+	private final boolean hdfsDirectoryCaching;
+	private final long hdfsDirectoryCacheTtlMs;
+	private final int hdfsDirectoryCacheMaxEntries;
+	private final HdfsDirectoryCache hdfsDirectoryCache;
+	private final long nameNodeMaxOpsPerSec;
+	private final double nameNodeReservedFraction;
+	private final NameNodeRateLimiter nameNodeRateLimiter;
+	private final boolean quarantineSkewed;
+	private final long quarantineMaxBytes;
+	private final long quarantineMaxAgeMs;
+	private final boolean sharedFiles;
+	private final SharedBoomFiles sharedBoomFiles;
+	private final Map<String, FilterSet> topicFilterSets = new HashMap<>();
+	private final Map<String, String> topicFavoredNodes = new HashMap<>();
+	private final Map<String, String> topicStoragePolicies = new HashMap<>();
+	private final Map<String, String> topicColdStoragePolicies = new HashMap<>();
+	private final Set<String> topicTokenBlooms = new HashSet<>();
+	private final boolean datanodeBytesMetrics;
+	private final int boomFileMaxBlocks;
+	private final boolean boomFileBlockAligned;
+	private final BoomFileCommitProtocol boomFileCommitProtocol;
+	private final boolean leaseRecovery;
+	private final int leaseRecoveryThreads;
+	private final ExecutorService leaseRecoveryExecutor;
+	private final boolean spool;
+	private final String spoolDirectory;
+	private final int spoolSegmentMb;
+	private final int spoolMaxMb;
+	private final int spoolLatencyThresholdMs;
+	private final int spoolShipperThreads;
+	private final LocalSpool localSpool;
+	private final int stripesMax;
+	private final int stripeTargetMbPerSec;
+	private final boolean boomFileIndex;
+	private final int tokenBloomBitsPerToken;
+	private final boolean liveTail;
+	private final String liveTailBindAddress;
+	private final int liveTailPort;
+	private final int liveTailMaxConnections;
+	private final int liveTailPollMs;
+	private final int liveTailRingMb;
+	private final int liveTailRingMessages;
+	private final LiveTailServer liveTailServer;
+	private final boolean hourManifestEnabled;
+	private final String hourManifestReadyFlag;
+	private final int hourManifestSealIntervalSeconds;
+	private final int hourManifestRetentionHours;
+	private final HourManifest hourManifest;
 
 	private String zkRootPathKafka = "";
 	private String zkRootPathKafkaBrokers = String.format("%s/%s", zkRootPathKafka, "brokers/ids");
@@ -84,6 +194,7 @@ public class StartupConfig {
 	private String zkRootPathTopicConfigs = String.format("%s/%s", zkRootPathKaBoom, "topics");
 	private String zkRootPathPartitionAssignments = String.format("%s/%s", zkRootPathKaBoom, "assignments");
 	private String zkRootPathFlagAssignments = String.format("%s/%s", zkRootPathKaBoom, "flag-assignments");
+	private String zkRootPathHourManifests = String.format("%s/%s", zkRootPathKaBoom, "hour-manifests");
 	private String zkPathRunningConfig = String.format("%s/%s", zkRootPathKaBoom, "config");
 	private String zkPathLeaderClientId = String.format("%s/%s", zkRootPathKaBoom, "leader");
 
@@ -110,6 +221,85 @@ public class StartupConfig {
 		LOG.info("zkRootPathPartitionAssignments: {}", getZkRootPathPartitionAssignments());
 		LOG.info("zkPathRunningConfig: {}", zkPathRunningConfig);
 		LOG.info("zkPathLeaderClientId: {}", zkPathLeaderClientId);
+		LOG.info("adaptiveFetch: {}", adaptiveFetch);
+		LOG.info("adaptiveFetchMinBytes: {}", adaptiveFetchMinBytes);
+		LOG.info("adaptiveFetchMinWaitMs: {}", adaptiveFetchMinWaitMs);
+		LOG.info("adaptiveFetchLagThreshold: {}", adaptiveFetchLagThreshold);
+		LOG.info("adaptiveFetchIntervalMs: {}", adaptiveFetchIntervalMs);
+		LOG.info("parallelCatchUp: {}", parallelCatchUp);
+		LOG.info("catchUpLagThreshold: {}", catchUpLagThreshold);
+		LOG.info("catchUpRangeSize: {}", catchUpRangeSize);
+		LOG.info("catchUpMaxHelpers: {}", catchUpMaxHelpers);
+		LOG.info("workerScheduling: {}", workerScheduling);
+		LOG.info("schedulerSlots: {}", schedulerSlots);
+		LOG.info("schedulerQuantumMs: {}", schedulerQuantumMs);
+		LOG.info("schedulerLagScaleSec: {}", schedulerLagScaleSec);
+		LOG.info("schedulerAgingMs: {}", schedulerAgingMs);
+		LOG.info("schedulerShareWindowMs: {}", schedulerShareWindowMs);
+		LOG.info("schedulerClassWeights: {}", schedulerClassWeights);
+		LOG.info("schedulerDefaultClass: {}", schedulerDefaultClass);
+		LOG.info("topicPriorityClasses: {}", topicPriorityClasses);
+		LOG.info("hdfsAdmission: {}", hdfsAdmission);
+		LOG.info("hdfsAdmissionMinBytesPerSec: {}", hdfsAdmissionMinBytesPerSec);
+		LOG.info("hdfsAdmissionMaxBytesPerSec: {}", hdfsAdmissionMaxBytesPerSec);
+		LOG.info("hdfsAdmissionMinOpsPerSec: {}", hdfsAdmissionMinOpsPerSec);
+		LOG.info("hdfsAdmissionMaxOpsPerSec: {}", hdfsAdmissionMaxOpsPerSec);
+		LOG.info("hdfsAdmissionTargetLatencyMs: {}", hdfsAdmissionTargetLatencyMs);
+		LOG.info("hdfsAdmissionIntervalMs: {}", hdfsAdmissionIntervalMs);
+		LOG.info("hdfsAdmissionMaxWaitMs: {}", hdfsAdmissionMaxWaitMs);
+		LOG.info("hdfsAdmissionDecreaseFactor: {}", hdfsAdmissionDecreaseFactor);
+		LOG.info("zkSessionTimeoutMs: {}", zkSessionTimeoutMs);
+		LOG.info("zkConnectionTimeoutMs: {}", zkConnectionTimeoutMs);
+		LOG.info("zkSuspensionTolerant: {}", zkSuspensionTolerant);
+		LOG.info("zkLostRecoveryMs: {}", zkLostRecoveryMs);
+		LOG.info("preOpen: {}", preOpen);
+		LOG.info("preOpenLeadMs: {}", preOpenLeadMs);
+		LOG.info("preOpenJitterMs: {}", preOpenJitterMs);
+		LOG.info("preOpenThreads: {}", preOpenThreads);
+		LOG.info("asyncClose: {}", asyncClose);
+		LOG.info("closerThreads: {}", closerThreads);
+		LOG.info("closerQueueSize: {}", closerQueueSize);
+		LOG.info("hdfsDirectoryCaching: {}", hdfsDirectoryCaching);
+		LOG.info("hdfsDirectoryCacheTtlMs: {}", hdfsDirectoryCacheTtlMs);
+		LOG.info("hdfsDirectoryCacheMaxEntries: {}", hdfsDirectoryCacheMaxEntries);
+		LOG.info("nameNodeMaxOpsPerSec: {}", nameNodeMaxOpsPerSec);
+		LOG.info("nameNodeReservedFraction: {}", nameNodeReservedFraction);
+		LOG.info("quarantineSkewed: {}", quarantineSkewed);
+		LOG.info("quarantineMaxBytes: {}", quarantineMaxBytes);
+		LOG.info("quarantineMaxAgeMs: {}", quarantineMaxAgeMs);
+		LOG.info("sharedFiles: {}", sharedFiles);
+		LOG.info("topicFilterSets: {}", topicFilterSets);
+		LOG.info("topicFavoredNodes: {}", topicFavoredNodes);
+		LOG.info("topicStoragePolicies: {}", topicStoragePolicies);
+		LOG.info("topicColdStoragePolicies: {}", topicColdStoragePolicies);
+		LOG.info("topicTokenBlooms: {}", topicTokenBlooms);
+		LOG.info("datanodeBytesMetrics: {}", datanodeBytesMetrics);
+		LOG.info("boomFileMaxBlocks: {}", boomFileMaxBlocks);
+		LOG.info("boomFileBlockAligned: {}", boomFileBlockAligned);
+		LOG.info("boomFileCommitProtocol: {}", boomFileCommitProtocol);
+		LOG.info("leaseRecovery: {}", leaseRecovery);
+		LOG.info("leaseRecoveryThreads: {}", leaseRecoveryThreads);
+		LOG.info("spool: {}", spool);
+		LOG.info("spoolDirectory: {}", spoolDirectory);
+		LOG.info("spoolSegmentMb: {}", spoolSegmentMb);
+		LOG.info("spoolMaxMb: {}", spoolMaxMb);
+		LOG.info("spoolLatencyThresholdMs: {}", spoolLatencyThresholdMs);
+		LOG.info("spoolShipperThreads: {}", spoolShipperThreads);
+		LOG.info("stripesMax: {}", stripesMax);
+		LOG.info("stripeTargetMbPerSec: {}", stripeTargetMbPerSec);
+		LOG.info("boomFileIndex: {}", boomFileIndex);
+		LOG.info("tokenBloomBitsPerToken: {}", tokenBloomBitsPerToken);
+		LOG.info("liveTail: {}", liveTail);
+		LOG.info("liveTailBindAddress: {}", liveTailBindAddress);
+		LOG.info("liveTailPort: {}", liveTailPort);
+		LOG.info("liveTailMaxConnections: {}", liveTailMaxConnections);
+		LOG.info("liveTailPollMs: {}", liveTailPollMs);
+		LOG.info("liveTailRingMb: {}", liveTailRingMb);
+		LOG.info("liveTailRingMessages: {}", liveTailRingMessages);
+		LOG.info("hourManifestEnabled: {}", hourManifestEnabled);
+		LOG.info("hourManifestReadyFlag: {}", hourManifestReadyFlag);
+		LOG.info("hourManifestSealIntervalSeconds: {}", hourManifestSealIntervalSeconds);
+		LOG.info("hourManifestRetentionHours: {}", hourManifestRetentionHours);
 		LOG.info(" *** end dumping configuration *** ");
 	}
 
@@ -133,6 +323,141 @@ public class StartupConfig {
 		kafkaSeedBrokers = propsParser.parseString("metadata.broker.list");
 		loadBalancerType = propsParser.parseString("kaboom.load.balancer.type", "even");
 
+		adaptiveFetch = propsParser.parseBoolean("kaboom.fetch.adaptive", false);
+		adaptiveFetchMinBytes = propsParser.parseInteger("kaboom.fetch.adaptive.min.bytes", 64 * 1024);
+		adaptiveFetchMinWaitMs = propsParser.parseInteger("kaboom.fetch.adaptive.min.wait.ms", 100);
+		adaptiveFetchLagThreshold = propsParser.parseInteger("kaboom.fetch.adaptive.lag.threshold", 10000);
+		adaptiveFetchIntervalMs = propsParser.parseInteger("kaboom.fetch.adaptive.interval.ms", 5000);
+
+		parallelCatchUp = propsParser.parseBoolean("kaboom.catchup.parallel", false);
+		catchUpLagThreshold = propsParser.parseInteger("kaboom.catchup.lag.threshold", 10000000);
+		catchUpRangeSize = propsParser.parseInteger("kaboom.catchup.range.size", 2000000);
+		catchUpMaxHelpers = propsParser.parseInteger("kaboom.catchup.max.helpers", 4);
+
+		workerScheduling = propsParser.parseBoolean("kaboom.scheduler.enabled", false);
+		schedulerSlots = propsParser.parseInteger("kaboom.scheduler.slots", Runtime.getRuntime().availableProcessors());
+		schedulerQuantumMs = propsParser.parseInteger("kaboom.scheduler.quantum.ms", 50);
+		schedulerLagScaleSec = propsParser.parseInteger("kaboom.scheduler.lag.scale.sec", 60);
+		schedulerAgingMs = propsParser.parseInteger("kaboom.scheduler.aging.ms", 500);
+		schedulerShareWindowMs = propsParser.parseInteger("kaboom.scheduler.share.window.ms", 10000);
+		schedulerClassWeights = WorkerScheduler.parseClassWeights(
+			 propsParser.parseString("kaboom.scheduler.classes", "critical:8,normal:4,debug:1"));
+		schedulerDefaultClass = propsParser.parseString("kaboom.scheduler.default.class", "normal");
+
+		for (String propertyName : props.stringPropertyNames()) {
+			if (propertyName.startsWith(TOPIC_PRIORITY_PREFIX)) {
+				topicPriorityClasses.put(propertyName.substring(TOPIC_PRIORITY_PREFIX.length()),
+					 props.getProperty(propertyName).trim());
+			} else if (propertyName.startsWith(TOPIC_FAVORED_NODES_PREFIX)) {
+				topicFavoredNodes.put(propertyName.substring(TOPIC_FAVORED_NODES_PREFIX.length()),
+					 props.getProperty(propertyName).trim());
+			} else if (propertyName.startsWith(TOPIC_STORAGE_POLICY_PREFIX)) {
+				topicStoragePolicies.put(propertyName.substring(TOPIC_STORAGE_POLICY_PREFIX.length()),
+					 props.getProperty(propertyName).trim());
+			} else if (propertyName.startsWith(TOPIC_COLD_STORAGE_POLICY_PREFIX)) {
+				topicColdStoragePolicies.put(propertyName.substring(TOPIC_COLD_STORAGE_POLICY_PREFIX.length()),
+					 props.getProperty(propertyName).trim());
+			} else if (propertyName.startsWith(TOPIC_TOKEN_BLOOM_PREFIX)) {
+				if (Boolean.parseBoolean(props.getProperty(propertyName).trim())) {
+					topicTokenBlooms.add(propertyName.substring(TOPIC_TOKEN_BLOOM_PREFIX.length()));
+				}
+			}
+		}
+
+		hdfsAdmission = propsParser.parseBoolean("kaboom.hdfs.admission.enabled", false);
+		hdfsAdmissionMinBytesPerSec = propsParser.parseInteger("kaboom.hdfs.admission.min.bytes.per.sec", 1024 * 1024);
+		hdfsAdmissionMaxBytesPerSec = propsParser.parseInteger("kaboom.hdfs.admission.max.bytes.per.sec", 256 * 1024 * 1024);
+		hdfsAdmissionMinOpsPerSec = propsParser.parseInteger("kaboom.hdfs.admission.min.ops.per.sec", 20);
+		hdfsAdmissionMaxOpsPerSec = propsParser.parseInteger("kaboom.hdfs.admission.max.ops.per.sec", 2000);
+		hdfsAdmissionTargetLatencyMs = propsParser.parseInteger("kaboom.hdfs.admission.target.latency.ms", 500);
+		hdfsAdmissionIntervalMs = propsParser.parseInteger("kaboom.hdfs.admission.interval.ms", 1000);
+		hdfsAdmissionMaxWaitMs = propsParser.parseInteger("kaboom.hdfs.admission.max.wait.ms", 2000);
+		hdfsAdmissionDecreaseFactor = Double.parseDouble(
+			 propsParser.parseString("kaboom.hdfs.admission.decrease.factor", "0.5"));
+
+		zkSessionTimeoutMs = propsParser.parseInteger("zookeeper.session.timeout.ms", 60000);
+		zkConnectionTimeoutMs = propsParser.parseInteger("zookeeper.connection.timeout.ms", 15000);
+		zkSuspensionTolerant = propsParser.parseBoolean("kaboom.zk.suspension.tolerant", false);
+		zkLostRecoveryMs = propsParser.parseInteger("kaboom.zk.lost.recovery.ms", zkSessionTimeoutMs);
+
+		preOpen = propsParser.parseBoolean("kaboom.preopen.enabled", false);
+		preOpenLeadMs = propsParser.parseInteger("kaboom.preopen.lead.seconds", 60) * 1000L;
+		preOpenJitterMs = propsParser.parseInteger("kaboom.preopen.jitter.seconds", 120) * 1000L;
+		preOpenThreads = propsParser.parseInteger("kaboom.preopen.threads", 4);
+
+		asyncClose = propsParser.parseBoolean("kaboom.closer.enabled", false);
+		closerThreads = propsParser.parseInteger("kaboom.closer.threads", 8);
+		closerQueueSize = propsParser.parseInteger("kaboom.closer.queue.size", 1000);
+
+		hdfsDirectoryCaching = propsParser.parseBoolean("kaboom.hdfs.dir.cache.enabled", false);
+		hdfsDirectoryCacheTtlMs = propsParser.parseInteger("kaboom.hdfs.dir.cache.ttl.seconds", 300) * 1000L;
+		hdfsDirectoryCacheMaxEntries = propsParser.parseInteger("kaboom.hdfs.dir.cache.max.entries", 100000);
+		hdfsDirectoryCache = hdfsDirectoryCaching
+			 ? new HdfsDirectoryCache(hdfsDirectoryCacheTtlMs, hdfsDirectoryCacheMaxEntries) : null;
+
+		nameNodeMaxOpsPerSec = propsParser.parseInteger("kaboom.namenode.max.ops.per.sec", 0);
+		nameNodeReservedFraction = Double.parseDouble(
+			 propsParser.parseString("kaboom.namenode.reserved.fraction", "0.2"));
+		nameNodeRateLimiter = nameNodeMaxOpsPerSec > 0
+			 ? new NameNodeRateLimiter(nameNodeMaxOpsPerSec, nameNodeReservedFraction) : null;
+
+		quarantineSkewed = propsParser.parseBoolean("kaboom.quarantine.enabled", false);
+		quarantineMaxBytes = propsParser.parseInteger("kaboom.quarantine.max.bytes", 128 * 1024 * 1024);
+		quarantineMaxAgeMs = propsParser.parseInteger("kaboom.quarantine.max.seconds", 900) * 1000L;
+
+		sharedFiles = propsParser.parseBoolean("kaboom.shared.files.enabled", false);
+		datanodeBytesMetrics = propsParser.parseBoolean("kaboom.datanode.bytes.metrics.enabled", false);
+		boomFileMaxBlocks = propsParser.parseInteger("kaboom.boom.file.max.blocks", 0);
+		boomFileBlockAligned = propsParser.parseBoolean("kaboom.boom.file.block.aligned", false);
+		String commitProtocolName = props.getProperty("kaboom.boom.file.commit.protocol");
+		boomFileCommitProtocol = commitProtocolName == null || commitProtocolName.trim().isEmpty()
+			 ? null : BoomFileCommitProtocol.fromName(commitProtocolName, false);
+		leaseRecovery = propsParser.parseBoolean("kaboom.lease.recovery.enabled", false);
+		leaseRecoveryThreads = propsParser.parseInteger("kaboom.lease.recovery.threads", 4);
+		spool = propsParser.parseBoolean("kaboom.spool.enabled", false);
+		spoolDirectory = propsParser.parseString("kaboom.spool.directory",
+			 System.getProperty("java.io.tmpdir") + "/kaboom-spool");
+		spoolSegmentMb = propsParser.parseInteger("kaboom.spool.segment.mb", 16);
+		spoolMaxMb = propsParser.parseInteger("kaboom.spool.max.mb", 4096);
+		spoolLatencyThresholdMs = propsParser.parseInteger("kaboom.spool.latency.threshold.ms", 1000);
+		spoolShipperThreads = propsParser.parseInteger("kaboom.spool.shipper.threads", 4);
+		stripesMax = propsParser.parseInteger("kaboom.stripes.max", 1);
+		stripeTargetMbPerSec = propsParser.parseInteger("kaboom.stripe.target.mb.per.sec", 32);
+		boomFileIndex = propsParser.parseBoolean("kaboom.boom.file.index", false);
+		tokenBloomBitsPerToken = propsParser.parseInteger("kaboom.token.bloom.bits.per.token", 10);
+		liveTail = propsParser.parseBoolean("kaboom.live.tail.enabled", false);
+		liveTailBindAddress = propsParser.parseString("kaboom.live.tail.bind.address", "127.0.0.1");
+		liveTailPort = propsParser.parseInteger("kaboom.live.tail.port", 7205);
+		liveTailMaxConnections = propsParser.parseInteger("kaboom.live.tail.max.connections", 16);
+		liveTailPollMs = propsParser.parseInteger("kaboom.live.tail.poll.ms", 10);
+		liveTailRingMb = propsParser.parseInteger("kaboom.live.tail.ring.mb", 8);
+		liveTailRingMessages = propsParser.parseInteger("kaboom.live.tail.ring.messages", 65536);
+		hourManifestEnabled = propsParser.parseBoolean("kaboom.hour.manifest.enabled", false);
+		hourManifestReadyFlag = propsParser.parseString("kaboom.hour.manifest.ready.flag", "_READY");
+		hourManifestSealIntervalSeconds = propsParser.parseInteger("kaboom.hour.manifest.seal.interval.seconds", 60);
+		hourManifestRetentionHours = propsParser.parseInteger("kaboom.hour.manifest.retention.hours", 168);
+
+		Map<String, Map<Integer, String>> topicFilterSpecs = new HashMap<>();
+		for (String propertyName : props.stringPropertyNames()) {
+			if (propertyName.startsWith(TOPIC_FILTER_PREFIX)) {
+				String topicAndOrder = propertyName.substring(TOPIC_FILTER_PREFIX.length());
+				int dot = topicAndOrder.lastIndexOf('.');
+				if (dot <= 0) {
+					throw new IllegalArgumentException("invalid filter property, expected "
+						 + TOPIC_FILTER_PREFIX + "<topic>.<order>: " + propertyName);
+				}
+				String filterTopic = topicAndOrder.substring(0, dot);
+				if (!topicFilterSpecs.containsKey(filterTopic)) {
+					topicFilterSpecs.put(filterTopic, new HashMap<Integer, String>());
+				}
+				topicFilterSpecs.get(filterTopic).put(Integer.parseInt(topicAndOrder.substring(dot + 1)),
+					 props.getProperty(propertyName).trim());
+			}
+		}
+		for (Map.Entry<String, Map<Integer, String>> entry : topicFilterSpecs.entrySet()) {
+			topicFilterSets.put(entry.getKey(), new FilterSet(entry.getValue()));
+		}
+
 		zkRootPathKafka = propsParser.parseString("kafka.zk.root.path", zkRootPathKafka);
 		zkRootPathKafkaBrokers = propsParser.parseString("kafka.zk.root.path.brokers", zkRootPathKafkaBrokers);
 		zkRootPathKaBoom = propsParser.parseString("kaboom.zk.root.path", zkRootPathKaBoom);
@@ -140,6 +465,7 @@ public class StartupConfig {
 		zkRootPathClients = propsParser.parseString("kaboom.zk.root.path.clients", zkRootPathClients);
 		zkRootPathPartitionAssignments = propsParser.parseString("kaboom.zk.root.path.partition.assignments", zkRootPathPartitionAssignments);
 		zkRootPathFlagAssignments = propsParser.parseString("kaboom.zk.root.path.flag.assignments", zkRootPathFlagAssignments);
+		zkRootPathHourManifests = propsParser.parseString("kaboom.zk.root.path.hour.manifests", zkRootPathHourManifests);
 		zkPathRunningConfig = propsParser.parseString("kaboom.zk.path.runningConfig", zkPathRunningConfig);
 		zkPathLeaderClientId = propsParser.parseString("kaboom.zk.path.leader.clientId", zkPathLeaderClientId);
 
@@ -164,6 +490,95 @@ public class StartupConfig {
 		// Check if we're using a custom tmp directory for Snappy
 		String snappyTempDir = props.getProperty("kaboom.temp.dir", "/opt/kaboom/tmp").trim();
 		System.setProperty("org.xerial.snappy.tempdir", snappyTempDir);
+
+		workerScheduler = workerScheduling ? new WorkerScheduler(this) : null;
+
+		catchUpExecutor = parallelCatchUp ? Executors.newFixedThreadPool(Math.max(1, catchUpMaxHelpers), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "kaboom-catchup");
+				thread.setDaemon(true);
+				return thread;
+			}
+
+		}) : null;
+
+		preOpenExecutor = preOpen ? Executors.newFixedThreadPool(preOpenThreads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "kaboom-preopen");
+				thread.setDaemon(true);
+				return thread;
+			}
+
+		}) : null;
+
+		if (asyncClose) {
+			closerExecutor = new ThreadPoolExecutor(closerThreads, closerThreads,
+				 0L, TimeUnit.MILLISECONDS,
+				 new ArrayBlockingQueue<Runnable>(closerQueueSize),
+				 new ThreadFactory() {
+					 @Override
+					 public Thread newThread(Runnable r) {
+						 Thread thread = new Thread(r, "kaboom-closer");
+						 thread.setDaemon(true);
+						 return thread;
+					 }
+
+				 },
+				 new ThreadPoolExecutor.CallerRunsPolicy());
+
+			MetricRegistrySingleton.getInstance().getMetricsRegistry()
+				 .register("kaboom:total:boom file close queue depth", new Gauge<Integer>() {
+					 @Override
+					 public Integer getValue() {
+						 return closerExecutor.getQueue().size();
+					 }
+
+				 });
+		} else {
+			closerExecutor = null;
+		}
+
+		sharedBoomFiles = sharedFiles ? new SharedBoomFiles(closerExecutor) : null;
+
+		leaseRecoveryExecutor = leaseRecovery && leaseRecoveryThreads > 0
+			 ? Executors.newFixedThreadPool(leaseRecoveryThreads, new ThreadFactory() {
+				 @Override
+				 public Thread newThread(Runnable r) {
+					 Thread thread = new Thread(r, "kaboom-lease-recovery");
+					 thread.setDaemon(true);
+					 return thread;
+				 }
+
+			 }) : null;
+
+		if (liveTail) {
+			liveTailServer = new LiveTailServer(liveTailBindAddress, liveTailPort, liveTailMaxConnections, liveTailPollMs);
+			liveTailServer.registerGauges();
+		} else {
+			liveTailServer = null;
+		}
+
+		hourManifest = hourManifestEnabled ? new HourManifest(kaboomCurator,
+			 zkRootPathHourManifests,
+			 hourManifestReadyFlag,
+			 hourManifestRetentionHours * 60L * 60L * 1000L) : null;
+
+		if (hdfsAdmission) {
+			hdfsAdmissionController = new HdfsAdmissionController(this);
+			hdfsAdmissionController.registerGauges();
+		} else {
+			hdfsAdmissionController = null;
+		}
+
+		// Shipped spool bytes are taken from the admission budget
+		localSpool = spool ? new LocalSpool(new File(spoolDirectory),
+			 spoolSegmentMb * 1024 * 1024,
+			 spoolMaxMb * 1024L * 1024L,
+			 spoolLatencyThresholdMs,
+			 spoolShipperThreads,
+			 hdfsAdmissionController) : null;
 	}
 
 	/**
@@ -266,11 +681,14 @@ public class StartupConfig {
 		CuratorFramework newCurator;
 		LOG.info("jaas key: {}", System.getProperty(Environment.JAAS_CONF_KEY));
 		if (connStringAndPrefix.length == 1) {
-			newCurator = CuratorFrameworkFactory.newClient(connectionString, retryPolicy);
+			newCurator = CuratorFrameworkFactory.newClient(connectionString,
+				 zkSessionTimeoutMs, zkConnectionTimeoutMs, retryPolicy);
 		} else {
 			newCurator = CuratorFrameworkFactory.builder()
 				 .namespace(connStringAndPrefix[1])
 				 .connectString(connStringAndPrefix[0]).retryPolicy(retryPolicy)
+				 .sessionTimeoutMs(zkSessionTimeoutMs)
+				 .connectionTimeoutMs(zkConnectionTimeoutMs)
 				 .build();
 		}
 		newCurator.start();
@@ -335,6 +753,17 @@ public class StartupConfig {
 		return consumerConfiguration;
 	}
 
+	/**
+	 * Builds a consumer configuration that is not shared with any other worker
+	 * so that its fetch parameters can be tuned per partition
+	 *
+	 * @return a new ConsumerConfiguration built from the startup properties
+	 * @throws java.lang.Exception
+	 */
+	public ConsumerConfiguration newConsumerConfiguration() throws Exception {
+		return new ConsumerConfiguration(props);
+	}
+
 	/**
 	 * @return the runningConfig
 	 */
@@ -391,6 +820,13 @@ public class StartupConfig {
 		return zkRootPathFlagAssignments;
 	}
 
+	/**
+	 * @return the zkRootPathHourManifests
+	 */
+	public String getZkRootPathHourManifests() {
+		return zkRootPathHourManifests;
+	}
+
 	/**
 	 * @return the kafkaSeedBrokers
 	 */
@@ -433,4 +869,647 @@ public class StartupConfig {
 		return nodeCache;
 	}
 
+	/**
+	 * @return the adaptiveFetch
+	 */
+	public boolean isAdaptiveFetch() {
+		return adaptiveFetch;
+	}
+
+	/**
+	 * @return the adaptiveFetchMinBytes
+	 */
+	public int getAdaptiveFetchMinBytes() {
+		return adaptiveFetchMinBytes;
+	}
+
+	/**
+	 * @return the adaptiveFetchMinWaitMs
+	 */
+	public int getAdaptiveFetchMinWaitMs() {
+		return adaptiveFetchMinWaitMs;
+	}
+
+	/**
+	 * @return the adaptiveFetchLagThreshold
+	 */
+	public long getAdaptiveFetchLagThreshold() {
+		return adaptiveFetchLagThreshold;
+	}
+
+	/**
+	 * @return the adaptiveFetchIntervalMs
+	 */
+	public long getAdaptiveFetchIntervalMs() {
+		return adaptiveFetchIntervalMs;
+	}
+
+	/**
+	 * @return the parallelCatchUp
+	 */
+	public boolean isParallelCatchUp() {
+		return parallelCatchUp;
+	}
+
+	/**
+	 * @return the catchUpLagThreshold
+	 */
+	public long getCatchUpLagThreshold() {
+		return catchUpLagThreshold;
+	}
+
+	/**
+	 * @return the catchUpRangeSize
+	 */
+	public long getCatchUpRangeSize() {
+		return catchUpRangeSize;
+	}
+
+	/**
+	 * @return the catchUpMaxHelpers
+	 */
+	public int getCatchUpMaxHelpers() {
+		return catchUpMaxHelpers;
+	}
+
+	/**
+	 * @return the node's pool for replaying catch up ranges, or null when
+	 * parallel catch up is disabled
+	 */
+	public ExecutorService getCatchUpExecutor() {
+		return catchUpExecutor;
+	}
+
+	/**
+	 * @return the workerScheduling
+	 */
+	public boolean isWorkerScheduling() {
+		return workerScheduling;
+	}
+
+	/**
+	 * @return the schedulerSlots
+	 */
+	public int getSchedulerSlots() {
+		return schedulerSlots;
+	}
+
+	/**
+	 * @return the schedulerQuantumMs
+	 */
+	public long getSchedulerQuantumMs() {
+		return schedulerQuantumMs;
+	}
+
+	/**
+	 * @return the schedulerLagScaleSec
+	 */
+	public long getSchedulerLagScaleSec() {
+		return schedulerLagScaleSec;
+	}
+
+	/**
+	 * @return the schedulerAgingMs
+	 */
+	public long getSchedulerAgingMs() {
+		return schedulerAgingMs;
+	}
+
+	/**
+	 * @return the schedulerShareWindowMs
+	 */
+	public long getSchedulerShareWindowMs() {
+		return schedulerShareWindowMs;
+	}
+
+	/**
+	 * @return the schedulerClassWeights
+	 */
+	public LinkedHashMap<String, Integer> getSchedulerClassWeights() {
+		return schedulerClassWeights;
+	}
+
+	/**
+	 * @return the schedulerDefaultClass
+	 */
+	public String getSchedulerDefaultClass() {
+		return schedulerDefaultClass;
+	}
+
+	/**
+	 * @return the topicPriorityClasses
+	 */
+	public Map<String, String> getTopicPriorityClasses() {
+		return topicPriorityClasses;
+	}
+
+	/**
+	 * @return the node's worker scheduler, or null when scheduling is disabled
+	 */
+	public WorkerScheduler getWorkerScheduler() {
+		return workerScheduler;
+	}
+
+	/**
+	 * @return the hdfsAdmission
+	 */
+	public boolean isHdfsAdmission() {
+		return hdfsAdmission;
+	}
+
+	/**
+	 * @return the hdfsAdmissionMinBytesPerSec
+	 */
+	public long getHdfsAdmissionMinBytesPerSec() {
+		return hdfsAdmissionMinBytesPerSec;
+	}
+
+	/**
+	 * @return the hdfsAdmissionMaxBytesPerSec
+	 */
+	public long getHdfsAdmissionMaxBytesPerSec() {
+		return hdfsAdmissionMaxBytesPerSec;
+	}
+
+	/**
+	 * @return the hdfsAdmissionMinOpsPerSec
+	 */
+	public long getHdfsAdmissionMinOpsPerSec() {
+		return hdfsAdmissionMinOpsPerSec;
+	}
+
+	/**
+	 * @return the hdfsAdmissionMaxOpsPerSec
+	 */
+	public long getHdfsAdmissionMaxOpsPerSec() {
+		return hdfsAdmissionMaxOpsPerSec;
+	}
+
+	/**
+	 * @return the hdfsAdmissionTargetLatencyMs
+	 */
+	public long getHdfsAdmissionTargetLatencyMs() {
+		return hdfsAdmissionTargetLatencyMs;
+	}
+
+	/**
+	 * @return the hdfsAdmissionIntervalMs
+	 */
+	public long getHdfsAdmissionIntervalMs() {
+		return hdfsAdmissionIntervalMs;
+	}
+
+	/**
+	 * @return the hdfsAdmissionMaxWaitMs
+	 */
+	public long getHdfsAdmissionMaxWaitMs() {
+		return hdfsAdmissionMaxWaitMs;
+	}
+
+	/**
+	 * @return the hdfsAdmissionDecreaseFactor
+	 */
+	public double getHdfsAdmissionDecreaseFactor() {
+		return hdfsAdmissionDecreaseFactor;
+	}
+
+	/**
+	 * @return the node's HDFS admission controller, or null when admission control is disabled
+	 */
+	public HdfsAdmissionController getHdfsAdmissionController() {
+		return hdfsAdmissionController;
+	}
+
+	/**
+	 * @return the zkSessionTimeoutMs
+	 */
+	public int getZkSessionTimeoutMs() {
+		return zkSessionTimeoutMs;
+	}
+
+	/**
+	 * @return the zkConnectionTimeoutMs
+	 */
+	public int getZkConnectionTimeoutMs() {
+		return zkConnectionTimeoutMs;
+	}
+
+	/**
+	 * @return the zkSuspensionTolerant
+	 */
+	public boolean isZkSuspensionTolerant() {
+		return zkSuspensionTolerant;
+	}
+
+	/**
+	 * @return the zkLostRecoveryMs
+	 */
+	public long getZkLostRecoveryMs() {
+		return zkLostRecoveryMs;
+	}
+
+	/**
+	 * @return the preOpen
+	 */
+	public boolean isPreOpen() {
+		return preOpen;
+	}
+
+	/**
+	 * @return the preOpenLeadMs
+	 */
+	public long getPreOpenLeadMs() {
+		return preOpenLeadMs;
+	}
+
+	/**
+	 * @return the preOpenJitterMs
+	 */
+	public long getPreOpenJitterMs() {
+		return preOpenJitterMs;
+	}
+
+	/**
+	 * @return the preOpenThreads
+	 */
+	public int getPreOpenThreads() {
+		return preOpenThreads;
+	}
+
+	/**
+	 * @return the node's pool for pre-opening boom files, or null when pre-opening is disabled
+	 */
+	public ExecutorService getPreOpenExecutor() {
+		return preOpenExecutor;
+	}
+
+	/**
+	 * @return the asyncClose
+	 */
+	public boolean isAsyncClose() {
+		return asyncClose;
+	}
+
+	/**
+	 * @return the closerThreads
+	 */
+	public int getCloserThreads() {
+		return closerThreads;
+	}
+
+	/**
+	 * @return the closerQueueSize
+	 */
+	public int getCloserQueueSize() {
+		return closerQueueSize;
+	}
+
+	/**
+	 * @return the node's pool for closing boom files, or null when files are closed inline
+	 */
+	public ExecutorService getCloserExecutor() {
+		return closerExecutor;
+	}
+
+	/**
+	 * @return the hdfsDirectoryCaching
+	 */
+	public boolean isHdfsDirectoryCaching() {
+		return hdfsDirectoryCaching;
+	}
+
+	/**
+	 * @return the hdfsDirectoryCacheTtlMs
+	 */
+	public long getHdfsDirectoryCacheTtlMs() {
+		return hdfsDirectoryCacheTtlMs;
+	}
+
+	/**
+	 * @return the hdfsDirectoryCacheMaxEntries
+	 */
+	public int getHdfsDirectoryCacheMaxEntries() {
+		return hdfsDirectoryCacheMaxEntries;
+	}
+
+	/**
+	 * @return the node's cache of HDFS directories known to exist, or null when disabled
+	 */
+	public HdfsDirectoryCache getHdfsDirectoryCache() {
+		return hdfsDirectoryCache;
+	}
+
+	/**
+	 * @return the nameNodeMaxOpsPerSec
+	 */
+	public long getNameNodeMaxOpsPerSec() {
+		return nameNodeMaxOpsPerSec;
+	}
+
+	/**
+	 * @return the nameNodeReservedFraction
+	 */
+	public double getNameNodeReservedFraction() {
+		return nameNodeReservedFraction;
+	}
+
+	/**
+	 * @return the node's NameNode rate limiter, or null when NameNode operations aren't limited
+	 */
+	public NameNodeRateLimiter getNameNodeRateLimiter() {
+		return nameNodeRateLimiter;
+	}
+
+	/**
+	 * @return the quarantineSkewed
+	 */
+	public boolean isQuarantineSkewed() {
+		return quarantineSkewed;
+	}
+
+	/**
+	 * @return the quarantineMaxBytes
+	 */
+	public long getQuarantineMaxBytes() {
+		return quarantineMaxBytes;
+	}
+
+	/**
+	 * @return the quarantineMaxAgeMs
+	 */
+	public long getQuarantineMaxAgeMs() {
+		return quarantineMaxAgeMs;
+	}
+
+	/**
+	 * @return the sharedFiles
+	 */
+	public boolean isSharedFiles() {
+		return sharedFiles;
+	}
+
+	/**
+	 * @return the sharedBoomFiles, null unless shared files are enabled
+	 */
+	public SharedBoomFiles getSharedBoomFiles() {
+		return sharedBoomFiles;
+	}
+
+	/**
+	 * @return the topicFilterSets
+	 */
+	public Map<String, FilterSet> getTopicFilterSets() {
+		return topicFilterSets;
+	}
+
+	/**
+	 * @return the topicFavoredNodes
+	 */
+	public Map<String, String> getTopicFavoredNodes() {
+		return topicFavoredNodes;
+	}
+
+	/**
+	 * @return the topicStoragePolicies
+	 */
+	public Map<String, String> getTopicStoragePolicies() {
+		return topicStoragePolicies;
+	}
+
+	/**
+	 * @return the topicColdStoragePolicies
+	 */
+	public Map<String, String> getTopicColdStoragePolicies() {
+		return topicColdStoragePolicies;
+	}
+
+	/**
+	 * @return the datanodeBytesMetrics
+	 */
+	public boolean isDatanodeBytesMetrics() {
+		return datanodeBytesMetrics;
+	}
+
+	/**
+	 * @return the boomFileMaxBlocks
+	 */
+	public int getBoomFileMaxBlocks() {
+		return boomFileMaxBlocks;
+	}
+
+	/**
+	 * @return the boomFileBlockAligned
+	 */
+	public boolean isBoomFileBlockAligned() {
+		return boomFileBlockAligned;
+	}
+
+	/**
+	 * @return the boomFileCommitProtocol, when not configured it follows the
+	 * running config's useTempOpenFileDirectory
+	 */
+	public BoomFileCommitProtocol getBoomFileCommitProtocol() {
+		if (boomFileCommitProtocol != null) {
+			return boomFileCommitProtocol;
+		}
+		return BoomFileCommitProtocol.fromName(null, runningConfig.getUseTempOpenFileDirectory());
+	}
+
+	/**
+	 * @return the leaseRecovery
+	 */
+	public boolean isLeaseRecovery() {
+		return leaseRecovery;
+	}
+
+	/**
+	 * @return the leaseRecoveryThreads
+	 */
+	public int getLeaseRecoveryThreads() {
+		return leaseRecoveryThreads;
+	}
+
+	/**
+	 * @return the node's pool for recovering the leases of stale open boom
+	 * files, or null when there's no background recovery
+	 */
+	public ExecutorService getLeaseRecoveryExecutor() {
+		return leaseRecoveryExecutor;
+	}
+
+	/**
+	 * @return the spool
+	 */
+	public boolean isSpool() {
+		return spool;
+	}
+
+	/**
+	 * @return the spoolDirectory
+	 */
+	public String getSpoolDirectory() {
+		return spoolDirectory;
+	}
+
+	/**
+	 * @return the spoolSegmentMb
+	 */
+	public int getSpoolSegmentMb() {
+		return spoolSegmentMb;
+	}
+
+	/**
+	 * @return the spoolMaxMb
+	 */
+	public int getSpoolMaxMb() {
+		return spoolMaxMb;
+	}
+
+	/**
+	 * @return the spoolLatencyThresholdMs
+	 */
+	public int getSpoolLatencyThresholdMs() {
+		return spoolLatencyThresholdMs;
+	}
+
+	/**
+	 * @return the spoolShipperThreads
+	 */
+	public int getSpoolShipperThreads() {
+		return spoolShipperThreads;
+	}
+
+	/**
+	 * @return the node's local spool, or null when spooling is disabled
+	 */
+	public LocalSpool getLocalSpool() {
+		return localSpool;
+	}
+
+	/**
+	 * @return the stripesMax
+	 */
+	public int getStripesMax() {
+		return stripesMax;
+	}
+
+	/**
+	 * @return the stripeTargetMbPerSec
+	 */
+	public int getStripeTargetMbPerSec() {
+		return stripeTargetMbPerSec;
+	}
+
+	/**
+	 * @return the boomFileIndex
+	 */
+	public boolean isBoomFileIndex() {
+		return boomFileIndex;
+	}
+
+	/**
+	 * @return the topics whose lines are tokenized into per block bloom filters
+	 */
+	public Set<String> getTopicTokenBlooms() {
+		return topicTokenBlooms;
+	}
+
+	/**
+	 * @return the tokenBloomBitsPerToken
+	 */
+	public int getTokenBloomBitsPerToken() {
+		return tokenBloomBitsPerToken;
+	}
+
+	/**
+	 * @return the liveTail
+	 */
+	public boolean isLiveTail() {
+		return liveTail;
+	}
+
+	/**
+	 * @return the liveTailBindAddress
+	 */
+	public String getLiveTailBindAddress() {
+		return liveTailBindAddress;
+	}
+
+	/**
+	 * @return the liveTailPort
+	 */
+	public int getLiveTailPort() {
+		return liveTailPort;
+	}
+
+	/**
+	 * @return the liveTailMaxConnections
+	 */
+	public int getLiveTailMaxConnections() {
+		return liveTailMaxConnections;
+	}
+
+	/**
+	 * @return the liveTailPollMs
+	 */
+	public int getLiveTailPollMs() {
+		return liveTailPollMs;
+	}
+
+	/**
+	 * @return the liveTailRingMb
+	 */
+	public int getLiveTailRingMb() {
+		return liveTailRingMb;
+	}
+
+	/**
+	 * @return the liveTailRingMessages
+	 */
+	public int getLiveTailRingMessages() {
+		return liveTailRingMessages;
+	}
+
+	/**
+	 * @return the node's live tail server (started by KaBoom), or null when live tail is disabled
+	 */
+	public LiveTailServer getLiveTailServer() {
+		return liveTailServer;
+	}
+
+	/**
+	 * @return the hourManifestEnabled
+	 */
+	public boolean isHourManifestEnabled() {
+		return hourManifestEnabled;
+	}
+
+	/**
+	 * @return the hourManifestReadyFlag
+	 */
+	public String getHourManifestReadyFlag() {
+		return hourManifestReadyFlag;
+	}
+
+	/**
+	 * @return the hourManifestSealIntervalSeconds
+	 */
+	public int getHourManifestSealIntervalSeconds() {
+		return hourManifestSealIntervalSeconds;
+	}
+
+	/**
+	 * @return the hourManifestRetentionHours
+	 */
+	public int getHourManifestRetentionHours() {
+		return hourManifestRetentionHours;
+	}
+
+	/**
+	 * @return the node's hour manifest (sealed by the leader), or null when it's disabled
+	 */
+	public HourManifest getHourManifest() {
+		return hourManifest;
+	}
+
 }
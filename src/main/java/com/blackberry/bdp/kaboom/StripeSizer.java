@@ -0,0 +1,104 @@
+/*
+ * Copyright 2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bdp.kaboom;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Chooses how many files (stripes) a partition writes each period to at once
+ * from the bytes it has written over the last evaluation interval.
+ *
+ * Every stripe is expected to sustain targetBytesPerSec through its own HDFS
+ * write pipeline, so the number of stripes grows straight to what the
+ * observed rate needs (up to maxStripes) and shrinks by one stripe per
+ * interval so a brief lull doesn't undo it.
+ */
+public class StripeSizer {
+
+	private static final Logger LOG = LoggerFactory.getLogger(StripeSizer.class);
+
+	private final String partitionId;
+	private final int maxStripes;
+	private final long targetBytesPerSec;
+	private final long intervalMs;
+
+	private int stripes = 1;
+	private long bytesThisInterval = 0;
+	private long intervalStart;
+
+	public StripeSizer(String partitionId, int maxStripes, long targetBytesPerSec, long intervalMs) {
+		this.partitionId = partitionId;
+		this.maxStripes = Math.max(1, maxStripes);
+		this.targetBytesPerSec = Math.max(1, targetBytesPerSec);
+		this.intervalMs = intervalMs;
+		this.intervalStart = System.currentTimeMillis();
+	}
+
+	public void bytesWritten(int length) {
+		bytesThisInterval += length;
+	}
+
+	/**
+	 * Re-evaluates the number of stripes once per interval
+	 *
+	 * @return true when the number of stripes has changed
+	 */
+	public boolean adjust() {
+		return adjust(System.currentTimeMillis());
+	}
+
+	boolean adjust(long now) {
+		long elapsedMs = now - intervalStart;
+		if (elapsedMs < intervalMs) {
+			return false;
+		}
+
+		long bytesPerSec = bytesThisInterval * 1000 / elapsedMs;
+		int wanted = (int) Math.min((long) maxStripes, Math.max(1L,
+			 (bytesPerSec + targetBytesPerSec - 1) / targetBytesPerSec));
+
+		int newStripes = stripes;
+		if (wanted > stripes) {
+			newStripes = wanted;
+		} else {
+			if (wanted < stripes) {
+				newStripes = stripes - 1;
+			}
+		}
+
+		boolean changed = newStripes != stripes;
+
+		if (changed) {
+			LOG.info("[{}] stripe sizing: {} bytes/sec => stripes {} -> {}",
+				 partitionId, bytesPerSec, stripes, newStripes);
+		}
+
+		stripes = newStripes;
+		bytesThisInterval = 0;
+		intervalStart = now;
+
+		return changed;
+	}
+
+	/**
+	 * @return the number of stripes to write to
+	 */
+	public int getStripes() {
+		return stripes;
+	}
+
+}
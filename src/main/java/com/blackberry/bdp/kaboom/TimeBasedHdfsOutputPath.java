@@ -19,18 +19,40 @@ import com.blackberry.bdp.common.conversion.Converter;
 import com.blackberry.bdp.common.jmx.MetricRegistrySingleton;
 import com.blackberry.bdp.kaboom.api.KaBoomTopicConfig;
 import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
-import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.CreateFlag;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.hdfs.DFSConfigKeys;
 import org.apache.hadoop.hdfs.client.HdfsDataOutputStream;
+import org.apache.hadoop.net.NetUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -41,34 +63,474 @@ import org.slf4j.LoggerFactory;
 public class TimeBasedHdfsOutputPath {
 
 	private static final Logger LOG = LoggerFactory.getLogger(TimeBasedHdfsOutputPath.class);
+	private static final int MAX_PERIOD_DIRS = 64;
+	private static final long STRIPE_INTERVAL_MS = 10 * 1000;
 
 	private final StartupConfig config;
 	private final KaBoomTopicConfig topicConfig;
 	private final String topic;
 	private final int partition;
-	private final FileSystem fileSystem;
+	private final InstrumentedFileSystem fileSystem;
 	private final String partitionId;
+	private final String dataDirectory;
 	private Worker worker;
 
 	private final Map<Long, OutputFile> outputFileMap = new HashMap<>();
+	private final Map<Long, Future<OutputFile>> preOpenedMap = new HashMap<>();
+	private final long preOpenJitterMs;
+	private final Meter preOpenedBoomFilesTotal;
+	private final Meter preOpenedBoomFilesDiscardedTotal;
+	private final Timer boomFileCloseTimer;
+	private final Meter quarantinedMessagesTopic;
+	private final Meter sizeRolledBoomFilesTopic;
+	private OutputFile quarantineFile = null;
+	private SharedBoomFiles sharedBoomFiles;
+	private final Map<Long, HeldSharedFile> heldSharedFiles = new HashMap<>();
+	private final PendingCloses<OutputFile> pendingCloses;
+	private final Map<String, String> periodDirs = new LinkedHashMap<String, String>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+			return size() > MAX_PERIOD_DIRS;
+		}
+
+	};
+	private final InetSocketAddress[] favoredNodes;
+	private final String storagePolicy;
+	private final String coldStoragePolicy;
+	private final Map<String, String> storagePolicyDirs = new LinkedHashMap<String, String>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+			return size() > MAX_PERIOD_DIRS;
+		}
+
+	};
+	// Period directories waiting on the cold storage policy, by the end of their
+	// period, also recorded by files opened on the pre-open pool
+	private final Map<String, Long> coldPolicyDirs = new HashMap<>();
+	// The shift each (period start, filename) was first opened in, a file
+	// opened again in the same shift was closed off early and is continued in
+	// its next segment, a file that isn't here is left over from an earlier
+	// attempt at the shift
+	private final Map<String, Long> openedFiles = new HashMap<>();
+	// Files committed under the MANIFEST protocol, by shift then directory
+	private final Map<Long, Map<String, List<String>>> manifestEntries = new HashMap<>();
+	// Files closed for the hour manifest, by shift, period start then directory
+	private final Map<Long, Map<Long, Map<String, List<HourManifest.Entry>>>> hourManifestEntries = new HashMap<>();
+	private final Meter reopenedBoomFilesTotal;
+	private final Meter leaseRecoveriesTotal;
+	private final Meter reopenedBoomFilesTopic;
+	private final Meter reopenedBoomFilesPartition;
+	// The extra stripes of each period, stripe 0 is the period's file in outputFileMap
+	private final Map<Long, Stripes> stripesMap = new HashMap<>();
+	private final StripeSizer stripeSizer;
+	private final Meter boomFileStripesTopic;
 
 	public TimeBasedHdfsOutputPath(StartupConfig kaboomConfig,
 		 KaBoomTopicConfig topicConfig,
 		 int partition)
 		 throws IOException, InterruptedException {
+		this(kaboomConfig, topicConfig, partition, topicConfig.getDefaultDirectory());
+	}
+
+	/**
+	 * @param dataDirectory the data directory (under the topic's HDFS root) the boom files are written to
+	 */
+	public TimeBasedHdfsOutputPath(StartupConfig kaboomConfig,
+		 KaBoomTopicConfig topicConfig,
+		 int partition,
+		 String dataDirectory)
+		 throws IOException, InterruptedException {
 		this.config = kaboomConfig;
+		this.dataDirectory = dataDirectory;
 		this.topicConfig = topicConfig;
 		this.partition = partition;
 		this.topic = topicConfig.getId();
-		this.fileSystem = config.authenticatedFsForProxyUser(topicConfig.getProxyUser());
+		this.fileSystem = new InstrumentedFileSystem(
+			 config.authenticatedFsForProxyUser(topicConfig.getProxyUser()), topic, config);
 		this.partitionId = String.format("%s-%d", topic, partition);
+		this.pendingCloses = new PendingCloses<>(partitionId);
+		// Spread each partition's pre-open across the jitter window so the NameNode sees a ramp
+		this.preOpenJitterMs = config.getPreOpenJitterMs() > 0
+			 ? (partitionId.hashCode() & Integer.MAX_VALUE) % config.getPreOpenJitterMs() : 0;
+		this.preOpenedBoomFilesTotal = MetricRegistrySingleton.getInstance().getMetricsRegistry()
+			 .meter("kaboom:total:pre-opened boom files");
+		this.preOpenedBoomFilesDiscardedTotal = MetricRegistrySingleton.getInstance().getMetricsRegistry()
+			 .meter("kaboom:total:pre-opened boom files discarded");
+		this.boomFileCloseTimer = MetricRegistrySingleton.getInstance().getMetricsRegistry()
+			 .timer("kaboom:total:boom file close timer");
+		this.quarantinedMessagesTopic = MetricRegistrySingleton.getInstance().getMetricsRegistry()
+			 .meter("kaboom:topic:" + topic + ":quarantined messages");
+		this.sizeRolledBoomFilesTopic = MetricRegistrySingleton.getInstance().getMetricsRegistry()
+			 .meter("kaboom:topic:" + topic + ":size rolled boom files");
+		this.reopenedBoomFilesTotal = MetricRegistrySingleton.getInstance().getMetricsRegistry()
+			 .meter("kaboom:total:reopened boom files");
+		this.leaseRecoveriesTotal = MetricRegistrySingleton.getInstance().getMetricsRegistry()
+			 .meter("kaboom:total:lease recoveries");
+		this.reopenedBoomFilesTopic = MetricRegistrySingleton.getInstance().getMetricsRegistry()
+			 .meter("kaboom:topic:" + topic + ":reopened boom files");
+		this.reopenedBoomFilesPartition = MetricRegistrySingleton.getInstance().getMetricsRegistry()
+			 .meter("kaboom:partitions:" + partitionId + ":reopened boom files");
+		this.boomFileStripesTopic = MetricRegistrySingleton.getInstance().getMetricsRegistry()
+			 .meter("kaboom:topic:" + topic + ":boom file stripes");
+		this.stripeSizer = config.getStripesMax() > 1
+			 ? new StripeSizer(partitionId, config.getStripesMax(),
+				 config.getStripeTargetMbPerSec() * 1024L * 1024L, STRIPE_INTERVAL_MS) : null;
+		this.sharedBoomFiles = config.getSharedBoomFiles();
+		this.favoredNodes = FavoredNodes.forPartition(config.getTopicFavoredNodes().get(topic),
+			 config.getHostname(),
+			 partition,
+			 config.getRunningConfig().getBoomFileReplicas(),
+			 NetUtils.createSocketAddr(config.getHadoopConfiguration().get(
+				 DFSConfigKeys.DFS_DATANODE_ADDRESS_KEY, DFSConfigKeys.DFS_DATANODE_ADDRESS_DEFAULT)).getPort());
+		this.storagePolicy = config.getTopicStoragePolicies().get(topic);
+		this.coldStoragePolicy = config.getTopicColdStoragePolicies().get(topic);
+	}
+
+	/**
+	 * Sets the storage policy on the directory unless this partition already
+	 * has, a failure is logged and doesn't fail the write
+	 */
+	private void applyStoragePolicy(String dir, String policy) {
+		synchronized (storagePolicyDirs) {
+			if (policy.equals(storagePolicyDirs.get(dir))) {
+				return;
+			}
+			storagePolicyDirs.put(dir, policy);
+		}
+		setStoragePolicy(new Path(dir), policy);
+	}
+
+	private void setStoragePolicy(Path path, String policy) {
+		try {
+			fileSystem.setStoragePolicy(path, policy);
+			LOG.info("[{}] storage policy of {} set to {}", partitionId, path, policy);
+		} catch (IOException ioe) {
+			LOG.warn("[{}] failed to set storage policy of {} to {}: {}", partitionId, path, policy, ioe.getMessage());
+		}
+	}
+
+	/**
+	 * Sets the cold storage policy on the period directories whose period is
+	 * over and that this partition no longer has a file open or closing in,
+	 * each directory is only ever set cold once
+	 */
+	private void applyColdStoragePolicies() {
+		synchronized (coldPolicyDirs) {
+			if (coldPolicyDirs.isEmpty()) {
+				return;
+			}
+		}
+		Set<String> busyDirs = new HashSet<>();
+		if (quarantineFile != null) {
+			busyDirs.add(quarantineFile.dir);
+		}
+		for (OutputFile outputFile : outputFileMap.values()) {
+			busyDirs.add(outputFile.dir);
+		}
+		for (Stripes stripes : stripesMap.values()) {
+			for (OutputFile outputFile : stripes.outputFiles) {
+				busyDirs.add(outputFile.dir);
+			}
+		}
+		for (PendingCloses.Close<OutputFile> pendingClose : pendingCloses.getCloses()) {
+			if (pendingClose.getFile() != null) {
+				busyDirs.add(pendingClose.getFile().dir);
+			}
+		}
+		long now = System.currentTimeMillis();
+		List<String> coldDirs = new ArrayList<>();
+		synchronized (coldPolicyDirs) {
+			Iterator<Map.Entry<String, Long>> iter = coldPolicyDirs.entrySet().iterator();
+			while (iter.hasNext()) {
+				Map.Entry<String, Long> entry = iter.next();
+				if (entry.getValue() <= now && !busyDirs.contains(entry.getKey())) {
+					coldDirs.add(entry.getKey());
+					iter.remove();
+				}
+			}
+		}
+		for (String dir : coldDirs) {
+			applyStoragePolicy(dir, coldStoragePolicy);
+		}
+	}
+
+	/**
+	 * Marks the bytes of each of the file's blocks against every datanode holding a replica
+	 */
+	private void reportDatanodeBytes(Path path) {
+		try {
+			for (BlockLocation location : fileSystem.getFileBlockLocations(path, 0, Long.MAX_VALUE)) {
+				for (String host : location.getHosts()) {
+					MetricRegistrySingleton.getInstance().getMetricsRegistry()
+						 .meter("kaboom:datanode:" + host + ":bytes written").mark(location.getLength());
+				}
+			}
+		} catch (IOException ioe) {
+			LOG.warn("[{}] failed to get the block locations of {}: {}", partitionId, path, ioe.getMessage());
+		}
+	}
+
+	/**
+	 * Writes the line to the topic's shared boom file for the period when
+	 * shared files are enabled (and the period isn't skewed), otherwise to the
+	 * partition's own boom file (or one of its stripes)
+	 *
+	 * @param shiftNumber
+	 * @param offset the message's offset
+	 * @param timestamp
+	 * @param filename the name of the partition's own boom file
+	 * @param message
+	 * @param pos
+	 * @param length
+	 * @throws Exception
+	 */
+	public void writeLine(long shiftNumber,
+		 long offset,
+		 long timestamp,
+		 String filename,
+		 byte[] message,
+		 int pos,
+		 int length) throws Exception {
+		if (sharedBoomFiles != null) {
+			SharedBoomFile sharedFile = getSharedBoomFile(shiftNumber, timestamp);
+			if (sharedFile != null && !sharedFile.writeLine(partition, offset, timestamp, message, pos, length)) {
+				// Sealed by another holder's release, move on to a new one
+				releaseSharedFile(startTime(timestamp), shiftNumber);
+				sharedFile = getSharedBoomFile(shiftNumber, timestamp);
+				if (sharedFile != null && !sharedFile.writeLine(partition, offset, timestamp, message, pos, length)) {
+					throw new IOException(String.format("[%s] new shared boom file %s is already sealed", partitionId, sharedFile));
+				}
+			}
+			if (sharedFile != null) {
+				return;
+			}
+		}
+		if (config.getBoomFileMaxBlocks() > 0) {
+			rollIfFull(shiftNumber, offset, timestamp);
+		}
+		FastBoomWriter boomWriter = getBoomWriter(shiftNumber, timestamp, filename);
+		if (stripeSizer != null) {
+			stripeSizer.bytesWritten(length);
+			if (stripeSizer.adjust()) {
+				shrinkStripes();
+			}
+			boomWriter = getStripeWriter(offset, timestamp, length, boomWriter);
+		}
+		boomWriter.writeLine(timestamp, message, pos, length, offset);
+	}
+
+	/**
+	 * Picks the stripe of the period the line is written to, each log block is
+	 * written whole to a single stripe and the stripes take turns
+	 *
+	 * @param boomWriter the writer of the period's file
+	 */
+	private FastBoomWriter getStripeWriter(long offset, long ts, int length, FastBoomWriter boomWriter) throws Exception {
+		long startTime = ts - ts % (config.getRunningConfig().getWorkerShiftDurationSeconds() * 1000);
+		OutputFile outputFile = outputFileMap.get(startTime);
+		if (outputFile == null || outputFile.getBoomWriter() != boomWriter) {
+			// Quarantined, never striped
+			return boomWriter;
+		}
+		Stripes stripes = stripesMap.get(startTime);
+		if (stripes == null) {
+			if (stripeSizer.getStripes() == 1) {
+				return boomWriter;
+			}
+			stripes = new Stripes(startTime);
+			stripesMap.put(startTime, stripes);
+		}
+		return stripes.getBoomWriter(outputFile, offset, ts, length);
+	}
+
+	/**
+	 * Hands the period's extra stripes to the closer pool, they belong to the
+	 * same shift as the period's file so the shift's offset isn't committed
+	 * until they're all closed
+	 */
+	private void startCloseStripes(long startTime) throws IOException {
+		Stripes stripes = stripesMap.remove(startTime);
+		if (stripes == null) {
+			return;
+		}
+		for (OutputFile outputFile : stripes.outputFiles) {
+			startClose(outputFile);
+			LOG.info("[{}] Shift #{} stripe closing: {}", partitionId, outputFile.shiftNumber, outputFile.openFilePath);
+		}
+	}
+
+	/**
+	 * Hands the stripes beyond the current number of stripes to the closer
+	 * pool rather than leaving them open until their period ends
+	 */
+	private void shrinkStripes() throws IOException {
+		for (Stripes stripes : stripesMap.values()) {
+			stripes.shrink(stripeSizer.getStripes());
+		}
+	}
+
+	/**
+	 * Closes the period's boom file once it reaches the maximum size and opens
+	 * the next one for the period named after the offset of the message that
+	 * didn't fit
+	 */
+	private void rollIfFull(long shiftNumber, long offset, long ts) throws Exception {
+		long startTime = ts - ts % (config.getRunningConfig().getWorkerShiftDurationSeconds() * 1000);
+		OutputFile outputFile = outputFileMap.get(startTime);
+		long maxBytes = config.getBoomFileMaxBlocks() * config.getRunningConfig().getBoomFileBlocksize();
+		if (outputFile == null || outputFile.getBoomWriter().getPosition() < maxBytes) {
+			return;
+		}
+		LOG.info("[{}] boom file {} reached {} bytes, rolling to a new file at offset {}",
+			 partitionId, outputFile.openFilePath, outputFile.getBoomWriter().getPosition(), offset);
+		startClose(outputFile);
+		OutputFile rolled = new OutputFile(shiftNumber, partitionId + "-" + offset + ".bm", startTime);
+		openedFiles.put(startTime + "/" + rolled.baseFilename, shiftNumber);
+		rolled.lastUsedTimestmap = outputFile.lastUsedTimestmap;
+		outputFileMap.put(startTime, rolled);
+		sizeRolledBoomFilesTopic.mark();
+	}
+
+	private long startTime(long ts) {
+		return ts - ts % (config.getRunningConfig().getWorkerShiftDurationSeconds() * 1000);
+	}
+
+	private SharedBoomFile getSharedBoomFile(long shiftNumber, long ts) throws Exception {
+		final long startTime = startTime(ts);
+
+		HeldSharedFile held = heldSharedFiles.get(startTime);
+		if (held != null) {
+			return held.file;
+		}
+
+		if (skewed(startTime)) {
+			return null;
+		}
+
+		String key = topic + ":" + dataDirectory + ":" + startTime;
+		SharedBoomFile sharedFile = sharedBoomFiles.acquire(key, partitionId, new Callable<SharedBoomFile>() {
+			@Override
+			public SharedBoomFile call() throws Exception {
+				String filename = String.format("%s-shared-%d-%d.bm", topic, config.getKaboomId(), System.currentTimeMillis());
+				final OutputFile outputFile = new OutputFile(-1, filename, startTime);
+				return new SharedBoomFile(outputFile.getBoomWriter()) {
+					@Override
+					protected void closeFile(String sidecar) throws Exception {
+						try {
+							outputFile.close();
+						} catch (Exception e) {
+							outputFile.abort();
+							throw e;
+						}
+						writeSidecar(outputFile, sidecar);
+					}
+
+					@Override
+					protected void abortFile() throws Exception {
+						outputFile.abort();
+					}
+
+					@Override
+					public String toString() {
+						return outputFile.finalPath.toString();
+					}
+
+				};
+			}
+
+		});
+
+		if (sharedFile != null) {
+			heldSharedFiles.put(startTime, new HeldSharedFile(shiftNumber, key, sharedFile));
+			LOG.info("[{}] writing period {} to shared boom file {}", partitionId, dateString(startTime), sharedFile);
+		}
+		return sharedFile;
+	}
+
+	/**
+	 * Writes the partition and offset ranges of the shared file's log blocks
+	 * next to it as _<filename>.partitions
+	 */
+	private void writeSidecar(OutputFile outputFile, String sidecar) throws IOException {
+		Path sidecarPath = new Path(outputFile.finalPath.getParent(), "_" + outputFile.finalPath.getName() + ".partitions");
+		HdfsDataOutputStream out = createSidecar(sidecarPath);
+		try {
+			out.write(sidecar.getBytes(Charset.forName("UTF-8")));
+		} finally {
+			fileSystem.close(out);
+		}
+	}
+
+	private HdfsDataOutputStream createSidecar(Path sidecarPath) throws IOException {
+		return fileSystem.create(sidecarPath,
+			 config.getBoomFilePerms(),
+			 true,
+			 config.getRunningConfig().getBoomFileBufferSize(),
+			 config.getRunningConfig().getBoomFileReplicas(),
+			 config.getRunningConfig().getBoomFileBlocksize());
+	}
+
+	private void releaseSharedFiles(long shiftNumber) {
+		Iterator<Map.Entry<Long, HeldSharedFile>> iter = heldSharedFiles.entrySet().iterator();
+		while (iter.hasNext()) {
+			HeldSharedFile held = iter.next().getValue();
+			if (held.shiftNumber == shiftNumber) {
+				release(held);
+				iter.remove();
+			}
+		}
+	}
+
+	private void releaseSharedFile(long startTime, long shiftNumber) {
+		HeldSharedFile held = heldSharedFiles.remove(startTime);
+		if (held != null) {
+			release(held);
+		}
+	}
+
+	/**
+	 * The shift's offsets can only be committed once the shared file is closed
+	 */
+	private void release(HeldSharedFile held) {
+		Future<Void> closeFuture = sharedBoomFiles.release(held.key, held.file, partitionId);
+		pendingCloses.add(held.shiftNumber, null, held.file, closeFuture);
+		LOG.info("[{}] Shift #{} released shared file: {}", partitionId, held.shiftNumber, held.file);
+	}
+
+	/**
+	 * The lines this partition wrote to its shared files can't be taken back
+	 * out of them, so the files are aborted for every holder
+	 */
+	private void abortSharedFiles() {
+		for (HeldSharedFile held : heldSharedFiles.values()) {
+			sharedBoomFiles.abort(held.key, held.file, partitionId);
+			LOG.info("[{}] aborted shared file: {}", partitionId, held.file);
+		}
+		heldSharedFiles.clear();
 	}
 
 	public FastBoomWriter getBoomWriter(long shiftNumber, long ts, String filename) throws IOException, Exception {
 		long requestedStartTime = ts - ts % (this.config.getRunningConfig().getWorkerShiftDurationSeconds() * 1000);
 		OutputFile requestedOutputFile = outputFileMap.get(requestedStartTime);
 		if (requestedOutputFile == null) {
-			requestedOutputFile = new OutputFile(shiftNumber, filename, requestedStartTime);
+			if (config.isQuarantineSkewed() && skewed(requestedStartTime)) {
+				quarantinedMessagesTopic.mark();
+				return getQuarantineWriter(shiftNumber, filename);
+			}
+			requestedOutputFile = adoptPreOpened(shiftNumber, requestedStartTime);
+			if (requestedOutputFile == null) {
+				if (!openedFiles.containsKey(requestedStartTime + "/" + filename)) {
+					requestedOutputFile = new OutputFile(shiftNumber, filename, requestedStartTime);
+				} else {
+					reopenedBoomFilesTotal.mark();
+					reopenedBoomFilesTopic.mark();
+					reopenedBoomFilesPartition.mark();
+					requestedOutputFile = new OutputFile(shiftNumber, filename, requestedStartTime, false, -1);
+					LOG.info("[{}] reopening evicted period {} as segment {}: {}",
+						 partitionId, dateString(requestedStartTime), requestedOutputFile.segment, requestedOutputFile.openFilePath);
+				}
+			}
+			openedFiles.put(requestedStartTime + "/" + filename, shiftNumber);
 			outputFileMap.put(requestedStartTime, requestedOutputFile);
 			if (outputFileMap.size() > config.getRunningConfig().getMaxOpenBoomFilesPerPartition()) {
 				long oldestTs = getOldestLastUsedTimestamp();
@@ -77,7 +539,8 @@ public class TimeBasedHdfsOutputPath {
 					if (oldestOutputFile == null) {
 						throw new Exception("Attempt at finding LRU output file returned null");
 					}
-					oldestOutputFile.close();
+					startClose(oldestOutputFile);
+					startCloseStripes(oldestTs);
 					LOG.info("[{}] Over max open boom file limit ({}/{}) closing LRU boom file: {}",
 						 partitionId,
 						 outputFileMap.size(),
@@ -94,6 +557,289 @@ public class TimeBasedHdfsOutputPath {
 		return requestedOutputFile.getBoomWriter();
 	}
 
+	/**
+	 * Skewed messages all go to a single quarantine file for the shift (rolled
+	 * by size and age) instead of a file per skewed period, each line keeps its
+	 * own parsed timestamp within the boom file
+	 */
+	private FastBoomWriter getQuarantineWriter(long shiftNumber, String filename) throws Exception {
+		long now = System.currentTimeMillis();
+		int segment = 0;
+
+		if (quarantineFile != null && quarantineRollDue(quarantineFile.shiftNumber,
+			 quarantineFile.getBoomWriter().getBytesWritten(), quarantineFile.createdTimestamp,
+			 shiftNumber, now, config.getQuarantineMaxBytes(), config.getQuarantineMaxAgeMs())) {
+			LOG.info("[{}] rolling quarantine boom file {}", partitionId, quarantineFile.openFilePath);
+			startClose(quarantineFile);
+			if (quarantineFile.shiftNumber == shiftNumber) {
+				segment = quarantineFile.segment + 1;
+			}
+			quarantineFile = null;
+		}
+
+		if (quarantineFile == null) {
+			long periodMs = config.getRunningConfig().getWorkerShiftDurationSeconds() * 1000;
+			quarantineFile = new OutputFile(shiftNumber, filename, now - now % periodMs, true, segment);
+			LOG.info("[{}] quarantining skewed messages to {}", partitionId, quarantineFile.openFilePath);
+		}
+
+		quarantineFile.lastUsedTimestmap = now;
+		return quarantineFile.getBoomWriter();
+	}
+
+	/**
+	 * @param fileShiftNumber the shift the quarantine file was opened in
+	 * @param bytesWritten
+	 * @param createdMs when the quarantine file was opened
+	 * @param shiftNumber the shift of the message being quarantined
+	 * @param now
+	 * @param maxBytes
+	 * @param maxAgeMs
+	 * @return true if the quarantine file must be closed and a new one opened
+	 * for the message
+	 */
+	static boolean quarantineRollDue(long fileShiftNumber, long bytesWritten, long createdMs,
+		 long shiftNumber, long now, long maxBytes, long maxAgeMs) {
+		return fileShiftNumber != shiftNumber || bytesWritten >= maxBytes || now - createdMs >= maxAgeMs;
+	}
+
+	private boolean skewed(long startTime) {
+		return skewed(startTime, System.currentTimeMillis(),
+			 config.getRunningConfig().getSkewedTsSecondsFuture() == null
+				 ? -1 : config.getRunningConfig().getSkewedTsSecondsFuture() * 1000L,
+			 config.getRunningConfig().getSkewedTsSecondsPast() == null
+				 ? -1 : config.getRunningConfig().getSkewedTsSecondsPast() * 1000L);
+	}
+
+	/**
+	 * @param startTime the start of the message's period
+	 * @param now
+	 * @param futureMs how far ahead of now a period is skewed, -1 for never
+	 * @param pastMs how far behind now a period is skewed, -1 for never
+	 * @return true if the period's messages are quarantined
+	 */
+	static boolean skewed(long startTime, long now, long futureMs, long pastMs) {
+		if (futureMs >= 0 && startTime > now + futureMs) {
+			return true;
+		}
+		return pastMs >= 0 && startTime < now - pastMs;
+	}
+
+	/**
+	 * Finds the partition's files in the current and previous period that a
+	 * previous owner left open and recovers their leases on the node's lease
+	 * recovery pool, so creating this shift's files doesn't wait out the
+	 * lease.  The directories are listed before returning so none of the
+	 * files this worker goes on to open can be mistaken for stale ones.
+	 *
+	 * Skewed files are looked for in the skewed data directory's current and
+	 * previous period, where quarantined files and those dated to now are
+	 * written, a skewed file written to its own far off period is left for
+	 * the open to recover.  Each routed data directory has its own output
+	 * path and is recovered by it.
+	 */
+	public void recoverStaleLeases() {
+		ExecutorService executor = config.getLeaseRecoveryExecutor();
+		if (executor == null) {
+			return;
+		}
+		long periodMs = config.getRunningConfig().getWorkerShiftDurationSeconds() * 1000;
+		long now = System.currentTimeMillis();
+		List<String> globs = staleFileGlobs(partitionId,
+			 config.getRunningConfig().getBoomFileTmpPrefix(),
+			 config.getRunningConfig().getSkewedTsBoomFilenamePrefix());
+		Set<String> dirs = new LinkedHashSet<>();
+		for (long startTime : new long[]{now - now % periodMs - periodMs, now - now % periodMs}) {
+			dirs.add(periodDir(startTime, dataDirectory));
+			if (config.getRunningConfig().getSkewedTsDataDir() != null) {
+				dirs.add(periodDir(startTime, config.getRunningConfig().getSkewedTsDataDir()));
+			}
+		}
+		for (String dir : dirs) {
+			for (String pattern : globs) {
+				FileStatus[] statuses;
+				try {
+					statuses = fileSystem.globStatus(new Path(dir + "/" + pattern));
+				} catch (IOException ioe) {
+					LOG.warn("[{}] unable to look for stale open files in {}", partitionId, dir, ioe);
+					break;
+				}
+				if (statuses == null) {
+					continue;
+				}
+				for (final FileStatus status : statuses) {
+					if (status.isDirectory()) {
+						continue;
+					}
+					executor.execute(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								if (!fileSystem.isFileClosed(status.getPath())) {
+									recoverLease(status.getPath());
+								}
+							} catch (IOException ioe) {
+								LOG.warn("[{}] lease recovery failed for {}", partitionId, status.getPath(), ioe);
+							}
+						}
+
+					});
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param partitionId
+	 * @param tmpPrefix the prefix of open files
+	 * @param skewedPrefix the prefix of skewed files, null if they have none
+	 * @return the globs (within a period directory) of the partition's files
+	 * and stripes, open or committed, skewed or not
+	 */
+	static List<String> staleFileGlobs(String partitionId, String tmpPrefix, String skewedPrefix) {
+		Set<String> globs = new LinkedHashSet<>();
+		String tmp = tmpPrefix == null ? "" : tmpPrefix;
+		for (String prefix : skewedPrefix == null ? new String[]{""} : new String[]{"", skewedPrefix}) {
+			globs.add(prefix + partitionId + "-*");
+			globs.add(tmp + prefix + partitionId + "-*");
+			globs.add(tmp + prefix + partitionId + "-*/*");
+		}
+		return new ArrayList<>(globs);
+	}
+
+	private void recoverLease(Path path) throws IOException {
+		boolean closed = fileSystem.recoverLease(path);
+		leaseRecoveriesTotal.mark();
+		LOG.info("[{}] recovering the lease of {} ({})", partitionId, path, closed ? "already closed" : "started");
+	}
+
+	/**
+	 * Creates the next period's boom file in the background once we're within
+	 * the pre-open lead time (plus this partition's jitter) of the boundary and
+	 * the worker is near the head of its partition
+	 *
+	 * @param offset the worker's current offset, used to name the file
+	 * @param lagMs how far behind now the worker's last message was
+	 */
+	public void preOpenPoll(final long offset, long lagMs) {
+		ExecutorService executor = config.getPreOpenExecutor();
+		if (executor == null) {
+			return;
+		}
+
+		long now = System.currentTimeMillis();
+		long periodMs = config.getRunningConfig().getWorkerShiftDurationSeconds() * 1000;
+		final long nextPeriodStart = preOpenPeriodStart(now, periodMs,
+			 config.getPreOpenLeadMs() + preOpenJitterMs, lagMs, config.getPreOpenLeadMs());
+
+		if (nextPeriodStart < 0
+			 || outputFileMap.containsKey(nextPeriodStart)
+			 || preOpenedMap.containsKey(nextPeriodStart)) {
+			return;
+		}
+
+		discardStalePreOpened(now - now % periodMs);
+
+		preOpenedMap.put(nextPeriodStart, executor.submit(new Callable<OutputFile>() {
+			@Override
+			public OutputFile call() throws Exception {
+				// Not part of any shift until a worker adopts it
+				OutputFile outputFile = new OutputFile(-1, partitionId + "-" + offset + ".bm", nextPeriodStart, false, 0, true);
+				preOpenedBoomFilesTotal.mark();
+				return outputFile;
+			}
+
+		}));
+
+		LOG.debug("[{}] pre-opening boom file for period starting {}", partitionId, dateString(nextPeriodStart));
+	}
+
+	/**
+	 * A worker that's further behind than the lead time won't reach the next
+	 * period's messages by the boundary, and one that's catching up could
+	 * be hours away from them, so its file would only sit open until it's
+	 * discarded
+	 *
+	 * @param now
+	 * @param periodMs
+	 * @param leadMs how long before the boundary the file is opened
+	 * @param lagMs how far behind now the worker's last message was
+	 * @param maxLagMs
+	 * @return the start of the next period if its file is due to be
+	 * pre-opened, -1 if it's not
+	 */
+	static long preOpenPeriodStart(long now, long periodMs, long leadMs, long lagMs, long maxLagMs) {
+		long nextPeriodStart = now - now % periodMs + periodMs;
+		if (now < nextPeriodStart - leadMs || lagMs > maxLagMs) {
+			return -1;
+		}
+		return nextPeriodStart;
+	}
+
+	private OutputFile adoptPreOpened(long shiftNumber, long startTime) {
+		Future<OutputFile> future = preOpenedMap.remove(startTime);
+		if (future == null) {
+			return null;
+		}
+		try {
+			// If it's still being created then waiting on it is no worse than creating it ourselves
+			OutputFile outputFile = future.get();
+			outputFile.shiftNumber = shiftNumber;
+			LOG.info("[{}] adopted pre-opened boom file {} into shift #{}", partitionId, outputFile.openFilePath, shiftNumber);
+			return outputFile;
+		} catch (InterruptedException | ExecutionException e) {
+			LOG.warn("[{}] pre-opening boom file for {} failed, creating it now: ", partitionId, dateString(startTime), e);
+			return null;
+		}
+	}
+
+	private void discardStalePreOpened(long currentPeriodStart) {
+		Iterator<Map.Entry<Long, Future<OutputFile>>> iter = preOpenedMap.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry<Long, Future<OutputFile>> entry = iter.next();
+			if (entry.getKey() < currentPeriodStart && entry.getValue().isDone()) {
+				discardPreOpened(entry.getValue());
+				iter.remove();
+			}
+		}
+	}
+
+	private void discardPreOpened(Future<OutputFile> future) {
+		try {
+			OutputFile outputFile = future.get();
+			LOG.info("[{}] discarding unused pre-opened boom file {}", partitionId, outputFile.openFilePath);
+			outputFile.abort();
+			preOpenedBoomFilesDiscardedTotal.mark();
+		} catch (InterruptedException | ExecutionException e) {
+			LOG.debug("[{}] unused pre-opened boom file was never created", partitionId);
+		}
+	}
+
+	/**
+	 * Deletes every pre-opened boom file that was never adopted
+	 */
+	public void discardAllPreOpened() {
+		for (Future<OutputFile> future : preOpenedMap.values()) {
+			discardPreOpened(future);
+		}
+		preOpenedMap.clear();
+	}
+
+	/**
+	 * The topic's HDFS root dir template is fixed for the life of the worker so
+	 * it's only ever expanded once for each period start and data directory
+	 */
+	private synchronized String periodDir(long startTime, String dataDirectory) {
+		String key = startTime + dataDirectory;
+		String dir = periodDirs.get(key);
+		if (dir == null) {
+			dir = Converter.timestampTemplateBuilder(startTime,
+				 String.format("%s/%s", topicConfig.getHdfsRootDir(), dataDirectory));
+			periodDirs.put(key, dir);
+		}
+		return dir;
+	}
+
 	private long getOldestLastUsedTimestamp() {
 		long oldestTs = outputFileMap.entrySet().iterator().next().getValue().lastUsedTimestmap;
 		long outputFileStartTime = outputFileMap.entrySet().iterator().next().getKey();
@@ -107,37 +853,288 @@ public class TimeBasedHdfsOutputPath {
 		return outputFileStartTime;
 	}
 
+	/**
+	 * Shared boom files held by the partition are aborted along with every
+	 * other partition's lines in them, those partitions fail their close and
+	 * consume them again
+	 */
 	public void abortAll() {
+		abortSharedFiles();
 		for (Map.Entry<Long, OutputFile> entry : outputFileMap.entrySet()) {
 			entry.getValue().abort();
 		}
+		for (Stripes stripes : stripesMap.values()) {
+			for (OutputFile outputFile : stripes.outputFiles) {
+				outputFile.abort();
+			}
+		}
+		stripesMap.clear();
+		if (quarantineFile != null) {
+			quarantineFile.abort();
+			quarantineFile = null;
+		}
+		// A close that's in flight may yet fail and leave its open file behind
+		for (PendingCloses.Close<OutputFile> pendingClose : pendingCloses.getCloses()) {
+			if (pendingClose.getFile() == null) {
+				// A released shared file still waiting on its other holders
+				if (!pendingClose.getFuture().isDone()) {
+					sharedBoomFiles.abort(null, (SharedBoomFile) pendingClose.getPath(), partitionId);
+				}
+				continue;
+			}
+			try {
+				pendingClose.getFuture().get();
+			} catch (InterruptedException | ExecutionException e) {
+				pendingCloses.getFailed().add(pendingClose.getFile());
+			}
+		}
+		pendingCloses.getCloses().clear();
+		for (OutputFile outputFile : pendingCloses.getFailed()) {
+			outputFile.abort();
+		}
+		pendingCloses.getFailed().clear();
+		synchronized (manifestEntries) {
+			manifestEntries.clear();
+		}
+		synchronized (hourManifestEntries) {
+			hourManifestEntries.clear();
+		}
+		// The shift is consumed again, so what it left behind is stale
+		openedFiles.clear();
+		discardAllPreOpened();
 	}
 
 	public void closeAll() throws IOException {
 		for (Map.Entry<Long, OutputFile> entry : outputFileMap.entrySet()) {
 			entry.getValue().close();
 		}
+		for (Stripes stripes : stripesMap.values()) {
+			for (OutputFile outputFile : stripes.outputFiles) {
+				outputFile.close();
+			}
+		}
 	}
 
+	/**
+	 * Closes off every file of the shift and waits for the closes to complete
+	 *
+	 * @param shiftNumber
+	 * @throws Exception
+	 */
 	public void closeOffShift(long shiftNumber) throws Exception {
+		startCloseOffShift(shiftNumber);
+		awaitCloses(shiftNumber);
+	}
+
+	/**
+	 * Hands every file of the shift to the node's closer pool (or closes them
+	 * inline when there isn't one)
+	 *
+	 * @param shiftNumber
+	 * @throws IOException when closing inline fails
+	 */
+	public void startCloseOffShift(long shiftNumber) throws IOException {
+		if (sharedBoomFiles != null) {
+			releaseSharedFiles(shiftNumber);
+		}
+		if (quarantineFile != null && quarantineFile.shiftNumber == shiftNumber) {
+			startClose(quarantineFile);
+			LOG.info("[{}] Shift #{} quarantine file closing: {}", partitionId, shiftNumber, quarantineFile.openFilePath);
+			quarantineFile = null;
+		}
 		Iterator<Map.Entry<Long, OutputFile>> iter = outputFileMap.entrySet().iterator();
 		while (iter.hasNext()) {
 			Map.Entry<Long, OutputFile> entry = iter.next();
 			if (entry.getValue().shiftNumber == shiftNumber) {
+				startClose(entry.getValue());
+				startCloseStripes(entry.getKey());
+				LOG.info("[{}] Shift #{} file closing: {}  ({} files still open)",
+					 partitionId,
+					 shiftNumber,
+					 entry.getValue().openFilePath,
+					 outputFileMap.size() - 1);
+				iter.remove();
+			}
+		}
+	}
+
+	/**
+	 * @param shiftNumber
+	 * @return true once every close of this or an earlier shift has completed
+	 * @throws IOException if any of those closes failed
+	 */
+	public boolean closesComplete(long shiftNumber) throws IOException {
+		if (!pendingCloses.complete(shiftNumber)) {
+			return false;
+		}
+		writeManifests(shiftNumber);
+		recordHourManifests(shiftNumber);
+		applyColdStoragePolicies();
+		Iterator<Long> opened = openedFiles.values().iterator();
+		while (opened.hasNext()) {
+			if (opened.next() <= shiftNumber) {
+				opened.remove();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Records a file closed under the MANIFEST commit protocol, called from the closer pool
+	 */
+	private void committed(long shiftNumber, String dir, String filename) {
+		synchronized (manifestEntries) {
+			Map<String, List<String>> dirs = manifestEntries.get(shiftNumber);
+			if (dirs == null) {
+				dirs = new HashMap<>();
+				manifestEntries.put(shiftNumber, dirs);
+			}
+			List<String> filenames = dirs.get(dir);
+			if (filenames == null) {
+				filenames = new ArrayList<>();
+				dirs.put(dir, filenames);
+			}
+			filenames.add(filename);
+		}
+	}
+
+	/**
+	 * Writes one manifest per directory of the files committed by this and
+	 * earlier shifts, before the shift's offset can be stored
+	 */
+	private void writeManifests(long shiftNumber) throws IOException {
+		synchronized (manifestEntries) {
+			Iterator<Map.Entry<Long, Map<String, List<String>>>> iter = manifestEntries.entrySet().iterator();
+			while (iter.hasNext()) {
+				Map.Entry<Long, Map<String, List<String>>> entry = iter.next();
+				if (entry.getKey() > shiftNumber) {
+					continue;
+				}
+				for (Map.Entry<String, List<String>> dir : entry.getValue().entrySet()) {
+					Path manifest = BoomFileCommitProtocol.writeManifest(fileSystem,
+						 dir.getKey(),
+						 partitionId + "." + entry.getKey() + "." + System.currentTimeMillis(),
+						 config.getBoomFilePerms(),
+						 dir.getValue());
+					LOG.info("[{}] Shift #{} manifest of {} files written: {}",
+						 partitionId, entry.getKey(), dir.getValue().size(), manifest);
+				}
+				iter.remove();
+			}
+		}
+	}
+
+	/**
+	 * Keeps a file closed by a shift for the hour manifest, called from the
+	 * closer pool.  Shared files don't belong to a shift so they're recorded
+	 * right away.
+	 */
+	private void closedForHourManifest(long shiftNumber, long periodStart, String dir, HourManifest.Entry entry) throws IOException {
+		if (shiftNumber < 0) {
+			try {
+				config.getHourManifest().record(topic, periodStart, dir, topicConfig.getProxyUser(),
+					 partitionId + ".shared", Collections.singletonList(entry));
+			} catch (Exception e) {
+				throw new IOException(String.format("[%s] failed to record %s in the hour manifest",
+					 partitionId, entry.getPath()), e);
+			}
+			return;
+		}
+		synchronized (hourManifestEntries) {
+			Map<Long, Map<String, List<HourManifest.Entry>>> periods = hourManifestEntries.get(shiftNumber);
+			if (periods == null) {
+				periods = new HashMap<>();
+				hourManifestEntries.put(shiftNumber, periods);
+			}
+			Map<String, List<HourManifest.Entry>> dirs = periods.get(periodStart);
+			if (dirs == null) {
+				dirs = new HashMap<>();
+				periods.put(periodStart, dirs);
+			}
+			List<HourManifest.Entry> entries = dirs.get(dir);
+			if (entries == null) {
+				entries = new ArrayList<>();
+				dirs.put(dir, entries);
+			}
+			entries.add(entry);
+		}
+	}
+
+	/**
+	 * Records the files closed by this and earlier shifts in the hour manifest,
+	 * a batch per directory, before the shift's offset can be stored
+	 */
+	private void recordHourManifests(long shiftNumber) throws IOException {
+		synchronized (hourManifestEntries) {
+			Iterator<Map.Entry<Long, Map<Long, Map<String, List<HourManifest.Entry>>>>> iter
+				 = hourManifestEntries.entrySet().iterator();
+			while (iter.hasNext()) {
+				Map.Entry<Long, Map<Long, Map<String, List<HourManifest.Entry>>>> entry = iter.next();
+				if (entry.getKey() > shiftNumber) {
+					continue;
+				}
+				for (Map.Entry<Long, Map<String, List<HourManifest.Entry>>> period : entry.getValue().entrySet()) {
+					for (Map.Entry<String, List<HourManifest.Entry>> dir : period.getValue().entrySet()) {
+						try {
+							config.getHourManifest().record(topic, period.getKey(), dir.getKey(),
+								 topicConfig.getProxyUser(), partitionId + "." + entry.getKey(), dir.getValue());
+						} catch (Exception e) {
+							throw new IOException(String.format("[%s] failed to record shift #%d's files in %s in the hour manifest",
+								 partitionId, entry.getKey(), dir.getKey()), e);
+						}
+						LOG.info("[{}] Shift #{} recorded {} files in {} in the hour manifest",
+							 partitionId, entry.getKey(), dir.getValue().size(), dir.getKey());
+					}
+				}
+				iter.remove();
+			}
+		}
+	}
+
+	/**
+	 * Blocks until every close of this or an earlier shift has completed
+	 *
+	 * @param shiftNumber
+	 * @throws IOException if any of those closes failed
+	 * @throws InterruptedException
+	 */
+	public void awaitCloses(long shiftNumber) throws IOException, InterruptedException {
+		pendingCloses.await(shiftNumber);
+		// Reports (and keeps for abort) any failed close
+		closesComplete(shiftNumber);
+	}
+
+	private void startClose(final OutputFile outputFile) throws IOException {
+		Callable<Void> close = new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				final Timer.Context timerContext = boomFileCloseTimer.time();
 				try {
-					entry.getValue().close();
-					LOG.info("[{}] Shift #{} file closed: {}  ({} files still open",
-						 partitionId,
-						 shiftNumber,
-						 entry.getValue().openFilePath,
-						 outputFileMap.size());
-					iter.remove();
-				} catch (IOException | IllegalArgumentException e) {
-					LOG.error("Error closing output path {}", this, e);
-					throw e;
+					outputFile.close();
+				} finally {
+					timerContext.stop();
 				}
+				return null;
 			}
+
+		};
+
+		FutureTask<Void> future = new FutureTask<>(close);
+		ExecutorService executor = config.getCloserExecutor();
+		if (executor == null) {
+			future.run();
+			try {
+				future.get();
+			} catch (InterruptedException | ExecutionException e) {
+				LOG.error("[{}] Error closing output path {}", partitionId, outputFile.openFilePath, e);
+				throw new IOException(String.format("[%s] failed to close %s",
+					 partitionId, outputFile.openFilePath), e);
+			}
+			return;
 		}
+		// The pool is bounded and runs the close on this thread when it's full
+		executor.execute(future);
+		pendingCloses.add(outputFile.shiftNumber, outputFile, outputFile.openFilePath, future);
 	}
 
 	/**
@@ -154,6 +1151,14 @@ public class TimeBasedHdfsOutputPath {
 		this.worker = worker;
 	}
 
+	/**
+	 * @param sharedFiles false to keep this output path out of the node's
+	 * shared boom files (when they're enabled) and write only its own files
+	 */
+	public void setSharedFiles(boolean sharedFiles) {
+		this.sharedBoomFiles = sharedFiles ? config.getSharedBoomFiles() : null;
+	}
+
 	private String dateString(Long ts) {
 		SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm");
 		Date now = new Date();
@@ -161,29 +1166,232 @@ public class TimeBasedHdfsOutputPath {
 		return strDate;
 	}
 
+	private class HeldSharedFile {
+
+		private final long shiftNumber;
+		private final String key;
+		private final SharedBoomFile file;
+
+		private HeldSharedFile(long shiftNumber, String key, SharedBoomFile file) {
+			this.shiftNumber = shiftNumber;
+			this.key = key;
+			this.file = file;
+		}
+
+	}
+
+	/**
+	 * @param filename
+	 * @param segment 0 for the file itself
+	 * @return the name of the segment of the file, e.g. 3-1234_2.bm
+	 */
+	static String segmentFilename(String filename, int segment) {
+		if (segment == 0) {
+			return filename;
+		}
+		int extension = filename.lastIndexOf('.');
+		if (extension < 0) {
+			return filename + "_" + segment;
+		}
+		return filename.substring(0, extension) + "_" + segment + filename.substring(extension);
+	}
+
+	/**
+	 * @param filename
+	 * @param tmpPrefix the prefix of open files (under the HIDDEN and
+	 * TEMP_DIRECTORY commit protocols)
+	 * @param stripes true to also match the stripes of the file and its segments
+	 * @return a pattern matching the file and its numbered segments, open or
+	 * committed, with the segment number (if any) as group 1
+	 */
+	static Pattern segmentPattern(String filename, String tmpPrefix, boolean stripes) {
+		int extension = filename.lastIndexOf('.');
+		String stem = extension < 0 ? filename : filename.substring(0, extension);
+		String suffix = extension < 0 ? "" : filename.substring(extension);
+		return Pattern.compile("(?:" + Pattern.quote(tmpPrefix == null ? "" : tmpPrefix) + ")?"
+			 + Pattern.quote(stem) + "(?:_(\\d+))?" + (stripes ? "(?:_s\\d+)?" : "") + Pattern.quote(suffix));
+	}
+
+	/**
+	 * @param filename
+	 * @param tmpPrefix
+	 * @param names the names in the file's directory
+	 * @return the segment after the last one of the file found, open or
+	 * committed, never less than 1 as the file itself is segment 0
+	 */
+	static int nextSegment(String filename, String tmpPrefix, Iterable<String> names) {
+		Pattern pattern = segmentPattern(filename, tmpPrefix, false);
+		int last = 0;
+		for (String name : names) {
+			Matcher matcher = pattern.matcher(name);
+			if (matcher.matches() && matcher.group(1) != null) {
+				last = Math.max(last, Integer.parseInt(matcher.group(1)));
+			}
+		}
+		return last + 1;
+	}
+
+	/**
+	 * @return a glob that matches (at least) every name {@link #segmentPattern} does
+	 */
+	private static String segmentGlob(String filename) {
+		int extension = filename.lastIndexOf('.');
+		if (extension < 0) {
+			return "*" + filename + "*";
+		}
+		return "*" + filename.substring(0, extension) + "*" + filename.substring(extension);
+	}
+
+	/**
+	 * @param filename
+	 * @param stripe
+	 * @return the name of the stripe of the file, e.g. 3-1234_s2.bm
+	 */
+	static String stripeFilename(String filename, int stripe) {
+		int extension = filename.lastIndexOf('.');
+		if (extension < 0) {
+			return filename + "_s" + stripe;
+		}
+		return filename.substring(0, extension) + "_s" + stripe + filename.substring(extension);
+	}
+
+	/**
+	 * The extra files a period is striped across, each with its own HDFS
+	 * write pipeline.  Log blocks are still compressed on the worker's thread,
+	 * striping spreads the writes over more datanode pipelines, it doesn't add
+	 * CPU for compression
+	 */
+	private class Stripes {
+
+		private final long startTime;
+		// Stripe n (from 1) is outputFiles.get(n - 1)
+		private final List<OutputFile> outputFiles = new ArrayList<>();
+		private int current = 0;
+		// Stripes up to this one were closed by a shrink, their names are taken
+		private int closedTo = 0;
+
+		private Stripes(long startTime) {
+			this.startTime = startTime;
+		}
+
+		/**
+		 * Stays on the current stripe until the line would end its log block,
+		 * then moves on to the next stripe
+		 */
+		private FastBoomWriter getBoomWriter(OutputFile outputFile, long offset, long ts, int length) throws Exception {
+			FastBoomWriter boomWriter = stripe(outputFile, current).getBoomWriter();
+			if (!boomWriter.endsLogBlock(ts, length)) {
+				return boomWriter;
+			}
+			// Leave nothing buffered behind on a stripe that may sit idle
+			boomWriter.breakLogBlock();
+
+			current = (current + 1) % stripeSizer.getStripes();
+			if (current == 0) {
+				return outputFile.getBoomWriter();
+			}
+			while (outputFiles.size() < current) {
+				int stripe = outputFiles.size() + 1;
+				String filename = stripe <= closedTo ? partitionId + "-" + offset + ".bm" : outputFile.filename;
+				outputFiles.add(open(outputFile, filename, stripe));
+			}
+
+			OutputFile stripe = outputFiles.get(current - 1);
+			long maxBytes = config.getBoomFileMaxBlocks() * config.getRunningConfig().getBoomFileBlocksize();
+			if (maxBytes > 0 && stripe.getBoomWriter().getPosition() >= maxBytes) {
+				LOG.info("[{}] stripe {} reached {} bytes, rolling to a new file at offset {}",
+					 partitionId, stripe.openFilePath, stripe.getBoomWriter().getPosition(), offset);
+				startClose(stripe);
+				stripe = open(outputFile, partitionId + "-" + offset + ".bm", current);
+				outputFiles.set(current - 1, stripe);
+				sizeRolledBoomFilesTopic.mark();
+			}
+			return stripe.getBoomWriter();
+		}
+
+		/**
+		 * Closes the stripes beyond the given number of stripes, a stripe that
+		 * is closed part way through a log block flushes it as a short block
+		 */
+		private void shrink(int stripes) throws IOException {
+			if (outputFiles.size() > stripes - 1) {
+				closedTo = Math.max(closedTo, outputFiles.size());
+			}
+			while (outputFiles.size() > stripes - 1) {
+				OutputFile closing = outputFiles.remove(outputFiles.size() - 1);
+				startClose(closing);
+				LOG.info("[{}] Shift #{} stripe closing after shrinking to {} stripes: {}",
+					 partitionId, closing.shiftNumber, stripes, closing.openFilePath);
+			}
+			if (current >= stripes) {
+				current = 0;
+			}
+		}
+
+		private OutputFile stripe(OutputFile outputFile, int stripe) {
+			return stripe == 0 ? outputFile : outputFiles.get(stripe - 1);
+		}
+
+		private OutputFile open(OutputFile outputFile, String filename, int stripe) throws Exception {
+			OutputFile opened = new OutputFile(outputFile.shiftNumber, stripeFilename(filename, stripe), startTime);
+			boomFileStripesTopic.mark();
+			LOG.info("[{}] striping period {} across {} files: {}",
+				 partitionId, dateString(startTime), stripeSizer.getStripes(), opened.openFilePath);
+			return opened;
+		}
+
+	}
+
 	private class OutputFile {
 
 		private String dir;
-		private String openFileDirectory;
 		private String filename;
+		private final String baseFilename;
+		private final int segment;
 		private Path finalPath;
 		private Path openFilePath;
 		private FastBoomWriter boomWriter;
 		private HdfsDataOutputStream hdfsDataOut;
 		private long startTime;
-		private Boolean useTempOpenFileDir;
+		private final BoomFileCommitProtocol commitProtocol;
 		private long lastUsedTimestmap = System.currentTimeMillis();
-		private final long shiftNumber;
+		private final long createdTimestamp = System.currentTimeMillis();
+		private long shiftNumber;
 		private String dataDirectory;
 		private Meter skewedTsBoomFilesTotal;
 		private Meter skewedTsBoomFilesTopic;
 
 		public OutputFile(long shiftNumber, String filename, Long startTime) throws Exception {
+			this(shiftNumber, filename, startTime, false);
+		}
+
+		/**
+		 * @param quarantine when true the file is treated as skewed regardless of its start time
+		 */
+		public OutputFile(long shiftNumber, String filename, Long startTime, boolean quarantine) throws Exception {
+			this(shiftNumber, filename, startTime, quarantine, 0);
+		}
+
+		/**
+		 * @param segment the number of files of the same name already written
+		 * for the period, which are left as is, or -1 to continue the file
+		 * after the last of its segments found in HDFS (open or committed)
+		 */
+		public OutputFile(long shiftNumber, String filename, Long startTime, boolean quarantine, int segment) throws Exception {
+			this(shiftNumber, filename, startTime, quarantine, segment, false);
+		}
+
+		/**
+		 * @param preOpened when true the file is never treated as skewed, its
+		 * period starts in the future by design and it's only written once the
+		 * period has started
+		 */
+		public OutputFile(long shiftNumber, String filename, Long startTime, boolean quarantine, int segment, boolean preOpened) throws Exception {
 			this.shiftNumber = shiftNumber;
-			this.filename = filename;
+			this.baseFilename = filename;
 			this.startTime = startTime;
-			this.useTempOpenFileDir = config.getRunningConfig().getUseTempOpenFileDirectory();
-			this.dataDirectory = topicConfig.getDefaultDirectory();
+			this.commitProtocol = config.getBoomFileCommitProtocol();
+			this.dataDirectory = TimeBasedHdfsOutputPath.this.dataDirectory;
 
 			this.skewedTsBoomFilesTotal = MetricRegistrySingleton.getInstance().getMetricsRegistry()
 				 .meter("kaboom:total:skewed time boom files");
@@ -191,7 +1399,7 @@ public class TimeBasedHdfsOutputPath {
 			this.skewedTsBoomFilesTopic = MetricRegistrySingleton.getInstance().getMetricsRegistry()
 				 .meter("kaboom:partitions:" + partitionId + ":skewed time boom files");
 
-			if (skewed()) {
+			if (quarantine || (!preOpened && skewed())) {
 				if (config.getRunningConfig().getSkewedTsBoomFilenamePrefix() != null)
 					filename = config.getRunningConfig().getSkewedTsBoomFilenamePrefix()
 						 + filename;
@@ -206,22 +1414,23 @@ public class TimeBasedHdfsOutputPath {
 				skewedTsBoomFilesTopic.mark();
 			}
 
-			dir = Converter.timestampTemplateBuilder(startTime,
-				 String.format("%s/%s", topicConfig.getHdfsRootDir(), dataDirectory));
-			finalPath = new Path(dir + "/" + filename);
-			openFilePath = finalPath;
-
-			if (useTempOpenFileDir) {
-				openFileDirectory = dir;
-				openFileDirectory = String.format("%s/%s%s", dir, config.getRunningConfig().getBoomFileTmpPrefix(), this.filename);
-				openFilePath = new Path(openFileDirectory + "/" + filename);
+			dir = periodDir(startTime, dataDirectory);
+			if (segment < 0) {
+				segment = nextSegment(filename, config.getRunningConfig().getBoomFileTmpPrefix(), listSegments(filename));
 			}
+			this.segment = segment;
+			this.filename = segmentFilename(baseFilename, segment);
+			filename = segmentFilename(filename, segment);
+			finalPath = new Path(dir + "/" + filename);
+			openFilePath = commitProtocol.openPath(dir, filename, config.getRunningConfig().getBoomFileTmpPrefix());
 
 			try {
+				if (segment == 0 && !finalPath.equals(openFilePath) && fileSystem.exists(finalPath)) {
+					deleteStaleSegments();
+				}
 				if (fileSystem.exists(openFilePath)) {
 					long startWaitTime = System.currentTimeMillis();
-					DistributedFileSystem dfs = (DistributedFileSystem) fileSystem;
-					if (!dfs.isFileClosed(openFilePath)) {
+					if (!fileSystem.isFileClosed(openFilePath)) {
 						LOG.warn("[{}] open file: waiting up to {} seconds for file "
 							 + "to close checking every {} ms if still open file {}",
 							 partitionId,
@@ -229,8 +1438,11 @@ public class TimeBasedHdfsOutputPath {
 							 config.getRunningConfig().getNodeOpenFileWaittimeMs(),
 							 openFilePath);
 
+						if (config.isLeaseRecovery()) {
+							recoverLease(openFilePath);
+						}
 					}
-					while (!dfs.isFileClosed(openFilePath)) {
+					while (!fileSystem.isFileClosed(openFilePath)) {
 						if (System.currentTimeMillis() - startWaitTime
 							 > (config.getRunningConfig().getNodeOpenFileForceDeleteSeconds() * 1000))  {
 							LOG.warn("[{}] max wait time ({} seconds) elapsed for file close on {}",
@@ -248,22 +1460,48 @@ public class TimeBasedHdfsOutputPath {
 					LOG.info("[{}] removing file from HDFS because it already exists: {}",
 						 partitionId,
 						 openFilePath);
+
+					if (segment == 0) {
+						deleteStaleSegments();
+					}
 				}
 
-				hdfsDataOut = (HdfsDataOutputStream) fileSystem.create(
-					 openFilePath,
-					 config.getBoomFilePerms(),
-					 false,
-					 config.getRunningConfig().getBoomFileBufferSize(),
-					 config.getRunningConfig().getBoomFileReplicas(),
-					 config.getRunningConfig().getBoomFileBlocksize(),
-					 null);
+				if (config.getHdfsAdmissionController() != null) {
+					config.getHdfsAdmissionController().acquire(0, 1, worker);
+				}
+
+				long createStart = System.currentTimeMillis();
+
+				hdfsDataOut = create();
+
+				long periodEnd = startTime + config.getRunningConfig().getWorkerShiftDurationSeconds() * 1000;
+
+				if (storagePolicy != null && System.currentTimeMillis() < periodEnd) {
+					// A partition lagging into a finished period leaves its directory cold
+					applyStoragePolicy(dir, storagePolicy);
+					if (!commitProtocol.opensInPeriodDirectory()) {
+						// The blocks are allocated under the file's own temp directory
+						setStoragePolicy(openFilePath.getParent(), storagePolicy);
+					}
+				}
+
+				if (coldStoragePolicy != null) {
+					synchronized (coldPolicyDirs) {
+						coldPolicyDirs.put(dir, periodEnd);
+					}
+				}
+
+				if (config.getHdfsAdmissionController() != null) {
+					config.getHdfsAdmissionController().recordLatency(System.currentTimeMillis() - createStart);
+				}
 
 				boomWriter = new FastBoomWriter(
 					 hdfsDataOut,
 					 topic,
 					 partition,
-					 config);
+					 config,
+					 fileSystem);
+				boomWriter.setWorker(worker);
 
 				if (config.getRunningConfig().getUseNativeCompression()) {
 					boomWriter.loadNativeDeflateLib();
@@ -277,6 +1515,102 @@ public class TimeBasedHdfsOutputPath {
 			}
 		}
 
+		/**
+		 * @return the names of the files in the directory that may be segments
+		 * of the file (see {@link #segmentPattern})
+		 */
+		private List<String> listSegments(String name) throws IOException {
+			List<String> names = new ArrayList<>();
+			FileStatus[] statuses = fileSystem.globStatus(new Path(dir + "/" + segmentGlob(name)));
+			if (statuses != null) {
+				for (FileStatus status : statuses) {
+					names.add(status.getPath().getName());
+				}
+			}
+			return names;
+		}
+
+		/**
+		 * Only called for a file not yet opened in this attempt at the shift so
+		 * the file and all of its segments and stripes (open or committed) were
+		 * left behind by an earlier attempt whose offsets were never committed,
+		 * the lines in them are about to be written again
+		 */
+		private void deleteStaleSegments() throws IOException {
+			String name = finalPath.getName();
+			Pattern stale = segmentPattern(name, config.getRunningConfig().getBoomFileTmpPrefix(), true);
+			// The open file itself is left to the lease wait in the constructor
+			String openName = commitProtocol.opensInPeriodDirectory()
+				 ? openFilePath.getName()
+				 : openFilePath.getParent().getName();
+			FileStatus[] statuses = fileSystem.globStatus(new Path(dir + "/" + segmentGlob(name)));
+			if (statuses == null) {
+				return;
+			}
+			for (FileStatus status : statuses) {
+				String staleName = status.getPath().getName();
+				if (staleName.equals(openName) || !stale.matcher(staleName).matches()) {
+					continue;
+				}
+				fileSystem.delete(status.getPath(), status.isDirectory());
+				LOG.info("[{}] removing stale segment from HDFS: {}", partitionId, status.getPath());
+			}
+		}
+
+		/**
+		 * Creates the open file without asking the NameNode to create its parent
+		 * directories when they're already known to exist
+		 */
+		private HdfsDataOutputStream create() throws IOException {
+			if (favoredNodes != null) {
+				// There's no non-recursive create that takes favored nodes
+				return fileSystem.create(
+					 openFilePath,
+					 config.getBoomFilePerms(),
+					 false,
+					 config.getRunningConfig().getBoomFileBufferSize(),
+					 config.getRunningConfig().getBoomFileReplicas(),
+					 config.getRunningConfig().getBoomFileBlocksize(),
+					 favoredNodes);
+			}
+
+			HdfsDirectoryCache dirCache = commitProtocol.opensInPeriodDirectory() ? config.getHdfsDirectoryCache() : null;
+			String parentDir = null;
+
+			if (dirCache != null) {
+				parentDir = fileSystem.makeQualified(openFilePath.getParent()).toString();
+				if (dirCache.isKnown(parentDir)) {
+					try {
+						return fileSystem.createNonRecursive(
+							 openFilePath,
+							 config.getBoomFilePerms(),
+							 EnumSet.of(CreateFlag.CREATE),
+							 config.getRunningConfig().getBoomFileBufferSize(),
+							 config.getRunningConfig().getBoomFileReplicas(),
+							 config.getRunningConfig().getBoomFileBlocksize());
+					} catch (IOException ioe) {
+						dirCache.invalidate(parentDir);
+						LOG.warn("[{}] non-recursive create of {} failed, directory no longer trusted: {}",
+							 partitionId, openFilePath, ioe.getMessage());
+					}
+				}
+			}
+
+			HdfsDataOutputStream out = fileSystem.create(
+				 openFilePath,
+				 config.getBoomFilePerms(),
+				 false,
+				 config.getRunningConfig().getBoomFileBufferSize(),
+				 config.getRunningConfig().getBoomFileReplicas(),
+				 config.getRunningConfig().getBoomFileBlocksize());
+
+			if (dirCache != null) {
+				dirCache.markKnown(parentDir);
+			}
+
+			return out;
+		}
+
 		private boolean skewed() {
 			if (config.getRunningConfig().getSkewedTsSecondsFuture() != null) {
 				long futureThreshold = System.currentTimeMillis()
@@ -308,6 +1642,7 @@ public class TimeBasedHdfsOutputPath {
 		public void abort() {
 			LOG.info("Aborting output file: {}", openFilePath);
 
+			boomWriter.discardSpool();
 			try {
 				boomWriter.close();
 			} catch (IOException e) {
@@ -315,19 +1650,14 @@ public class TimeBasedHdfsOutputPath {
 			}
 
 			try {
-				hdfsDataOut.close();
+				fileSystem.close(hdfsDataOut);
 			} catch (IOException e) {
 				LOG.error("[{}] Error closing boom writer output file: {}", partitionId, openFilePath, e);
 			}
 
 			try {
-				if (useTempOpenFileDir) {
-					fileSystem.delete(new Path(openFileDirectory), true);
-					LOG.info("[{}] Deleted temp open file directory: {}", partitionId, openFileDirectory);
-				} else {
-					fileSystem.delete(openFilePath, true);
-					LOG.info("[{}] Deleted open file: {}", partitionId, openFilePath);
-				}
+				commitProtocol.abort(fileSystem, openFilePath);
+				LOG.info("[{}] Deleted open file: {}", partitionId, openFilePath);
 			} catch (IOException e) {
 				LOG.error("[{}] Error deleting open file: {}", partitionId, openFilePath, e);
 			}
@@ -336,22 +1666,104 @@ public class TimeBasedHdfsOutputPath {
 		public void close() throws IOException, IllegalArgumentException {
 			LOG.info("[{}] Closing {}", partitionId, openFilePath);
 			try {
+				if (config.getHdfsAdmissionController() != null) {
+					config.getHdfsAdmissionController().acquire(0, 1, worker);
+				}
+
+				long closeStart = System.currentTimeMillis();
+
 				boomWriter.close();
 				LOG.info("[{}] Boom writer closed for {}", partitionId, openFilePath);
 
+				// Already closed (and accounted for) by the boom writer, this is a no-op
 				hdfsDataOut.close();
 				LOG.info("[{}] Output stream closed for {}", partitionId, openFilePath);
 
-				if (useTempOpenFileDir) {
-					fileSystem.rename(openFilePath, finalPath);
+				if (!openFilePath.equals(finalPath)) {
+					commitProtocol.commit(fileSystem, openFilePath, finalPath);
 					LOG.info("[{}] moved {} to {}", partitionId, openFilePath, finalPath);
+				}
+
+				if (commitProtocol == BoomFileCommitProtocol.MANIFEST) {
+					if (shiftNumber < 0) {
+						// A shared file, the partitions waiting on its close need it listed now
+						BoomFileCommitProtocol.writeManifest(fileSystem, dir, finalPath.getName(),
+							 config.getBoomFilePerms(), Collections.singletonList(finalPath.getName()));
+					} else {
+						committed(shiftNumber, dir, finalPath.getName());
+					}
+				}
 
-					fileSystem.delete(new Path(openFileDirectory), true);
-					LOG.info("[{}] Deleted temp open file directory: {}", partitionId, openFileDirectory);
+				if (config.getHourManifest() != null) {
+					closedForHourManifest(shiftNumber, startTime, dir, new HourManifest.Entry(
+						 fileSystem.makeQualified(finalPath).toString(),
+						 boomWriter.getPosition(),
+						 boomWriter.getLinesWritten(),
+						 boomWriter.getFirstKafkaOffset(),
+						 boomWriter.getLastKafkaOffset()));
+				}
+
+				if (config.getHdfsAdmissionController() != null) {
+					config.getHdfsAdmissionController().recordLatency(System.currentTimeMillis() - closeStart);
+				}
+
+				writeIndex();
+				writeBloomFilters();
+
+				if (config.isDatanodeBytesMetrics()) {
+					reportDatanodeBytes(finalPath);
 				}
 			} catch (IOException ioe) {
 				LOG.error("[{}] Error closing up boomWriter {}:", partitionId, openFilePath, ioe);
 				throw ioe;
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted waiting on HDFS admission to close " + openFilePath);
+			}
+		}
+
+		/**
+		 * Writes the index of the closed file next to it, readers fall back to
+		 * scanning the file when there's no index so a failure doesn't fail the
+		 * close
+		 */
+		private void writeIndex() {
+			BoomFileIndex index = boomWriter.getIndex();
+			if (index == null) {
+				return;
+			}
+			Path indexPath = new Path(dir, BoomFileIndex.indexFilename(finalPath.getName()));
+			try {
+				HdfsDataOutputStream out = createSidecar(indexPath);
+				try {
+					index.write(out);
+				} finally {
+					fileSystem.close(out);
+				}
+			} catch (IOException ioe) {
+				LOG.warn("[{}] failed to write the index of {}: {}", partitionId, finalPath, ioe.getMessage());
+			}
+		}
+
+		/**
+		 * Writes the token bloom filters of the closed file next to it, as with
+		 * the index a failure doesn't fail the close
+		 */
+		private void writeBloomFilters() {
+			BlockBloomFilters.Builder bloomFilters = boomWriter.getBloomFilters();
+			if (bloomFilters == null) {
+				return;
+			}
+			Path bloomPath = new Path(dir, BlockBloomFilters.bloomFilename(finalPath.getName()));
+			try {
+				HdfsDataOutputStream out = createSidecar(bloomPath);
+				try {
+					bloomFilters.write(out);
+				} finally {
+					fileSystem.close(out);
+				}
+			} catch (IOException ioe) {
+				LOG.warn("[{}] failed to write the bloom filters of {}: {}", partitionId, finalPath, ioe.getMessage());
 			}
 		}
 
@@ -21,7 +21,11 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 
 import java.util.Date;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.zookeeper.CreateMode;
@@ -33,6 +37,7 @@ import com.blackberry.bdp.common.conversion.Converter;
 import com.blackberry.bdp.common.jmx.MetricRegistrySingleton;
 import com.blackberry.bdp.kaboom.exception.LockNotAcquiredException;
 import com.blackberry.bdp.krackle.consumer.Consumer;
+import com.blackberry.bdp.krackle.consumer.ConsumerConfiguration;
 
 import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Metric;
@@ -44,13 +49,22 @@ import org.apache.curator.framework.recipes.cache.NodeCache;
 import org.apache.curator.framework.recipes.cache.NodeCacheListener;
 import org.apache.zookeeper.data.Stat;
 
-public final class Worker extends AsyncAssignee implements Runnable {
+public final class Worker extends AsyncAssignee implements Runnable, WorkerScheduler.Schedulable {
 
 	private static final Logger LOG = LoggerFactory.getLogger(Worker.class);
 	protected static final Charset UTF8 = Charset.forName("UTF-8");
 
 	private String partitionId;
 	private Consumer consumer;
+	private volatile ConsumerConfiguration consumerConfiguration;
+	private AdaptiveFetchSizer fetchSizer;
+	private ParallelCatchUp catchUp;
+	private boolean offsetOverridden = false;
+	private WorkerScheduler scheduler;
+	private boolean scheduled = false;
+	private long quantumStart = 0;
+	// The last fetch came back empty, the next one waits on the broker without a slot
+	private boolean idle = false;
 	private long lowerOffsetsReceived = 0;
 	private long timestamp;
 	private String hostname;
@@ -60,11 +74,13 @@ public final class Worker extends AsyncAssignee implements Runnable {
 	private String zkPath;
 	private String zkPath_offSetTimestamp;
 	private String zkPath_offSetOverride;
+	private String zkPath_catchUp;
 
 	private boolean stopping = false;
 	private boolean aborting = false;
 	private Boolean pinged = false;
 	private Boolean pong = false;
+	private volatile Thread thread;
 
 	private String topic;
 	private int partition;
@@ -76,12 +92,17 @@ public final class Worker extends AsyncAssignee implements Runnable {
 	private String lagSecGaugeName;
 	private String msgWrittenGaugeName;
 	private String lowerOffsetsGaugeName;
+	private String fetchMaxBytesGaugeName;
+	private String fetchWaitMaxMsGaugeName;
+	private String fetchMinBytesGaugeName;
+	private String catchUpRangesGaugeName;
 	private Meter boomWritesMeter;
 	private Meter boomWritesMeterTopic;
 	private Meter boomWritesMeterTotal;
-	private Meter tsParseErrorsMeterTopic;
-	private Meter priParseErrorsMeterTopic;
 	private TimeBasedHdfsOutputPath hdfsOutputPath;
+	private final Map<String, TimeBasedHdfsOutputPath> routedOutputPaths = new HashMap<>();
+	private FilterSet filterSet;
+	private LiveTailRing liveTailRing;
 	private static Set<Worker> workers = new HashSet<>();
 	private static final Object workersLock = new Object();
 	private final Object zkLock = new Object();
@@ -217,16 +238,25 @@ public final class Worker extends AsyncAssignee implements Runnable {
 		this.zkRoot = config.getZkRootPathKaBoom();
 		this.topicConfig = KaBoomTopicConfig.get(KaBoomTopicConfig.class, config.getKaBoomCurator(), zkRoot + "/topics/" + topic);
 
-		this.tsParseErrorsMeterTopic = MetricRegistrySingleton.getInstance().getMetricsRegistry().meter("kaboom:topic:" + topic + ":timestamp parse errors");
-		this.priParseErrorsMeterTopic = MetricRegistrySingleton.getInstance().getMetricsRegistry().meter("kaboom:topic:" + topic + ":PRI parse errors");
 		this.boomWritesMeterTopic = MetricRegistrySingleton.getInstance().getMetricsRegistry().meter("kaboom:topic:" + topic + ":boom writes");
 		this.boomWritesMeterTotal = MetricRegistrySingleton.getInstance().getMetricsRegistry().meter("kaboom:total:boom writes");
 		this.boomWritesMeter = MetricRegistrySingleton.getInstance().getMetricsRegistry().meter("kaboom:partitions:" + partitionId + ":boom writes");
 		this.hdfsOutputPath = new TimeBasedHdfsOutputPath(config, topicConfig, partition);
+		this.filterSet = config.getTopicFilterSets().get(topic);
+		this.scheduler = config.getWorkerScheduler();
+		if (config.getLiveTailServer() != null) {
+			this.liveTailRing = new LiveTailRing(topic, partition,
+				 config.getLiveTailRingMb() * 1024L * 1024, config.getLiveTailRingMessages());
+		}
+
+		if (config.isZkSuspensionTolerant()) {
+			setSuspensionTolerance(config.getZkSessionTimeoutMs(), config.getZkLostRecoveryMs());
+		}
 
 		zkPath = String.format("%s/%s/%d", config.getZkRootPathTopicConfigs(), topic, partition);
 		zkPath_offSetTimestamp = zkPath + "/offset_timestamp";
 		zkPath_offSetOverride = zkPath + "/offset_override";
+		zkPath_catchUp = zkPath + "/catch_up";
 
 		LOG.info("[{}] worker instantiated with topic configuration version {}", partitionId, topicConfig.getVersion());
 
@@ -261,8 +291,13 @@ public final class Worker extends AsyncAssignee implements Runnable {
 		lagSecGaugeName = "kaboom:partitions:" + partitionId + ":message lag sec";
 		msgWrittenGaugeName = "kaboom:partitions:" + partitionId + ":messages written per second";
 		lowerOffsetsGaugeName = "kaboom:partitions:" + partitionId + ":early offsets received";
+		fetchMaxBytesGaugeName = "kaboom:partitions:" + partitionId + ":fetch max bytes";
+		fetchWaitMaxMsGaugeName = "kaboom:partitions:" + partitionId + ":fetch wait max ms";
+		fetchMinBytesGaugeName = "kaboom:partitions:" + partitionId + ":fetch min bytes";
+		catchUpRangesGaugeName = "kaboom:partitions:" + partitionId + ":catch up ranges outstanding";
 
-		String[] metrics_to_remove = {lagGaugeName, lagSecGaugeName, msgWrittenGaugeName, lowerOffsetsGaugeName};
+		String[] metrics_to_remove = {lagGaugeName, lagSecGaugeName, msgWrittenGaugeName, lowerOffsetsGaugeName,
+			fetchMaxBytesGaugeName, fetchWaitMaxMsGaugeName, fetchMinBytesGaugeName, catchUpRangesGaugeName};
 
 		for (final String metric_name : metrics_to_remove) {
 			if (MetricRegistrySingleton.getInstance().getMetricsRegistry()
@@ -315,6 +350,51 @@ public final class Worker extends AsyncAssignee implements Runnable {
 
 			 });
 
+		if (config.isAdaptiveFetch()) {
+			consumerConfiguration = config.newConsumerConfiguration();
+			fetchSizer = new AdaptiveFetchSizer(partitionId, config, consumerConfiguration);
+			fetchSizer.applyTo(consumerConfiguration);
+		} else {
+			consumerConfiguration = config.getConsumerConfiguration();
+		}
+
+		MetricRegistrySingleton.getInstance().getMetricsRegistry()
+			 .register(fetchMaxBytesGaugeName, new Gauge<Integer>() {
+				 @Override
+				 public Integer getValue() {
+					 return consumerConfiguration.getFetchMessageMaxBytes();
+				 }
+
+			 });
+
+		MetricRegistrySingleton.getInstance().getMetricsRegistry()
+			 .register(fetchWaitMaxMsGaugeName, new Gauge<Integer>() {
+				 @Override
+				 public Integer getValue() {
+					 return consumerConfiguration.getFetchWaitMaxMs();
+				 }
+
+			 });
+
+		MetricRegistrySingleton.getInstance().getMetricsRegistry()
+			 .register(fetchMinBytesGaugeName, new Gauge<Integer>() {
+				 @Override
+				 public Integer getValue() {
+					 return consumerConfiguration.getFetchMinBytes();
+				 }
+
+			 });
+
+		MetricRegistrySingleton.getInstance().getMetricsRegistry()
+			 .register(catchUpRangesGaugeName, new Gauge<Integer>() {
+				 @Override
+				 public Integer getValue() {
+					 ParallelCatchUp current = catchUp;
+					 return current == null ? 0 : current.getRangesOutstanding();
+				 }
+
+			 });
+
 		synchronized (workersLock) {
 			workers.add(this);
 		}
@@ -330,9 +410,19 @@ public final class Worker extends AsyncAssignee implements Runnable {
 
 	@Override
 	public void run() {
+		thread = Thread.currentThread();
 		try {
 			aquireAssignment();
 			this.hdfsOutputPath.setWorker(this);
+			this.hdfsOutputPath.recoverStaleLeases();
+			if (filterSet != null) {
+				for (int rule = 0; rule < filterSet.size(); rule++) {
+					if (filterSet.getAction(rule) == FilterSet.Action.ROUTE
+						 && !routedOutputPaths.containsKey(filterSet.getDataDirectory(rule))) {
+						routedOutputPath(filterSet.getDataDirectory(rule)).recoverStaleLeases();
+					}
+				}
+			}
 
 			try {
 				currentShift = new WorkerShift();
@@ -345,12 +435,26 @@ public final class Worker extends AsyncAssignee implements Runnable {
 				return;
 			}
 
-			consumer = new Consumer(config.getConsumerConfiguration(),
-				 "kaboom-" + hostname,
-				 getTopic(),
-				 getPartition(),
-				 currentShift.offset,
-				 MetricRegistrySingleton.getInstance().getMetricsRegistry());
+			if (config.isParallelCatchUp()) {
+				if (offsetOverridden) {
+					ParallelCatchUp.discard(curator, zkPath_catchUp);
+				} else {
+					catchUp = ParallelCatchUp.resume(config, topicConfig, this, curator, zkPath_catchUp);
+					if (catchUp != null) {
+						currentShift.offset = catchUp.getTailOffset();
+					}
+				}
+			}
+
+			consumer = newConsumer(currentShift.offset);
+
+			if (config.isParallelCatchUp() && catchUp == null) {
+				startCatchUp(consumer.getLatestOffset());
+			}
+
+			if (liveTailRing != null) {
+				config.getLiveTailServer().register(liveTailRing);
+			}
 
 			LOG.info("[{}] Created worker with topic config version {} starting at offset {}.",
 				 getPartitionId(),
@@ -359,11 +463,12 @@ public final class Worker extends AsyncAssignee implements Runnable {
 
 			byte[] bytes = new byte[1024 * 1024];
 			int length;
-			byte version;
 			int pos;
-			PriParser pri = new PriParser();
-			VersionParser ver = new VersionParser();
-			TimestampParser tsp = new TimestampParser();
+			MessageRouter router = new MessageRouter(config, getTopic(), partitionId);
+
+			if (scheduler != null) {
+				scheduler.register(this);
+			}
 
 			while (stopping == false && aborting == false) {
 				try {
@@ -372,26 +477,96 @@ public final class Worker extends AsyncAssignee implements Runnable {
 						pong = true;
 					}
 
+					checkConnection();
+
 					if (paused) {
+						if (scheduled) {
+							scheduler.release(this);
+							scheduled = false;
+						}
 						Thread.sleep(100);
 						continue;
 					}
 
-					if (currentShift.isOver()) {
+					if (scheduler != null) {
+						if (!scheduled) {
+							if (!idle) {
+								// Bounded so that we still answer pings while waiting on a slot
+								if (!scheduler.acquire(this, 1000)) {
+									continue;
+								}
+								scheduled = true;
+								quantumStart = System.currentTimeMillis();
+							}
+						} else {
+							if (System.currentTimeMillis() - quantumStart >= config.getSchedulerQuantumMs()) {
+								scheduler.release(this);
+								scheduled = false;
+								continue;
+							}
+						}
+					}
+
+					if (catchUp != null && catchUp.hasFailed()) {
+						throw new Exception("a parallel catch up range failed");
+					}
+
+					if (currentShift.isOver()
+						 && !(previousShift != null && !previousShift.isFinished()
+						 && (isZkSuspended() || previousShift.isClosing()))) {
 						previousShift = currentShift;
 						currentShift = new WorkerShift(previousShift);
+						if (config.isParallelCatchUp() && catchUp == null) {
+							startCatchUp(consumer.getHighWaterMark());
+						}
 					} else {
-						if (previousShift != null && previousShift.isTimeToFinish()) {
-							previousShift.finish(true);
-							previousShift = null;
+						// Offsets can't be committed while suspended so the shift is finished on reconnect
+						if (previousShift != null && !isZkSuspended()) {
+							if (previousShift.isClosing()) {
+								if (previousShift.isClosed()) {
+									previousShift.commit(true);
+									previousShift = null;
+								}
+							} else {
+								if (previousShift.isTimeToFinish()) {
+									previousShift.startFinish();
+								}
+							}
 						}
 					}
 
+					hdfsOutputPath.preOpenPoll(currentShift.offset, lag_sec * 1000L);
+
+					if (fetchSizer != null && fetchSizer.adjust(lag)) {
+						// A consumer fetches with the configuration it was built with
+						ConsumerConfiguration adjusted = config.newConsumerConfiguration();
+						fetchSizer.applyTo(adjusted);
+						consumerConfiguration = adjusted;
+						consumer = newConsumer(consumer.getNextOffset());
+					}
+
 					length = consumer.getMessage(bytes, 0, bytes.length);
 					if (length == -1) {
+						if (fetchSizer != null) {
+							fetchSizer.emptyFetch();
+						}
+						if (scheduled) {
+							// Idle workers shouldn't hold on to a slot
+							scheduler.release(this);
+							scheduled = false;
+						}
+						idle = true;
 						continue;
 					}
 
+					if (idle) {
+						idle = false;
+						if (scheduler != null) {
+							// Fetched without a slot, the message is written with one
+							acquireSlot();
+						}
+					}
+
 					/**
 					 * offset always refers to the next offset we expect and since we just
 					 * called consumer.getMessage() let's see if the offset of the last message
@@ -454,68 +629,15 @@ public final class Worker extends AsyncAssignee implements Runnable {
 					currentShift.offset = consumer.getNextOffset();
 					lag = consumer.getHighWaterMark() - currentShift.offset;
 
-					// (byte) 0xFE: -2
-					// (byte) 0x00: 0
-					// (byte) 0xFF: -1
-					// Check for version
-					if (bytes[0] == (byte) 0xFE) {
-						version = bytes[1];
-						if (version == (byte) 0x00) {
-							// Version 0 has a timestamp in the front, so we can skip that for now. Come back if we need it.
-							pos = 10;
-						} else {
-							LOG.warn("[{}] Unrecognized encoding version: {}", getPartitionId(), version);
-							pos = 0;
-						}
-					} else {
-						// version -1 is a raw log
-						version = (byte) 0xFF;
-						pos = 0;
-					}
-
-					// Optional PRI at the start of the line.
-					try {
-						if (pri.parsePri(bytes, pos, length)) {
-							pos += pri.getPriLength();
-						}
-					} catch (Exception e) {
-						priParseErrorsMeterTopic.mark();
-					}
-
-					// On the off chance that someone is following RFC5424 and has
-					// inserted a version in the log line.
-					if (ver.parseVersion(bytes, pos, length - pos)) {
-						// Skip the length of the version and the following space.
-						pos += ver.getVersionLength() + 1;
+					if (fetchSizer != null) {
+						fetchSizer.messageConsumed(length);
 					}
 
-					tsp.parse(bytes, pos, length - pos);
-
-					if (tsp.getError() == TimestampParser.NO_ERROR) {
-						timestamp = tsp.getTimestamp();
-						// Move position to the end of the timestamp
-						pos += tsp.getLength();
-						/**
-						 * mbruce: occasionally we get a line that is truncated partway through the timestamp, however we still have the rest of the last message in the byte buffer and parsing the timestamp will push us past then end of the line
-						 */
-						if (pos > length) {
-							LOG.error("Error: parsing timestamp has went beyond length of the message");
-							continue;
-						}
-						// If the next char is a space, skip that too.
-						if (pos < length && bytes[pos] == ' ') {
-							pos++;
-						}
-					} else {
-						if (version == (byte) 0x00) {
-							LOG.debug("[{}] Failed to parse timestamp.  Using stored timestamp", getPartitionId());
-							timestamp = Converter.longFromBytes(bytes, 2);
-						} else {
-							LOG.debug("[{}] Error parsing timestamp.", getPartitionId());
-							tsParseErrorsMeterTopic.mark();
-							timestamp = System.currentTimeMillis();
-						}
+					if (!router.parse(bytes, length)) {
+						continue;
 					}
+					timestamp = router.getTimestamp();
+					pos = router.getPos();
 
 					lag_sec = (int) (System.currentTimeMillis() - timestamp) / 1000;
 
@@ -523,15 +645,23 @@ public final class Worker extends AsyncAssignee implements Runnable {
 						lag_sec = 0;
 					}
 
-					if ((length - pos) < 0) {
-						LOG.info("[{}] Skipping offset as length - Offset is < 0: timestamp: {}, pos: {}, length: {}", getPartitionId(), timestamp, pos, length);
+					if (!router.route(bytes, length)) {
 						continue;
 					}
 
-					hdfsOutputPath.getBoomWriter(
+					TimeBasedHdfsOutputPath outputPath = router.getDataDirectory() == null
+						 ? hdfsOutputPath : routedOutputPath(router.getDataDirectory());
+
+					outputPath.writeLine(
 						 currentShift.shiftNumber,
+						 consumer.getLastOffset(),
 						 timestamp,
-						 partitionId + "-" + currentShift.offset + ".bm").writeLine(timestamp, bytes, pos, length - pos);
+						 partitionId + "-" + currentShift.offset + ".bm",
+						 bytes, pos, length - pos);
+
+					if (liveTailRing != null) {
+						liveTailRing.append(consumer.getLastOffset(), timestamp, bytes, pos, length - pos);
+					}
 
 					boomWritesMeter.mark();
 					boomWritesMeterTopic.mark();
@@ -551,6 +681,13 @@ public final class Worker extends AsyncAssignee implements Runnable {
 		} catch (Exception e) {
 			LOG.error("[{}] An exception occured while setting up this worker thread", getPartitionId(), e);
 		} finally {
+			if (scheduler != null) {
+				scheduler.unregister(this);
+				scheduled = false;
+			}
+			if (liveTailRing != null) {
+				config.getLiveTailServer().unregister(liveTailRing);
+			}
 			try {
 				nodeCache.close();
 				LOG.info("[{}] closed off the node cache listener", partitionId);
@@ -573,6 +710,10 @@ public final class Worker extends AsyncAssignee implements Runnable {
 		MetricRegistrySingleton.getInstance().getMetricsRegistry().remove(lagGaugeName);
 		MetricRegistrySingleton.getInstance().getMetricsRegistry().remove(lagSecGaugeName);
 		MetricRegistrySingleton.getInstance().getMetricsRegistry().remove(msgWrittenGaugeName);
+		MetricRegistrySingleton.getInstance().getMetricsRegistry().remove(fetchMaxBytesGaugeName);
+		MetricRegistrySingleton.getInstance().getMetricsRegistry().remove(fetchWaitMaxMsGaugeName);
+		MetricRegistrySingleton.getInstance().getMetricsRegistry().remove(fetchMinBytesGaugeName);
+		MetricRegistrySingleton.getInstance().getMetricsRegistry().remove(catchUpRangesGaugeName);
 
 		LOG.info("[{}] Shutting down (abortting: {}) on shift number {} with offset={} and timestamp={} ({})",
 			 partitionId, isAborting(),
@@ -582,20 +723,102 @@ public final class Worker extends AsyncAssignee implements Runnable {
 			 dateString(currentShift.maxMessageTimestamp));
 
 		try {
+			if (!isAborting() && isZkSuspended()) {
+				// The lease may have been lost, the next owner consumes the shift again
+				LOG.warn("[{}] stopping while ZK is suspended, aborting the shift as its offset can't be committed",
+					 partitionId);
+				abort();
+			}
 			if (isAborting()) {
-				hdfsOutputPath.abortAll();
+				if (catchUp != null) {
+					catchUp.abort();
+				}
+				for (TimeBasedHdfsOutputPath outputPath : outputPaths()) {
+					outputPath.abortAll();
+				}
 				LOG.info("[{}] all HDFS output paths have been aborted", partitionId);
 			} else {
+				if (catchUp != null) {
+					catchUp.stop();
+				}
 				if (previousShift != null && !previousShift.isFinished()) {
 					previousShift.finish();
 				}
 				currentShift.finish(true);
+				for (TimeBasedHdfsOutputPath outputPath : outputPaths()) {
+					outputPath.discardAllPreOpened();
+				}
 			}
 		} catch (Exception e) {
 			LOG.error("[{}] Exception raised during shutdown: ", partitionId, e);
 		}
 	}
 
+	/**
+	 * @param dataDirectory
+	 * @return the output path for messages a filter rule routes to the data directory
+	 */
+	private TimeBasedHdfsOutputPath routedOutputPath(String dataDirectory) throws Exception {
+		TimeBasedHdfsOutputPath outputPath = routedOutputPaths.get(dataDirectory);
+		if (outputPath == null) {
+			outputPath = new TimeBasedHdfsOutputPath(config, topicConfig, partition, dataDirectory);
+			outputPath.setWorker(this);
+			routedOutputPaths.put(dataDirectory, outputPath);
+			LOG.info("[{}] routing filtered messages to data directory {}", partitionId, dataDirectory);
+		}
+		return outputPath;
+	}
+
+	/**
+	 * @return the default output path followed by the routed ones
+	 */
+	private List<TimeBasedHdfsOutputPath> outputPaths() {
+		List<TimeBasedHdfsOutputPath> outputPaths = new ArrayList<>();
+		outputPaths.add(hdfsOutputPath);
+		outputPaths.addAll(routedOutputPaths.values());
+		return outputPaths;
+	}
+
+	private Consumer newConsumer(long offset) throws Exception {
+		return new Consumer(consumerConfiguration,
+			 "kaboom-" + hostname,
+			 getTopic(),
+			 getPartition(),
+			 offset,
+			 MetricRegistrySingleton.getInstance().getMetricsRegistry());
+	}
+
+	/**
+	 * Hands the backlog between the current offset and the high watermark to a
+	 * parallel catch up when it's large enough and jumps to the high watermark
+	 */
+	private void startCatchUp(long highWatermark) throws Exception {
+		catchUp = ParallelCatchUp.start(config, topicConfig, this, curator, zkPath_catchUp,
+			 currentShift.offset, highWatermark);
+		if (catchUp != null) {
+			consumer.setNextOffset(highWatermark);
+			currentShift.offset = highWatermark;
+			LOG.info("[{}] now following the head from offset {} while catching up", partitionId, highWatermark);
+		}
+	}
+
+	/**
+	 * Waits on a slot with a message already in hand, the message can't be
+	 * dropped so this only gives up when the worker is stopping
+	 */
+	private void acquireSlot() throws InterruptedException {
+		while (!scheduler.acquire(this, 1000)) {
+			if (pinged) {
+				pong = true;
+			}
+			if (stopping || aborting) {
+				return;
+			}
+		}
+		scheduled = true;
+		quantumStart = System.currentTimeMillis();
+	}
+
 	/**
 	 * @return the zkLock
 	 */
@@ -611,6 +834,7 @@ public final class Worker extends AsyncAssignee implements Runnable {
 		private long maxMessageTimestamp;
 		private final long shiftNumber;
 		private boolean finished;
+		private boolean closing = false;
 
 		public WorkerShift() throws Exception {
 			this(null);
@@ -657,12 +881,68 @@ public final class Worker extends AsyncAssignee implements Runnable {
 		 @param persistMetadata whether to persist the partition metadata to ZK
 		 */
 		private void finish(boolean persistMetadata) throws Exception {
+			if (!closing) {
+				startFinish();
+			}
+			for (TimeBasedHdfsOutputPath outputPath : outputPaths()) {
+				outputPath.awaitCloses(shiftNumber);
+			}
+			commit(persistMetadata);
+		}
+
+		/**
+		 * Hands the shift's files to the closer pool, commit() once isClosed()
+		 */
+		private void startFinish() throws Exception {
+			LOG.info("[{}] Shift ending at {} is closing", partitionId, dateString(shiftEnd));
+			for (TimeBasedHdfsOutputPath outputPath : outputPaths()) {
+				outputPath.startCloseOffShift(shiftNumber);
+			}
+			closing = true;
+		}
+
+		private boolean isClosing() {
+			return closing;
+		}
+
+		/**
+		 * @return true once every file of the shift has been closed
+		 * @throws IOException if any of them failed to close
+		 */
+		private boolean isClosed() throws IOException {
+			for (TimeBasedHdfsOutputPath outputPath : outputPaths()) {
+				if (!outputPath.closesComplete(shiftNumber)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 @param persistMetadata whether to persist the partition metadata to ZK
+		 */
+		private void commit(boolean persistMetadata) throws Exception {
 			LOG.info("[{}] Shift ending at {} is finished", partitionId, dateString(shiftEnd));
-			hdfsOutputPath.closeOffShift(shiftNumber);
 			if (persistMetadata) {
 				synchronized(zkLock) {
-					storeOffset();
-					storeOffsetTimestamp();
+					if (catchUp == null) {
+						storeOffset(offset);
+						storeOffsetTimestamp();
+					} else {
+						if (catchUp.isComplete() && offset >= catchUp.getTailOffset()) {
+							storeOffset(offset);
+							storeOffsetTimestamp();
+							catchUp.discard();
+							catchUp = null;
+							LOG.info("[{}] parallel catch up complete", partitionId);
+						} else {
+							// Never move the offset past a range that hasn't been closed off,
+							// the tail's own progress is kept with the ranges instead
+							catchUp.setTailOffset(offset);
+							storeOffset(Math.min(offset, catchUp.getCommittableOffset()));
+							catchUp.store();
+						}
+					}
 				}
 			}
 			finished = true;
@@ -719,15 +999,15 @@ public final class Worker extends AsyncAssignee implements Runnable {
 				 dateString(zkTimestamp));
 		}
 
-		private void storeOffset() throws Exception {
+		private void storeOffset(long offsetToStore) throws Exception {
 			if (curator.checkExists().forPath(zkPath) == null) {
 				curator.create().creatingParentsIfNeeded()
-					 .withMode(CreateMode.PERSISTENT).forPath(zkPath, Converter.getBytes(offset));
+					 .withMode(CreateMode.PERSISTENT).forPath(zkPath, Converter.getBytes(offsetToStore));
 			} else {
-				curator.setData().forPath(zkPath, Converter.getBytes(offset));
+				curator.setData().forPath(zkPath, Converter.getBytes(offsetToStore));
 			}
 			LOG.info("[{}] Shift #{} wrote offset {} to existing path {}",
-				 partitionId, shiftNumber, offset, zkPath);
+				 partitionId, shiftNumber, offsetToStore, zkPath);
 		}
 
 		private Long getStoredOffsetFromZk() throws Exception {
@@ -745,6 +1025,7 @@ public final class Worker extends AsyncAssignee implements Runnable {
 							 partitionId, zkOffset, zkOffsetOverride, config.getRunningConfig().getAllowOffsetOverrides());
 						curator.delete().forPath(zkPath_offSetOverride);
 						LOG.info("{} successfully deleted offset override ZK path: {}", partitionId, zkPath_offSetOverride);
+						offsetOverridden = true;
 						return zkOffsetOverride;
 					} else {
 						LOG.warn("{} : offset in ZK is {} and an override of {} exists however allowOffsetOverride={}",
@@ -818,4 +1099,11 @@ public final class Worker extends AsyncAssignee implements Runnable {
 	public void setPong(Boolean val) {
 		this.pong = val;
 	}
+
+	/**
+	 * @return true when called from the thread running the worker
+	 */
+	public boolean isWorkerThread() {
+		return Thread.currentThread() == thread;
+	}
 }
@@ -0,0 +1,343 @@
+/*
+ * Copyright 2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bdp.kaboom;
+
+import com.blackberry.bdp.common.jmx.MetricRegistrySingleton;
+import com.codahale.metrics.Gauge;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shares a fixed number of processing slots between all the workers on a node.
+ *
+ * Workers hold a slot for a quantum and then give it back.  When more workers
+ * want a slot than there are slots the waiting worker with the highest score
+ * is granted the next free one, where the score is:
+ *
+ * weight(priority class) * (1 + lag_sec / lagScaleSec) * (1 + waitedMs / agingMs)
+ *
+ * so critical topics and lagging partitions are preferred during contention,
+ * and the longer any worker waits the more likely it is to be chosen which
+ * prevents a topic from being starved entirely.
+ *
+ * A worker holds its slot through its Kafka fetches and HDFS writes as well
+ * as parsing, so the slots bound the I/O of busy workers along with their
+ * CPU.  A worker whose last fetch came back empty waits on the broker without
+ * a slot and only takes one once a message arrives.
+ */
+public class WorkerScheduler {
+
+	private static final Logger LOG = LoggerFactory.getLogger(WorkerScheduler.class);
+
+	private final int slots;
+	private final long lagScaleSec;
+	private final long agingMs;
+	private final long shareWindowMs;
+	private final Map<String, Integer> classWeights;
+	private final Map<String, String> topicClasses;
+	private final String defaultClass;
+
+	private final Object lock = new Object();
+	private final List<Waiter> waiters = new ArrayList<>();
+	private final Map<Schedulable, Long> running = new HashMap<>();
+	private final Map<String, Long> heldMsThisWindow = new HashMap<>();
+	private final Map<String, Integer> cpuSharePercent = new HashMap<>();
+	private final Map<Schedulable, String> registered = new HashMap<>();
+	private long windowStart = System.currentTimeMillis();
+
+	public WorkerScheduler(int slots,
+		 long lagScaleSec,
+		 long agingMs,
+		 long shareWindowMs,
+		 LinkedHashMap<String, Integer> classWeights,
+		 Map<String, String> topicClasses,
+		 String defaultClass) {
+		this.slots = Math.max(1, slots);
+		this.lagScaleSec = Math.max(1, lagScaleSec);
+		this.agingMs = Math.max(1, agingMs);
+		this.shareWindowMs = shareWindowMs;
+		this.classWeights = classWeights;
+		this.topicClasses = topicClasses;
+		this.defaultClass = classWeights.containsKey(defaultClass)
+			 ? defaultClass : classWeights.keySet().iterator().next();
+
+		for (final String priorityClass : classWeights.keySet()) {
+			heldMsThisWindow.put(priorityClass, 0L);
+			cpuSharePercent.put(priorityClass, 0);
+
+			// A scheduler created in place of an earlier one takes over its gauges
+			MetricRegistrySingleton.getInstance().getMetricsRegistry()
+				 .remove("kaboom:priority:" + priorityClass + ":cpu share percent");
+			MetricRegistrySingleton.getInstance().getMetricsRegistry()
+				 .remove("kaboom:priority:" + priorityClass + ":max message lag sec");
+
+			MetricRegistrySingleton.getInstance().getMetricsRegistry()
+				 .register("kaboom:priority:" + priorityClass + ":cpu share percent", new Gauge<Integer>() {
+					 @Override
+					 public Integer getValue() {
+						 synchronized (lock) {
+							 return cpuSharePercent.get(priorityClass);
+						 }
+					 }
+
+				 });
+
+			MetricRegistrySingleton.getInstance().getMetricsRegistry()
+				 .register("kaboom:priority:" + priorityClass + ":max message lag sec", new Gauge<Integer>() {
+					 @Override
+					 public Integer getValue() {
+						 int maxLagSec = 0;
+						 synchronized (lock) {
+							 for (Map.Entry<Schedulable, String> entry : registered.entrySet()) {
+								 if (entry.getValue().equals(priorityClass)) {
+									 maxLagSec = Math.max(maxLagSec, entry.getKey().getLagSec());
+								 }
+							 }
+						 }
+						 return maxLagSec;
+					 }
+
+				 });
+		}
+
+		LOG.info("worker scheduler created with {} slots and priority classes {}", this.slots, classWeights);
+	}
+
+	public WorkerScheduler(StartupConfig config) {
+		this(config.getSchedulerSlots(),
+			 config.getSchedulerLagScaleSec(),
+			 config.getSchedulerAgingMs(),
+			 config.getSchedulerShareWindowMs(),
+			 config.getSchedulerClassWeights(),
+			 config.getTopicPriorityClasses(),
+			 config.getSchedulerDefaultClass());
+	}
+
+	public String priorityClassOf(String topic) {
+		String priorityClass = topicClasses.get(topic);
+		if (priorityClass == null || !classWeights.containsKey(priorityClass)) {
+			return defaultClass;
+		}
+		return priorityClass;
+	}
+
+	public void register(Schedulable worker) {
+		synchronized (lock) {
+			registered.put(worker, priorityClassOf(worker.getTopic()));
+		}
+	}
+
+	public void unregister(Schedulable worker) {
+		synchronized (lock) {
+			Iterator<Waiter> iter = waiters.iterator();
+			while (iter.hasNext()) {
+				if (iter.next().worker == worker) {
+					iter.remove();
+				}
+			}
+			release(worker);
+			registered.remove(worker);
+		}
+	}
+
+	/**
+	 * Waits up to maxWaitMs for a processing slot
+	 *
+	 * @param worker
+	 * @param maxWaitMs
+	 * @return true if the worker now holds a slot
+	 * @throws InterruptedException if interrupted while waiting, the worker
+	 * holds no slot and is no longer waiting for one
+	 */
+	public boolean acquire(Schedulable worker, long maxWaitMs) throws InterruptedException {
+		long start = System.currentTimeMillis();
+		synchronized (lock) {
+			if (running.containsKey(worker)) {
+				return true;
+			}
+
+			if (running.size() < slots && waiters.isEmpty()) {
+				running.put(worker, start);
+				return true;
+			}
+
+			Waiter waiter = new Waiter(worker, start);
+			waiters.add(waiter);
+			grantFreeSlots();
+
+			boolean interrupted = true;
+			try {
+				long remaining = maxWaitMs;
+				while (!waiter.granted && remaining > 0) {
+					lock.wait(remaining);
+					remaining = maxWaitMs - (System.currentTimeMillis() - start);
+				}
+				interrupted = false;
+				return waiter.granted;
+			} finally {
+				if (!waiter.granted) {
+					waiters.remove(waiter);
+				} else if (interrupted) {
+					// Granted just as the worker was interrupted, it won't use the slot
+					release(worker);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gives back the worker's slot (if it holds one) to the next waiting worker
+	 *
+	 * @param worker
+	 */
+	public void release(Schedulable worker) {
+		long now = System.currentTimeMillis();
+		synchronized (lock) {
+			Long since = running.remove(worker);
+			if (since == null) {
+				return;
+			}
+
+			String priorityClass = registered.get(worker);
+			if (priorityClass == null) {
+				priorityClass = priorityClassOf(worker.getTopic());
+			}
+			heldMsThisWindow.put(priorityClass, heldMsThisWindow.get(priorityClass) + (now - since));
+
+			if (now - windowStart >= shareWindowMs) {
+				long totalHeldMs = 0;
+				for (long heldMs : heldMsThisWindow.values()) {
+					totalHeldMs += heldMs;
+				}
+				for (Map.Entry<String, Long> entry : heldMsThisWindow.entrySet()) {
+					cpuSharePercent.put(entry.getKey(),
+						 totalHeldMs == 0 ? 0 : (int) (100 * entry.getValue() / totalHeldMs));
+					entry.setValue(0L);
+				}
+				windowStart = now;
+			}
+
+			grantFreeSlots();
+		}
+	}
+
+	private void grantFreeSlots() {
+		long now = System.currentTimeMillis();
+		boolean granted = false;
+
+		while (running.size() < slots && !waiters.isEmpty()) {
+			Waiter best = null;
+			double bestScore = -1;
+			for (Waiter waiter : waiters) {
+				double score = score(waiter, now);
+				if (score > bestScore) {
+					bestScore = score;
+					best = waiter;
+				}
+			}
+			waiters.remove(best);
+			best.granted = true;
+			running.put(best.worker, now);
+			granted = true;
+		}
+
+		if (granted) {
+			lock.notifyAll();
+		}
+	}
+
+	private double score(Waiter waiter, long now) {
+		return score(waiter.worker, waiter.since, now);
+	}
+
+	double score(Schedulable worker, long since, long now) {
+		String priorityClass = registered.get(worker);
+		if (priorityClass == null) {
+			priorityClass = priorityClassOf(worker.getTopic());
+		}
+		return classWeights.get(priorityClass)
+			 * (1.0 + (double) worker.getLagSec() / lagScaleSec)
+			 * (1.0 + (double) (now - since) / agingMs);
+	}
+
+	/**
+	 * @return how many workers are waiting for a slot
+	 */
+	int getWaiting() {
+		synchronized (lock) {
+			return waiters.size();
+		}
+	}
+
+	/**
+	 * @param worker
+	 * @return true if the worker holds a slot
+	 */
+	boolean holds(Schedulable worker) {
+		synchronized (lock) {
+			return running.containsKey(worker);
+		}
+	}
+
+	/**
+	 * Parses priority class weights in the form name:weight,name:weight
+	 *
+	 * @param spec
+	 * @return the weights keyed by class name, in the order given
+	 */
+	public static LinkedHashMap<String, Integer> parseClassWeights(String spec) {
+		LinkedHashMap<String, Integer> weights = new LinkedHashMap<>();
+		for (String classAndWeight : spec.split(",")) {
+			String[] parts = classAndWeight.trim().split(":");
+			if (parts.length != 2) {
+				throw new IllegalArgumentException("invalid priority class weight: " + classAndWeight);
+			}
+			weights.put(parts[0].trim(), Math.max(1, Integer.parseInt(parts[1].trim())));
+		}
+		return weights;
+	}
+
+	/**
+	 * What the scheduler needs to know of a worker
+	 */
+	public interface Schedulable {
+
+		public String getTopic();
+
+		public int getLagSec();
+
+	}
+
+	private static class Waiter {
+
+		private final Schedulable worker;
+		private final long since;
+		private boolean granted = false;
+
+		private Waiter(Schedulable worker, long since) {
+			this.worker = worker;
+			this.since = since;
+		}
+
+	}
+
+}
@@ -11,6 +11,7 @@ package com.blackberry.bdp.simplekaboom;
 
 import com.blackberry.bdp.kaboom.Authenticator;
 import com.blackberry.bdp.kaboom.FastBoomWriter;
+import com.blackberry.bdp.kaboom.InstrumentedFileSystem;
 import com.blackberry.bdp.kaboom.StartupConfig;
 import com.blackberry.bdp.kaboom.api.RunningConfig;
 import java.io.IOException;
@@ -40,6 +41,7 @@ public class SimpleKaBoom {
 	private StartupConfig startupConfig;
 	private RunningConfig runningConfig;
 	FileSystem fs;
+	InstrumentedFileSystem instrumentedFs;
 	HdfsDataOutputStream hdfsDataOut;
 	FastBoomWriter boomWriter;
 
@@ -159,23 +161,24 @@ public class SimpleKaBoom {
 				LOG.error("Cannot proceed without a file system");
 				return;
 			}			
-			if (fs.exists(new Path(boomFile))) {
-				fs.delete(new Path(boomFile), true);
+			instrumentedFs = new InstrumentedFileSystem(fs, topic, startupConfig);
+			if (instrumentedFs.exists(new Path(boomFile))) {
+				instrumentedFs.delete(new Path(boomFile), true);
 				LOG.info("Deleted {} as it already exists", boomFile);
 			}
-			hdfsDataOut = (HdfsDataOutputStream) fs.create(
+			hdfsDataOut = instrumentedFs.create(
 				 new Path(boomFile),
 				 startupConfig.getBoomFilePerms(),
 				 false,
 				 runningConfig.getBoomFileBufferSize(),
 				 runningConfig.getBoomFileReplicas(),
-				 runningConfig.getBoomFileBlocksize(),
-				 null);			
+				 runningConfig.getBoomFileBlocksize());
 			boomWriter = new FastBoomWriter(
 				 hdfsDataOut,
 				 topic,
 				 partition,
-				 startupConfig);			
+				 startupConfig,
+				 instrumentedFs);
 			boomWriter.setPeriodicHdfsFlushInterval(runningConfig.getPeriodicHdfsFlushInterval());
 			boomWriter.setUseNativeCompression(runningConfig.getUseNativeCompression());
 			worker = new SimpleWorker(startupConfig, topic, partition, startOffset, endOffset, boomWriter);
@@ -190,7 +193,7 @@ public class SimpleKaBoom {
 		} catch (Exception e) {
 			LOG.error("There was an error while the simple worker was running, deleting all output files");
 			hdfsDataOut.close();
-			fs.delete(new Path(boomFile), true);
+			instrumentedFs.delete(new Path(boomFile), true);
 			LOG.info("Deleted {}", boomFile);
 		}
 	}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bdp.cli;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.apache.avro.Schema;
+import org.apache.avro.file.CodecFactory;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.file.SeekableByteArrayInput;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class BoomCompactorTest {
+
+	private FileStatus file(String name, long len) {
+		return new FileStatus(len, false, 3, 256, 0, new Path("/topic/data/2016/01/01/00/" + name));
+	}
+
+	@Test
+	public void testBinsPackFirstFitDecreasing() {
+		List<FileStatus> files = new ArrayList<>();
+		files.add(file("a.bm", 60));
+		files.add(file("b.bm", 50));
+		files.add(file("c.bm", 40));
+		files.add(file("d.bm", 30));
+		files.add(file("e.bm", 20));
+
+		List<List<FileStatus>> bins = BoomCompactor.bins(files, 100);
+		assertEquals(2, bins.size());
+		// 60 + 40 and 50 + 30 + 20
+		assertEquals(2, bins.get(0).size());
+		assertEquals(3, bins.get(1).size());
+	}
+
+	@Test
+	public void testSingleFileBinsAreDropped() {
+		List<FileStatus> files = new ArrayList<>();
+		files.add(file("a.bm", 90));
+		files.add(file("b.bm", 80));
+		files.add(file("c.bm", 10));
+
+		List<List<FileStatus>> bins = BoomCompactor.bins(files, 100);
+		assertEquals(1, bins.size());
+		assertEquals("a.bm", bins.get(0).get(0).getPath().getName());
+		assertEquals("c.bm", bins.get(0).get(1).getPath().getName());
+	}
+
+	private byte[] avroFile(CodecFactory codec, String prefix, int lines) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataFileWriter<CharSequence> writer = new DataFileWriter<>(
+			 new GenericDatumWriter<CharSequence>(Schema.create(Schema.Type.STRING)));
+		writer.setCodec(codec);
+		// Several blocks per file
+		writer.setSyncInterval(64);
+		writer.create(Schema.create(Schema.Type.STRING), bytes);
+		for (int i = 0; i < lines; i++) {
+			writer.append(prefix + " line " + i);
+		}
+		writer.close();
+		return bytes.toByteArray();
+	}
+
+	@Test
+	public void testMergedFileReadsBackWithAvro() throws IOException {
+		ByteArrayOutputStream merged = new ByteArrayOutputStream();
+		BoomCompactor.Merger merger = new BoomCompactor.Merger(merged);
+		assertTrue(merger.append(new ByteArrayInputStream(avroFile(CodecFactory.deflateCodec(6), "a", 100)), "a"));
+		assertTrue(merger.append(new ByteArrayInputStream(avroFile(CodecFactory.deflateCodec(6), "b", 50)), "b"));
+		// Not merged, the codec differs
+		assertFalse(merger.append(new ByteArrayInputStream(avroFile(CodecFactory.nullCodec(), "c", 10)), "c"));
+		assertEquals(150, merger.getRecords());
+		assertEquals(merged.size(), merger.getBytes());
+
+		List<String> lines = new ArrayList<>();
+		DataFileReader<Object> reader = new DataFileReader<>(
+			 new SeekableByteArrayInput(merged.toByteArray()), new GenericDatumReader<Object>());
+		try {
+			assertEquals("deflate", reader.getMetaString("avro.codec"));
+			while (reader.hasNext()) {
+				lines.add(reader.next().toString());
+			}
+		} finally {
+			reader.close();
+		}
+
+		assertEquals(150, lines.size());
+		assertEquals("a line 0", lines.get(0));
+		assertEquals("a line 99", lines.get(99));
+		assertEquals("b line 0", lines.get(100));
+		assertEquals("b line 49", lines.get(149));
+	}
+
+	@Test
+	public void testSidecarsOfMergedInputsAreReplaced() {
+		Set<String> merged = new HashSet<>(Arrays.asList("0-12.bm", "1-40.bm"));
+		assertTrue(BoomCompactor.replacedByMerge("0-12.bm", merged));
+		assertTrue(BoomCompactor.replacedByMerge("_0-12.bm.idx", merged));
+		assertTrue(BoomCompactor.replacedByMerge("_1-40.bm.bloom", merged));
+		assertTrue(BoomCompactor.replacedByMerge("_1-40.bm.partitions", merged));
+		assertFalse(BoomCompactor.replacedByMerge("2-7.bm", merged));
+		assertFalse(BoomCompactor.replacedByMerge("_2-7.bm.idx", merged));
+		assertFalse(BoomCompactor.replacedByMerge("_READY", merged));
+		assertFalse(BoomCompactor.replacedByMerge("_HOUR_MANIFEST", merged));
+	}
+
+}
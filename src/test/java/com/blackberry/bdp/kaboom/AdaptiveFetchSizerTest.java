@@ -0,0 +1,135 @@
+/*
+ * Copyright 2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bdp.kaboom;
+
+import static org.junit.Assert.*;
+
+import com.blackberry.bdp.krackle.consumer.Consumer;
+import com.blackberry.bdp.krackle.consumer.ConsumerConfiguration;
+import com.codahale.metrics.MetricRegistry;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.Test;
+
+public class AdaptiveFetchSizerTest {
+
+	private static final int MIN_BYTES = 64 * 1024;
+	private static final int MAX_BYTES = 8 * 1024 * 1024;
+
+	private AdaptiveFetchSizer newSizer() {
+		return new AdaptiveFetchSizer("topic-0", MIN_BYTES, MAX_BYTES, 100, 5000, 10000, 1000);
+	}
+
+	@Test
+	public void testNoChangeBeforeInterval() {
+		AdaptiveFetchSizer sizer = newSizer();
+		long now = System.currentTimeMillis();
+		assertFalse(sizer.adjust(0, now));
+		assertEquals(MAX_BYTES, sizer.getFetchMessageMaxBytes());
+		assertEquals(5000, sizer.getFetchWaitMaxMs());
+	}
+
+	@Test
+	public void testIdleShrinksToLowerBound() {
+		AdaptiveFetchSizer sizer = newSizer();
+		long now = System.currentTimeMillis();
+		for (int i = 1; i <= 20; i++) {
+			sizer.emptyFetch();
+			sizer.adjust(0, now + i * 1000);
+		}
+		assertEquals(MIN_BYTES, sizer.getFetchMessageMaxBytes());
+		assertEquals(5000, sizer.getFetchWaitMaxMs());
+	}
+
+	@Test
+	public void testLagGrowsToUpperBound() {
+		AdaptiveFetchSizer sizer = newSizer();
+		long now = System.currentTimeMillis();
+		for (int i = 1; i <= 20; i++) {
+			sizer.emptyFetch();
+			sizer.adjust(0, now + i * 1000);
+		}
+		for (int i = 21; i <= 40; i++) {
+			sizer.messageConsumed(1024);
+			sizer.adjust(1000000, now + i * 1000);
+		}
+		assertEquals(MAX_BYTES, sizer.getFetchMessageMaxBytes());
+		assertEquals(100, sizer.getFetchWaitMaxMs());
+	}
+
+	@Test
+	public void testSteadyStateFollowsBytesConsumed() {
+		AdaptiveFetchSizer sizer = newSizer();
+		long now = System.currentTimeMillis();
+		sizer.messageConsumed(1024);
+		assertTrue(sizer.adjust(0, now + 1000));
+		assertEquals(MAX_BYTES / 2, sizer.getFetchMessageMaxBytes());
+
+		sizer.messageConsumed(MAX_BYTES);
+		assertTrue(sizer.adjust(0, now + 2000));
+		assertEquals(MAX_BYTES, sizer.getFetchMessageMaxBytes());
+	}
+
+	@Test
+	public void testAdjustedParametersReachTheFetchRequest() throws Exception {
+		RecordingKafkaBroker broker = new RecordingKafkaBroker();
+		ExecutorService fetcher = Executors.newSingleThreadExecutor();
+		try {
+			Properties props = new Properties();
+			props.setProperty("metadata.broker.list", "localhost:" + broker.getPort());
+			props.setProperty("fetch.message.max.bytes", Integer.toString(MAX_BYTES));
+			props.setProperty("fetch.wait.max.ms", "5000");
+
+			AdaptiveFetchSizer sizer = newSizer();
+			long now = System.currentTimeMillis();
+			sizer.messageConsumed(1024);
+			sizer.adjust(1000000, now + 1000);
+			assertEquals(100, sizer.getFetchWaitMaxMs());
+			for (int i = 2; i <= 3; i++) {
+				sizer.messageConsumed(1024);
+				sizer.adjust(0, now + i * 1000);
+			}
+			assertEquals(MAX_BYTES / 4, sizer.getFetchMessageMaxBytes());
+
+			// What the worker does when adjust() says the parameters changed
+			ConsumerConfiguration consumerConfiguration = new ConsumerConfiguration(props);
+			sizer.applyTo(consumerConfiguration);
+			final Consumer consumer = new Consumer(consumerConfiguration, "kaboom-test", "topic", 0, 42,
+				 new MetricRegistry());
+
+			final byte[] bytes = new byte[MAX_BYTES];
+			fetcher.submit(new Callable<Integer>() {
+				@Override
+				public Integer call() throws Exception {
+					return consumer.getMessage(bytes, 0, bytes.length);
+				}
+
+			});
+
+			RecordingKafkaBroker.FetchRequest fetchRequest = broker.nextFetchRequest(10000);
+			assertNotNull("the consumer never fetched", fetchRequest);
+			assertEquals(42, fetchRequest.getOffset());
+			assertEquals(MAX_BYTES / 4, fetchRequest.getMaxBytes());
+			assertEquals(100, fetchRequest.getMaxWaitMs());
+		} finally {
+			fetcher.shutdownNow();
+			broker.shutdown();
+		}
+	}
+
+}
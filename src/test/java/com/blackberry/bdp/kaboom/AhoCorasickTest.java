@@ -0,0 +1,65 @@
+/*
+ * Copyright 2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bdp.kaboom;
+
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class AhoCorasickTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF8");
+
+	private AhoCorasick automaton(String... patterns) {
+		byte[][] bytes = new byte[patterns.length][];
+		long[] masks = new long[patterns.length];
+		for (int i = 0; i < patterns.length; i++) {
+			bytes[i] = patterns[i].getBytes(UTF8);
+			masks[i] = 1L << i;
+		}
+		return new AhoCorasick(bytes, masks);
+	}
+
+	private long match(AhoCorasick automaton, String text) {
+		byte[] bytes = text.getBytes(UTF8);
+		return automaton.match(bytes, 0, bytes.length);
+	}
+
+	@Test
+	public void testOverlappingPatterns() {
+		AhoCorasick automaton = automaton("he", "she", "his", "hers");
+		assertEquals(0b1011, match(automaton, "ushers"));
+		assertEquals(0b0100, match(automaton, "this"));
+		assertEquals(0, match(automaton, "nothing"));
+	}
+
+	@Test
+	public void testOffsetAndLength() {
+		AhoCorasick automaton = automaton("DEBUG");
+		byte[] bytes = "DEBUG INFO".getBytes(UTF8);
+		assertEquals(1, automaton.match(bytes, 0, 5));
+		assertEquals(0, automaton.match(bytes, 1, 9));
+	}
+
+	@Test
+	public void testNonAsciiBytes() {
+		AhoCorasick automaton = automaton("café");
+		assertEquals(1, match(automaton, "un café noir"));
+	}
+
+}
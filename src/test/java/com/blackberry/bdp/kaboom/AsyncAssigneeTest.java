@@ -0,0 +1,172 @@
+/*
+ * Copyright 2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bdp.kaboom;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.Charset;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class AsyncAssigneeTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final long SESSION_TIMEOUT_MS = 300;
+
+	private static CuratorFramework curator;
+	private static LocalZkServer zk;
+
+	@BeforeClass
+	public static void setup() throws Exception {
+		zk = new LocalZkServer();
+		curator = CuratorFrameworkFactory.newClient("localhost:21818", new ExponentialBackoffRetry(1000, 3));
+		curator.start();
+	}
+
+	@AfterClass
+	public static void cleanup() throws Exception {
+		curator.close();
+		zk.shutdown();
+	}
+
+	private static class TestAssignee extends AsyncAssignee {
+
+		private boolean stopped = false;
+		private boolean aborted = false;
+
+		private TestAssignee(String zkAssignmentPath) throws Exception {
+			super(curator, "test-worker", "client-1".getBytes(UTF8), zkAssignmentPath, 1000);
+		}
+
+		@Override
+		protected void stop() {
+			stopped = true;
+		}
+
+		@Override
+		protected void abort() {
+			aborted = true;
+		}
+
+		@Override
+		public void run() {
+		}
+
+	}
+
+	private TestAssignee assignee(String zkAssignmentPath, long lostRecoveryMs) throws Exception {
+		curator.create().creatingParentsIfNeeded().forPath(zkAssignmentPath, "client-1".getBytes(UTF8));
+		TestAssignee assignee = new TestAssignee(zkAssignmentPath);
+		assignee.setSuspensionTolerance(SESSION_TIMEOUT_MS, lostRecoveryMs);
+		return assignee;
+	}
+
+	@Test
+	public void testSuspendedKeepsWorkingUntilTheLeaseMayHaveExpired() throws Exception {
+		TestAssignee assignee = assignee("/assignments/suspended", 1000);
+
+		assignee.tolerantStateChanged(ConnectionState.SUSPENDED);
+		assignee.checkConnection();
+		assertTrue(assignee.isZkSuspended());
+		assertFalse(assignee.paused);
+
+		Thread.sleep(SESSION_TIMEOUT_MS / 3 + 50);
+		assignee.checkConnection();
+		assertTrue(assignee.isZkSuspended());
+		assertTrue(assignee.paused);
+		assertFalse(assignee.stopped);
+		assertFalse(assignee.aborted);
+	}
+
+	@Test
+	public void testReconnectedResumes() throws Exception {
+		TestAssignee assignee = assignee("/assignments/reconnected", 1000);
+
+		assignee.tolerantStateChanged(ConnectionState.SUSPENDED);
+		Thread.sleep(SESSION_TIMEOUT_MS / 3 + 50);
+		assignee.checkConnection();
+		assertTrue(assignee.paused);
+
+		assignee.tolerantStateChanged(ConnectionState.RECONNECTED);
+		assertFalse(assignee.isZkSuspended());
+		assertFalse(assignee.paused);
+		assertFalse(assignee.stopped);
+	}
+
+	@Test
+	public void testReconnectedAfterReassignmentStops() throws Exception {
+		TestAssignee assignee = assignee("/assignments/reassigned", 1000);
+
+		assignee.tolerantStateChanged(ConnectionState.SUSPENDED);
+		curator.setData().forPath("/assignments/reassigned", "client-2".getBytes(UTF8));
+		assignee.tolerantStateChanged(ConnectionState.RECONNECTED);
+		assertTrue(assignee.stopped);
+	}
+
+	@Test
+	public void testLostSessionReacquiresTheLock() throws Exception {
+		TestAssignee assignee = assignee("/assignments/lost", 1000);
+
+		assignee.tolerantStateChanged(ConnectionState.LOST);
+		assertTrue(assignee.isZkSuspended());
+		assertTrue(assignee.paused);
+
+		// Nothing to re-acquire until the session is replaced
+		assignee.checkConnection();
+		assertTrue(assignee.isZkSuspended());
+
+		assignee.tolerantStateChanged(ConnectionState.RECONNECTED);
+		assertTrue(assignee.isZkSuspended());
+
+		assignee.checkConnection();
+		assertFalse(assignee.isZkSuspended());
+		assertFalse(assignee.paused);
+		assertFalse(assignee.aborted);
+		assertNotNull(curator.checkExists().forPath(assignee.zkPathToLock()));
+		assignee.releaseAssignment();
+	}
+
+	@Test
+	public void testLostSessionReassignedStops() throws Exception {
+		TestAssignee assignee = assignee("/assignments/lost-reassigned", 1000);
+
+		assignee.tolerantStateChanged(ConnectionState.LOST);
+		curator.setData().forPath("/assignments/lost-reassigned", "client-2".getBytes(UTF8));
+		assignee.tolerantStateChanged(ConnectionState.RECONNECTED);
+		assignee.checkConnection();
+		assertTrue(assignee.stopped);
+		assertFalse(assignee.aborted);
+	}
+
+	@Test
+	public void testLostSessionNotRecoveredAborts() throws Exception {
+		TestAssignee assignee = assignee("/assignments/lost-for-good", 50);
+
+		assignee.tolerantStateChanged(ConnectionState.LOST);
+		assignee.checkConnection();
+		assertFalse(assignee.aborted);
+
+		Thread.sleep(100);
+		assignee.checkConnection();
+		assertTrue(assignee.aborted);
+	}
+
+}
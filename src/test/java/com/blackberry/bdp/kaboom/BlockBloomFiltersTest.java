@@ -0,0 +1,146 @@
+/*
+ * Copyright 2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bdp.kaboom;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class BlockBloomFiltersTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF8");
+
+	private static void line(BlockBloomFilters.Builder builder, String line) {
+		byte[] bytes = ("xx" + line + "yy").getBytes(UTF8);
+		builder.line(bytes, 2, bytes.length - 4);
+	}
+
+	/**
+	 * Block 0 at 100 holds host-001, block 1 at 5000 holds host-002
+	 */
+	private BlockBloomFilters build() throws IOException {
+		BlockBloomFilters.Builder builder = new BlockBloomFilters.Builder(10);
+		for (int i = 0; i < 100; i++) {
+			line(builder, "GET /api/v1/items/" + i + " host-001.example.com request_id=a" + i);
+		}
+		builder.logBlock();
+		builder.avroBlock(100);
+		for (int i = 0; i < 100; i++) {
+			line(builder, "POST /login host-002.example.com request_id=b" + i);
+		}
+		builder.logBlock();
+		builder.avroBlock(5000);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		builder.write(out);
+		return BlockBloomFilters.read(new ByteArrayInputStream(out.toByteArray()));
+	}
+
+	@Test
+	public void testFindsTheBlocksHoldingTheToken() throws IOException {
+		BlockBloomFilters blooms = build();
+		assertEquals(2, blooms.size());
+		assertArrayEquals(new long[]{100}, blooms.find("host-001.example.com"));
+		assertArrayEquals(new long[]{5000}, blooms.find("host-002.example.com"));
+		assertArrayEquals(new long[]{5000}, blooms.find("request_id=b42"));
+		assertEquals(0, blooms.find("host-003.example.com").length);
+	}
+
+	@Test
+	public void testPhraseNeedsEveryToken() throws IOException {
+		BlockBloomFilters blooms = build();
+		assertArrayEquals(new long[]{100}, blooms.find("GET host-001.example.com"));
+		assertEquals(0, blooms.find("GET host-002.example.com").length);
+	}
+
+	@Test
+	public void testPartsOfATokenFindItsBlocks() throws IOException {
+		BlockBloomFilters blooms = build();
+		assertArrayEquals(new long[]{100, 5000}, blooms.find("example.com"));
+		assertArrayEquals(new long[]{100}, blooms.find("host-001"));
+		assertArrayEquals(new long[]{100}, blooms.find("001.example"));
+		assertArrayEquals(new long[]{5000}, blooms.find("b42"));
+	}
+
+	@Test
+	public void testSmallBlockAfterALargeOne() throws IOException {
+		BlockBloomFilters.Builder builder = new BlockBloomFilters.Builder(10);
+		for (int i = 0; i < 10000; i++) {
+			line(builder, "token" + i);
+		}
+		builder.logBlock();
+		builder.avroBlock(100);
+		line(builder, "last");
+		builder.logBlock();
+		builder.avroBlock(200);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		builder.write(out);
+		BlockBloomFilters blooms = BlockBloomFilters.read(new ByteArrayInputStream(out.toByteArray()));
+		assertArrayEquals(new long[]{100}, blooms.find("token9999"));
+		assertArrayEquals(new long[]{200}, blooms.find("last"));
+		assertEquals(0, blooms.find("token9999 last").length);
+	}
+
+	@Test
+	public void testShortTokensMatchEveryBlock() throws IOException {
+		assertArrayEquals(new long[]{100, 5000}, build().find("a /"));
+	}
+
+	@Test
+	public void testStats() throws IOException {
+		BlockBloomFilters blooms = build();
+		assertEquals(100, blooms.getPosition(0));
+		assertEquals(100, blooms.getLines(0));
+		assertEquals(100, blooms.getLines(1));
+		assertEquals(100 * "POST /login host-002.example.com request_id=b".length() + 10 + 90 * 2,
+			 blooms.getBytes(1));
+	}
+
+	@Test
+	public void testLogBlockAfterAvroBlockGoesToTheNextBlock() throws IOException {
+		BlockBloomFilters.Builder builder = new BlockBloomFilters.Builder(10);
+		line(builder, "first");
+		builder.logBlock();
+		// The next log block is still being built when the avro block is written
+		line(builder, "second");
+		builder.avroBlock(100);
+		builder.logBlock();
+		builder.avroBlock(200);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		builder.write(out);
+		BlockBloomFilters blooms = BlockBloomFilters.read(new ByteArrayInputStream(out.toByteArray()));
+		assertArrayEquals(new long[]{100}, blooms.find("first"));
+		assertArrayEquals(new long[]{200}, blooms.find("second"));
+	}
+
+	@Test
+	public void testEmptyAvroBlocksAreSkipped() throws IOException {
+		BlockBloomFilters.Builder builder = new BlockBloomFilters.Builder(10);
+		line(builder, "first");
+		builder.logBlock();
+		builder.discardAvroBlock();
+		builder.avroBlock(100);
+		assertEquals(0, builder.size());
+	}
+
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bdp.kaboom;
+
+import org.apache.hadoop.fs.Path;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class BoomFileCommitProtocolTest {
+
+	@Test
+	public void testDefaultFollowsUseTempOpenFileDirectory() {
+		assertEquals(BoomFileCommitProtocol.TEMP_DIRECTORY, BoomFileCommitProtocol.fromName(null, true));
+		assertEquals(BoomFileCommitProtocol.DIRECT, BoomFileCommitProtocol.fromName(null, false));
+		assertEquals(BoomFileCommitProtocol.DIRECT, BoomFileCommitProtocol.fromName(" ", false));
+	}
+
+	@Test
+	public void testFromName() {
+		assertEquals(BoomFileCommitProtocol.HIDDEN, BoomFileCommitProtocol.fromName("hidden", true));
+		assertEquals(BoomFileCommitProtocol.MANIFEST, BoomFileCommitProtocol.fromName(" Manifest ", true));
+		assertEquals(BoomFileCommitProtocol.TEMP_DIRECTORY, BoomFileCommitProtocol.fromName("temp-directory", false));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownName() {
+		BoomFileCommitProtocol.fromName("rename", false);
+	}
+
+	@Test
+	public void testOpenPaths() {
+		String dir = "/data/topic/2016/01/01/00/data";
+		assertEquals(new Path(dir + "/_tmp_0-12.bm/0-12.bm"),
+			 BoomFileCommitProtocol.TEMP_DIRECTORY.openPath(dir, "0-12.bm", "_tmp_"));
+		assertEquals(new Path(dir + "/_tmp_0-12.bm"),
+			 BoomFileCommitProtocol.HIDDEN.openPath(dir, "0-12.bm", "_tmp_"));
+		assertEquals(new Path(dir + "/0-12.bm"),
+			 BoomFileCommitProtocol.DIRECT.openPath(dir, "0-12.bm", "_tmp_"));
+		assertEquals(new Path(dir + "/0-12.bm"),
+			 BoomFileCommitProtocol.MANIFEST.openPath(dir, "0-12.bm", "_tmp_"));
+	}
+
+	@Test
+	public void testOpensInPeriodDirectory() {
+		assertFalse(BoomFileCommitProtocol.TEMP_DIRECTORY.opensInPeriodDirectory());
+		assertTrue(BoomFileCommitProtocol.HIDDEN.opensInPeriodDirectory());
+		assertTrue(BoomFileCommitProtocol.DIRECT.opensInPeriodDirectory());
+		assertTrue(BoomFileCommitProtocol.MANIFEST.opensInPeriodDirectory());
+	}
+
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bdp.kaboom;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class BoomFileHeaderTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF8");
+
+	private BoomFileHeader header(String schema, String codec) {
+		Map<String, byte[]> metadata = new LinkedHashMap<>();
+		metadata.put("avro.schema", schema.getBytes(UTF8));
+		metadata.put("avro.codec", codec.getBytes(UTF8));
+		byte[] sync = new byte[BoomFileHeader.SYNC_SIZE];
+		for (int i = 0; i < sync.length; i++) {
+			sync[i] = (byte) i;
+		}
+		return new BoomFileHeader(metadata, sync);
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		header("{\"type\":\"string\"}", "deflate").write(out);
+		BoomFileHeader.writeLong(out, 42L);
+
+		ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+		BoomFileHeader read = BoomFileHeader.read(in);
+		assertEquals("{\"type\":\"string\"}", read.getSchema());
+		assertEquals("deflate", read.getCodec());
+		assertEquals(15, read.getSyncMarker()[15]);
+		// The stream is left at the first block
+		assertEquals(42L, BoomFileHeader.readLong(in));
+	}
+
+	@Test
+	public void testVarints() throws IOException {
+		long[] values = {0L, 1L, -1L, 63L, -64L, 64L, 300L, Integer.MAX_VALUE, Long.MAX_VALUE, Long.MIN_VALUE};
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (long value : values) {
+			BoomFileHeader.writeLong(out, value);
+		}
+		ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+		for (long value : values) {
+			assertEquals(value, BoomFileHeader.readLong(in));
+		}
+	}
+
+	@Test
+	public void testCompatibility() {
+		assertTrue(header("a", "deflate").isCompatible(header("a", "deflate")));
+		assertFalse(header("a", "deflate").isCompatible(header("b", "deflate")));
+		assertFalse(header("a", "deflate").isCompatible(header("a", "snappy")));
+	}
+
+	@Test(expected = IOException.class)
+	public void testBadMagic() throws IOException {
+		BoomFileHeader.read(new ByteArrayInputStream("Nope and some more bytes".getBytes(UTF8)));
+	}
+
+}
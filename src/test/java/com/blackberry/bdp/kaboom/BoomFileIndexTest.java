@@ -0,0 +1,106 @@
+/*
+ * Copyright 2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bdp.kaboom;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class BoomFileIndexTest {
+
+	/**
+	 * 100 avro blocks of 10 log blocks (one per second) of 100 lines
+	 */
+	private BoomFileIndex build() throws IOException {
+		BoomFileIndex.Builder builder = new BoomFileIndex.Builder();
+		long position = 1000;
+		long offset = 1000000;
+		long second = 1450000000;
+		for (int block = 0; block < 100; block++) {
+			for (int logBlock = 0; logBlock < 10; logBlock++) {
+				for (int line = 0; line < 100; line++) {
+					builder.line(offset++);
+				}
+				builder.logBlock(second++);
+			}
+			builder.avroBlock(position);
+			position += 100000 + block;
+		}
+		return builder.build();
+	}
+
+	private BoomFileIndex roundTrip(BoomFileIndex index) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		index.write(out);
+		return BoomFileIndex.read(new ByteArrayInputStream(out.toByteArray()));
+	}
+
+	@Test
+	public void testFindSeconds() throws IOException {
+		BoomFileIndex index = roundTrip(build());
+		assertEquals(100, index.size());
+		assertArrayEquals(new long[]{1000}, index.findSeconds(1450000000, 1450000009));
+		assertArrayEquals(new long[]{1000, 101000}, index.findSeconds(1450000009, 1450000010));
+		assertEquals(0, index.findSeconds(1460000000, 1460000001).length);
+	}
+
+	@Test
+	public void testFindOffsets() throws IOException {
+		BoomFileIndex index = roundTrip(build());
+		assertArrayEquals(new long[]{201001}, index.findOffsets(1002000, 1002999));
+		assertEquals(100, index.findOffsets(0, Long.MAX_VALUE).length);
+		assertEquals(0, index.findOffsets(0, 999999).length);
+	}
+
+	@Test
+	public void testUnknownOffsetsNeverMatch() throws IOException {
+		BoomFileIndex.Builder builder = new BoomFileIndex.Builder();
+		builder.line(-1);
+		builder.logBlock(1450000000);
+		builder.avroBlock(500);
+		BoomFileIndex index = roundTrip(builder.build());
+		assertEquals(0, index.findOffsets(0, Long.MAX_VALUE).length);
+		assertArrayEquals(new long[]{500}, index.findSeconds(1450000000, 1450000000));
+	}
+
+	@Test
+	public void testDiscardedBlocksAreNotIndexed() throws IOException {
+		BoomFileIndex.Builder builder = new BoomFileIndex.Builder();
+		builder.line(1);
+		builder.logBlock(1450000000);
+		builder.discardAvroBlock();
+		builder.line(2);
+		builder.logBlock(1450000001);
+		builder.avroBlock(500);
+		BoomFileIndex index = builder.build();
+		assertEquals(1, index.size());
+		assertEquals(0, index.findSeconds(1450000000, 1450000000).length);
+		assertArrayEquals(new long[]{500}, index.findOffsets(2, 2));
+	}
+
+	@Test
+	public void testCompact() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		build().write(out);
+		// A few bytes per avro block
+		assertTrue(out.size() < 100 * 12);
+	}
+
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright 2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bdp.kaboom;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class FastBoomReaderTest {
+
+	private static final long START_SECOND = 1460000000L;
+	private static final int LINES_PER_SECOND = 50;
+	private static final int SECONDS_PER_BLOCK = 3;
+
+	private final List<Long> blockPositions = new ArrayList<>();
+	private final BoomFileIndex.Builder index = new BoomFileIndex.Builder();
+	private File file;
+
+	@After
+	public void tearDown() {
+		if (file != null) {
+			file.delete();
+		}
+	}
+
+	private byte[] boomFile(int seconds) throws IOException {
+		List<Integer> order = new ArrayList<>();
+		for (int second = 0; second < seconds; second++) {
+			order.add(second);
+		}
+		return boomFile(order);
+	}
+
+	/**
+	 * Writes a log block for each of the seconds in turn, a few per avro block,
+	 * with an avro block of an empty log block (like an alignment pad) every
+	 * fourth block, and indexes the avro blocks as they're written
+	 */
+	private byte[] boomFile(List<Integer> seconds) throws IOException {
+		Map<String, byte[]> metadata = new LinkedHashMap<>();
+		metadata.put("avro.schema", "{}".getBytes("UTF-8"));
+		metadata.put("avro.codec", "deflate".getBytes("UTF-8"));
+		byte[] sync = new byte[BoomFileHeader.SYNC_SIZE];
+		for (int i = 0; i < sync.length; i++) {
+			sync[i] = (byte) (0xA0 + i);
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new BoomFileHeader(metadata, sync).write(out);
+
+		long blockNumber = 0;
+		for (int s = 0; s < seconds.size(); s += SECONDS_PER_BLOCK) {
+			ByteArrayOutputStream records = new ByteArrayOutputStream();
+			int count = 0;
+			int end = Math.min(seconds.size(), s + SECONDS_PER_BLOCK);
+			for (int second : seconds.subList(s, end)) {
+				BoomFileHeader.writeLong(records, START_SECOND + second);
+				BoomFileHeader.writeLong(records, 0);
+				BoomFileHeader.writeLong(records, blockNumber++);
+				BoomFileHeader.writeLong(records, LINES_PER_SECOND);
+				for (int i = 0; i < LINES_PER_SECOND; i++) {
+					byte[] line = line(second, i).getBytes("UTF-8");
+					BoomFileHeader.writeLong(records, ms(i));
+					BoomFileHeader.writeLong(records, line.length);
+					records.write(line);
+				}
+				BoomFileHeader.writeLong(records, 0);
+				index.logBlock(START_SECOND + second);
+				count++;
+			}
+			writeBlock(out, count, records.toByteArray(), sync);
+
+			if (blockPositions.size() % 4 == 3) {
+				long second = START_SECOND + seconds.get(end - 1);
+				ByteArrayOutputStream pad = new ByteArrayOutputStream();
+				BoomFileHeader.writeLong(pad, second);
+				BoomFileHeader.writeLong(pad, 0);
+				BoomFileHeader.writeLong(pad, -1);
+				BoomFileHeader.writeLong(pad, 0);
+				index.logBlock(second);
+				writeBlock(out, 1, pad.toByteArray(), sync);
+			}
+		}
+		return out.toByteArray();
+	}
+
+	private void writeBlock(ByteArrayOutputStream out, int count, byte[] records, byte[] sync) throws IOException {
+		Deflater deflater = new Deflater(6, true);
+		deflater.setInput(records);
+		deflater.finish();
+		byte[] compressed = new byte[records.length * 2 + 64];
+		int size = deflater.deflate(compressed);
+		deflater.end();
+		blockPositions.add((long) out.size());
+		index.avroBlock(out.size());
+		BoomFileHeader.writeLong(out, count);
+		BoomFileHeader.writeLong(out, size);
+		out.write(compressed, 0, size);
+		out.write(sync);
+	}
+
+	private static String line(int second, int i) {
+		return "second " + second + " line " + i + " token-" + (second * LINES_PER_SECOND + i);
+	}
+
+	private static long ms(int i) {
+		return i * 1000L / LINES_PER_SECOND;
+	}
+
+	private static long timestamp(int second, int i) {
+		return (START_SECOND + second) * 1000 + ms(i);
+	}
+
+	private FastBoomReader open(byte[] bytes, int threads) throws IOException {
+		file = File.createTempFile("FastBoomReaderTest", ".bm");
+		try (FileOutputStream out = new FileOutputStream(file)) {
+			out.write(bytes);
+		}
+		return FastBoomReader.open(file, threads);
+	}
+
+	private static class Collector implements FastBoomReader.LineHandler {
+
+		private final List<Long> timestamps = new ArrayList<>();
+		private final List<String> lines = new ArrayList<>();
+
+		@Override
+		public void line(long timestamp, byte[] bytes, int offset, int length) throws IOException {
+			timestamps.add(timestamp);
+			lines.add(new String(bytes, offset, length, "UTF-8"));
+		}
+
+	}
+
+	private static void assertLines(Collector collector, int fromSecond, int fromLine, int lines) {
+		assertEquals(lines, collector.lines.size());
+		int second = fromSecond;
+		int i = fromLine;
+		for (int n = 0; n < lines; n++) {
+			assertEquals(line(second, i), collector.lines.get(n));
+			assertEquals(timestamp(second, i), (long) collector.timestamps.get(n));
+			if (++i == LINES_PER_SECOND) {
+				i = 0;
+				second++;
+			}
+		}
+	}
+
+	@Test
+	public void testReadsEveryLineInOrder() throws IOException {
+		try (FastBoomReader reader = open(boomFile(100), 1)) {
+			assertEquals(blockPositions.get(0), (Long) reader.getFirstBlockPosition());
+			assertEquals("deflate", reader.getHeader().getCodec());
+			Collector collector = new Collector();
+			reader.read(collector);
+			assertLines(collector, 0, 0, 100 * LINES_PER_SECOND);
+		}
+	}
+
+	@Test
+	public void testParallelDecompressionDeliversInOrder() throws IOException {
+		try (FastBoomReader reader = open(boomFile(300), 4)) {
+			for (int pass = 0; pass < 3; pass++) {
+				Collector collector = new Collector();
+				reader.read(collector);
+				assertLines(collector, 0, 0, 300 * LINES_PER_SECOND);
+			}
+		}
+	}
+
+	@Test
+	public void testTimeRange() throws IOException {
+		byte[] bytes = boomFile(3000);
+		try (FastBoomReader reader = open(bytes, 2)) {
+			Collector collector = new Collector();
+			reader.readTimeRange(timestamp(1234, 10), timestamp(1300, 25), collector);
+			assertLines(collector, 1234, 10, 66 * LINES_PER_SECOND + 15);
+
+			collector = new Collector();
+			reader.readTimeRange(0, timestamp(0, 5), collector);
+			assertLines(collector, 0, 0, 5);
+
+			collector = new Collector();
+			reader.readTimeRange(timestamp(2999, 40), Long.MAX_VALUE, collector);
+			assertLines(collector, 2999, 40, 10);
+
+			collector = new Collector();
+			reader.readTimeRange(timestamp(3000, 0), Long.MAX_VALUE, collector);
+			assertEquals(0, collector.lines.size());
+		}
+	}
+
+	@Test
+	public void testTimeRangeWithTheIndex() throws IOException {
+		try (FastBoomReader reader = open(boomFile(3000), 2)) {
+			BoomFileIndex built = index.build();
+			Collector collector = new Collector();
+			reader.readTimeRange(built, timestamp(1234, 10), timestamp(1300, 25), collector);
+			assertLines(collector, 1234, 10, 66 * LINES_PER_SECOND + 15);
+
+			collector = new Collector();
+			reader.readTimeRange(built, timestamp(2999, 40), Long.MAX_VALUE, collector);
+			assertLines(collector, 2999, 40, 10);
+
+			collector = new Collector();
+			reader.readTimeRange(built, timestamp(3000, 0), Long.MAX_VALUE, collector);
+			assertEquals(0, collector.lines.size());
+		}
+	}
+
+	@Test
+	public void testTimeRangeFindsLinesAfterTimestampsGoBackwards() throws IOException {
+		// Seconds 30 to 59, then a skewed 0 to 29, then 60 to 89
+		List<Integer> seconds = new ArrayList<>();
+		for (int second = 30; second < 60; second++) {
+			seconds.add(second);
+		}
+		for (int second = 0; second < 30; second++) {
+			seconds.add(second);
+		}
+		for (int second = 60; second < 90; second++) {
+			seconds.add(second);
+		}
+		try (FastBoomReader reader = open(boomFile(seconds), 1)) {
+			BoomFileIndex built = index.build();
+			Collector collector = new Collector();
+			reader.readTimeRange(timestamp(10, 0), timestamp(20, 0), collector);
+			assertLines(collector, 10, 0, 10 * LINES_PER_SECOND);
+
+			collector = new Collector();
+			reader.readTimeRange(built, timestamp(10, 0), timestamp(20, 0), collector);
+			assertLines(collector, 10, 0, 10 * LINES_PER_SECOND);
+
+			collector = new Collector();
+			reader.readTimeRange(timestamp(40, 0), timestamp(70, 0), collector);
+			assertLines(collector, 40, 0, 30 * LINES_PER_SECOND);
+
+			collector = new Collector();
+			reader.readTimeRange(built, timestamp(40, 0), timestamp(70, 0), collector);
+			assertLines(collector, 40, 0, 30 * LINES_PER_SECOND);
+		}
+	}
+
+	@Test
+	public void testReadBlocks() throws IOException {
+		try (FastBoomReader reader = open(boomFile(30), 1)) {
+			Collector collector = new Collector();
+			reader.readBlocks(new long[]{blockPositions.get(0), blockPositions.get(2)}, collector);
+			assertEquals(2 * SECONDS_PER_BLOCK * LINES_PER_SECOND, collector.lines.size());
+			assertEquals(line(0, 0), collector.lines.get(0));
+			assertEquals(line(6, 0), collector.lines.get(SECONDS_PER_BLOCK * LINES_PER_SECOND));
+		}
+	}
+
+	@Test
+	public void testStopsAtATruncatedBlock() throws IOException {
+		byte[] bytes = boomFile(30);
+		// Cut the file in the middle of its fourth avro block of lines
+		long cut = blockPositions.get(3) + 40;
+		try (FastBoomReader reader = open(Arrays.copyOf(bytes, (int) cut), 2)) {
+			Collector collector = new Collector();
+			reader.read(collector);
+			assertLines(collector, 0, 0, 3 * SECONDS_PER_BLOCK * LINES_PER_SECOND);
+		}
+	}
+
+	@Test
+	public void testRejectsAMismatchedSyncMarker() throws IOException {
+		byte[] bytes = boomFile(30);
+		int sync = (int) (blockPositions.get(1) - 1);
+		bytes[sync] ^= 0xFF;
+		try (FastBoomReader reader = open(bytes, 1)) {
+			reader.read(new Collector());
+			fail("expected a sync marker mismatch");
+		} catch (IOException ioe) {
+			assertFalse(ioe instanceof EOFException);
+			assertTrue(ioe.getMessage(), ioe.getMessage().contains("sync marker"));
+		}
+	}
+
+}
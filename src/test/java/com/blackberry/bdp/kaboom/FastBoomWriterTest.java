@@ -18,16 +18,20 @@ package com.blackberry.bdp.kaboom;
 
 import com.blackberry.bdp.common.jmx.MetricRegistrySingleton;
 import com.codahale.metrics.Timer;
+import java.io.ByteArrayInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Arrays;
 import java.util.Random;
+import java.util.zip.Inflater;
 import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
 
 import org.junit.Test;
+import static org.junit.Assert.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -88,4 +92,56 @@ public class FastBoomWriterTest {
 		writer.close();
 			 */
 	}
-}
\ No newline at end of file
+
+	@Test
+	public void testAlignmentPadSizes() throws Exception {
+		byte[] syncMarker = new byte[16];
+		rand.nextBytes(syncMarker);
+		long second = 1397268894L;
+
+		for (int size = FastBoomWriter.MIN_PAD_SIZE; size < 70000; size += (size < 2000 ? 1 : 997)) {
+			byte[] pad = FastBoomWriter.alignmentPad(second, size, syncMarker);
+			assertNotNull("no pad of " + size + " bytes", pad);
+			assertEquals(size, pad.length);
+			assertPad(pad, second, syncMarker);
+		}
+	}
+
+	@Test
+	public void testAlignmentPadAcrossVarintLengths() throws Exception {
+		byte[] syncMarker = new byte[16];
+		for (int size : new int[]{(1 << 13) + 17, (1 << 13) + 18, (1 << 20) + 18, (1 << 20) + 19, (1 << 21) - 1}) {
+			byte[] pad = FastBoomWriter.alignmentPad(0L, size, syncMarker);
+			assertNotNull("no pad of " + size + " bytes", pad);
+			assertEquals(size, pad.length);
+			assertPad(pad, 0L, syncMarker);
+		}
+	}
+
+	private void assertPad(byte[] pad, long second, byte[] syncMarker) throws Exception {
+		ByteArrayInputStream in = new ByteArrayInputStream(pad);
+		assertEquals(1L, BoomFileHeader.readLong(in));
+		long blockSize = BoomFileHeader.readLong(in);
+		byte[] compressed = new byte[(int) blockSize];
+		BoomFileHeader.readFully(in, compressed);
+		byte[] sync = new byte[16];
+		BoomFileHeader.readFully(in, sync);
+		assertArrayEquals(syncMarker, sync);
+		assertEquals(-1, in.read());
+
+		Inflater inflater = new Inflater(true);
+		inflater.setInput(compressed);
+		byte[] record = new byte[64];
+		int length = inflater.inflate(record);
+		assertTrue(inflater.finished());
+		inflater.end();
+
+		ByteArrayInputStream recordIn = new ByteArrayInputStream(Arrays.copyOf(record, length));
+		assertEquals(second, BoomFileHeader.readLong(recordIn));
+		assertTrue(BoomFileHeader.readLong(recordIn) < (1L << 28));
+		assertEquals(-1L, BoomFileHeader.readLong(recordIn));
+		assertEquals(0L, BoomFileHeader.readLong(recordIn));
+		assertEquals(-1, recordIn.read());
+	}
+
+}
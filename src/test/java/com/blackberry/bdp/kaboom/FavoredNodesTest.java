@@ -0,0 +1,61 @@
+/*
+ * Copyright 2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bdp.kaboom;
+
+import java.net.InetSocketAddress;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class FavoredNodesTest {
+
+	@Test
+	public void testLocal() {
+		InetSocketAddress[] nodes = FavoredNodes.forPartition("local", "dn1.example.com", 7, 3, 50010);
+		assertEquals(1, nodes.length);
+		assertEquals("dn1.example.com", nodes[0].getHostString());
+		assertEquals(50010, nodes[0].getPort());
+	}
+
+	@Test
+	public void testPartitionsSpreadOverList() {
+		String spec = "dn1,dn2:1004,dn3,dn4,dn5,dn6";
+		InetSocketAddress[] first = FavoredNodes.forPartition(spec, "local", 0, 3, 50010);
+		InetSocketAddress[] second = FavoredNodes.forPartition(spec, "local", 1, 3, 50010);
+		InetSocketAddress[] third = FavoredNodes.forPartition(spec, "local", 2, 3, 50010);
+
+		assertEquals("dn1", first[0].getHostString());
+		assertEquals(1004, first[1].getPort());
+		assertEquals("dn4", second[0].getHostString());
+		assertEquals("dn6", second[2].getHostString());
+		// Wraps back around
+		assertEquals("dn1", third[0].getHostString());
+	}
+
+	@Test
+	public void testFewerNodesThanReplicas() {
+		assertEquals(2, FavoredNodes.forPartition("dn1,dn2", "local", 5, 3, 50010).length);
+	}
+
+	@Test
+	public void testEmpty() {
+		assertNull(FavoredNodes.forPartition(null, "local", 0, 3, 50010));
+		assertNull(FavoredNodes.forPartition(" ", "local", 0, 3, 50010));
+		assertNull(FavoredNodes.forPartition(",", "local", 0, 3, 50010));
+	}
+
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bdp.kaboom;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class FilterSetTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF8");
+
+	private int evaluate(FilterSet filterSet, String message, int pri) {
+		byte[] bytes = ("xx" + message).getBytes(UTF8);
+		return filterSet.evaluate(bytes, 2, bytes.length - 2, pri);
+	}
+
+	@Test
+	public void testFirstMatchingRuleWins() {
+		Map<Integer, String> specs = new HashMap<>();
+		specs.put(10, "route=audit:prefix:AUDIT");
+		specs.put(2, "drop:contains:DEBUG|TRACE");
+		specs.put(1, "drop:severity:7");
+		FilterSet filterSet = new FilterSet(specs);
+
+		assertEquals(0, evaluate(filterSet, "AUDIT something", 7));
+		assertEquals(1, evaluate(filterSet, "AUDIT at DEBUG level", 14));
+		assertEquals(2, evaluate(filterSet, "AUDIT login", 14));
+		assertEquals(FilterSet.ACCEPT, evaluate(filterSet, "an audit line", -1));
+
+		assertEquals(FilterSet.Action.DROP, filterSet.getAction(0));
+		assertEquals(FilterSet.Action.ROUTE, filterSet.getAction(2));
+		assertEquals("audit", filterSet.getDataDirectory(2));
+	}
+
+	@Test
+	public void testFacility() {
+		Map<Integer, String> specs = new HashMap<>();
+		specs.put(1, "route=kernel:facility:0");
+		FilterSet filterSet = new FilterSet(specs);
+
+		assertEquals(0, evaluate(filterSet, "kernel line", 3));
+		assertEquals(FilterSet.ACCEPT, evaluate(filterSet, "user line", 11));
+		assertEquals(FilterSet.ACCEPT, evaluate(filterSet, "no pri", -1));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidAction() {
+		Map<Integer, String> specs = new HashMap<>();
+		specs.put(1, "keep:prefix:x");
+		new FilterSet(specs);
+	}
+
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bdp.kaboom;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+public class HdfsAdmissionControllerTest {
+
+	private static final long MIN_BYTES = 1000;
+	private static final long MAX_BYTES = 100000;
+
+	private HdfsAdmissionController newController() {
+		return new HdfsAdmissionController(MIN_BYTES, MAX_BYTES, 10, 1000, 500, 1000, 200, 0.5);
+	}
+
+	@Test
+	public void testSlowHdfsShrinksBudgetToFloor() {
+		HdfsAdmissionController controller = newController();
+		long now = System.currentTimeMillis();
+		for (int i = 1; i <= 20; i++) {
+			controller.recordLatency(5000, now + i * 1000);
+		}
+		assertEquals(MIN_BYTES, controller.getBytesPerSec());
+		assertEquals(10, controller.getOpsPerSec());
+	}
+
+	@Test
+	public void testHealthyHdfsGrowsBudgetAdditively() {
+		HdfsAdmissionController controller = newController();
+		long now = System.currentTimeMillis();
+		controller.recordLatency(5000, now + 1000);
+		assertEquals(MAX_BYTES / 2, controller.getBytesPerSec());
+
+		for (int i = 2; i <= 40; i++) {
+			controller.recordLatency(0, now + i * 1000);
+		}
+		assertEquals(MAX_BYTES, controller.getBytesPerSec());
+	}
+
+	@Test
+	public void testCompetingWritersAreHeldToTheBudget() throws Exception {
+		final HdfsAdmissionController controller = new HdfsAdmissionController(MAX_BYTES, MAX_BYTES, 1000, 1000, 500, 1000, 50, 0.5);
+		final AtomicLong admitted = new AtomicLong();
+		final long runMs = 1500;
+		final long start = System.currentTimeMillis();
+		Thread[] writers = new Thread[4];
+		for (int i = 0; i < writers.length; i++) {
+			writers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						while (System.currentTimeMillis() - start < runMs) {
+							controller.acquire(MAX_BYTES / 10, 1);
+							admitted.addAndGet(MAX_BYTES / 10);
+						}
+					} catch (InterruptedException ie) {
+						Thread.currentThread().interrupt();
+					}
+				}
+
+			});
+			writers[i].start();
+		}
+		for (Thread writer : writers) {
+			writer.join();
+		}
+		long elapsedMs = System.currentTimeMillis() - start;
+
+		// The full bucket it starts with, the refill since and no more however long writers waited
+		assertTrue(admitted.get() <= controller.getBytesPerSec() + controller.getBytesPerSec() * elapsedMs / 1000);
+		assertTrue(admitted.get() >= controller.getBytesPerSec() * runMs / 1000 / 2);
+	}
+
+	@Test
+	public void testWritersWaitPastMaxWaitForTheBudget() throws InterruptedException {
+		HdfsAdmissionController controller = new HdfsAdmissionController(MAX_BYTES, MAX_BYTES, 10, 1000, 500, 1000, 50, 0.5);
+		long start = System.currentTimeMillis();
+		controller.acquire(MAX_BYTES, 1);
+		controller.acquire(MAX_BYTES / 2, 1);
+		assertTrue(System.currentTimeMillis() - start >= 400);
+	}
+
+	@Test
+	public void testDebtIsCappedAtASecondOfBudget() throws InterruptedException {
+		HdfsAdmissionController controller = newController();
+		// Larger than a second of budget, let through once the bucket is full
+		controller.acquire(3 * MAX_BYTES, 1);
+		assertTrue(controller.getByteTokens() >= -MAX_BYTES);
+		assertTrue(controller.getByteTokens() < 0);
+	}
+
+}
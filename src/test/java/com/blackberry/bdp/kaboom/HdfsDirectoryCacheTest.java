@@ -0,0 +1,57 @@
+/*
+ * Copyright 2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bdp.kaboom;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class HdfsDirectoryCacheTest {
+
+	private static final String DIR = "hdfs://nn/service/topic/data/2016/01/01/00/incoming";
+
+	@Test
+	public void testEntriesExpire() {
+		HdfsDirectoryCache cache = new HdfsDirectoryCache(1000, 10);
+		long now = System.currentTimeMillis();
+		assertFalse(cache.isKnown(DIR, now));
+		cache.markKnown(DIR, now);
+		assertTrue(cache.isKnown(DIR, now + 999));
+		assertFalse(cache.isKnown(DIR, now + 1000));
+	}
+
+	@Test
+	public void testInvalidate() {
+		HdfsDirectoryCache cache = new HdfsDirectoryCache(60000, 10);
+		cache.markKnown(DIR);
+		cache.invalidate(DIR);
+		assertFalse(cache.isKnown(DIR));
+	}
+
+	@Test
+	public void testBoundedSize() {
+		HdfsDirectoryCache cache = new HdfsDirectoryCache(1000, 2);
+		long now = System.currentTimeMillis();
+		cache.markKnown("a", now);
+		cache.markKnown("b", now);
+		cache.markKnown("c", now);
+		assertEquals(2, cache.size());
+		// Expired entries make room
+		cache.markKnown("c", now + 1000);
+		assertTrue(cache.isKnown("c", now + 1000));
+	}
+
+}
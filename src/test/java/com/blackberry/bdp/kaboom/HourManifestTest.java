@@ -0,0 +1,187 @@
+/*
+ * Copyright 2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bdp.kaboom;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class HourManifestTest {
+
+	private static final String ROOT = "/hour-manifests";
+	private static final long HOUR = 60L * 60L * 1000L;
+	private static CuratorFramework curator;
+	private static LocalZkServer zk;
+	private FileSystem fileSystem;
+	private File dir;
+
+	private final HourManifest.FileSystems fileSystems = new HourManifest.FileSystems() {
+		@Override
+		public FileSystem get(String proxyUser) throws Exception {
+			assertEquals("kaboom", proxyUser);
+			return fileSystem;
+		}
+
+	};
+
+	@BeforeClass
+	public static void setup() throws Exception {
+		zk = new LocalZkServer();
+		curator = CuratorFrameworkFactory.newClient("localhost:21818", new ExponentialBackoffRetry(1000, 3));
+		curator.start();
+	}
+
+	@AfterClass
+	public static void cleanup() throws Exception {
+		curator.close();
+		zk.shutdown();
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		fileSystem = FileSystem.getLocal(new Configuration());
+		dir = File.createTempFile("HourManifestTest", "");
+		dir.delete();
+		dir.mkdirs();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		fileSystem.delete(new Path(dir.getPath()), true);
+		if (curator.checkExists().forPath(ROOT) != null) {
+			curator.delete().deletingChildrenIfNeeded().forPath(ROOT);
+		}
+	}
+
+	private static HourManifest.Entry entry(String path, long offset) {
+		return new HourManifest.Entry(path, 1000 + offset, 10, offset, offset + 9);
+	}
+
+	private String hourDir(String name) throws IOException {
+		File hourDir = new File(dir, name);
+		hourDir.mkdirs();
+		return hourDir.getPath();
+	}
+
+	private void flagReady(String hourDir) throws IOException {
+		fileSystem.create(new Path(hourDir, "_READY")).close();
+	}
+
+	private List<String> nodes(long periodStart) throws Exception {
+		String path = ROOT + "/topic/" + periodStart;
+		return curator.checkExists().forPath(path) == null
+			 ? Collections.<String>emptyList() : curator.getChildren().forPath(path);
+	}
+
+	@Test
+	public void testEntryRoundTrip() throws IOException {
+		HourManifest.Entry entry = HourManifest.Entry.parse(entry("hdfs://nn/logs/00/topic/data/0-12.bm", 12).toString());
+		assertEquals("hdfs://nn/logs/00/topic/data/0-12.bm", entry.getPath());
+		assertEquals(1012, entry.getSize());
+		assertEquals(10, entry.getRecords());
+		assertEquals(12, entry.getFirstOffset());
+		assertEquals(21, entry.getLastOffset());
+	}
+
+	@Test(expected = IOException.class)
+	public void testRejectsAnInvalidEntry() throws IOException {
+		HourManifest.Entry.parse("0-12.bm\t1000\tten\t12\t21");
+	}
+
+	@Test
+	public void testBatchesAreBounded() throws IOException {
+		List<HourManifest.Entry> entries = new ArrayList<>();
+		for (int i = 0; i < 20000; i++) {
+			entries.add(entry("hdfs://nn/logs/2016/01/01/00/topic/data/" + i + "-" + (i * 1000L) + ".bm", i * 1000L));
+		}
+		List<byte[]> batches = HourManifest.encode("/logs/00/topic/data", "kaboom", entries);
+		assertTrue(batches.size() > 1);
+
+		List<HourManifest.Entry> decoded = new ArrayList<>();
+		for (byte[] batch : batches) {
+			assertTrue(batch.length <= HourManifest.MAX_NODE_BYTES);
+			HourManifest.Batch b = HourManifest.decode(batch);
+			assertEquals("/logs/00/topic/data", b.getDir());
+			assertEquals("kaboom", b.getProxyUser());
+			decoded.addAll(b.getEntries());
+		}
+		assertEquals(entries.size(), decoded.size());
+		for (int i = 0; i < entries.size(); i++) {
+			assertEquals(entries.get(i).toString(), decoded.get(i).toString());
+		}
+		assertTrue(HourManifest.encode("/logs/00/topic/data", "kaboom", new ArrayList<HourManifest.Entry>()).isEmpty());
+	}
+
+	@Test
+	public void testSealsReadyDirectories() throws Exception {
+		long periodStart = System.currentTimeMillis() / HOUR * HOUR;
+		String ready = hourDir("ready");
+		String notReady = hourDir("notReady");
+		HourManifest manifest = new HourManifest(curator, ROOT, "_READY", 24 * HOUR);
+		manifest.record("topic", periodStart, ready, "kaboom", "topic-0.1", Arrays.asList(entry(ready + "/0-100.bm", 100)));
+		manifest.record("topic", periodStart, ready, "kaboom", "topic-1.1", Arrays.asList(entry(ready + "/1-0.bm", 0)));
+		manifest.record("topic", periodStart, notReady, "kaboom", "topic-0.1", Arrays.asList(entry(notReady + "/0-100.bm", 100)));
+		assertEquals(3, nodes(periodStart).size());
+
+		assertEquals(0, manifest.seal(fileSystems, System.currentTimeMillis()));
+		flagReady(ready);
+		assertEquals(1, manifest.seal(fileSystems, System.currentTimeMillis()));
+
+		List<HourManifest.Entry> sealed = HourManifest.read(fileSystem, new Path(ready));
+		assertEquals(2, sealed.size());
+		assertEquals(ready + "/0-100.bm", sealed.get(0).getPath());
+		assertEquals(ready + "/1-0.bm", sealed.get(1).getPath());
+		assertEquals(109, sealed.get(0).getLastOffset());
+		assertFalse(fileSystem.exists(new Path(notReady, HourManifest.MANIFEST)));
+		assertEquals(1, nodes(periodStart).size());
+
+		// Late files are merged into the sealed manifest
+		manifest.record("topic", periodStart, ready, "kaboom", "topic-0.2", Arrays.asList(entry(ready + "/0-200.bm", 200)));
+		assertEquals(1, manifest.seal(fileSystems, System.currentTimeMillis()));
+		sealed = HourManifest.read(fileSystem, new Path(ready));
+		assertEquals(3, sealed.size());
+		assertEquals(ready + "/0-200.bm", sealed.get(1).getPath());
+		assertEquals(1, nodes(periodStart).size());
+	}
+
+	@Test
+	public void testDropsEntriesNeverFlaggedReady() throws Exception {
+		long periodStart = System.currentTimeMillis() / HOUR * HOUR - 48 * HOUR;
+		String notReady = hourDir("notReady");
+		HourManifest manifest = new HourManifest(curator, ROOT, "_READY", 24 * HOUR);
+		manifest.record("topic", periodStart, notReady, "kaboom", "topic-0.1", Arrays.asList(entry(notReady + "/0-100.bm", 100)));
+
+		assertEquals(0, manifest.seal(fileSystems, System.currentTimeMillis()));
+		assertFalse(fileSystem.exists(new Path(notReady, HourManifest.MANIFEST)));
+		assertNull(curator.checkExists().forPath(ROOT + "/topic/" + periodStart));
+	}
+
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bdp.kaboom;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class LiveTailRingTest {
+
+	private static byte[] message(long number, int length) {
+		byte[] bytes = new byte[length];
+		Arrays.fill(bytes, (byte) number);
+		return bytes;
+	}
+
+	private static void assertMessage(LiveTailRing.Message message, long number, int length) {
+		assertEquals(number, message.getNumber());
+		assertEquals(1000 + number, message.getOffset());
+		assertEquals(2000 + number, message.getTimestamp());
+		assertEquals(length, message.getLength());
+		assertArrayEquals(message(number, length), Arrays.copyOf(message.getBytes(), message.getLength()));
+	}
+
+	@Test
+	public void testAppendAndRead() {
+		LiveTailRing ring = new LiveTailRing("topic", 3, 1024, 16);
+		ring.subscribe();
+		assertEquals("topic", ring.getTopic());
+		assertEquals(3, ring.getPartition());
+		LiveTailRing.Message message = new LiveTailRing.Message();
+		assertFalse(ring.read(0, message));
+
+		for (long n = 0; n < 5; n++) {
+			assertTrue(ring.append(1000 + n, 2000 + n, message(n, 20), 0, 20));
+		}
+		assertEquals(5, ring.getHead());
+		assertEquals(0, ring.getTail());
+		for (long n = 0; n < 5; n++) {
+			assertTrue(ring.read(n, message));
+			assertMessage(message, n, 20);
+		}
+		assertFalse(ring.read(5, message));
+	}
+
+	@Test
+	public void testWrapsBytesAroundTheEnd() {
+		LiveTailRing ring = new LiveTailRing("topic", 0, 64, 4);
+		ring.subscribe();
+		LiveTailRing.Message message = new LiveTailRing.Message();
+		for (long n = 0; n < 100; n++) {
+			assertTrue(ring.append(1000 + n, 2000 + n, message(n, 13), 0, 13));
+			assertTrue(ring.read(n, message));
+			assertMessage(message, n, 13);
+		}
+	}
+
+	@Test
+	public void testOverwritesTheOldestMessages() {
+		// Four entries
+		LiveTailRing ring = new LiveTailRing("topic", 0, 1024, 4);
+		ring.subscribe();
+		LiveTailRing.Message message = new LiveTailRing.Message();
+		for (long n = 0; n < 6; n++) {
+			ring.append(1000 + n, 2000 + n, message(n, 10), 0, 10);
+		}
+		assertEquals(2, ring.getTail());
+		assertFalse(ring.read(1, message));
+		assertTrue(ring.read(2, message));
+		assertMessage(message, 2, 10);
+
+		// 64 bytes hold four 16 byte messages
+		ring = new LiveTailRing("topic", 0, 64, 1024);
+		ring.subscribe();
+		for (long n = 0; n < 6; n++) {
+			ring.append(1000 + n, 2000 + n, message(n, 16), 0, 16);
+		}
+		assertFalse(ring.read(1, message));
+		assertTrue(ring.read(2, message));
+		assertMessage(message, 2, 16);
+	}
+
+	@Test
+	public void testSkipsMessagesTooLargeToKeep() {
+		LiveTailRing ring = new LiveTailRing("topic", 0, 64, 16);
+		ring.subscribe();
+		assertFalse(ring.append(1, 1, new byte[17], 0, 17));
+		assertEquals(0, ring.getHead());
+		assertEquals(1, ring.getSkipped());
+		assertTrue(ring.append(1, 1, new byte[16], 0, 16));
+	}
+
+	@Test
+	public void testFind() {
+		LiveTailRing ring = new LiveTailRing("topic", 0, 1024, 8);
+		ring.subscribe();
+		assertEquals(0, ring.find(0));
+		long[] timestamps = {100, 200, 150, 300, 400, 500, 600, 700, 800, 900};
+		for (int n = 0; n < timestamps.length; n++) {
+			ring.append(n, timestamps[n], new byte[1], 0, 1);
+		}
+		// The first two have been overwritten
+		assertEquals(2, ring.find(0));
+		assertEquals(3, ring.find(160));
+		assertEquals(9, ring.find(900));
+		assertEquals(10, ring.find(901));
+	}
+
+	@Test
+	public void testConcurrentReadsAreNeverTorn() throws Exception {
+		final LiveTailRing ring = new LiveTailRing("topic", 0, 4096, 64);
+		ring.subscribe();
+		final AtomicBoolean done = new AtomicBoolean(false);
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				for (long n = 0; n < 2000000; n++) {
+					int length = 1 + (int) (n % 200);
+					ring.append(1000 + n, 2000 + n, message(n, length), 0, length);
+				}
+				done.set(true);
+			}
+
+		});
+		writer.start();
+
+		LiveTailRing.Message message = new LiveTailRing.Message();
+		long number = 0;
+		long read = 0;
+		long lost = 0;
+		while (!done.get() || number < ring.getHead()) {
+			if (number >= ring.getHead()) {
+				continue;
+			}
+			if (ring.read(number, message)) {
+				assertMessage(message, number, 1 + (int) (number % 200));
+				read++;
+				number++;
+			} else {
+				long tail = Math.max(number + 1, ring.getTail());
+				lost += tail - number;
+				number = tail;
+			}
+		}
+		writer.join();
+		assertEquals(2000000, read + lost);
+		assertTrue(read > 0);
+	}
+
+	@Test
+	public void testKeepsNothingUntilSubscribed() {
+		LiveTailRing ring = new LiveTailRing("topic", 0, 1024, 16);
+		LiveTailRing.Message message = new LiveTailRing.Message();
+		assertFalse(ring.append(1000, 2000, message(0, 10), 0, 10));
+		assertEquals(0, ring.getHead());
+		assertEquals(0, ring.getSkipped());
+		assertEquals(0, ring.find(0));
+		assertFalse(ring.read(0, message));
+
+		ring.subscribe();
+		assertTrue(ring.append(1000, 2000, message(0, 10), 0, 10));
+		assertEquals(1, ring.getHead());
+		assertTrue(ring.read(0, message));
+		assertMessage(message, 0, 10);
+	}
+
+	@Test
+	public void testCapacityIsCappedAtAGigabyte() {
+		// Never subscribed so never allocated
+		assertEquals(1 << 30, new LiveTailRing("topic", 0, 4096L * 1024 * 1024, 16).getCapacityBytes());
+		assertEquals(1 << 30, new LiveTailRing("topic", 0, 1024L * 1024 * 1024, 16).getCapacityBytes());
+		assertEquals(1024, new LiveTailRing("topic", 0, 1000, 16).getCapacityBytes());
+	}
+
+}
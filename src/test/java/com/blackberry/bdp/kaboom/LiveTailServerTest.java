@@ -0,0 +1,136 @@
+/*
+ * Copyright 2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bdp.kaboom;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class LiveTailServerTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF8");
+	private LiveTailServer server;
+	private Socket socket;
+
+	@After
+	public void tearDown() throws IOException {
+		if (socket != null) {
+			socket.close();
+		}
+		if (server != null) {
+			server.close();
+		}
+	}
+
+	private DataInputStream subscribe(String request) throws IOException {
+		socket = new Socket("127.0.0.1", server.getPort());
+		socket.setSoTimeout(10000);
+		socket.getOutputStream().write((request + "\n").getBytes(UTF8));
+		socket.getOutputStream().flush();
+		return new DataInputStream(socket.getInputStream());
+	}
+
+	/**
+	 * Reads frames until a message, skipping heartbeats
+	 */
+	private static String readMessage(DataInputStream in, int partition, long offset, long timestamp) throws IOException {
+		int type;
+		while ((type = in.readByte()) == 'H') {
+			in.readLong();
+		}
+		assertEquals('M', type);
+		assertEquals(partition, in.readInt());
+		assertEquals(offset, in.readLong());
+		assertEquals(timestamp, in.readLong());
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	private static void append(LiveTailRing ring, long offset, long timestamp, String line) {
+		byte[] bytes = ("xx" + line).getBytes(UTF8);
+		ring.append(offset, timestamp, bytes, 2, bytes.length - 2);
+	}
+
+	@Test
+	public void testTailsFromTheTime() throws Exception {
+		server = new LiveTailServer("127.0.0.1", 0, 4, 1);
+		server.start();
+		assertTrue(server.getPort() > 0);
+
+		// Subscribed to by an earlier client, so it's already keeping messages
+		LiveTailRing ring = new LiveTailRing("topic", 7, 1024, 16);
+		ring.subscribe();
+		server.register(ring);
+		server.register(new LiveTailRing("other", 1, 1024, 16));
+		append(ring, 10, 1000, "old");
+		append(ring, 11, 2000, "first");
+		append(ring, 12, 3000, "second");
+
+		DataInputStream in = subscribe("topic 2000");
+		assertEquals("first", readMessage(in, 7, 11, 2000));
+		assertEquals("second", readMessage(in, 7, 12, 3000));
+
+		// New messages, and new partitions, follow
+		append(ring, 13, 4000, "third");
+		assertEquals("third", readMessage(in, 7, 13, 4000));
+		LiveTailRing added = new LiveTailRing("topic", 8, 1024, 16);
+		added.subscribe();
+		append(added, 50, 5000, "added");
+		server.register(added);
+		assertEquals("added", readMessage(in, 8, 50, 5000));
+	}
+
+	@Test
+	public void testSendsHeartbeatsWhileIdle() throws Exception {
+		server = new LiveTailServer("127.0.0.1", 0, 4, 1);
+		server.start();
+		DataInputStream in = subscribe("topic");
+		assertEquals('H', in.readByte());
+		assertTrue(in.readLong() > 0);
+	}
+
+	@Test
+	public void testRejectsAnInvalidRequest() throws Exception {
+		server = new LiveTailServer("127.0.0.1", 0, 4, 1);
+		server.start();
+		DataInputStream in = subscribe("topic soon");
+		assertEquals('E', in.readByte());
+		assertTrue(in.readUTF().contains("soon"));
+		assertEquals(-1, in.read());
+	}
+
+	@Test
+	public void testRejectsConnectionsPastTheMaximum() throws Exception {
+		server = new LiveTailServer("127.0.0.1", 0, 1, 1);
+		server.start();
+		DataInputStream in = subscribe("topic");
+		// Served once it's heartbeating
+		assertEquals('H', in.readByte());
+
+		try (Socket second = new Socket("127.0.0.1", server.getPort())) {
+			second.setSoTimeout(10000);
+			DataInputStream secondIn = new DataInputStream(second.getInputStream());
+			assertEquals('E', secondIn.readByte());
+			assertEquals("too many connections", secondIn.readUTF());
+		}
+	}
+
+}
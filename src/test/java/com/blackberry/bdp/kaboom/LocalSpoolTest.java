@@ -0,0 +1,266 @@
+/*
+ * Copyright 2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bdp.kaboom;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class LocalSpoolTest {
+
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("kaboom-spool-test").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	private static class RecordingSink implements LocalSpool.Sink {
+
+		private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		private int syncs = 0;
+		private boolean fail = false;
+		private CountDownLatch gate = new CountDownLatch(0);
+		private final CountDownLatch writing = new CountDownLatch(1);
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			writing.countDown();
+			try {
+				gate.await();
+			} catch (InterruptedException ie) {
+				throw new IOException(ie);
+			}
+			append(bytes, offset, length);
+		}
+
+		private synchronized void append(byte[] bytes, int offset, int length) throws IOException {
+			if (fail) {
+				throw new IOException("sink failure");
+			}
+			out.write(bytes, offset, length);
+		}
+
+		@Override
+		public synchronized void sync() throws IOException {
+			syncs++;
+		}
+
+		private synchronized byte[] bytes() {
+			return out.toByteArray();
+		}
+
+	}
+
+	private int spoolFiles() {
+		int count = 0;
+		for (File file : dir.listFiles()) {
+			if (file.getName().endsWith(".spool")) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private static void slow(LocalSpool spool) {
+		for (int i = 0; i < 20; i++) {
+			spool.recordLatency(1000);
+		}
+	}
+
+	@Test
+	public void testSlowOnlyAboveThreshold() throws IOException {
+		LocalSpool spool = new LocalSpool(dir, 1024, 8192, 100, 1);
+		assertFalse(spool.isSlow());
+		slow(spool);
+		assertTrue(spool.isSlow());
+		for (int i = 0; i < 50; i++) {
+			spool.recordLatency(0);
+		}
+		assertFalse(spool.isSlow());
+	}
+
+	@Test
+	public void testDrainShipsEverythingInOrder() throws IOException {
+		LocalSpool spool = new LocalSpool(dir, 1024, 64 * 1024, 100, 2);
+		slow(spool);
+		RecordingSink sink = new RecordingSink();
+		LocalSpool.Channel channel = spool.open("topic-0", sink);
+
+		byte[] data = new byte[10000];
+		new Random(7).nextBytes(data);
+		for (int i = 0; i < data.length; i += 333) {
+			channel.append(data, i, Math.min(333, data.length - i));
+		}
+		assertTrue(channel.isActive());
+
+		channel.drain();
+		assertFalse(channel.isActive());
+		assertArrayEquals(data, sink.bytes());
+		assertTrue(sink.syncs >= 10);
+		assertEquals(0, spoolFiles());
+	}
+
+	@Test
+	public void testShipsOnItsOwnOnceHealthy() throws Exception {
+		LocalSpool spool = new LocalSpool(dir, 1024, 64 * 1024, 100, 1);
+		RecordingSink sink = new RecordingSink();
+		LocalSpool.Channel channel = spool.open("topic-0", sink);
+
+		byte[] data = new byte[100];
+		Arrays.fill(data, (byte) 'x');
+		channel.append(data, 0, data.length);
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (channel.isActive() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertFalse(channel.isActive());
+		assertArrayEquals(data, sink.bytes());
+	}
+
+	@Test
+	public void testBoundedByMaxBytes() throws Exception {
+		final LocalSpool spool = new LocalSpool(dir, 1024, 2048, 100, 1);
+		slow(spool);
+		RecordingSink sink = new RecordingSink();
+		// HDFS hangs, nothing can be shipped
+		sink.gate = new CountDownLatch(1);
+		final LocalSpool.Channel channel = spool.open("topic-0", sink);
+
+		final byte[] data = new byte[4096];
+		new Random(11).nextBytes(data);
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					channel.append(data, 0, data.length);
+				} catch (IOException ioe) {
+					throw new RuntimeException(ioe);
+				}
+			}
+
+		};
+		writer.start();
+		writer.join(500);
+		assertTrue("the writer should be waiting for spool space", writer.isAlive());
+		assertTrue(spoolFiles() <= 2);
+
+		sink.gate.countDown();
+		writer.join(5000);
+		assertFalse(writer.isAlive());
+		channel.drain();
+		assertArrayEquals(data, sink.bytes());
+	}
+
+	@Test
+	public void testFailureIsReported() throws Exception {
+		LocalSpool spool = new LocalSpool(dir, 1024, 64 * 1024, 100, 1);
+		RecordingSink sink = new RecordingSink();
+		sink.fail = true;
+		LocalSpool.Channel channel = spool.open("topic-0", sink);
+
+		byte[] data = new byte[3000];
+		try {
+			// The failure can surface on either the append or the drain
+			channel.append(data, 0, data.length);
+			channel.drain();
+			fail("the shipping failure should be reported");
+		} catch (IOException ioe) {
+			// expected
+		}
+		try {
+			channel.append(data, 0, 1);
+			fail("append should report the shipping failure");
+		} catch (IOException ioe) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testDiscardReleasesSegments() throws IOException {
+		LocalSpool spool = new LocalSpool(dir, 1024, 64 * 1024, 100, 1);
+		slow(spool);
+		RecordingSink sink = new RecordingSink();
+		LocalSpool.Channel channel = spool.open("topic-0", sink);
+
+		byte[] data = new byte[2500];
+		channel.append(data, 0, data.length);
+		channel.discard();
+		assertFalse(channel.isActive());
+		assertEquals(0, spoolFiles());
+		channel.drain();
+	}
+
+	@Test
+	public void testDiscardWaitsForTheShipper() throws Exception {
+		LocalSpool spool = new LocalSpool(dir, 1024, 64 * 1024, 100, 1);
+		RecordingSink sink = new RecordingSink();
+		// HDFS hangs mid shipment
+		sink.gate = new CountDownLatch(1);
+		final LocalSpool.Channel channel = spool.open("topic-0", sink);
+
+		byte[] data = new byte[3000];
+		channel.append(data, 0, data.length);
+		sink.writing.await();
+
+		Thread discarder = new Thread() {
+			@Override
+			public void run() {
+				channel.discard();
+			}
+
+		};
+		discarder.start();
+		discarder.join(300);
+		assertTrue("discard should wait for the shipper's write", discarder.isAlive());
+
+		sink.gate.countDown();
+		discarder.join(5000);
+		assertFalse(discarder.isAlive());
+		// Only the chunk that was being written when it was discarded was shipped
+		assertEquals(1024, sink.bytes().length);
+		assertEquals(0, spoolFiles());
+	}
+
+	@Test
+	public void testLeftoverSegmentsDeleted() throws IOException {
+		File leftover = new File(dir, "topic-0-1.spool");
+		assertTrue(leftover.createNewFile());
+		new LocalSpool(dir, 1024, 8192, 100, 1);
+		assertFalse(leftover.exists());
+	}
+
+}
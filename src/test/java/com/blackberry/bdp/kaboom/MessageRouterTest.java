@@ -0,0 +1,78 @@
+/*
+ * Copyright 2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bdp.kaboom;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+
+public class MessageRouterTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static String line(MessageRouter router, byte[] bytes) {
+		return new String(bytes, router.getPos(), bytes.length - router.getPos(), UTF8);
+	}
+
+	@Test
+	public void testParsesPriVersionAndTimestamp() {
+		MessageRouter router = new MessageRouter("topic", "topic-0", null);
+		byte[] bytes = "<14>1 2014-06-02T17:56:12.219+0000 host app: hello".getBytes(UTF8);
+
+		assertTrue(router.parse(bytes, bytes.length));
+		assertEquals(1401731772219L, router.getTimestamp());
+		assertEquals("host app: hello", line(router, bytes));
+		assertTrue(router.route(bytes, bytes.length));
+		assertNull(router.getDataDirectory());
+	}
+
+	@Test
+	public void testUnparseableTimestampIsNow() {
+		MessageRouter router = new MessageRouter("topic", "topic-0", null);
+		byte[] bytes = "no timestamp here".getBytes(UTF8);
+
+		long before = System.currentTimeMillis();
+		assertTrue(router.parse(bytes, bytes.length));
+		assertTrue(router.getTimestamp() >= before);
+		assertEquals("no timestamp here", line(router, bytes));
+	}
+
+	@Test
+	public void testFilterSetDropsAndRoutes() {
+		Map<Integer, String> specs = new HashMap<>();
+		specs.put(1, "drop:severity:7");
+		specs.put(2, "route=audit:prefix:AUDIT");
+		MessageRouter router = new MessageRouter("topic", "topic-0", new FilterSet(specs));
+
+		byte[] debug = "<15>2014-06-02T17:56:12.219+0000 AUDIT debug".getBytes(UTF8);
+		assertTrue(router.parse(debug, debug.length));
+		assertFalse(router.route(debug, debug.length));
+
+		byte[] audit = "<14>2014-06-02T17:56:12.219+0000 AUDIT login".getBytes(UTF8);
+		assertTrue(router.parse(audit, audit.length));
+		assertTrue(router.route(audit, audit.length));
+		assertEquals("audit", router.getDataDirectory());
+
+		byte[] other = "<14>2014-06-02T17:56:12.219+0000 login".getBytes(UTF8);
+		assertTrue(router.parse(other, other.length));
+		assertTrue(router.route(other, other.length));
+		assertNull(router.getDataDirectory());
+	}
+
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bdp.kaboom;
+
+import static org.junit.Assert.*;
+
+import com.blackberry.bdp.kaboom.NameNodeRateLimiter.Priority;
+import org.junit.Test;
+
+public class NameNodeRateLimiterTest {
+
+	@Test
+	public void testReservedTokensOnlyForHighPriority() {
+		NameNodeRateLimiter limiter = new NameNodeRateLimiter(100, 0.5, 0);
+		for (int i = 0; i < 50; i++) {
+			assertEquals(0, limiter.tryAcquire(Priority.LOW, 0));
+		}
+		assertTrue(limiter.tryAcquire(Priority.LOW, 0) > 0);
+
+		// The reserve is still there for flushes and closes
+		for (int i = 0; i < 50; i++) {
+			assertEquals(0, limiter.tryAcquire(Priority.HIGH, 0));
+		}
+		assertTrue(limiter.tryAcquire(Priority.HIGH, 0) > 0);
+
+		// ...but a create has to wait for the bucket to refill past the reserve
+		assertEquals(510, limiter.tryAcquire(Priority.LOW, 0));
+		assertTrue(limiter.tryAcquire(Priority.LOW, 500) > 0);
+		assertEquals(0, limiter.tryAcquire(Priority.LOW, 510));
+	}
+
+	@Test
+	public void testBucketNeverHoldsMoreThanASecond() {
+		NameNodeRateLimiter limiter = new NameNodeRateLimiter(10, 0, 0);
+		for (int i = 0; i < 10; i++) {
+			assertEquals(0, limiter.tryAcquire(Priority.LOW, 60000));
+		}
+		assertEquals(100, limiter.tryAcquire(Priority.LOW, 60000));
+	}
+
+	@Test
+	public void testAcquireWaitsForTheRefill() throws InterruptedException {
+		NameNodeRateLimiter limiter = new NameNodeRateLimiter(100, 0.5);
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < 50; i++) {
+			limiter.acquire(Priority.LOW);
+		}
+		for (int i = 0; i < 50; i++) {
+			limiter.acquire(Priority.HIGH);
+		}
+		limiter.acquire(Priority.LOW);
+		assertTrue(System.currentTimeMillis() - start >= 400);
+	}
+
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bdp.kaboom;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+public class ParallelCatchUpTest {
+
+	@Test
+	public void testSplitCoversBacklogWithoutGaps() {
+		List<long[]> ranges = ParallelCatchUp.split(1000, 10500, 2000);
+		assertEquals(5, ranges.size());
+
+		long expectedStart = 1000;
+		for (long[] range : ranges) {
+			assertEquals(expectedStart, range[0]);
+			assertTrue(range[1] > range[0]);
+			expectedStart = range[1];
+		}
+		assertEquals(10500, expectedStart);
+	}
+
+	@Test
+	public void testSplitEmptyBacklog() {
+		assertTrue(ParallelCatchUp.split(500, 500, 100).isEmpty());
+	}
+
+	@Test
+	public void testStateRoundTrip() {
+		List<long[]> ranges = new ArrayList<>();
+		ranges.add(new long[]{1500, 3000});
+		ranges.add(new long[]{5000, 7000});
+		String state = ParallelCatchUp.encode(12345, ranges);
+		assertEquals("12345;1500-3000,5000-7000", state);
+
+		assertEquals(12345, ParallelCatchUp.decodeTailOffset(state));
+		List<long[]> decoded = ParallelCatchUp.decodeRanges(state);
+		assertEquals(2, decoded.size());
+		assertArrayEquals(ranges.get(0), decoded.get(0));
+		assertArrayEquals(ranges.get(1), decoded.get(1));
+	}
+
+	@Test
+	public void testStateWithOnlyTheTailLeft() {
+		String state = ParallelCatchUp.encode(20000, new ArrayList<long[]>());
+		assertEquals("20000;", state);
+		assertEquals(20000, ParallelCatchUp.decodeTailOffset(state));
+		assertTrue(ParallelCatchUp.decodeRanges(state).isEmpty());
+	}
+
+}
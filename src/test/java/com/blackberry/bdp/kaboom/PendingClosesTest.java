@@ -0,0 +1,160 @@
+/*
+ * Copyright 2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bdp.kaboom;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PendingClosesTest {
+
+	private PendingCloses<String> pendingCloses;
+	private ExecutorService closer;
+
+	@Before
+	public void setUp() {
+		pendingCloses = new PendingCloses<>("topic-0");
+		closer = Executors.newFixedThreadPool(2);
+	}
+
+	@After
+	public void tearDown() {
+		closer.shutdownNow();
+	}
+
+	private FutureTask<Void> close(final CountDownLatch release, final boolean fail) {
+		FutureTask<Void> close = new FutureTask<>(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				release.await();
+				if (fail) {
+					throw new IOException("datanode went away");
+				}
+				return null;
+			}
+
+		});
+		closer.execute(close);
+		return close;
+	}
+
+	@Test
+	public void testWaitsOnEveryCloseOfTheShift() throws Exception {
+		CountDownLatch first = new CountDownLatch(1);
+		CountDownLatch second = new CountDownLatch(1);
+		pendingCloses.add(1, "a.bm", "a.bm", close(first, false));
+		pendingCloses.add(1, "b.bm", "b.bm", close(second, false));
+
+		assertFalse(pendingCloses.complete(1));
+		first.countDown();
+		pendingCloses.await(0);
+		assertFalse(pendingCloses.complete(1));
+
+		second.countDown();
+		pendingCloses.await(1);
+		assertTrue(pendingCloses.complete(1));
+		assertTrue(pendingCloses.getCloses().isEmpty());
+	}
+
+	@Test
+	public void testEarlierShiftsHoldBackLaterOnes() throws Exception {
+		CountDownLatch earlier = new CountDownLatch(1);
+		CountDownLatch later = new CountDownLatch(0);
+		pendingCloses.add(1, "a.bm", "a.bm", close(earlier, false));
+		pendingCloses.add(2, "b.bm", "b.bm", close(later, false));
+		pendingCloses.getCloses().get(1).getFuture().get();
+
+		// Shift 2's own files are closed but shift 1's offset comes first
+		assertFalse(pendingCloses.complete(2));
+
+		earlier.countDown();
+		pendingCloses.await(2);
+		assertTrue(pendingCloses.complete(2));
+	}
+
+	@Test
+	public void testLaterShiftsDontHoldBackEarlierOnes() throws Exception {
+		CountDownLatch earlier = new CountDownLatch(0);
+		CountDownLatch later = new CountDownLatch(1);
+		pendingCloses.add(1, "a.bm", "a.bm", close(earlier, false));
+		pendingCloses.add(2, "b.bm", "b.bm", close(later, false));
+
+		pendingCloses.await(1);
+		assertTrue(pendingCloses.complete(1));
+		assertFalse(pendingCloses.complete(2));
+		assertEquals(1, pendingCloses.getCloses().size());
+
+		later.countDown();
+		pendingCloses.await(2);
+		assertTrue(pendingCloses.complete(2));
+	}
+
+	@Test
+	public void testFailedCloseIsReportedOnceAndKeptForAbort() throws Exception {
+		pendingCloses.add(1, "a.bm", "a.bm", close(new CountDownLatch(0), true));
+		pendingCloses.add(1, "b.bm", "b.bm", close(new CountDownLatch(0), false));
+		pendingCloses.await(1);
+
+		try {
+			pendingCloses.complete(1);
+			fail("the failed close wasn't reported");
+		} catch (IOException ioe) {
+			assertTrue(ioe.getMessage().contains("a.bm"));
+		}
+		assertEquals(Arrays.asList("a.bm"), pendingCloses.getFailed());
+
+		assertTrue(pendingCloses.complete(1));
+		assertEquals(Arrays.asList("a.bm"), pendingCloses.getFailed());
+	}
+
+	@Test
+	public void testAwaitLeavesFailuresToComplete() throws Exception {
+		pendingCloses.add(1, "a.bm", "a.bm", close(new CountDownLatch(0), true));
+		pendingCloses.await(1);
+		assertTrue(pendingCloses.getFailed().isEmpty());
+
+		try {
+			pendingCloses.complete(1);
+			fail("the failed close wasn't reported");
+		} catch (IOException ioe) {
+			assertEquals(1, pendingCloses.getFailed().size());
+		}
+	}
+
+	@Test
+	public void testSharedFilesArentKeptForAbort() throws Exception {
+		pendingCloses.add(1, null, "shared.bm", close(new CountDownLatch(0), true));
+		pendingCloses.await(1);
+
+		try {
+			pendingCloses.complete(1);
+			fail("the failed close wasn't reported");
+		} catch (IOException ioe) {
+			assertTrue(ioe.getMessage().contains("shared.bm"));
+		}
+		assertTrue(pendingCloses.getFailed().isEmpty());
+	}
+
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bdp.kaboom;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single Kafka 0.8 broker that leads every partition, has no messages and
+ * records the fetch requests it's sent
+ */
+public class RecordingKafkaBroker {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final short FETCH = 1;
+	private static final short OFFSETS = 2;
+	private static final short METADATA = 3;
+
+	private final ServerSocket serverSocket;
+	private final BlockingQueue<FetchRequest> fetchRequests = new LinkedBlockingQueue<>();
+	private final Thread acceptor;
+
+	public static class FetchRequest {
+
+		private final int maxWaitMs;
+		private final int minBytes;
+		private final long offset;
+		private final int maxBytes;
+
+		private FetchRequest(int maxWaitMs, int minBytes, long offset, int maxBytes) {
+			this.maxWaitMs = maxWaitMs;
+			this.minBytes = minBytes;
+			this.offset = offset;
+			this.maxBytes = maxBytes;
+		}
+
+		public int getMaxWaitMs() {
+			return maxWaitMs;
+		}
+
+		public int getMinBytes() {
+			return minBytes;
+		}
+
+		public long getOffset() {
+			return offset;
+		}
+
+		public int getMaxBytes() {
+			return maxBytes;
+		}
+
+	}
+
+	public RecordingKafkaBroker() throws IOException {
+		serverSocket = new ServerSocket(0, 50, InetAddress.getByName("localhost"));
+		acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (!serverSocket.isClosed()) {
+					try {
+						final Socket socket = serverSocket.accept();
+						Thread connection = new Thread(new Runnable() {
+							@Override
+							public void run() {
+								serve(socket);
+							}
+
+						});
+						connection.setDaemon(true);
+						connection.start();
+					} catch (IOException ioe) {
+						return;
+					}
+				}
+			}
+
+		});
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * @param timeoutMs
+	 * @return the next fetch request sent to the broker, null if none came in time
+	 * @throws InterruptedException
+	 */
+	public FetchRequest nextFetchRequest(long timeoutMs) throws InterruptedException {
+		return fetchRequests.poll(timeoutMs, TimeUnit.MILLISECONDS);
+	}
+
+	public void shutdown() throws IOException {
+		serverSocket.close();
+	}
+
+	private void serve(Socket socket) {
+		try (Socket s = socket) {
+			DataInputStream in = new DataInputStream(s.getInputStream());
+			DataOutputStream out = new DataOutputStream(s.getOutputStream());
+			while (true) {
+				byte[] request = new byte[in.readInt()];
+				in.readFully(request);
+				ByteBuffer buffer = ByteBuffer.wrap(request);
+				short apiKey = buffer.getShort();
+				buffer.getShort();
+				int correlationId = buffer.getInt();
+				readString(buffer);
+
+				ByteBuffer response = ByteBuffer.allocate(64 * 1024);
+				response.putInt(correlationId);
+				switch (apiKey) {
+					case METADATA:
+						metadata(buffer, response);
+						break;
+					case OFFSETS:
+						offsets(buffer, response);
+						break;
+					case FETCH:
+						fetch(buffer, response);
+						break;
+					default:
+						return;
+				}
+				response.flip();
+				out.writeInt(response.remaining());
+				out.write(response.array(), 0, response.remaining());
+				out.flush();
+			}
+		} catch (IOException ioe) {
+			// The client went away
+		}
+	}
+
+	private void metadata(ByteBuffer request, ByteBuffer response) {
+		response.putInt(1);
+		response.putInt(0);
+		putString(response, "localhost");
+		response.putInt(getPort());
+
+		int topics = request.getInt();
+		response.putInt(topics);
+		for (int i = 0; i < topics; i++) {
+			response.putShort((short) 0);
+			putString(response, readString(request));
+			response.putInt(1);
+			response.putShort((short) 0);
+			response.putInt(0);
+			response.putInt(0);
+			response.putInt(1);
+			response.putInt(0);
+			response.putInt(1);
+			response.putInt(0);
+		}
+	}
+
+	private void offsets(ByteBuffer request, ByteBuffer response) {
+		request.getInt();
+		int topics = request.getInt();
+		response.putInt(topics);
+		for (int i = 0; i < topics; i++) {
+			putString(response, readString(request));
+			int partitions = request.getInt();
+			response.putInt(partitions);
+			for (int j = 0; j < partitions; j++) {
+				response.putInt(request.getInt());
+				request.getLong();
+				request.getInt();
+				response.putShort((short) 0);
+				response.putInt(1);
+				response.putLong(0);
+			}
+		}
+	}
+
+	private void fetch(ByteBuffer request, ByteBuffer response) {
+		request.getInt();
+		int maxWaitMs = request.getInt();
+		int minBytes = request.getInt();
+		int topics = request.getInt();
+		response.putInt(topics);
+		for (int i = 0; i < topics; i++) {
+			putString(response, readString(request));
+			int partitions = request.getInt();
+			response.putInt(partitions);
+			for (int j = 0; j < partitions; j++) {
+				int partition = request.getInt();
+				long offset = request.getLong();
+				int maxBytes = request.getInt();
+				fetchRequests.add(new FetchRequest(maxWaitMs, minBytes, offset, maxBytes));
+
+				response.putInt(partition);
+				response.putShort((short) 0);
+				response.putLong(offset);
+				response.putInt(0);
+			}
+		}
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		short length = buffer.getShort();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	private static void putString(ByteBuffer buffer, String string) {
+		byte[] bytes = string.getBytes(UTF8);
+		buffer.putShort((short) bytes.length);
+		buffer.put(bytes);
+	}
+
+}
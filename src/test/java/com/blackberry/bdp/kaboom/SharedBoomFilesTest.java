@@ -0,0 +1,176 @@
+/*
+ * Copyright 2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bdp.kaboom;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class SharedBoomFilesTest {
+
+	private int opened = 0;
+	private int closed = 0;
+	private int aborted = 0;
+
+	private Callable<SharedBoomFile> opener() {
+		return new Callable<SharedBoomFile>() {
+			@Override
+			public SharedBoomFile call() throws Exception {
+				opened++;
+				return new SharedBoomFile(null) {
+					@Override
+					protected void closeFile(String sidecar) throws Exception {
+						closed++;
+					}
+
+					@Override
+					protected void abortFile() throws Exception {
+						aborted++;
+					}
+
+				};
+			}
+
+		};
+	}
+
+	@Test
+	public void testClosedByLastRelease() throws Exception {
+		SharedBoomFiles files = new SharedBoomFiles(null);
+		SharedBoomFile a = files.acquire("topic:0", "topic-0", opener());
+		SharedBoomFile b = files.acquire("topic:0", "topic-1", opener());
+		assertSame(a, b);
+		assertEquals(1, opened);
+
+		Future<Void> first = files.release("topic:0", a, "topic-0");
+		assertFalse(first.isDone());
+		assertEquals(0, closed);
+
+		Future<Void> last = files.release("topic:0", b, "topic-1");
+		assertTrue(first.isDone());
+		assertSame(first, last);
+		assertEquals(1, closed);
+		assertEquals(0, files.size());
+	}
+
+	@Test
+	public void testReleasedHolderGetsNewFile() throws Exception {
+		SharedBoomFiles files = new SharedBoomFiles(null);
+		SharedBoomFile a = files.acquire("topic:0", "topic-0", opener());
+		files.acquire("topic:0", "topic-1", opener());
+		files.release("topic:0", a, "topic-0");
+		SharedBoomFile b = files.acquire("topic:0", "topic-0", opener());
+		assertNotSame(a, b);
+		assertFalse(a.retain("topic-2"));
+	}
+
+	@Test
+	public void testFirstReleaseSealsForTheOtherHolders() throws Exception {
+		SharedBoomFiles files = new SharedBoomFiles(null);
+		SharedBoomFile a = files.acquire("topic:0", "topic-0", opener());
+		files.acquire("topic:0", "topic-1", opener());
+
+		Future<Void> first = files.release("topic:0", a, "topic-0");
+		// topic-1 is told to let go on its next line instead of at its shift's end
+		assertFalse(a.writeLine(1, 100L, 0L, new byte[1], 0, 1));
+		assertFalse(first.isDone());
+
+		SharedBoomFile b = files.acquire("topic:0", "topic-1", opener());
+		assertNotSame(a, b);
+		Future<Void> last = files.release("topic:0", a, "topic-1");
+		assertSame(first, last);
+		assertTrue(first.isDone());
+		first.get();
+		assertEquals(1, closed);
+		assertEquals(0, aborted);
+	}
+
+	@Test
+	public void testAbortFailsEveryHoldersClose() throws Exception {
+		SharedBoomFiles files = new SharedBoomFiles(null);
+		SharedBoomFile a = files.acquire("topic:0", "topic-0", opener());
+		files.acquire("topic:0", "topic-1", opener());
+
+		Future<Void> aborting = files.abort("topic:0", a, "topic-0");
+		assertFalse(aborting.isDone());
+		try {
+			a.writeLine(1, 100L, 0L, new byte[1], 0, 1);
+			fail("wrote to an aborted shared file");
+		} catch (IOException e) {
+			// expected
+		}
+
+		Future<Void> other = files.release("topic:0", a, "topic-1");
+		assertSame(aborting, other);
+		assertTrue(other.isDone());
+		try {
+			other.get();
+			fail("the other holder's commit went ahead");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+		assertEquals(0, closed);
+		assertEquals(1, aborted);
+	}
+
+	@Test
+	public void testAbortAfterReleaseStillAborts() throws Exception {
+		SharedBoomFiles files = new SharedBoomFiles(null);
+		SharedBoomFile a = files.acquire("topic:0", "topic-0", opener());
+		files.acquire("topic:0", "topic-1", opener());
+
+		// topic-0's shift ended but its offsets aren't committed yet when it aborts
+		Future<Void> released = files.release("topic:0", a, "topic-0");
+		files.abort(null, a, "topic-0");
+		assertTrue(a.isAborted());
+
+		files.release("topic:0", a, "topic-1");
+		try {
+			released.get();
+			fail("the released holder's commit went ahead");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+		assertEquals(0, closed);
+		assertEquals(1, aborted);
+	}
+
+	@Test
+	public void testAbortByLastHolder() throws Exception {
+		SharedBoomFiles files = new SharedBoomFiles(null);
+		SharedBoomFile a = files.acquire("topic:0", "topic-0", opener());
+		Future<Void> aborting = files.abort("topic:0", a, "topic-0");
+		assertTrue(aborting.isDone());
+		assertEquals(1, aborted);
+		assertEquals(0, files.size());
+	}
+
+	@Test
+	public void testNewFileOnceClosing() throws Exception {
+		SharedBoomFiles files = new SharedBoomFiles(null);
+		SharedBoomFile a = files.acquire("topic:0", "topic-0", opener());
+		files.release("topic:0", a, "topic-0");
+		SharedBoomFile b = files.acquire("topic:0", "topic-0", opener());
+		assertNotSame(a, b);
+		assertEquals(2, opened);
+	}
+
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bdp.kaboom;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class StripeSizerTest {
+
+	private static final long TARGET = 10 * 1024 * 1024;
+
+	private StripeSizer newSizer() {
+		return new StripeSizer("topic-0", 4, TARGET, 1000);
+	}
+
+	@Test
+	public void testNoChangeBeforeInterval() {
+		StripeSizer sizer = newSizer();
+		sizer.bytesWritten(Integer.MAX_VALUE);
+		assertFalse(sizer.adjust(System.currentTimeMillis() - 1));
+		assertEquals(1, sizer.getStripes());
+	}
+
+	@Test
+	public void testGrowsToObservedRate() {
+		StripeSizer sizer = newSizer();
+		long now = System.currentTimeMillis();
+		sizer.bytesWritten((int) (TARGET * 2 + 1));
+		assertTrue(sizer.adjust(now + 1000));
+		assertEquals(3, sizer.getStripes());
+	}
+
+	@Test
+	public void testBoundedByMaxStripes() {
+		StripeSizer sizer = newSizer();
+		long now = System.currentTimeMillis();
+		sizer.bytesWritten(Integer.MAX_VALUE);
+		sizer.adjust(now + 1000);
+		assertEquals(4, sizer.getStripes());
+	}
+
+	@Test
+	public void testShrinksOneStripePerInterval() {
+		StripeSizer sizer = newSizer();
+		long now = System.currentTimeMillis();
+		sizer.bytesWritten(Integer.MAX_VALUE);
+		sizer.adjust(now + 1000);
+		assertTrue(sizer.adjust(now + 2000));
+		assertEquals(3, sizer.getStripes());
+		assertTrue(sizer.adjust(now + 3000));
+		assertEquals(2, sizer.getStripes());
+		assertTrue(sizer.adjust(now + 4000));
+		assertEquals(1, sizer.getStripes());
+		assertFalse(sizer.adjust(now + 5000));
+		assertEquals(1, sizer.getStripes());
+	}
+
+}
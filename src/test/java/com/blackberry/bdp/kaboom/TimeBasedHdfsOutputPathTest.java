@@ -0,0 +1,166 @@
+/*
+ * Copyright 2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bdp.kaboom;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TimeBasedHdfsOutputPathTest {
+
+	@Test
+	public void testSegmentZeroIsTheFileItself() {
+		assertEquals("topic-3-1234.bm", TimeBasedHdfsOutputPath.segmentFilename("topic-3-1234.bm", 0));
+	}
+
+	@Test
+	public void testSegmentsKeepTheExtension() {
+		assertEquals("topic-3-1234_1.bm", TimeBasedHdfsOutputPath.segmentFilename("topic-3-1234.bm", 1));
+		assertEquals("topic-3-1234_12.bm", TimeBasedHdfsOutputPath.segmentFilename("topic-3-1234.bm", 12));
+		assertEquals("skewed.topic-3-1234_2.bm", TimeBasedHdfsOutputPath.segmentFilename("skewed.topic-3-1234.bm", 2));
+	}
+
+	@Test
+	public void testSegmentWithoutExtension() {
+		assertEquals("topic-3-1234_1", TimeBasedHdfsOutputPath.segmentFilename("topic-3-1234", 1));
+	}
+
+	@Test
+	public void testStripesKeepTheExtension() {
+		assertEquals("topic-3-1234_s1.bm", TimeBasedHdfsOutputPath.stripeFilename("topic-3-1234.bm", 1));
+		assertEquals("topic-3-1234_2_s3.bm", TimeBasedHdfsOutputPath.stripeFilename("topic-3-1234_2.bm", 3));
+	}
+
+	@Test
+	public void testSegmentPatternIsAnchoredToNumericSegments() {
+		Pattern pattern = TimeBasedHdfsOutputPath.segmentPattern("topic-3-1234.bm", "_tmp_", false);
+		assertTrue(pattern.matcher("topic-3-1234.bm").matches());
+		assertTrue(pattern.matcher("topic-3-1234_2.bm").matches());
+		assertTrue(pattern.matcher("_tmp_topic-3-1234_3.bm").matches());
+		assertFalse(pattern.matcher("topic-3-1234_s1.bm").matches());
+		assertFalse(pattern.matcher("topic-3-12345.bm").matches());
+		assertFalse(pattern.matcher("topic-3-1234_x.bm").matches());
+		assertFalse(pattern.matcher("topic-3-1234.bm.idx").matches());
+	}
+
+	@Test
+	public void testStalePatternMatchesStripes() {
+		Pattern pattern = TimeBasedHdfsOutputPath.segmentPattern("topic-3-1234.bm", "_tmp_", true);
+		assertTrue(pattern.matcher("topic-3-1234_s1.bm").matches());
+		assertTrue(pattern.matcher("topic-3-1234_2_s3.bm").matches());
+		assertFalse(pattern.matcher("topic-3-12345_s1.bm").matches());
+	}
+
+	@Test
+	public void testReopenAfterEvictionTakesTheNextSegment() {
+		// Segments 1 and 2 were committed, 3 is still closing and the
+		// stripes and other files of the period must not count
+		List<String> names = Arrays.asList(
+			 "topic-3-1234.bm",
+			 "topic-3-1234_1.bm",
+			 "topic-3-1234_2.bm",
+			 "_tmp_topic-3-1234_3.bm",
+			 "topic-3-1234_s7.bm",
+			 "topic-3-1234_2_s9.bm",
+			 "topic-3-12345_40.bm");
+		assertEquals(4, TimeBasedHdfsOutputPath.nextSegment("topic-3-1234.bm", "_tmp_", names));
+	}
+
+	@Test
+	public void testReopenWithoutSegmentsTakesTheFirst() {
+		assertEquals(1, TimeBasedHdfsOutputPath.nextSegment("topic-3-1234.bm", "_tmp_",
+			 Arrays.asList("topic-3-1234.bm")));
+		assertEquals(1, TimeBasedHdfsOutputPath.nextSegment("topic-3-1234.bm", "_tmp_",
+			 Collections.<String>emptyList()));
+	}
+
+	@Test
+	public void testReopenOfSkewedFile() {
+		assertEquals(2, TimeBasedHdfsOutputPath.nextSegment("skewed.topic-3-1234.bm", null,
+			 Arrays.asList("skewed.topic-3-1234.bm", "skewed.topic-3-1234_1.bm", "topic-3-1234_5.bm")));
+	}
+
+	@Test
+	public void testPreOpenWaitsForTheLeadTime() {
+		long hour = 3600 * 1000L;
+		long start = 400000 * hour;
+		assertEquals(-1, TimeBasedHdfsOutputPath.preOpenPeriodStart(start + 10 * 60 * 1000, hour, 60 * 1000, 0, 60 * 1000));
+		assertEquals(-1, TimeBasedHdfsOutputPath.preOpenPeriodStart(start + hour - 61 * 1000, hour, 60 * 1000, 0, 60 * 1000));
+		assertEquals(start + hour, TimeBasedHdfsOutputPath.preOpenPeriodStart(start + hour - 60 * 1000, hour, 60 * 1000, 0, 60 * 1000));
+		assertEquals(start + hour, TimeBasedHdfsOutputPath.preOpenPeriodStart(start + hour - 1, hour, 60 * 1000, 0, 60 * 1000));
+	}
+
+	@Test
+	public void testPreOpenSkipsLaggingWorkers() {
+		long hour = 3600 * 1000L;
+		long now = 400000 * hour + hour - 30 * 1000;
+		assertEquals(400001 * hour, TimeBasedHdfsOutputPath.preOpenPeriodStart(now, hour, 60 * 1000, 60 * 1000, 60 * 1000));
+		assertEquals(-1, TimeBasedHdfsOutputPath.preOpenPeriodStart(now, hour, 60 * 1000, 61 * 1000, 60 * 1000));
+		assertEquals(-1, TimeBasedHdfsOutputPath.preOpenPeriodStart(now, hour, 60 * 1000, 5 * hour, 60 * 1000));
+	}
+
+	@Test
+	public void testStaleFileGlobsCoverOpenFiles() {
+		assertEquals(Arrays.asList("topic-3-*", "_tmp_topic-3-*", "_tmp_topic-3-*/*"),
+			 TimeBasedHdfsOutputPath.staleFileGlobs("topic-3", "_tmp_", null));
+	}
+
+	@Test
+	public void testStaleFileGlobsCoverSkewedFiles() {
+		assertEquals(Arrays.asList("topic-3-*", "_tmp_topic-3-*", "_tmp_topic-3-*/*",
+			 "skewed.topic-3-*", "_tmp_skewed.topic-3-*", "_tmp_skewed.topic-3-*/*"),
+			 TimeBasedHdfsOutputPath.staleFileGlobs("topic-3", "_tmp_", "skewed."));
+	}
+
+	@Test
+	public void testStaleFileGlobsWithoutATmpPrefix() {
+		assertEquals(Arrays.asList("topic-3-*", "topic-3-*/*"),
+			 TimeBasedHdfsOutputPath.staleFileGlobs("topic-3", "", null));
+	}
+
+	@Test
+	public void testSkewedPeriodsAreQuarantined() {
+		long hour = 3600 * 1000L;
+		long now = 400000 * hour + 30 * 60 * 1000;
+		assertFalse(TimeBasedHdfsOutputPath.skewed(400000 * hour, now, hour, 24 * hour));
+		assertFalse(TimeBasedHdfsOutputPath.skewed(400001 * hour, now, hour, 24 * hour));
+		assertTrue(TimeBasedHdfsOutputPath.skewed(400002 * hour, now, hour, 24 * hour));
+		assertFalse(TimeBasedHdfsOutputPath.skewed(399977 * hour, now, hour, 24 * hour));
+		assertTrue(TimeBasedHdfsOutputPath.skewed(399976 * hour, now, hour, 24 * hour));
+	}
+
+	@Test
+	public void testUnsetSkewLimitsNeverQuarantine() {
+		long hour = 3600 * 1000L;
+		long now = 400000 * hour;
+		assertFalse(TimeBasedHdfsOutputPath.skewed(500000 * hour, now, -1, -1));
+		assertFalse(TimeBasedHdfsOutputPath.skewed(0, now, -1, -1));
+		assertTrue(TimeBasedHdfsOutputPath.skewed(0, now, -1, 0));
+	}
+
+	@Test
+	public void testQuarantineFileIsKeptWithinItsShiftAndLimits() {
+		long now = 1000000;
+		assertFalse(TimeBasedHdfsOutputPath.quarantineRollDue(3, 1023, now - 59999, 3, now, 1024, 60000));
+		assertTrue(TimeBasedHdfsOutputPath.quarantineRollDue(3, 1024, now - 59999, 3, now, 1024, 60000));
+		assertTrue(TimeBasedHdfsOutputPath.quarantineRollDue(3, 1023, now - 60000, 3, now, 1024, 60000));
+		assertTrue(TimeBasedHdfsOutputPath.quarantineRollDue(3, 0, now, 4, now, 1024, 60000));
+	}
+
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bdp.kaboom;
+
+import static org.junit.Assert.*;
+
+import com.blackberry.bdp.common.jmx.MetricRegistrySingleton;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WorkerSchedulerTest {
+
+	private ExecutorService workerThreads;
+
+	@Before
+	public void setUp() {
+		workerThreads = Executors.newCachedThreadPool();
+	}
+
+	@After
+	public void tearDown() {
+		workerThreads.shutdownNow();
+	}
+
+	private static class TestWorker implements WorkerScheduler.Schedulable {
+
+		private final String topic;
+		private final int lagSec;
+
+		private TestWorker(String topic, int lagSec) {
+			this.topic = topic;
+			this.lagSec = lagSec;
+		}
+
+		@Override
+		public String getTopic() {
+			return topic;
+		}
+
+		@Override
+		public int getLagSec() {
+			return lagSec;
+		}
+
+	}
+
+	/**
+	 * One slot, payments is critical and audit is debug, anything else is normal
+	 */
+	private static WorkerScheduler scheduler(long agingMs, long shareWindowMs) {
+		Map<String, String> topicClasses = new HashMap<>();
+		topicClasses.put("payments", "critical");
+		topicClasses.put("audit", "debug");
+		return new WorkerScheduler(1, 60, agingMs, shareWindowMs,
+			 WorkerScheduler.parseClassWeights("critical:8,normal:4,debug:1"), topicClasses, "normal");
+	}
+
+	private Future<Boolean> acquire(final WorkerScheduler scheduler,
+		 final WorkerScheduler.Schedulable worker,
+		 final long maxWaitMs) {
+		return workerThreads.submit(new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				return scheduler.acquire(worker, maxWaitMs);
+			}
+
+		});
+	}
+
+	private static void awaitWaiting(WorkerScheduler scheduler, int waiting) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (scheduler.getWaiting() != waiting) {
+			assertTrue("never saw " + waiting + " waiting", System.currentTimeMillis() < deadline);
+			Thread.sleep(1);
+		}
+	}
+
+	private static int sharePercent(String priorityClass) {
+		return (Integer) MetricRegistrySingleton.getInstance().getMetricsRegistry().getGauges()
+			 .get("kaboom:priority:" + priorityClass + ":cpu share percent").getValue();
+	}
+
+	@Test
+	public void testParseClassWeights() {
+		LinkedHashMap<String, Integer> weights = WorkerScheduler.parseClassWeights("critical:8, normal:4,debug:0");
+		assertEquals(new ArrayList<>(weights.keySet()).toString(), "[critical, normal, debug]");
+		assertEquals(8, (int) weights.get("critical"));
+		assertEquals(4, (int) weights.get("normal"));
+		// A weight of zero would starve the class
+		assertEquals(1, (int) weights.get("debug"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testParseClassWeightsInvalid() {
+		WorkerScheduler.parseClassWeights("critical");
+	}
+
+	@Test
+	public void testPriorityClassOf() {
+		Map<String, String> topicClasses = new HashMap<>();
+		topicClasses.put("payments", "critical");
+		topicClasses.put("misconfigured", "nonexistent");
+		WorkerScheduler scheduler = new WorkerScheduler(2, 60, 500, 10000,
+			 WorkerScheduler.parseClassWeights("critical:8,normal:4,debug:1"), topicClasses, "normal");
+		assertEquals("critical", scheduler.priorityClassOf("payments"));
+		assertEquals("normal", scheduler.priorityClassOf("misconfigured"));
+		assertEquals("normal", scheduler.priorityClassOf("unknown"));
+	}
+
+	@Test
+	public void testCriticalTopicWinsAContendedSlot() throws Exception {
+		WorkerScheduler scheduler = scheduler(Long.MAX_VALUE, 10000);
+		TestWorker holder = new TestWorker("clicks", 0);
+		TestWorker normal = new TestWorker("clicks", 0);
+		TestWorker critical = new TestWorker("payments", 0);
+		assertTrue(scheduler.acquire(holder, 0));
+
+		// The normal worker has been waiting longer but aging is off
+		Future<Boolean> normalAcquired = acquire(scheduler, normal, 5000);
+		awaitWaiting(scheduler, 1);
+		Future<Boolean> criticalAcquired = acquire(scheduler, critical, 5000);
+		awaitWaiting(scheduler, 2);
+
+		scheduler.release(holder);
+		assertTrue(criticalAcquired.get(5, TimeUnit.SECONDS));
+		assertTrue(scheduler.holds(critical));
+		assertFalse(scheduler.holds(normal));
+
+		scheduler.release(critical);
+		assertTrue(normalAcquired.get(5, TimeUnit.SECONDS));
+		assertTrue(scheduler.holds(normal));
+	}
+
+	@Test
+	public void testLaggingWorkerWinsWithinItsClass() throws Exception {
+		WorkerScheduler scheduler = scheduler(Long.MAX_VALUE, 10000);
+		TestWorker holder = new TestWorker("clicks", 0);
+		TestWorker current = new TestWorker("clicks", 0);
+		TestWorker lagging = new TestWorker("views", 120);
+		assertTrue(scheduler.acquire(holder, 0));
+
+		Future<Boolean> currentAcquired = acquire(scheduler, current, 5000);
+		awaitWaiting(scheduler, 1);
+		Future<Boolean> laggingAcquired = acquire(scheduler, lagging, 5000);
+		awaitWaiting(scheduler, 2);
+
+		scheduler.release(holder);
+		assertTrue(laggingAcquired.get(5, TimeUnit.SECONDS));
+		assertFalse(scheduler.holds(current));
+		scheduler.release(lagging);
+		assertTrue(currentAcquired.get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testScore() {
+		WorkerScheduler scheduler = scheduler(500, 10000);
+		TestWorker critical = new TestWorker("payments", 0);
+		TestWorker normal = new TestWorker("clicks", 0);
+		TestWorker lagging = new TestWorker("clicks", 120);
+		TestWorker debug = new TestWorker("audit", 0);
+
+		assertEquals(8.0, scheduler.score(critical, 1000, 1000), 0.001);
+		assertEquals(4.0, scheduler.score(normal, 1000, 1000), 0.001);
+		assertEquals(1.0, scheduler.score(debug, 1000, 1000), 0.001);
+
+		// Two minutes behind with a lag scale of a minute triples the score
+		assertEquals(12.0, scheduler.score(lagging, 1000, 1000), 0.001);
+
+		// Every agingMs waited adds the class weight again
+		assertEquals(8.0, scheduler.score(normal, 1000, 1500), 0.001);
+		assertEquals(3.0, scheduler.score(debug, 1000, 2000), 0.001);
+	}
+
+	@Test
+	public void testNoClassIsStarved() {
+		WorkerScheduler scheduler = scheduler(500, 10000);
+		TestWorker critical = new TestWorker("payments", 600);
+		TestWorker debug = new TestWorker("audit", 0);
+
+		// However far behind a critical worker is, a debug worker that's
+		// waited long enough outscores a critical worker that's just arrived
+		long waitedMs = 0;
+		while (scheduler.score(debug, 0, waitedMs) <= scheduler.score(critical, waitedMs, waitedMs)) {
+			waitedMs += 500;
+			assertTrue("debug worker starved", waitedMs < 60000);
+		}
+		assertEquals(44000, waitedMs);
+	}
+
+	@Test
+	public void testSharePercentGauges() throws Exception {
+		WorkerScheduler scheduler = scheduler(500, 0);
+		TestWorker critical = new TestWorker("payments", 0);
+		TestWorker normal = new TestWorker("clicks", 0);
+
+		assertTrue(scheduler.acquire(critical, 0));
+		Thread.sleep(20);
+		scheduler.release(critical);
+		assertEquals(100, sharePercent("critical"));
+		assertEquals(0, sharePercent("normal"));
+		assertEquals(0, sharePercent("debug"));
+
+		// Each window starts over
+		assertTrue(scheduler.acquire(normal, 0));
+		Thread.sleep(20);
+		scheduler.release(normal);
+		assertEquals(0, sharePercent("critical"));
+		assertEquals(100, sharePercent("normal"));
+	}
+
+	@Test
+	public void testInterruptedWaiterDoesntTakeTheSlot() throws Exception {
+		WorkerScheduler scheduler = scheduler(500, 10000);
+		TestWorker holder = new TestWorker("clicks", 0);
+		TestWorker interrupted = new TestWorker("payments", 0);
+		TestWorker next = new TestWorker("clicks", 0);
+		assertTrue(scheduler.acquire(holder, 0));
+
+		Future<Boolean> interruptedAcquired = acquire(scheduler, interrupted, 60000);
+		awaitWaiting(scheduler, 1);
+		interruptedAcquired.cancel(true);
+		awaitWaiting(scheduler, 0);
+
+		scheduler.release(holder);
+		assertFalse(scheduler.holds(interrupted));
+		assertTrue(scheduler.acquire(next, 0));
+	}
+
+	@Test
+	public void testUnregisterDropsTheWorkersWaiters() throws Exception {
+		WorkerScheduler scheduler = scheduler(500, 10000);
+		TestWorker holder = new TestWorker("clicks", 0);
+		TestWorker gone = new TestWorker("payments", 0);
+		TestWorker next = new TestWorker("clicks", 0);
+		assertTrue(scheduler.acquire(holder, 0));
+		scheduler.register(gone);
+
+		Future<Boolean> goneAcquired = acquire(scheduler, gone, 500);
+		awaitWaiting(scheduler, 1);
+		scheduler.unregister(gone);
+		assertEquals(0, scheduler.getWaiting());
+
+		scheduler.release(holder);
+		assertFalse(scheduler.holds(gone));
+		assertTrue(scheduler.acquire(next, 0));
+		assertFalse(goneAcquired.get(5, TimeUnit.SECONDS));
+	}
+
+}